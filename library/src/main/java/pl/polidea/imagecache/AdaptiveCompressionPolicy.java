@@ -0,0 +1,54 @@
+package pl.polidea.imagecache;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import pl.polidea.utils.Compression;
+import pl.polidea.utils.CompressionPolicy;
+
+/**
+ * Keeps bitmaps with alpha and small assets like icons in lossless PNG and
+ * stores opaque photos with a lossy format, which is several times faster to
+ * encode and smaller on disk. Images decoded from JPEG are lossy anyway, so
+ * they're stored lossy whatever their size unless they have alpha.
+ */
+public class AdaptiveCompressionPolicy implements CompressionPolicy {
+
+    public static final int DEFAULT_LOSSY_QUALITY = 85;
+
+    public static final int DEFAULT_MAX_LOSSLESS_PIXELS = 128 * 128;
+
+    private static final String JPEG = "image/jpeg";
+
+    private static final Compression LOSSLESS = new Compression(CompressFormat.PNG, 100);
+
+    private final Compression lossy;
+
+    private final int maxLosslessPixels;
+
+    public AdaptiveCompressionPolicy() {
+        this(CompressFormat.JPEG, DEFAULT_LOSSY_QUALITY, DEFAULT_MAX_LOSSLESS_PIXELS);
+    }
+
+    /**
+     * @param lossyFormat       format of opaque photos, JPEG or WEBP
+     * @param lossyQuality      quality of opaque photos
+     * @param maxLosslessPixels number of pixels up to which opaque images
+     *                          not decoded from JPEG stay lossless
+     */
+    public AdaptiveCompressionPolicy(final CompressFormat lossyFormat, final int lossyQuality,
+                                     final int maxLosslessPixels) {
+        lossy = new Compression(lossyFormat, lossyQuality);
+        this.maxLosslessPixels = maxLosslessPixels;
+    }
+
+    @Override
+    public Compression choose(final Bitmap bitmap, final String sourceMimeType) {
+        if (bitmap.hasAlpha()) {
+            return LOSSLESS;
+        }
+        if (JPEG.equals(sourceMimeType)) {
+            return lossy;
+        }
+        return bitmap.getWidth() * bitmap.getHeight() <= maxLosslessPixels ? LOSSLESS : lossy;
+    }
+}
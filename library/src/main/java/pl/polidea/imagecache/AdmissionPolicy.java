@@ -0,0 +1,27 @@
+package pl.polidea.imagecache;
+
+import pl.polidea.utils.CacheKey;
+
+/**
+ * Decides which bitmaps are worth keeping in the memory cache. Policy is
+ * informed about every access and is asked to choose between a new entry
+ * leaving the admission window and the entry which would have to be evicted
+ * from the main cache to make room for it.
+ * <p/>
+ * Methods are always called while holding the cache's lock, so
+ * implementations don't have to be thread safe.
+ */
+public interface AdmissionPolicy {
+
+    /**
+     * Records that given key was requested or inserted.
+     */
+    void recordAccess(CacheKey key);
+
+    /**
+     * @param candidateKey key of the entry trying to enter main cache
+     * @param victimKey    key of the entry which would be evicted instead
+     * @return true when candidate should replace the victim
+     */
+    boolean admit(CacheKey candidateKey, CacheKey victimKey);
+}
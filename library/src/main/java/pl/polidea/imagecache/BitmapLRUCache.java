@@ -1,23 +1,126 @@
 package pl.polidea.imagecache;
 
 import android.graphics.Bitmap;
+import java.util.Map;
 import pl.polidea.thridparty.LruCache;
+import pl.polidea.utils.CacheKey;
+import pl.polidea.utils.CacheKeyLinkedMap;
 
 /**
- * Class extends generic LRU cache using Bitmap as a value. Size of each element
- * in Cache is bitmap size.
+ * Bitmap cache kept in a single generic LRU cache. Size of each element in
+ * Cache is bitmap size. See {@link PinningBitmapCache} for pinning bitmaps.
  *
  * @author Przemysław Jakubczyk <przemyslaw.jakubczyk@pl.polidea.pl>
  */
-public class BitmapLRUCache extends LruCache<String, Bitmap> {
+public class BitmapLRUCache extends PinningBitmapCache {
+
+    private final CacheKeyLinkedMap<Bitmap> map = new CacheKeyLinkedMap<Bitmap>(true);
+
+    private final Lru lru;
 
     public BitmapLRUCache(final int maxSize) {
-        super(maxSize);
+        lru = new Lru(maxSize);
     }
 
     @Override
-    protected int sizeOf(final String key, final Bitmap value) {
-        return value.getRowBytes() * value.getHeight();
+    public Bitmap get(final CacheKey key) {
+        return lru.get(key);
     }
 
+    @Override
+    public Bitmap peek(final CacheKey key) {
+        // LruCache guards its map with its own monitor
+        synchronized (lru) {
+            return map.peek(key);
+        }
+    }
+
+    @Override
+    public Bitmap put(final CacheKey key, final Bitmap value) {
+        entryAdded(key, value);
+        return lru.put(key, value);
+    }
+
+    @Override
+    public Bitmap remove(final CacheKey key) {
+        return lru.remove(key);
+    }
+
+    @Override
+    public void evictAll() {
+        lru.evictAll();
+    }
+
+    @Override
+    public void resize(final int maxSize) {
+        lru.resize(maxSize);
+    }
+
+    @Override
+    public int size() {
+        return lru.size();
+    }
+
+    @Override
+    public int maxSize() {
+        return lru.maxSize();
+    }
+
+    @Override
+    public int hitCount() {
+        return lru.hitCount();
+    }
+
+    @Override
+    public int missCount() {
+        return lru.missCount();
+    }
+
+    @Override
+    public int createCount() {
+        return lru.createCount();
+    }
+
+    @Override
+    public int putCount() {
+        return lru.putCount();
+    }
+
+    @Override
+    public int evictionCount() {
+        return lru.evictionCount();
+    }
+
+    @Override
+    public Map<CacheKey, Bitmap> snapshot() {
+        return lru.snapshot();
+    }
+
+    @Override
+    public String toString() {
+        return lru.toString();
+    }
+
+    private final class Lru extends LruCache<CacheKey, Bitmap> {
+
+        Lru(final int maxSize) {
+            super(maxSize, map);
+        }
+
+        @Override
+        protected boolean isEvictable(final CacheKey key, final Bitmap value) {
+            return BitmapLRUCache.this.isEvictable(key, value);
+        }
+
+        @Override
+        protected void entryRemoved(final boolean evicted, final CacheKey key, final Bitmap oldValue,
+                                    final Bitmap newValue) {
+            BitmapLRUCache.this.entryRemoved(evicted, key, oldValue, newValue);
+        }
+
+        @Override
+        protected int sizeOf(final CacheKey key, final Bitmap value) {
+            return BitmapLRUCache.this.sizeOf(key, value);
+        }
+    }
 }
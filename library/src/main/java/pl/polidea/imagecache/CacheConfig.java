@@ -7,6 +7,10 @@ import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Bitmap.CompressFormat;
 import java.io.File;
+import pl.polidea.utils.CompressionPolicy;
+import pl.polidea.utils.KeyHasher;
+import pl.polidea.utils.Murmur3KeyHasher;
+import pl.polidea.utils.RawPixelPolicy;
 import pl.polidea.utils.Utils;
 
 /**
@@ -22,6 +26,46 @@ public final class CacheConfig {
 
     public static final int DEFAULT_COMPRESS_QUALITY = 100;
 
+    public static final int DEFAULT_MEMORY_CACHE_SEGMENTS = 1;
+
+    public static final int DEFAULT_BITMAP_POOL_SIZE = 0;
+
+    public static final boolean DEFAULT_RECYCLE_REMOVED_BITMAPS = false;
+
+    public static final int DEFAULT_REFERENCE_CACHE_SIZE = 0;
+
+    public static final boolean DEFAULT_WEAK_REFERENCE_CACHE = false;
+
+    public static final int DEFAULT_ENCODED_CACHE_SIZE = 0;
+
+    public static final int DEFAULT_KEY_MEMO_SIZE = 256;
+
+    public static final int DEFAULT_DISK_WRITE_QUEUE_SIZE = 0;
+
+    public static final int DEFAULT_DISK_FLUSH_COMMITS = 1;
+
+    public static final long DEFAULT_DISK_FLUSH_INTERVAL = 2000;
+
+    public static final boolean DEFAULT_PASS_THROUGH_DISK_CACHE = false;
+
+    public static final boolean DEFAULT_ASYNC_DISK_CACHE_OPEN = true;
+
+    public static final int DEFAULT_DISK_CACHE_SHARDS = 1;
+
+    public static final int DEFAULT_DISK_PACK_ENTRY_MAX_SIZE = 0;
+
+    public static final boolean DEFAULT_LEGACY_DISK_CACHE = false;
+
+    public static final boolean DEFAULT_ADAPTIVE_DISK_CACHE_SIZE = false;
+
+    public static final long DEFAULT_DISK_CACHE_MAX_SIZE = 256 * 1024 * 1024;
+
+    public static final long DEFAULT_DISK_BUDGET_INTERVAL = 60 * 1000;
+
+    public static final int DEFAULT_HOT_SET_SIZE = 0;
+
+    public static final long DEFAULT_HOT_SET_PRELOAD_TIME = 500;
+
     /**
      * Workers number defines how many threads will process cache's tasks
      * simultaneously. Default value is one thread. Small values are
@@ -32,10 +76,195 @@ public final class CacheConfig {
 
     Integer memoryCacheSize;
 
+    /**
+     * Number of independently locked segments of memory cache. One segment
+     * means a plain LRU cache guarded by a single lock. More segments let
+     * memory hits on the UI thread proceed while workers insert decoded
+     * bitmaps, at the cost of only approximate LRU eviction order.
+     */
+    Integer memoryCacheSegments;
+
+    /**
+     * Optional policy deciding which bitmaps are admitted to memory cache, see
+     * {@link TinyLfuAdmissionPolicy}. When set, memory cache is a
+     * {@link WindowedBitmapLRUCache} guarded by a single lock, so
+     * {@link #memoryCacheSegments} has to be one. Null means plain LRU.
+     */
+    AdmissionPolicy admissionPolicy;
+
+    /**
+     * Size in bytes of the pool of bitmaps evicted from memory cache, whose
+     * pixel buffers are reused when decoding new bitmaps. Zero disables the
+     * pool. Enable it only when every displayed bitmap is pinned (as
+     * {@link pl.polidea.webimageview.WebImageView} does), since pooled bitmaps
+     * are overwritten by the decoder.
+     */
+    Integer bitmapPoolSize;
+
+    /**
+     * Recycle bitmaps leaving memory cache which are not pinned and weren't
+     * taken by the pool, so their pixel memory is freed at once instead of
+     * waiting for GC. Same restriction as for {@link #bitmapPoolSize} applies.
+     */
+    Boolean recycleRemovedBitmaps;
+
+    /**
+     * Number of bitmaps evicted from memory cache which are still reachable
+     * through soft (or weak) references, so scrolling back to them doesn't
+     * need a disk read. Evicted bitmaps go to this tier instead of the pool.
+     * Zero disables the tier.
+     */
+    Integer referenceCacheSize;
+
+    /**
+     * Use weak references instead of soft ones in the reference tier.
+     */
+    Boolean weakReferenceCache;
+
+    /**
+     * Size in bytes of the tier keeping encoded images in memory, between
+     * memory and disk cache. Miss in memory cache is served by decoding bytes
+     * from this tier without touching the disk. Zero disables the tier.
+     */
+    Integer encodedCacheSize;
+
+    /**
+     * Derives cache keys from urls. Default is {@link Murmur3KeyHasher}.
+     */
+    KeyHasher keyHasher;
+
+    /**
+     * Number of urls whose keys are remembered, so views binding the same
+     * urls again don't hash them on the UI thread. Zero disables the memo.
+     */
+    Integer keyMemoSize;
+
+    /**
+     * Number of the most recently used bitmaps whose keys are saved next to
+     * disk cache when the application goes to background or memory is
+     * trimmed, and which are loaded from disk into memory cache in the
+     * background when the cache is created again. Zero disables it.
+     */
+    Integer hotSetSize;
+
+    /**
+     * Time in milliseconds after which loading of the saved bitmaps stops,
+     * see {@link #hotSetSize}.
+     */
+    Long hotSetPreloadTime;
+
+    /**
+     * Memory in bytes which bitmaps loaded at start may take, by default half
+     * of {@link #memoryCacheSize}, see {@link #hotSetSize}.
+     */
+    Integer hotSetPreloadBytes;
+
+    /**
+     * Number of images waiting to be written to disk by a background writer.
+     * Putting an image returns as soon as it's in memory; when the queue is
+     * full it waits for the writer. Images put again before they're written
+     * are persisted once. Zero writes images synchronously.
+     */
+    Integer diskWriteQueueSize;
+
+    /**
+     * Number of images written to disk after which disk cache's journal is
+     * flushed. Images whose entries weren't flushed are lost when the process
+     * is killed, so 1 flushes after every image, as older versions did. Disk
+     * cache flushes the journal when it starts an edit anyway, so batching
+     * only delays the last few entries and is off by default.
+     */
+    Integer diskFlushCommits;
+
+    /**
+     * Time in milliseconds after which the journal is flushed with the next
+     * written image, regardless of {@link #diskFlushCommits}. Zero flushes by
+     * the number of images only.
+     */
+    Long diskFlushInterval;
+
+    /**
+     * Store downloaded images on disk exactly as they came, instead of
+     * compressing processed bitmaps with {@link #compressFormat}. Saves the
+     * encoding and keeps photos as small as the server sent them. Views
+     * process the source again whenever their bitmap isn't in memory.
+     */
+    Boolean passThroughDiskCache;
+
+    /**
+     * Open disk cache in a background thread, so creating the cache on the UI
+     * thread doesn't wait for its journal to be read. Memory cache works at
+     * once; disk reads and writes made meanwhile wait in worker threads until
+     * the disk cache is open. When opening fails, disk cache stays empty
+     * instead of the constructor throwing.
+     */
+    Boolean asyncDiskCacheOpen;
+
+    /**
+     * Number of parts the disk cache is split into, each in its own
+     * sub-directory with its own journal and lock and a share of
+     * {@link #diskCacheSize}, so workers read and write in parallel. Unused
+     * size moves to shards which fill up first. Changing the number drops the
+     * images stored so far. One keeps a single cache.
+     */
+    Integer diskCacheShards;
+
+    /**
+     * Size of the biggest image appended to shared pack files of the disk
+     * cache instead of getting a file of its own. Thumbnails of a few kB each
+     * then don't cost a file and a journal line each, which keeps opening and
+     * scanning the cache fast. Packed images get an eighth of
+     * {@link #diskCacheSize}. Zero keeps every image in its own file.
+     */
+    Integer diskPackEntryMaxSize;
+
+    /**
+     * Optional policy choosing disk cache entries which are stored as raw
+     * pixels once they were read, see {@link HotRawPixelPolicy}. Raw entries
+     * are restored without decoding but take much more space. Null keeps
+     * every entry compressed.
+     */
+    RawPixelPolicy rawPixelPolicy;
+
+    /**
+     * Optional policy choosing format and quality of each image stored on
+     * disk, see {@link AdaptiveCompressionPolicy}. Null compresses every
+     * image with {@link #compressFormat} and {@link #compressQuality}.
+     */
+    CompressionPolicy compressionPolicy;
+
+    /**
+     * Keep disk cache written by versions which keyed images by SHA-1 of the
+     * url readable. Urls are hashed with
+     * {@link pl.polidea.utils.LegacySha1KeyHasher} and {@link #keyHasher} is
+     * ignored. Such cache may hold images scaled by views under the key of
+     * the original image, as it did before.
+     */
+    Boolean legacyDiskCache;
+
     String diskCachePath;
 
     Long diskCacheSize;
 
+    /**
+     * Let disk cache grow from {@link #diskCacheSize} up to
+     * {@link #diskCacheMaxSize} while it's full and misses a lot, and shrink
+     * back when free space of its volume runs low, see
+     * {@link pl.polidea.thridparty.DiskBudget}.
+     */
+    Boolean adaptiveDiskCacheSize;
+
+    /**
+     * Size adaptive disk cache never grows above, at least
+     * {@link #diskCacheSize}.
+     */
+    Long diskCacheMaxSize;
+
+    /**
+     * Time in milliseconds between evaluations of adaptive disk cache's size.
+     */
+    Long diskBudgetInterval;
+
     CompressFormat compressFormat;
 
     Integer compressQuality;
@@ -61,12 +290,81 @@ public final class CacheConfig {
         if (cacheConfig.memoryCacheSize == null || cacheConfig.memoryCacheSize < 1) {
             cacheConfig.memoryCacheSize = getDefaultMemoryCacheSize(context);
         }
+        if (cacheConfig.memoryCacheSegments == null || cacheConfig.memoryCacheSegments < 1) {
+            cacheConfig.memoryCacheSegments = DEFAULT_MEMORY_CACHE_SEGMENTS;
+        }
+        if (cacheConfig.bitmapPoolSize == null || cacheConfig.bitmapPoolSize < 0) {
+            cacheConfig.bitmapPoolSize = DEFAULT_BITMAP_POOL_SIZE;
+        }
+        if (cacheConfig.recycleRemovedBitmaps == null) {
+            cacheConfig.recycleRemovedBitmaps = DEFAULT_RECYCLE_REMOVED_BITMAPS;
+        }
+        if (cacheConfig.referenceCacheSize == null || cacheConfig.referenceCacheSize < 0) {
+            cacheConfig.referenceCacheSize = DEFAULT_REFERENCE_CACHE_SIZE;
+        }
+        if (cacheConfig.weakReferenceCache == null) {
+            cacheConfig.weakReferenceCache = DEFAULT_WEAK_REFERENCE_CACHE;
+        }
+        if (cacheConfig.encodedCacheSize == null || cacheConfig.encodedCacheSize < 0) {
+            cacheConfig.encodedCacheSize = DEFAULT_ENCODED_CACHE_SIZE;
+        }
+        if (cacheConfig.keyHasher == null) {
+            cacheConfig.keyHasher = new Murmur3KeyHasher();
+        }
+        if (cacheConfig.keyMemoSize == null || cacheConfig.keyMemoSize < 0) {
+            cacheConfig.keyMemoSize = DEFAULT_KEY_MEMO_SIZE;
+        }
+        if (cacheConfig.hotSetSize == null || cacheConfig.hotSetSize < 0) {
+            cacheConfig.hotSetSize = DEFAULT_HOT_SET_SIZE;
+        }
+        if (cacheConfig.hotSetPreloadTime == null || cacheConfig.hotSetPreloadTime < 0) {
+            cacheConfig.hotSetPreloadTime = DEFAULT_HOT_SET_PRELOAD_TIME;
+        }
+        if (cacheConfig.hotSetPreloadBytes == null || cacheConfig.hotSetPreloadBytes < 0) {
+            cacheConfig.hotSetPreloadBytes = cacheConfig.memoryCacheSize / 2;
+        }
+        if (cacheConfig.diskWriteQueueSize == null || cacheConfig.diskWriteQueueSize < 0) {
+            cacheConfig.diskWriteQueueSize = DEFAULT_DISK_WRITE_QUEUE_SIZE;
+        }
+        if (cacheConfig.diskFlushCommits == null || cacheConfig.diskFlushCommits < 1) {
+            cacheConfig.diskFlushCommits = DEFAULT_DISK_FLUSH_COMMITS;
+        }
+        if (cacheConfig.diskFlushInterval == null || cacheConfig.diskFlushInterval < 0) {
+            cacheConfig.diskFlushInterval = DEFAULT_DISK_FLUSH_INTERVAL;
+        }
+        if (cacheConfig.passThroughDiskCache == null) {
+            cacheConfig.passThroughDiskCache = DEFAULT_PASS_THROUGH_DISK_CACHE;
+        }
+        if (cacheConfig.asyncDiskCacheOpen == null) {
+            cacheConfig.asyncDiskCacheOpen = DEFAULT_ASYNC_DISK_CACHE_OPEN;
+        }
+        if (cacheConfig.diskCacheShards == null || cacheConfig.diskCacheShards < 1) {
+            cacheConfig.diskCacheShards = DEFAULT_DISK_CACHE_SHARDS;
+        }
+        if (cacheConfig.diskPackEntryMaxSize == null || cacheConfig.diskPackEntryMaxSize < 0) {
+            cacheConfig.diskPackEntryMaxSize = DEFAULT_DISK_PACK_ENTRY_MAX_SIZE;
+        }
+        if (cacheConfig.legacyDiskCache == null) {
+            cacheConfig.legacyDiskCache = DEFAULT_LEGACY_DISK_CACHE;
+        }
         if (cacheConfig.diskCachePath == null) {
             cacheConfig.diskCachePath = getDefaultDiskCachePath(context);
         }
         if (cacheConfig.diskCacheSize == null || cacheConfig.diskCacheSize < 1) {
             cacheConfig.diskCacheSize = getDefaultDiskCacheSize(context);
         }
+        if (cacheConfig.adaptiveDiskCacheSize == null) {
+            cacheConfig.adaptiveDiskCacheSize = DEFAULT_ADAPTIVE_DISK_CACHE_SIZE;
+        }
+        if (cacheConfig.diskCacheMaxSize == null || cacheConfig.diskCacheMaxSize < 1) {
+            cacheConfig.diskCacheMaxSize = DEFAULT_DISK_CACHE_MAX_SIZE;
+        }
+        if (cacheConfig.diskCacheMaxSize < cacheConfig.diskCacheSize) {
+            cacheConfig.diskCacheMaxSize = cacheConfig.diskCacheSize;
+        }
+        if (cacheConfig.diskBudgetInterval == null || cacheConfig.diskBudgetInterval < 0) {
+            cacheConfig.diskBudgetInterval = DEFAULT_DISK_BUDGET_INTERVAL;
+        }
         if (cacheConfig.compressFormat == null) {
             cacheConfig.compressFormat = DEFAULT_COMPRESS_FORMAT;
         }
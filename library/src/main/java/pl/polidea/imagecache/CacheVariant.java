@@ -0,0 +1,167 @@
+package pl.polidea.imagecache;
+
+import android.graphics.Bitmap;
+import pl.polidea.utils.CacheKey;
+
+/**
+ * Describes which version of an image is cached: the box the bitmap was
+ * scaled to fit in and the processor which produced it. Width or height of 0
+ * means the dimension isn't bounded, so {@link #ORIGINAL} stands for the image
+ * decoded in its full size.
+ * <p/>
+ * Variants made by the same processor can be derived from each other: a
+ * bitmap fitting in a smaller box can be obtained by downscaling a resident
+ * bitmap of a bigger one.
+ */
+public final class CacheVariant {
+
+    public static final String DEFAULT_PROCESSOR = "";
+
+    public static final CacheVariant ORIGINAL = new CacheVariant(0, 0, DEFAULT_PROCESSOR);
+
+    public final int width;
+
+    public final int height;
+
+    public final String processor;
+
+    /**
+     * Mixed into the image key to get the key of this variant.
+     */
+    private final long salt;
+
+    /**
+     * Key derived last, views look up the same image many times while
+     * they're bound.
+     */
+    private volatile DerivedKey lastKey;
+
+    /**
+     * @param width     width of the box, 0 when not bounded
+     * @param height    height of the box, 0 when not bounded
+     * @param processor name of the processor which produced the bitmap
+     */
+    public CacheVariant(final int width, final int height, final String processor) {
+        if (processor == null) {
+            throw new IllegalArgumentException("processor == null");
+        }
+        this.width = Math.max(0, width);
+        this.height = Math.max(0, height);
+        this.processor = processor;
+        salt = CacheKey.of(processor).high ^ ((long) this.width << 32 | this.height);
+    }
+
+    /**
+     * Creates variant of default processing scaled to fit in given box.
+     */
+    public static CacheVariant bounded(final int width, final int height) {
+        return width <= 0 && height <= 0 ? ORIGINAL : new CacheVariant(width, height, DEFAULT_PROCESSOR);
+    }
+
+    /**
+     * Returns unbounded variant produced by the same processor, which is the
+     * biggest one other variants can be derived from.
+     */
+    public CacheVariant unbounded() {
+        return DEFAULT_PROCESSOR.equals(processor) ? ORIGINAL : new CacheVariant(0, 0, processor);
+    }
+
+    public boolean isOriginal() {
+        return equals(ORIGINAL);
+    }
+
+    public boolean isBounded() {
+        return width > 0 || height > 0;
+    }
+
+    /**
+     * Builds key of this variant from the key of the image. Original variant
+     * uses the image key itself.
+     */
+    public CacheKey keyFor(final CacheKey imageKey) {
+        if (isOriginal()) {
+            return imageKey;
+        }
+        final DerivedKey last = lastKey;
+        if (last != null && last.imageKey.equals(imageKey)) {
+            return last.variantKey;
+        }
+        final CacheKey variantKey = imageKey.derive(salt);
+        lastKey = new DerivedKey(imageKey, variantKey);
+        return variantKey;
+    }
+
+    /**
+     * Checks whether bitmap of another variant of the same processor is big
+     * enough to be downscaled to this variant. Upscaling would lose quality,
+     * so smaller bitmaps can't be used.
+     */
+    public boolean canBeScaledFrom(final Bitmap source) {
+        return isBounded() && scaleOf(source) >= 1;
+    }
+
+    /**
+     * Downscales bitmap of another variant of the same processor to fit in
+     * this variant's box.
+     *
+     * @return scaled bitmap, the source itself when it already has the right
+     * size or null when the source is too small to be downscaled
+     */
+    public Bitmap scaleFrom(final Bitmap source) {
+        if (!canBeScaledFrom(source)) {
+            return null;
+        }
+        final float scale = scaleOf(source);
+        final int scaledWidth = Math.max(1, (int) (source.getWidth() / scale));
+        final int scaledHeight = Math.max(1, (int) (source.getHeight() / scale));
+        if (scaledWidth == source.getWidth() && scaledHeight == source.getHeight()) {
+            return source;
+        }
+        return Bitmap.createScaledBitmap(source, scaledWidth, scaledHeight, true);
+    }
+
+    private float scaleOf(final Bitmap source) {
+        float scale = 0;
+        if (width > 0) {
+            scale = Math.max(scale, source.getWidth() / (float) width);
+        }
+        if (height > 0) {
+            scale = Math.max(scale, source.getHeight() / (float) height);
+        }
+        return scale;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CacheVariant)) {
+            return false;
+        }
+        final CacheVariant other = (CacheVariant) o;
+        return width == other.width && height == other.height && processor.equals(other.processor);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * width + height) + processor.hashCode();
+    }
+
+    private static final class DerivedKey {
+
+        final CacheKey imageKey;
+
+        final CacheKey variantKey;
+
+        DerivedKey(final CacheKey imageKey, final CacheKey variantKey) {
+            this.imageKey = imageKey;
+            this.variantKey = variantKey;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CacheVariant [width=" + width + ", height=" + height + ", processor=" + processor + "]";
+    }
+}
@@ -0,0 +1,36 @@
+package pl.polidea.imagecache;
+
+import pl.polidea.thridparty.LruCache;
+import pl.polidea.utils.CacheKey;
+import pl.polidea.utils.CacheKeyLinkedMap;
+
+/**
+ * Tier between memory and disk cache keeping encoded (compressed) images.
+ * Encoded image is many times smaller than its decoded pixels, so the same
+ * amount of memory covers much more images. Miss in memory cache is served by
+ * decoding the bytes, without opening a file on disk. Size of each element is
+ * the length of its data.
+ */
+public class EncodedImageCache extends LruCache<CacheKey, byte[]> {
+
+    private final int baseMaxSize;
+
+    public EncodedImageCache(final int maxSize) {
+        super(maxSize, new CacheKeyLinkedMap<byte[]>(true));
+        baseMaxSize = maxSize;
+    }
+
+    /**
+     * Evicts least recently used entries until only given fraction of the
+     * size is used. The cache may grow back to its full size afterwards.
+     */
+    public void trimToFraction(final float fraction) {
+        resize((int) (baseMaxSize * fraction));
+        resize(baseMaxSize);
+    }
+
+    @Override
+    protected int sizeOf(final CacheKey key, final byte[] value) {
+        return value.length;
+    }
+}
@@ -0,0 +1,105 @@
+package pl.polidea.imagecache;
+
+/**
+ * Count-min sketch estimating how often a key was seen. Each entry of the
+ * table packs sixteen 4-bit counters, a key is counted in four of them chosen
+ * by different hash functions and its frequency is the minimum of these
+ * counters. After a number of increments proportional to the table size all
+ * counters are halved, so the sketch forgets old popularity and follows
+ * changes in access pattern.
+ * <p/>
+ * This class is not thread safe.
+ */
+public class FrequencySketch {
+
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+            0xcbf29ce484222325L};
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private static final int MAX_COUNTER = 15;
+
+    private final long[] table;
+
+    private final int tableMask;
+
+    private final int sampleSize;
+
+    private int size;
+
+    /**
+     * @param expectedEntries estimated number of distinct keys kept in cache
+     */
+    public FrequencySketch(final int expectedEntries) {
+        if (expectedEntries < 1) {
+            throw new IllegalArgumentException("expectedEntries < 1");
+        }
+        int length = 16;
+        while (length < expectedEntries) {
+            length <<= 1;
+        }
+        table = new long[length];
+        tableMask = length - 1;
+        sampleSize = 10 * length;
+    }
+
+    /**
+     * Returns estimated number of occurrences of the key, at most 15.
+     */
+    public int frequency(final Object key) {
+        final int hash = spread(key.hashCode());
+        final int start = (hash & 3) << 2;
+        int frequency = MAX_COUNTER;
+        for (int i = 0; i < 4; i++) {
+            final int index = indexOf(hash, i);
+            final int count = (int) (table[index] >>> (start + i << 2) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Increments estimated number of occurrences of the key and ages all
+     * counters when sample period is reached.
+     */
+    public void increment(final Object key) {
+        final int hash = spread(key.hashCode());
+        final int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++size == sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(final int index, final int counter) {
+        final int offset = counter << 2;
+        final long mask = 0xfL << offset;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = table[i] >>> 1 & RESET_MASK;
+        }
+        size >>>= 1;
+    }
+
+    private int indexOf(final int hash, final int depth) {
+        long value = (hash + SEEDS[depth]) * SEEDS[depth];
+        value += value >>> 32;
+        return (int) value & tableMask;
+    }
+
+    private static int spread(int hash) {
+        hash = (hash >>> 16 ^ hash) * 0x45d9f3b;
+        hash = (hash >>> 16 ^ hash) * 0x45d9f3b;
+        return hash >>> 16 ^ hash;
+    }
+}
@@ -0,0 +1,62 @@
+package pl.polidea.imagecache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import pl.polidea.utils.CacheKey;
+import pl.polidea.utils.Freshness;
+
+/**
+ * Remembers freshness of the most recently used images, so telling whether a
+ * cached image has to be revalidated doesn't take reading disk. An image may
+ * be indexed without freshness, which means it never expires.
+ */
+class FreshnessIndex {
+
+    static final int DEFAULT_MAX_IMAGES = 256;
+
+    private final Map<CacheKey, Freshness> freshness;
+
+    FreshnessIndex() {
+        this(DEFAULT_MAX_IMAGES);
+    }
+
+    FreshnessIndex(final int maxImages) {
+        freshness = new LinkedHashMap<CacheKey, Freshness>(0, 0.75f, true) {
+
+            private static final long serialVersionUID = 4125835713092861127L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<CacheKey, Freshness> eldest) {
+                return size() > maxImages;
+            }
+        };
+    }
+
+    /**
+     * @param imageFreshness freshness of the image or null when it never
+     *                       expires
+     */
+    synchronized void put(final CacheKey imageKey, final Freshness imageFreshness) {
+        freshness.put(imageKey, imageFreshness);
+    }
+
+    synchronized boolean contains(final CacheKey imageKey) {
+        return freshness.containsKey(imageKey);
+    }
+
+    /**
+     * @return freshness of the image, null when it never expires or isn't
+     * indexed
+     */
+    synchronized Freshness get(final CacheKey imageKey) {
+        return freshness.get(imageKey);
+    }
+
+    synchronized void remove(final CacheKey imageKey) {
+        freshness.remove(imageKey);
+    }
+
+    synchronized void clear() {
+        freshness.clear();
+    }
+}
@@ -0,0 +1,51 @@
+package pl.polidea.imagecache;
+
+import android.graphics.Bitmap;
+import pl.polidea.utils.RawPixelPolicy;
+
+/**
+ * Stores an entry as raw pixels once it was decoded from disk a few times
+ * and its pixels are small enough. Reads are counted by
+ * {@link FrequencySketch}, so entries read long ago slowly stop counting.
+ */
+public class HotRawPixelPolicy implements RawPixelPolicy {
+
+    public static final int DEFAULT_MAX_BYTES = 256 * 1024;
+
+    public static final int DEFAULT_MIN_READS = 3;
+
+    public static final int DEFAULT_EXPECTED_ENTRIES = 512;
+
+    private final FrequencySketch sketch;
+
+    private final int maxBytes;
+
+    private final int minReads;
+
+    public HotRawPixelPolicy() {
+        this(DEFAULT_MAX_BYTES, DEFAULT_MIN_READS, DEFAULT_EXPECTED_ENTRIES);
+    }
+
+    /**
+     * @param maxBytes        largest size of pixels stored raw
+     * @param minReads        number of reads making an entry hot, at most 15
+     * @param expectedEntries estimated number of entries in disk cache
+     */
+    public HotRawPixelPolicy(final int maxBytes, final int minReads, final int expectedEntries) {
+        if (minReads < 1) {
+            throw new IllegalArgumentException("minReads < 1");
+        }
+        this.maxBytes = maxBytes;
+        this.minReads = minReads;
+        sketch = new FrequencySketch(expectedEntries);
+    }
+
+    @Override
+    public synchronized boolean shouldStoreRaw(final String key, final Bitmap bitmap) {
+        if (bitmap.getConfig() == null || bitmap.getRowBytes() * bitmap.getHeight() > maxBytes) {
+            return false;
+        }
+        sketch.increment(key);
+        return sketch.frequency(key) >= minReads;
+    }
+}
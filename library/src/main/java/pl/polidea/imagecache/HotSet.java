@@ -0,0 +1,200 @@
+package pl.polidea.imagecache;
+
+import android.graphics.Bitmap;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import pl.polidea.utils.CacheKey;
+import pl.polidea.utils.Utils;
+
+/**
+ * Keys of the most recently used bitmaps of memory cache together with their
+ * sizes, saved to a file when the application goes to background, so the
+ * bitmaps can be loaded from disk cache once the process is started again.
+ * Bounded variants keep their image's key and the variant as well, so they
+ * can be indexed again. Entries are kept most recent first.
+ */
+class HotSet {
+
+    private static final int VERSION = 2;
+
+    private final File file;
+
+    private final int maxEntries;
+
+    /**
+     * @param maxEntries number of the most recently used bitmaps which are
+     *                   saved
+     */
+    HotSet(final File file, final int maxEntries) {
+        this.file = file;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Picks the most recently used bitmaps from snapshot of memory cache,
+     * which lists them least recently used first. Variants found in the index
+     * are saved with their image.
+     */
+    List<Entry> select(final Map<CacheKey, Bitmap> snapshot, final VariantIndex variantIndex) {
+        final Map<CacheKey, CacheKey> imageKeys = new HashMap<CacheKey, CacheKey>();
+        final Map<CacheKey, CacheVariant> variants = new HashMap<CacheKey, CacheVariant>();
+        for (final Map.Entry<CacheKey, List<CacheVariant>> image : variantIndex.snapshot().entrySet()) {
+            for (final CacheVariant variant : image.getValue()) {
+                final CacheKey variantKey = variant.keyFor(image.getKey());
+                imageKeys.put(variantKey, image.getKey());
+                variants.put(variantKey, variant);
+            }
+        }
+        final List<Entry> entries = new ArrayList<Entry>(Math.min(maxEntries, snapshot.size()));
+        final List<Map.Entry<CacheKey, Bitmap>> ordered = new ArrayList<Map.Entry<CacheKey, Bitmap>>(
+                snapshot.entrySet());
+        Collections.reverse(ordered);
+        for (final Map.Entry<CacheKey, Bitmap> entry : ordered) {
+            if (entries.size() >= maxEntries) {
+                break;
+            }
+            final Bitmap bitmap = entry.getValue();
+            if (bitmap != null && !bitmap.isRecycled()) {
+                entries.add(new Entry(entry.getKey(), bitmap.getWidth(), bitmap.getHeight(),
+                        bitmap.getRowBytes() * bitmap.getHeight(), imageKeys.get(entry.getKey()),
+                        variants.get(entry.getKey())));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Replaces the saved entries at once, so a crash while saving leaves the
+     * previous ones.
+     */
+    void save(final List<Entry> entries) throws IOException {
+        final File temp = new File(file.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (final Entry entry : entries) {
+                writeKey(out, entry.key);
+                out.writeInt(entry.width);
+                out.writeInt(entry.height);
+                out.writeInt(entry.byteCount);
+                out.writeBoolean(entry.imageKey != null);
+                if (entry.imageKey != null) {
+                    writeKey(out, entry.imageKey);
+                    out.writeInt(entry.variant.width);
+                    out.writeInt(entry.variant.height);
+                    out.writeUTF(entry.variant.processor);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Renaming " + temp + " failed");
+        }
+    }
+
+    /**
+     * @return saved entries, empty when nothing was saved or the file is
+     * broken
+     */
+    List<Entry> load() {
+        final List<Entry> entries = new ArrayList<Entry>();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != VERSION) {
+                return entries;
+            }
+            final int count = Math.min(in.readInt(), maxEntries);
+            for (int i = 0; i < count; i++) {
+                final CacheKey key = readKey(in);
+                final int width = in.readInt();
+                final int height = in.readInt();
+                final int byteCount = in.readInt();
+                CacheKey imageKey = null;
+                CacheVariant variant = null;
+                if (in.readBoolean()) {
+                    imageKey = readKey(in);
+                    variant = new CacheVariant(in.readInt(), in.readInt(), in.readUTF());
+                }
+                entries.add(new Entry(key, width, height, byteCount, imageKey, variant));
+            }
+        } catch (final FileNotFoundException e) {
+            return entries;
+        } catch (final IOException e) {
+            Utils.log("Reading hot set error", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (final IOException ignored) {
+                    // nothing was written
+                }
+            }
+        }
+        return entries;
+    }
+
+    void delete() {
+        file.delete();
+    }
+
+    private static void writeKey(final DataOutputStream out, final CacheKey key) throws IOException {
+        out.writeLong(key.high);
+        out.writeLong(key.low);
+        out.writeUTF(key.name());
+    }
+
+    private static CacheKey readKey(final DataInputStream in) throws IOException {
+        return new CacheKey(in.readLong(), in.readLong(), in.readUTF());
+    }
+
+    static final class Entry {
+
+        final CacheKey key;
+
+        final int width;
+
+        final int height;
+
+        /**
+         * Memory the bitmap takes.
+         */
+        final int byteCount;
+
+        /**
+         * Key of the image the bitmap is a variant of, null when the variant
+         * isn't indexed.
+         */
+        final CacheKey imageKey;
+
+        final CacheVariant variant;
+
+        Entry(final CacheKey key, final int width, final int height, final int byteCount) {
+            this(key, width, height, byteCount, null, null);
+        }
+
+        Entry(final CacheKey key, final int width, final int height, final int byteCount, final CacheKey imageKey,
+              final CacheVariant variant) {
+            this.key = key;
+            this.width = width;
+            this.height = height;
+            this.byteCount = byteCount;
+            this.imageKey = imageKey;
+            this.variant = variant;
+        }
+    }
+}
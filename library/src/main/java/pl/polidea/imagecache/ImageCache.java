@@ -3,12 +3,30 @@
  */
 package pl.polidea.imagecache;
 
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
+import android.os.Build;
+import android.os.SystemClock;
 import android.text.TextUtils;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
+import pl.polidea.imagecache.WriteBehindQueue.PendingWrite;
+import pl.polidea.thridparty.DiskBudget;
 import pl.polidea.thridparty.DiskCache;
+import pl.polidea.utils.BitmapPool;
+import pl.polidea.utils.CacheKey;
+import pl.polidea.utils.Compression;
+import pl.polidea.utils.Freshness;
+import pl.polidea.utils.ImageMetadata;
+import pl.polidea.utils.KeyHasher;
+import pl.polidea.utils.LegacySha1KeyHasher;
+import pl.polidea.utils.MemoizingKeyHasher;
 import pl.polidea.utils.StackPoolExecutor;
 import pl.polidea.utils.Utils;
 
@@ -17,20 +35,125 @@ import pl.polidea.utils.Utils;
  */
 public class ImageCache {
 
+    /**
+     * Part of memory cache size kept under moderate memory pressure.
+     */
+    static final float MODERATE_PRESSURE_FRACTION = 0.5f;
+
+    /**
+     * Part of memory cache size kept when the process is about to be killed.
+     */
+    static final float COMPLETE_PRESSURE_FRACTION = 0f;
+
+    /**
+     * Mixed into the image key to get the key of its downloaded source.
+     */
+    static final long SOURCE_SALT = 0x9e3779b97f4a7c15L;
+
+    /**
+     * Appended to path of disk cache to get the file of the hot set.
+     */
+    static final String HOT_SET_SUFFIX = ".hot";
+
     MemoryCache memCache;
 
     DiskCache diskCache;
 
+    BitmapPool bitmapPool;
+
+    EncodedImageCache encodedCache;
+
     ExecutorService decodingBitmapsExecutor;
 
+    WriteBehindQueue writeQueue;
+
+    KeyHasher keyHasher;
+
+    MemoizingKeyHasher keyMemo;
+
+    boolean legacyDiskCache;
+
+    boolean passThrough;
+
+    final VariantIndex variantIndex = new VariantIndex();
+
+    final FreshnessIndex freshnessIndex = new FreshnessIndex();
+
+    HotSet hotSet;
+
+    long hotSetPreloadTime;
+
+    int hotSetPreloadBytes;
+
     ImageCache(final CacheConfig config) {
-        // XXX: this is done in UI thread !
+        // this is done in UI thread, so disk cache may be opened in background
         checkAllValuesFilled(config);
-        memCache = new MemoryCache(config.memoryCacheSize);
-        diskCache = new DiskCache(config.diskCachePath, config.diskCacheSize, config.compressFormat,
-                config.compressQuality);
+        memCache = new MemoryCache(config.memoryCacheSize, config.memoryCacheSegments,
+                config.admissionPolicy);
+        legacyDiskCache = config.legacyDiskCache;
+        passThrough = config.passThroughDiskCache;
+        keyHasher = legacyDiskCache ? new LegacySha1KeyHasher() : config.keyHasher;
+        diskCache = new DiskCache.Builder(config.diskCachePath, config.diskCacheSize)
+                .compressFormat(config.compressFormat)
+                .compressQuality(config.compressQuality)
+                .appVersion(legacyDiskCache ? DiskCache.LEGACY_APP_VERSION : DiskCache.APP_VERSION)
+                .async(config.asyncDiskCacheOpen)
+                .shards(config.diskCacheShards)
+                .packEntryMaxSize(config.diskPackEntryMaxSize)
+                .build();
+        diskCache.setFlushPolicy(config.diskFlushCommits, config.diskFlushInterval);
+        diskCache.setRawPixelPolicy(config.rawPixelPolicy);
+        diskCache.setCompressionPolicy(config.compressionPolicy);
+        diskCache.setFreshnessListener(new DiskCache.FreshnessListener() {
+            @Override
+            public void onFreshnessRead(final String key, final Freshness freshness) {
+                rememberFreshness(key, freshness);
+            }
+        });
+        if (config.keyMemoSize > 0) {
+            keyMemo = new MemoizingKeyHasher(keyHasher, config.keyMemoSize);
+            keyHasher = keyMemo;
+        }
+        if (config.bitmapPoolSize > 0 && BitmapPool.isReuseSupported()) {
+            bitmapPool = new BitmapPool(config.bitmapPoolSize);
+            memCache.setBitmapPool(bitmapPool);
+            diskCache.setBitmapPool(bitmapPool);
+        }
+        memCache.setRecycleRemoved(config.recycleRemovedBitmaps);
+        if (config.referenceCacheSize > 0) {
+            memCache.setReferenceCache(new ReferenceBitmapCache(config.referenceCacheSize, config.weakReferenceCache));
+        }
+        if (config.encodedCacheSize > 0) {
+            encodedCache = new EncodedImageCache(config.encodedCacheSize);
+        }
 
         decodingBitmapsExecutor = new StackPoolExecutor(config.workersNumber);
+        if (config.adaptiveDiskCacheSize) {
+            diskCache.setBudget(new DiskBudget(config.diskCacheSize, config.diskCacheMaxSize),
+                    config.diskBudgetInterval, decodingBitmapsExecutor);
+        }
+        if (config.diskWriteQueueSize > 0) {
+            writeQueue = new WriteBehindQueue(config.diskWriteQueueSize);
+            diskCache.setRawPixelWriter(new DiskCache.RawPixelWriter() {
+                @Override
+                public void storeRaw(final String key, final Bitmap bitmap) {
+                    storeRawBehind(key, bitmap);
+                }
+            });
+            final Thread writer = new Thread(new DiskWriter(), "Image disk writer");
+            writer.setPriority(Thread.MIN_PRIORITY);
+            writer.setDaemon(true);
+            writer.start();
+        }
+        if (config.hotSetSize > 0) {
+            hotSet = new HotSet(new File(config.diskCachePath + HOT_SET_SUFFIX), config.hotSetSize);
+            hotSetPreloadTime = config.hotSetPreloadTime;
+            hotSetPreloadBytes = config.hotSetPreloadBytes;
+            final Thread loader = new Thread(new HotSetLoader(), "Hot set loader");
+            loader.setPriority(Thread.MIN_PRIORITY);
+            loader.setDaemon(true);
+            loader.start();
+        }
     }
 
     private static void checkConfigNotNull(final CacheConfig config) {
@@ -41,11 +164,25 @@ public class ImageCache {
 
     void checkAllValuesFilled(final CacheConfig config) {
         checkConfigNotNull(config);
-        if (config.workersNumber == null || config.memoryCacheSize == null
-                || config.diskCachePath == null || config.diskCacheSize == null
-                || config.compressFormat == null || config.compressQuality == null) {
+        if (config.workersNumber == null || config.memoryCacheSize == null || config.memoryCacheSegments == null
+                || config.bitmapPoolSize == null || config.recycleRemovedBitmaps == null
+                || config.referenceCacheSize == null || config.weakReferenceCache == null
+                || config.encodedCacheSize == null || config.keyHasher == null || config.keyMemoSize == null
+                || config.diskWriteQueueSize == null || config.diskFlushCommits == null
+                || config.diskFlushInterval == null || config.passThroughDiskCache == null
+                || config.asyncDiskCacheOpen == null || config.diskCacheShards == null
+                || config.diskPackEntryMaxSize == null
+                || config.legacyDiskCache == null
+                || config.diskCachePath == null || config.diskCacheSize == null || config.compressFormat == null
+                || config.adaptiveDiskCacheSize == null || config.diskCacheMaxSize == null
+                || config.diskBudgetInterval == null || config.hotSetSize == null
+                || config.hotSetPreloadTime == null || config.hotSetPreloadBytes == null
+                || config.compressQuality == null) {
             throw new IllegalArgumentException("All config's fields have to be filled");
         }
+        if (config.admissionPolicy != null && config.memoryCacheSegments > 1) {
+            throw new IllegalArgumentException("Memory cache with admission policy can't be segmented");
+        }
     }
 
     /**
@@ -55,14 +192,30 @@ public class ImageCache {
      * value is always done by the listener.
      */
     public void get(final String key, final OnCacheResultListener onCacheResultListener) {
-        final String hashedKey = Utils.sha1(key);
+        get(key, CacheVariant.ORIGINAL, onCacheResultListener);
+    }
+
+    /**
+     * Ask ImageCache for given variant of the image. When the variant isn't in
+     * memory, but a bigger variant of the same processor is, the bitmap is
+     * downscaled from it in other thread instead of being read from disk. When
+     * the image surely isn't on disk either, the miss is reported at once in
+     * the calling thread.
+     */
+    public void get(final String key, final CacheVariant variant, final OnCacheResultListener onCacheResultListener) {
+        final CacheKey hashedKey = keyHasher.hash(key);
 
         if (onCacheResultListener == null) {
             throw new IllegalArgumentException("onCacheResult cannot be null");
         }
-        final Bitmap bitmap = memCache.get(hashedKey);
+        final Bitmap bitmap = memCache.get(variant.keyFor(hashedKey));
         if (bitmap == null) {
-            decodingBitmapsExecutor.submit(buildTask(key, hashedKey, onCacheResultListener));
+            if (isDefinitelyMissing(hashedKey, variant)) {
+                diskCache.countLookup(false);
+                onCacheResultListener.onCacheMiss(key);
+            } else {
+                decodingBitmapsExecutor.submit(buildTask(key, hashedKey, variant, onCacheResultListener));
+            }
         } else {
             onCacheResultListener.onCacheHit(key, bitmap);
         }
@@ -70,13 +223,77 @@ public class ImageCache {
     }
 
     /**
-     * Removes bitmpa under key from memory and disc cache.
+     * Tells whether the variant missing in memory can't be found by a
+     * {@link CacheTask} either, without touching the disk. Bounded variants
+     * which may be scaled from a bitmap in memory are always looked up. Called
+     * on the UI thread, so keys are checked by their bits and locks are taken
+     * only briefly. Encoded tier isn't checked: its images are on disk or
+     * queued for it, unless writing them failed.
+     */
+    boolean isDefinitelyMissing(final CacheKey hashedKey, final CacheVariant variant) {
+        if (variant.isBounded() && hasResidentSource(hashedKey, variant)) {
+            return false;
+        }
+        final CacheKey variantKey = variant.keyFor(hashedKey);
+        if (diskCache.mightContain(variantKey)) {
+            return false;
+        }
+        if (legacyDiskCache && !variant.isOriginal() && diskCache.mightContain(hashedKey)) {
+            return false;
+        }
+        // listener would process the stored source in the calling thread
+        if (passThrough && diskCache.mightContain(sourceKey(hashedKey))) {
+            return false;
+        }
+        return writeQueue == null || writeQueue.isEmpty() || writeQueue.get(variantKey) == null;
+    }
+
+    /**
+     * Removes bitmpa under key from memory and disc cache, together with its
+     * variants known to memory cache.
      */
     public boolean remove(final String key) {
-        final String hashedKey = Utils.sha1(key);
-        boolean removed = memCache.remove(hashedKey) != null;
+        final CacheKey hashedKey = keyHasher.hash(key);
+        boolean removed = removeDecoded(hashedKey);
+        final CacheKey sourceKey = sourceKey(hashedKey);
+        freshnessIndex.remove(sourceKey);
+        try {
+            removed = diskCache.remove(sourceKey.name()) || removed;
+        } catch (final IOException e) {
+            Utils.log("Removing source error");
+        }
+        return removed;
+    }
+
+    /**
+     * Removes bitmaps decoded from the image, keeping its stored source. Used
+     * in pass-through mode when a new source replaced the one they were
+     * decoded from.
+     */
+    public boolean removeDecoded(final String key) {
+        return removeDecoded(keyHasher.hash(key));
+    }
+
+    private boolean removeDecoded(final CacheKey hashedKey) {
+        boolean removed = remove(hashedKey, CacheVariant.ORIGINAL);
+        for (final CacheVariant variant : variantIndex.remove(hashedKey)) {
+            removed = remove(hashedKey, variant) || removed;
+        }
+        return removed;
+    }
+
+    private boolean remove(final CacheKey hashedKey, final CacheVariant variant) {
+        final CacheKey variantKey = variant.keyFor(hashedKey);
+        freshnessIndex.remove(variantKey);
+        boolean removed = memCache.remove(variantKey) != null;
+        if (writeQueue != null) {
+            removed = releasePendingWrite(writeQueue.remove(variantKey)) || removed;
+        }
+        if (encodedCache != null) {
+            removed = encodedCache.remove(variantKey) != null || removed;
+        }
         try {
-            removed = diskCache.remove(hashedKey) || removed;
+            removed = diskCache.remove(variantKey.name()) || removed;
         } catch (final IOException e) {
             Utils.log("Removing bitmap error");
         }
@@ -87,17 +304,418 @@ public class ImageCache {
      * Puts bitmap to both memory and disc cache.
      */
     public void put(final String key, final Bitmap bitmap) {
+        put(key, CacheVariant.ORIGINAL, bitmap);
+    }
+
+    /**
+     * Puts bitmap of given variant of the image to both memory and disc cache.
+     * When disk writes are queued, the call returns once the bitmap is in
+     * memory, unless the queue is full.
+     */
+    public void put(final String key, final CacheVariant variant, final Bitmap bitmap) {
+        put(key, variant, bitmap, null);
+    }
+
+    /**
+     * Puts bitmap of given variant of the image to both memory and disc cache,
+     * letting {@link CacheConfig#compressionPolicy} know what the bitmap was
+     * decoded from.
+     *
+     * @param sourceMimeType mime type of the image the bitmap was decoded
+     *                       from, null when it isn't known
+     */
+    public void put(final String key, final CacheVariant variant, final Bitmap bitmap, final String sourceMimeType) {
         if (TextUtils.isEmpty(key) || bitmap == null || bitmap.isRecycled()) {
             throw new IllegalArgumentException("Key is empty either bitmap isn't valid");
         }
-        final String hashedKey = Utils.sha1(key);
-        memCache.put(hashedKey, bitmap);
-        diskCache.put(hashedKey, bitmap);
+        final CacheKey hashedKey = keyHasher.hash(key);
+        final CacheKey variantKey = variant.keyFor(hashedKey);
+        memCache.put(variantKey, bitmap);
+        variantIndex.add(hashedKey, variant);
+        if (writeQueue == null) {
+            writeToDisk(variantKey, bitmap, null, null, sourceMimeType);
+        } else {
+            putBehind(variantKey, bitmap, sourceMimeType);
+        }
+    }
+
+    /**
+     * Puts bitmap of given variant to memory cache only, for example bitmap
+     * processed from the source stored with
+     * {@link #putSource(String, InputStream)}, which can be processed again
+     * when it's evicted.
+     */
+    public void putInMemory(final String key, final CacheVariant variant, final Bitmap bitmap) {
+        if (TextUtils.isEmpty(key) || bitmap == null || bitmap.isRecycled()) {
+            throw new IllegalArgumentException("Key is empty either bitmap isn't valid");
+        }
+        final CacheKey hashedKey = keyHasher.hash(key);
+        memCache.put(variant.keyFor(hashedKey), bitmap);
+        variantIndex.add(hashedKey, variant);
+    }
+
+    /**
+     * Stores encoded image exactly as it was downloaded, streaming it to disk
+     * cache without decoding and compressing it again. Images are processed
+     * from the source when they're read, see {@link #getSourceFile(String)}.
+     *
+     * @return file of the stored source
+     * @throws IOException when reading the stream or writing to disk failed
+     */
+    public File putSource(final String key, final InputStream in) throws IOException {
+        return diskCache.put(sourceKey(keyHasher.hash(key)).name(), in);
+    }
+
+    /**
+     * Returns file of the image's source stored with
+     * {@link #putSource(String, InputStream)} or null when there's none. The
+     * file can disappear when evicted from disk while it's being read.
+     */
+    public File getSourceFile(final String key) {
+        return diskCache.getFile(sourceKey(keyHasher.hash(key)).name());
+    }
+
+    /**
+     * Returns metadata of the image's source stored with
+     * {@link #putSource(String, InputStream)}, which saves parsing the source
+     * again when it's processed.
+     *
+     * @return the metadata or null when there's no source or it isn't known
+     */
+    public ImageMetadata getSourceMetadata(final String key) {
+        return diskCache.getMetadata(sourceKey(keyHasher.hash(key)).name());
+    }
+
+    /**
+     * Tells whether images should be stored as downloaded and processed on
+     * read, see {@link CacheConfig#passThroughDiskCache}.
+     */
+    public boolean isPassThrough() {
+        return passThrough;
+    }
+
+    CacheKey sourceKey(final CacheKey hashedKey) {
+        return hashedKey.derive(SOURCE_SALT);
+    }
+
+    public void putFreshness(final String key, final Freshness freshness) {
+        putFreshness(key, CacheVariant.ORIGINAL, freshness);
+    }
+
+    /**
+     * Stores HTTP freshness of the image in metadata of the disk entry
+     * keeping the variant, or its source in pass-through mode, so it's
+     * evicted and removed together with the image. A revalidated image only
+     * gets its metadata rewritten, so it's cheap to call on the downloading
+     * thread. Freshness of a variant still queued for disk is stored by the
+     * disk writer; freshness of an image which isn't stored is dropped.
+     *
+     * @param freshness freshness of the image or null when it never expires
+     */
+    public void putFreshness(final String key, final CacheVariant variant, final Freshness freshness) {
+        final CacheKey storedKey = storedKey(keyHasher.hash(key), variant);
+        freshnessIndex.put(storedKey, freshness);
+        if (writeQueue != null && writeQueue.get(storedKey) != null) {
+            return;
+        }
+        if (!diskCache.putFreshness(storedKey.name(), freshness)) {
+            freshnessIndex.remove(storedKey);
+        }
+    }
+
+    public Freshness getFreshness(final String key) {
+        return getFreshness(key, CacheVariant.ORIGINAL);
+    }
+
+    /**
+     * Returns HTTP freshness of the image stored with
+     * {@link #putFreshness(String, CacheVariant, Freshness)}. May read disk,
+     * so better not call it on the UI thread.
+     *
+     * @return the freshness or null when the image never expires
+     */
+    public Freshness getFreshness(final String key, final CacheVariant variant) {
+        final CacheKey storedKey = storedKey(keyHasher.hash(key), variant);
+        if (freshnessIndex.contains(storedKey)) {
+            return freshnessIndex.get(storedKey);
+        }
+        final Freshness freshness = diskCache.getFreshness(storedKey.name());
+        freshnessIndex.put(storedKey, freshness);
+        return freshness;
+    }
+
+    public boolean needsRevalidation(final String key) {
+        return needsRevalidation(key, CacheVariant.ORIGINAL);
+    }
+
+    /**
+     * Tells whether the cached image is stale and should be revalidated with
+     * the server. Doesn't read disk, so it's cheap on the UI thread; freshness
+     * is remembered when the image is read from disk, so an image whose
+     * freshness isn't known yet isn't revalidated.
+     */
+    public boolean needsRevalidation(final String key, final CacheVariant variant) {
+        final Freshness freshness = freshnessIndex.get(storedKey(keyHasher.hash(key), variant));
+        return freshness != null && !freshness.isFresh(System.currentTimeMillis());
+    }
+
+    /**
+     * Remembers freshness kept with the disk entry which has just been read,
+     * so {@link #needsRevalidation(String, CacheVariant)} knows it without
+     * reading disk.
+     */
+    void rememberFreshness(final String name, final Freshness freshness) {
+        final CacheKey storedKey = CacheKey.fromName(name);
+        if (storedKey != null) {
+            freshnessIndex.put(storedKey, freshness);
+        }
+    }
+
+    /**
+     * Returns key of the disk entry keeping the image, together with its
+     * freshness.
+     */
+    CacheKey storedKey(final CacheKey hashedKey, final CacheVariant variant) {
+        return passThrough ? sourceKey(hashedKey) : variant.keyFor(hashedKey);
+    }
+
+    /**
+     * Stores freshness which came while the image was queued for disk.
+     * Freshness put meanwhile is either seen here or stored by
+     * {@link #putFreshness(String, CacheVariant, Freshness)}, as the write is
+     * no longer queued.
+     */
+    private void storeQueuedFreshness(final CacheKey variantKey) {
+        if (!freshnessIndex.contains(variantKey)) {
+            return;
+        }
+        final Freshness freshness = freshnessIndex.get(variantKey);
+        if (freshness == null) {
+            return;
+        }
+        try {
+            diskCache.putFreshness(variantKey.name(), freshness);
+        } catch (final IllegalStateException e) {
+            // disk cache was closed by clear() in the meantime
+            Utils.log("Storing freshness error", e);
+        }
+    }
+
+    /**
+     * Queues the bitmap to be written by the disk writer. The bitmap is pinned
+     * until it's written, so memory cache can't reuse its pixels meanwhile.
+     */
+    private void putBehind(final CacheKey variantKey, final Bitmap bitmap, final String sourceMimeType) {
+        memCache.acquire(bitmap);
+        try {
+            releasePendingWrite(writeQueue.put(variantKey, bitmap, null, null, sourceMimeType));
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            memCache.release(bitmap);
+            // queue is full and we can't wait any longer, write it here
+            writeToDisk(variantKey, bitmap, null, null, sourceMimeType);
+        }
+    }
+
+    /**
+     * Queues rewriting a hot entry as raw pixels, so the thread which read it
+     * doesn't write it. The bitmap is pinned until it's written.
+     */
+    void storeRawBehind(final String name, final Bitmap bitmap) {
+        final CacheKey variantKey = CacheKey.fromName(name);
+        if (variantKey == null) {
+            return;
+        }
+        memCache.acquire(bitmap);
+        if (!writeQueue.offerRaw(variantKey, bitmap)) {
+            memCache.release(bitmap);
+        }
+    }
+
+    /**
+     * Releases the bitmap of a write which won't be persisted.
+     *
+     * @return true when there was such write
+     */
+    private boolean releasePendingWrite(final PendingWrite write) {
+        if (write == null) {
+            return false;
+        }
+        if (write.bitmap != null) {
+            memCache.release(write.bitmap);
+        }
+        return true;
+    }
+
+    /**
+     * Compresses the bitmap unless it's already encoded and stores it in the
+     * encoded tier and on disk. With the tier enabled the bitmap is compressed
+     * once for both.
+     *
+     * @param compression compression the data was encoded with, its metadata
+     *                    isn't stored when it's null
+     */
+    void writeToDisk(final CacheKey variantKey, final Bitmap bitmap, byte[] data, final Compression compression,
+                     final String sourceMimeType) {
+        if (data == null && encodedCache == null) {
+            diskCache.put(variantKey.name(), bitmap, sourceMimeType);
+            return;
+        }
+        Compression format = compression;
+        if (data == null) {
+            format = diskCache.chooseCompression(bitmap, sourceMimeType);
+            data = diskCache.compress(bitmap, format);
+            if (data == null) {
+                return;
+            }
+        }
+        final ImageMetadata metadata = bitmap == null || format == null ? null
+                : ImageMetadata.of(bitmap, format.getFormat());
+        if (encodedCache != null) {
+            encodedCache.put(variantKey, data);
+        }
+        diskCache.put(variantKey.name(), data, metadata);
+    }
+
+    /**
+     * Returns pinned bitmap of a write which isn't on disk yet. Bitmap is
+     * pinned while the queue is locked, so the writer can't release it in
+     * between.
+     */
+    private Bitmap acquirePendingBitmap(final CacheKey variantKey) {
+        synchronized (writeQueue) {
+            final PendingWrite write = writeQueue.get(variantKey);
+            if (write == null || write.bitmap == null) {
+                return null;
+            }
+            memCache.acquire(write.bitmap);
+            return write.bitmap;
+        }
+    }
+
+    /**
+     * Reads and decodes bitmap stored under the key. Images waiting for the
+     * disk writer are served from its queue, others from encoded tier when
+     * it's enabled and has the image, otherwise from disk. The bitmap is
+     * returned pinned, so memory cache can't reclaim it before the caller is
+     * done with it, even when it's evicted right after it's put there; the
+     * caller has to release it.
+     */
+    Bitmap readBitmap(final CacheKey variantKey) {
+        if (writeQueue != null) {
+            final Bitmap pending = acquirePendingBitmap(variantKey);
+            if (pending != null) {
+                return pending;
+            }
+        }
+        final Bitmap bitmap = decodeStoredBitmap(variantKey);
+        if (bitmap != null) {
+            memCache.acquire(bitmap);
+        }
+        return bitmap;
+    }
+
+    private Bitmap decodeStoredBitmap(final CacheKey variantKey) {
+        if (writeQueue != null) {
+            final PendingWrite write = writeQueue.get(variantKey);
+            if (write != null && write.data != null) {
+                return diskCache.decodeBitmap(write.data);
+            }
+        }
+        if (encodedCache == null) {
+            return diskCache.getBitmap(variantKey.name());
+        }
+        byte[] data = encodedCache.get(variantKey);
+        if (data == null) {
+            data = diskCache.getBytes(variantKey.name());
+            if (data == null) {
+                return null;
+            }
+            // raw pixels are too big for the tier, which is there to hold
+            // many compressed images
+            if (!DiskCache.isRaw(data, data.length)) {
+                encodedCache.put(variantKey, data);
+            }
+        }
+        return diskCache.decodeBitmap(variantKey.name(), data);
+    }
+
+    /**
+     * Marks the bitmap as being displayed. Memory cache won't evict it and
+     * won't reuse nor recycle it until it's released.
+     */
+    public void acquire(final Bitmap bitmap) {
+        memCache.acquire(bitmap);
+    }
+
+    /**
+     * Releases the bitmap marked with {@link #acquire(Bitmap)}, for example
+     * when a view shows another image.
+     */
+    public void release(final Bitmap bitmap) {
+        memCache.release(bitmap);
+    }
+
+    /**
+     * Marks the bitmap as being displayed only when it's still kept in memory
+     * cache under given key. Used to pin bitmap of a view again after it was
+     * released for a while.
+     *
+     * @return true when the bitmap was pinned
+     */
+    public boolean acquireIfCached(final String key, final Bitmap bitmap) {
+        // pin first, so the bitmap can't be evicted between the lookup and the check
+        memCache.acquire(bitmap);
+        final CacheKey hashedKey = keyHasher.hash(key);
+        if (memCache.peek(hashedKey) == bitmap) {
+            return true;
+        }
+        for (final CacheVariant variant : variantIndex.get(hashedKey)) {
+            if (memCache.peek(variant.keyFor(hashedKey)) == bitmap) {
+                return true;
+            }
+        }
+        memCache.release(bitmap);
+        return false;
+    }
+
+    /**
+     * Waits until images queued for the disk writer are written and flushes
+     * disk cache's journal, so everything put so far survives the process
+     * being killed. Blocks, so better not call it on the UI thread with writes
+     * queued.
+     */
+    public void flush() {
+        if (writeQueue != null) {
+            try {
+                writeQueue.awaitEmpty();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        diskCache.flush();
     }
 
     public void clear() {
+        if (writeQueue != null) {
+            for (final PendingWrite write : writeQueue.clear()) {
+                releasePendingWrite(write);
+            }
+        }
         memCache.evictAll();
+        variantIndex.clear();
+        freshnessIndex.clear();
+        if (encodedCache != null) {
+            encodedCache.evictAll();
+        }
+        if (hotSet != null) {
+            hotSet.delete();
+        }
         diskCache.clearCache();
+        if (bitmapPool != null) {
+            bitmapPool.evictAll();
+        }
     }
 
     public int getMemoryCacheSize() {
@@ -108,10 +726,33 @@ public class ImageCache {
         return memCache.maxSize();
     }
 
+    /**
+     * Returns size in bytes of the encoded tier, 0 when it's disabled.
+     */
+    public int getEncodedCacheSize() {
+        return encodedCache == null ? 0 : encodedCache.size();
+    }
+
+    public int getEncodedCacheMaxSize() {
+        return encodedCache == null ? 0 : encodedCache.maxSize();
+    }
+
+    /**
+     * Tells whether disk cache is open. Until then disk reads and writes
+     * wait for it in worker threads, while memory cache works as usual.
+     */
+    public boolean isDiskCacheOpen() {
+        return diskCache.isOpen();
+    }
+
     public long getDiskCacheSize() {
         return diskCache.getSize();
     }
 
+    /**
+     * Returns current size of disk cache's budget, which changes over time
+     * when {@link CacheConfig#adaptiveDiskCacheSize} is set.
+     */
     public long getDiskCacheMaxSize() {
         return diskCache.getMaxSize();
     }
@@ -128,32 +769,350 @@ public class ImageCache {
         return diskCache.getCompressQuality();
     }
 
-    CacheTask buildTask(String key, String hashedKey, OnCacheResultListener onCacheResultListener) {
-        return new CacheTask(key, hashedKey, onCacheResultListener);
+    /**
+     * Returns the number of images waiting to be written to disk, 0 when
+     * writes aren't queued.
+     */
+    public int getPendingDiskWrites() {
+        return writeQueue == null ? 0 : writeQueue.size();
+    }
+
+    /**
+     * Returns pool of reusable bitmaps or null when pooling is disabled.
+     */
+    public BitmapPool getBitmapPool() {
+        return bitmapPool;
+    }
+
+    /**
+     * Returns memo of url keys, whose hit counts tell how often binding a url
+     * skipped hashing, or null when the memo is disabled.
+     */
+    public MemoizingKeyHasher getKeyMemo() {
+        return keyMemo;
+    }
+
+    /**
+     * Registers for application's memory pressure notifications, so the cache
+     * is trimmed automatically. Requires Ice Cream Sandwich, on older platforms
+     * {@link #onLowMemory()} has to be called by the application.
+     */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    public void registerMemoryCallbacks(final Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            context.getApplicationContext().registerComponentCallbacks(new MemoryTrimmer(this));
+        }
+    }
+
+    /**
+     * Shrinks memory cache according to the level passed to
+     * {@link ComponentCallbacks2#onTrimMemory(int)}: by half on moderate
+     * pressure, completely when the process is likely to be killed. Cache gets
+     * its size back once the pressure is gone, see
+     * {@link MemoryCache#PRESSURE_RELIEF_DELAY_MS}. Journal of disk cache is
+     * flushed and the hot set saved in the background when the UI is hidden,
+     * since the process may be killed anytime afterwards.
+     */
+    public void onTrimMemory(final int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            flushJournal();
+            saveHotSet();
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            trimMemory(COMPLETE_PRESSURE_FRACTION);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimMemory(MODERATE_PRESSURE_FRACTION);
+        }
+    }
+
+    /**
+     * Evicts all bitmaps from memory, see
+     * {@link android.content.ComponentCallbacks#onLowMemory()}.
+     */
+    public void onLowMemory() {
+        saveHotSet();
+        trimMemory(COMPLETE_PRESSURE_FRACTION);
+    }
+
+    /**
+     * Saves keys of the most recently used bitmaps in the background, so they
+     * are loaded again when the cache is created in a new process, see
+     * {@link CacheConfig#hotSetSize}. Keys are taken before returning, so
+     * memory may be trimmed right after.
+     */
+    public void saveHotSet() {
+        if (hotSet == null) {
+            return;
+        }
+        final List<HotSet.Entry> entries = hotSet.select(memCache.snapshot(), variantIndex);
+        decodingBitmapsExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    hotSet.save(entries);
+                } catch (final IOException e) {
+                    Utils.log("Saving hot set error", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Flushes journal of disk cache in the background, it may wait for the
+     * cache to be opened.
+     */
+    private void flushJournal() {
+        decodingBitmapsExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                diskCache.flush();
+            }
+        });
+    }
+
+    void trimMemory(final float fraction) {
+        memCache.trimToFraction(fraction);
+        if (encodedCache != null) {
+            encodedCache.trimToFraction(fraction);
+        }
+        if (bitmapPool != null) {
+            bitmapPool.trimToSize((int) (bitmapPool.maxSize() * fraction));
+        }
+    }
+
+    CacheTask buildTask(String key, CacheKey hashedKey, OnCacheResultListener onCacheResultListener) {
+        return buildTask(key, hashedKey, CacheVariant.ORIGINAL, onCacheResultListener);
+    }
+
+    CacheTask buildTask(String key, CacheKey hashedKey, CacheVariant variant,
+                        OnCacheResultListener onCacheResultListener) {
+        return new CacheTask(key, hashedKey, variant, onCacheResultListener);
+    }
+
+    /**
+     * Downscales the variant from a bigger one kept in memory cache.
+     *
+     * @return the scaled bitmap, already put into memory cache and pinned
+     * like the one of {@link #readBitmap(CacheKey)}, or null when no suitable
+     * variant is resident
+     */
+    Bitmap scaleFromResidentVariant(final CacheKey hashedKey, final CacheVariant variant) {
+        if (!variant.isBounded()) {
+            return null;
+        }
+        Bitmap best = null;
+        for (final CacheVariant source : variantIndex.sources(hashedKey, variant)) {
+            final Bitmap bitmap = memCache.peek(source.keyFor(hashedKey));
+            if (bitmap == null || bitmap.isRecycled()) {
+                continue;
+            }
+            // the smallest bitmap which is still big enough is the cheapest to scale
+            if (variant.canBeScaledFrom(bitmap)
+                    && (best == null || bitmap.getWidth() * bitmap.getHeight() < best.getWidth() * best.getHeight())) {
+                best = bitmap;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        // keep the source pinned while scaling, so it can't be reclaimed meanwhile
+        memCache.acquire(best);
+        Bitmap scaled = null;
+        try {
+            if (best.isRecycled()) {
+                return null;
+            }
+            scaled = variant.scaleFrom(best);
+            if (scaled != null && scaled != best) {
+                memCache.acquire(scaled);
+                memCache.put(variant.keyFor(hashedKey), scaled);
+                variantIndex.add(hashedKey, variant);
+            }
+            return scaled;
+        } finally {
+            if (scaled != best) {
+                memCache.release(best);
+            }
+        }
+    }
+
+    /**
+     * Tells whether memory holds a bitmap the bounded variant may be scaled
+     * from by {@link #scaleFromResidentVariant(CacheKey, CacheVariant)}.
+     */
+    private boolean hasResidentSource(final CacheKey hashedKey, final CacheVariant variant) {
+        for (final CacheVariant source : variantIndex.sources(hashedKey, variant)) {
+            final Bitmap bitmap = memCache.peek(source.keyFor(hashedKey));
+            if (bitmap != null && !bitmap.isRecycled() && variant.canBeScaledFrom(bitmap)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Loads bitmaps of the saved hot set from disk into memory cache, the most
+     * recently used first, until time or memory given to it runs out. Runs in
+     * a background thread of low priority, so it doesn't hold up requests of
+     * the first screen; bitmaps they already loaded are skipped.
+     */
+    class HotSetLoader implements Runnable {
+
+        @Override
+        public void run() {
+            final long deadline = SystemClock.uptimeMillis() + hotSetPreloadTime;
+            long bytes = 0;
+            int loaded = 0;
+            for (final HotSet.Entry entry : hotSet.load()) {
+                if (SystemClock.uptimeMillis() >= deadline) {
+                    break;
+                }
+                // a smaller bitmap further down may still fit
+                if (bytes + entry.byteCount > hotSetPreloadBytes || memCache.peek(entry.key) != null) {
+                    continue;
+                }
+                final Bitmap bitmap;
+                try {
+                    bitmap = readBitmap(entry.key);
+                } catch (final IllegalStateException e) {
+                    // disk cache was closed by clear() in the meantime
+                    Utils.log("Loading hot set error", e);
+                    return;
+                }
+                if (bitmap != null) {
+                    memCache.put(entry.key, bitmap);
+                    if (entry.imageKey != null) {
+                        variantIndex.add(entry.imageKey, entry.variant);
+                    }
+                    memCache.release(bitmap);
+                    bytes += entry.byteCount;
+                    loaded++;
+                }
+            }
+            Utils.log("Hot set loaded " + loaded + " bitmaps, " + bytes / 1024 + " kB");
+        }
+    }
+
+    /**
+     * Persists queued images one by one in a background thread of low
+     * priority.
+     */
+    class DiskWriter implements Runnable {
+
+        @Override
+        public void run() {
+            while (true) {
+                final PendingWrite write;
+                try {
+                    write = writeQueue.take();
+                } catch (final InterruptedException e) {
+                    return;
+                }
+                try {
+                    if (write.raw) {
+                        diskCache.putRaw(write.key.name(), write.bitmap);
+                        if (encodedCache != null) {
+                            // compressed copy would be decoded instead of the raw pixels
+                            encodedCache.remove(write.key);
+                        }
+                    } else {
+                        writeToDisk(write.key, write.bitmap, write.data, write.compression, write.sourceMimeType);
+                    }
+                    if (write.cancelled) {
+                        // removed while being written, don't let it come back
+                        if (encodedCache != null) {
+                            encodedCache.remove(write.key);
+                        }
+                        diskCache.remove(write.key.name());
+                    }
+                } catch (final IOException e) {
+                    Utils.log("Removing bitmap error");
+                } catch (final IllegalStateException e) {
+                    // disk cache was closed by clear() in the meantime
+                    Utils.log("Writing bitmap error", e);
+                } finally {
+                    writeQueue.done(write);
+                    releasePendingWrite(write);
+                }
+                if (!write.raw && !write.cancelled) {
+                    storeQueuedFreshness(write.key);
+                }
+                if (writeQueue.size() == 0) {
+                    // burst of writes is over, commit its journal at once
+                    diskCache.flush();
+                }
+            }
+        }
     }
 
     class CacheTask implements Runnable {
 
-        String hashedKey;
+        CacheKey hashedKey;
 
         String key;
 
+        CacheVariant variant;
+
         OnCacheResultListener onCacheResultListener;
 
-        public CacheTask(String key, String hashedKey, OnCacheResultListener onCacheResultListener) {
+        public CacheTask(String key, CacheKey hashedKey, OnCacheResultListener onCacheResultListener) {
+            this(key, hashedKey, CacheVariant.ORIGINAL, onCacheResultListener);
+        }
+
+        public CacheTask(String key, CacheKey hashedKey, CacheVariant variant,
+                         OnCacheResultListener onCacheResultListener) {
             this.key = key;
             this.hashedKey = hashedKey;
+            this.variant = variant;
             this.onCacheResultListener = onCacheResultListener;
         }
 
         @Override
         public void run() {
-            Bitmap bitmap = diskCache.getBitmap(hashedKey);
-            if (bitmap == null || bitmap.isRecycled()) {
+            Bitmap bitmap = scaleFromResidentVariant(hashedKey, variant);
+            if (bitmap != null) {
+                deliverHit(bitmap);
+                return;
+            }
+            final CacheKey variantKey = variant.keyFor(hashedKey);
+            try {
+                // reading the entry remembers its freshness for the UI thread
+                bitmap = readBitmap(variantKey);
+                if (bitmap == null && legacyDiskCache && !variant.isOriginal()) {
+                    // caches of version 1 kept bitmaps of every processor under the url's key
+                    bitmap = readBitmap(hashedKey);
+                }
+            } catch (final IllegalStateException e) {
+                // disk cache was cleared meanwhile, which closes the shards being read
+                Utils.log("Reading cleared disk cache", e);
+                bitmap = null;
+            }
+            diskCache.countLookup(bitmap != null);
+            if (bitmap == null) {
                 onCacheResultListener.onCacheMiss(key);
-            } else {
-                memCache.put(hashedKey, bitmap);
+                return;
+            }
+            if (bitmap.isRecycled()) {
+                memCache.release(bitmap);
+                onCacheResultListener.onCacheMiss(key);
+                return;
+            }
+            memCache.put(variantKey, bitmap);
+            variantIndex.add(hashedKey, variant);
+            deliverHit(bitmap);
+        }
+
+        /**
+         * Passes the pinned bitmap to the listener, which pins it again when
+         * it shows it. A trimmed memory cache may have evicted it already, then
+         * it's reclaimed once the listener drops it.
+         */
+        private void deliverHit(final Bitmap bitmap) {
+            try {
                 onCacheResultListener.onCacheHit(key, bitmap);
+            } finally {
+                memCache.release(bitmap);
             }
         }
     }
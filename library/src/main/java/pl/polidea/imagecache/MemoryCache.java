@@ -1,7 +1,10 @@
 package pl.polidea.imagecache;
 
 import android.graphics.Bitmap;
+import android.os.SystemClock;
 import java.util.Map;
+import pl.polidea.utils.BitmapPool;
+import pl.polidea.utils.CacheKey;
 import pl.polidea.utils.Utils;
 
 /**
@@ -9,10 +12,93 @@ import pl.polidea.utils.Utils;
  */
 public class MemoryCache {
 
-    BitmapLRUCache cache;
+    /**
+     * Time after the last trim request when cache gets back its configured
+     * size.
+     */
+    public static final long PRESSURE_RELIEF_DELAY_MS = 30 * 1000;
+
+    PinningBitmapCache cache;
+
+    final int baseMaxSize;
+
+    ReferenceBitmapCache referenceCache;
+
+    private boolean trimmed;
+
+    private long trimmedAt;
 
     public MemoryCache(final int size) {
-        cache = new BitmapLRUCache(size);
+        this(size, CacheConfig.DEFAULT_MEMORY_CACHE_SEGMENTS);
+    }
+
+    /**
+     * Creates memory cache split into given number of segments. Passing more
+     * than one segment creates {@link SegmentedBitmapLRUCache}.
+     */
+    public MemoryCache(final int size, final int segments) {
+        this(size, segments, null);
+    }
+
+    /**
+     * Creates memory cache which admits bitmaps according to given policy.
+     * Such cache isn't segmented, so passing a policy with more than one
+     * segment throws IllegalArgumentException. Passing null policy creates
+     * plain LRU cache split into given number of segments.
+     */
+    public MemoryCache(final int size, final int segments, final AdmissionPolicy admissionPolicy) {
+        baseMaxSize = size;
+        if (admissionPolicy != null && segments > 1) {
+            throw new IllegalArgumentException("Memory cache with admission policy can't be segmented");
+        }
+        if (admissionPolicy != null) {
+            cache = new WindowedBitmapLRUCache(size, admissionPolicy);
+        } else if (segments > 1) {
+            cache = new SegmentedBitmapLRUCache(size, segments);
+        } else {
+            cache = new BitmapLRUCache(size);
+        }
+    }
+
+    /**
+     * Sets pool which receives bitmaps evicted from this cache.
+     */
+    public void setBitmapPool(final BitmapPool bitmapPool) {
+        cache.setBitmapPool(bitmapPool);
+    }
+
+    /**
+     * Sets second tier keeping references to bitmaps evicted from this cache.
+     * Null disables the tier.
+     */
+    public void setReferenceCache(final ReferenceBitmapCache referenceCache) {
+        this.referenceCache = referenceCache;
+        cache.setReferenceCache(referenceCache);
+    }
+
+    /**
+     * Enables recycling bitmaps which left the cache while not pinned.
+     */
+    public void setRecycleRemoved(final boolean recycleRemoved) {
+        cache.setRecycleRemoved(recycleRemoved);
+    }
+
+    /**
+     * Pins the bitmap, so it's not evicted nor reclaimed until released.
+     */
+    public void acquire(final Bitmap bitmap) {
+        cache.acquire(bitmap);
+    }
+
+    /**
+     * Releases the bitmap pinned with {@link #acquire(Bitmap)}.
+     */
+    public void release(final Bitmap bitmap) {
+        cache.release(bitmap);
+    }
+
+    public int pinnedCount() {
+        return cache.pinnedCount();
     }
 
     public int createCount() {
@@ -21,44 +107,146 @@ public class MemoryCache {
 
     public void evictAll() {
         cache.evictAll();
+        if (referenceCache != null) {
+            referenceCache.evictAll();
+        }
     }
 
     public int evictionCount() {
         return cache.evictionCount();
     }
 
-    public Bitmap get(final String key) {
-        return cache.get(key);
+    /**
+     * Returns bitmap kept in the cache. When it was evicted but is still
+     * reachable through the reference tier, it's put back to the cache.
+     */
+    public Bitmap get(final CacheKey key) {
+        Bitmap bitmap = cache.get(key);
+        if (bitmap == null && referenceCache != null) {
+            bitmap = referenceCache.remove(key);
+            if (bitmap != null) {
+                Utils.log("Bitmap " + key + " restored from reference tier");
+                cache.put(key, bitmap);
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Returns bitmap kept in the cache without counting it as an access, see
+     * {@link PinningBitmapCache#peek(CacheKey)}. Bitmaps in the reference tier
+     * aren't restored.
+     */
+    public Bitmap peek(final CacheKey key) {
+        return cache.peek(key);
+    }
+
+    /**
+     * Returns the number of bitmaps restored from the reference tier.
+     */
+    public int referenceHitCount() {
+        return referenceCache == null ? 0 : referenceCache.hitCount();
+    }
+
+    /**
+     * Returns the number of misses which weren't served by the reference tier
+     * either.
+     */
+    public int referenceMissCount() {
+        return referenceCache == null ? 0 : referenceCache.missCount();
     }
 
     public int hitCount() {
         return cache.hitCount();
     }
 
+    /**
+     * Returns current size limit, which is lower than configured one while
+     * memory is trimmed.
+     */
     public int maxSize() {
         return cache.maxSize();
     }
 
+    /**
+     * Returns size limit the cache was configured with.
+     */
+    public int baseMaxSize() {
+        return baseMaxSize;
+    }
+
+    /**
+     * Shrinks the cache to given fraction of configured size, evicting least
+     * recently used bitmaps. Cache never grows on trim request, full size is
+     * restored {@link #PRESSURE_RELIEF_DELAY_MS} after the last one.
+     *
+     * @param fraction part of configured size the cache can use, 0 evicts all
+     *                 bitmaps
+     */
+    public void trimToFraction(final float fraction) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException("fraction has to be in range [0, 1]");
+        }
+        final int size = Math.min((int) (baseMaxSize * fraction), cache.maxSize());
+        synchronized (this) {
+            trimmed = true;
+            trimmedAt = SystemClock.uptimeMillis();
+        }
+        Utils.log("Trimming memory cache to " + size / 1024 + " KB");
+        cache.resize(size);
+        if (size == 0 && referenceCache != null) {
+            referenceCache.evictAll();
+        }
+    }
+
+    /**
+     * Gives the cache back its configured size.
+     */
+    public void restoreMaxSize() {
+        synchronized (this) {
+            trimmed = false;
+        }
+        cache.resize(baseMaxSize);
+    }
+
+    public synchronized boolean isTrimmed() {
+        return trimmed;
+    }
+
+    private void restoreIfPressurePassed() {
+        synchronized (this) {
+            if (!trimmed || SystemClock.uptimeMillis() - trimmedAt < PRESSURE_RELIEF_DELAY_MS) {
+                return;
+            }
+        }
+        Utils.log("Restoring memory cache size");
+        restoreMaxSize();
+    }
+
     public int missCount() {
         return cache.missCount();
     }
 
     /**
      * Puts bitmap to cache. Both key and value can't be null. Inserting bitmap
-     * bigger than MemoryCache size throw IllegalArgumentException.
+     * bigger than configured MemoryCache size throw IllegalArgumentException.
+     * While the cache is trimmed, bitmap may be evicted right away and then
+     * it's reclaimed unless it's pinned, so callers which go on using the
+     * bitmap have to {@link #acquire(Bitmap)} it before putting it.
      *
      * @param key
      * @param bitmap
      */
-    public Bitmap put(final String key, final Bitmap bitmap) {
+    public Bitmap put(final CacheKey key, final Bitmap bitmap) {
         if (key == null || bitmap == null) {
             throw new IllegalArgumentException("key == null || value == null");
         }
         final int size = bitmap.getRowBytes() * bitmap.getHeight();
-        if (size > maxSize()) {
+        if (size > baseMaxSize) {
             throw new IllegalArgumentException("Tried to put bitmap of size: " + size / 1024
-                    + " KB, while maximum memory cache size is: " + maxSize() / 1024 + " KB.");
+                    + " KB, while maximum memory cache size is: " + baseMaxSize / 1024 + " KB.");
         }
+        restoreIfPressurePassed();
         Bitmap put = cache.put(key, bitmap);
         Utils.log("Inserting " + key + " into LRU Cache Bitmap with size: " + size + "B " + " width:"
                 + bitmap.getWidth() + "\theight: " + bitmap.getHeight() + " Cache size: " + size() / 1000 + " KB");
@@ -70,7 +258,10 @@ public class MemoryCache {
         return cache.putCount();
     }
 
-    public Bitmap remove(final String key) {
+    public Bitmap remove(final CacheKey key) {
+        if (referenceCache != null) {
+            referenceCache.discard(key);
+        }
         return cache.remove(key);
     }
 
@@ -78,7 +269,7 @@ public class MemoryCache {
         return cache.size();
     }
 
-    public Map<String, Bitmap> snapshot() {
+    public Map<CacheKey, Bitmap> snapshot() {
         return cache.snapshot();
     }
 
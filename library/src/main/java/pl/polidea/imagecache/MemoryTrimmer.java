@@ -0,0 +1,34 @@
+package pl.polidea.imagecache;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.os.Build;
+
+/**
+ * Passes memory pressure notifications of the application to the image cache.
+ */
+@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+class MemoryTrimmer implements ComponentCallbacks2 {
+
+    private final ImageCache imageCache;
+
+    MemoryTrimmer(final ImageCache imageCache) {
+        this.imageCache = imageCache;
+    }
+
+    @Override
+    public void onTrimMemory(final int level) {
+        imageCache.onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        imageCache.onLowMemory();
+    }
+
+    @Override
+    public void onConfigurationChanged(final Configuration newConfig) {
+        // nothing to do
+    }
+}
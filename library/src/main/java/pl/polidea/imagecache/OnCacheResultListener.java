@@ -4,11 +4,20 @@ import android.graphics.Bitmap;
 
 
 /**
+ * Receives result of {@link ImageCache#get(String, OnCacheResultListener)}.
+ * Bitmaps found in memory cache and images which surely aren't cached are
+ * reported right away on the thread calling get(), usually the UI thread;
+ * the others are reported on a cache worker thread once they're looked up.
+ *
  * @author Przemysław Jakubczyk <przemyslaw.jakubczyk@pl.polidea.pl>
  */
 public interface OnCacheResultListener {
 
     void onCacheHit(String key, Bitmap bitmap);
 
+    /**
+     * Called when the image isn't cached, either on the thread which asked
+     * for it or on a worker thread, see {@link OnCacheResultListener}.
+     */
     void onCacheMiss(String key);
 }
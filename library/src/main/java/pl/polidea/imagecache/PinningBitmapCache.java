@@ -0,0 +1,236 @@
+package pl.polidea.imagecache;
+
+import android.graphics.Bitmap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import pl.polidea.utils.BitmapPool;
+import pl.polidea.utils.CacheKey;
+
+/**
+ * Base of bitmap memory caches, which keeps track of pinned bitmaps and
+ * reclaims the ones leaving the cache. Subclasses keep the entries
+ * themselves.
+ * <p/>
+ * Bitmaps which are displayed can be pinned with {@link #acquire(Bitmap)}.
+ * Pinned bitmaps are never evicted to make space. Bitmaps leaving the cache
+ * unpinned are reclaimed at once: given to the {@link BitmapPool} or recycled
+ * when {@link #setRecycleRemoved(boolean)} is enabled. Pinned bitmaps removed
+ * from the cache are reclaimed when their last reference is released.
+ */
+public abstract class PinningBitmapCache {
+
+    private volatile BitmapPool bitmapPool;
+
+    private volatile boolean recycleRemoved;
+
+    private volatile ReferenceBitmapCache referenceCache;
+
+    /**
+     * Number of references to pinned bitmaps, guarded by its own monitor.
+     */
+    private final Map<Bitmap, Integer> references = new IdentityHashMap<Bitmap, Integer>();
+
+    /**
+     * Pinned bitmaps which were removed from the cache.
+     */
+    private final Map<Bitmap, Boolean> detached = new IdentityHashMap<Bitmap, Boolean>();
+
+    public abstract Bitmap get(CacheKey key);
+
+    /**
+     * Returns the cached bitmap without any side effect: access order,
+     * admission frequencies and hit statistics stay as they were. Meant for
+     * the cache's own probes, which aren't requests for the image.
+     */
+    public abstract Bitmap peek(CacheKey key);
+
+    /**
+     * Caches the bitmap. Implementations have to call
+     * {@link #entryAdded(CacheKey, Bitmap)} before the bitmap can be evicted.
+     *
+     * @return the previous bitmap of the key
+     */
+    public abstract Bitmap put(CacheKey key, Bitmap value);
+
+    public abstract Bitmap remove(CacheKey key);
+
+    /**
+     * Removes all entries, pinned ones as well.
+     */
+    public abstract void evictAll();
+
+    /**
+     * Sets the size of the cache, evicting least recently used entries when
+     * the current size exceeds the new one.
+     */
+    public abstract void resize(int maxSize);
+
+    public abstract int size();
+
+    public abstract int maxSize();
+
+    public abstract int hitCount();
+
+    public abstract int missCount();
+
+    public abstract int createCount();
+
+    public abstract int putCount();
+
+    public abstract int evictionCount();
+
+    /**
+     * Returns a copy of the current contents of the cache, ordered from least
+     * recently accessed to most recently accessed.
+     */
+    public abstract Map<CacheKey, Bitmap> snapshot();
+
+    /**
+     * Sets pool which receives bitmaps evicted to make space. Null disables
+     * reusing evicted bitmaps.
+     */
+    public void setBitmapPool(final BitmapPool bitmapPool) {
+        this.bitmapPool = bitmapPool;
+    }
+
+    public BitmapPool getBitmapPool() {
+        return bitmapPool;
+    }
+
+    /**
+     * Sets second tier receiving bitmaps evicted to make space, instead of
+     * reclaiming them. Bitmaps dropped from the tier are reclaimed. Null
+     * disables the tier.
+     */
+    public void setReferenceCache(final ReferenceBitmapCache referenceCache) {
+        this.referenceCache = referenceCache;
+    }
+
+    public ReferenceBitmapCache getReferenceCache() {
+        return referenceCache;
+    }
+
+    /**
+     * Enables recycling bitmaps which left the cache unpinned and weren't
+     * accepted by the pool. Enable it only when all displayed bitmaps are
+     * pinned.
+     */
+    public void setRecycleRemoved(final boolean recycleRemoved) {
+        this.recycleRemoved = recycleRemoved;
+    }
+
+    /**
+     * Adds a reference to the bitmap. Until all references are released the
+     * bitmap won't be evicted, reused nor recycled.
+     */
+    public void acquire(final Bitmap bitmap) {
+        synchronized (references) {
+            final Integer count = references.get(bitmap);
+            references.put(bitmap, count == null ? 1 : count + 1);
+        }
+    }
+
+    /**
+     * Releases a reference to the bitmap taken with {@link #acquire(Bitmap)}.
+     * Bitmap which was removed from the cache while pinned is reclaimed when
+     * its last reference is released.
+     */
+    public void release(final Bitmap bitmap) {
+        synchronized (references) {
+            final Integer count = references.get(bitmap);
+            if (count == null) {
+                return;
+            }
+            if (count > 1) {
+                references.put(bitmap, count - 1);
+                return;
+            }
+            references.remove(bitmap);
+            if (detached.remove(bitmap) == null) {
+                return;
+            }
+        }
+        reclaim(bitmap);
+    }
+
+    public boolean isPinned(final Bitmap bitmap) {
+        synchronized (references) {
+            return references.containsKey(bitmap);
+        }
+    }
+
+    /**
+     * Returns the number of bitmaps which are pinned at the moment.
+     */
+    public int pinnedCount() {
+        synchronized (references) {
+            return references.size();
+        }
+    }
+
+    /**
+     * Called before a bitmap is put to the cache.
+     */
+    protected void entryAdded(final CacheKey key, final Bitmap value) {
+        if (value == null) {
+            return;
+        }
+        synchronized (references) {
+            // bitmap is back in the cache, it mustn't be reclaimed on release
+            detached.remove(value);
+        }
+    }
+
+    /**
+     * Returns false for pinned bitmaps, which mustn't be evicted to make
+     * space.
+     */
+    protected boolean isEvictable(final CacheKey key, final Bitmap value) {
+        return !isPinned(value);
+    }
+
+    /**
+     * Called for bitmaps which left the cache, see
+     * {@link pl.polidea.thridparty.LruCache#entryRemoved}.
+     */
+    protected void entryRemoved(final boolean evicted, final CacheKey key, final Bitmap oldValue,
+                                final Bitmap newValue) {
+        if (oldValue == newValue) {
+            return;
+        }
+        final ReferenceBitmapCache tier = referenceCache;
+        if (evicted && tier != null) {
+            // pinned bitmaps are evicted only by evictAll(), which drops the tier anyway
+            final Bitmap dropped = tier.put(key, oldValue);
+            if (dropped != null) {
+                reclaimUnlessPinned(dropped);
+            }
+            return;
+        }
+        reclaimUnlessPinned(oldValue);
+    }
+
+    private void reclaimUnlessPinned(final Bitmap bitmap) {
+        synchronized (references) {
+            if (references.containsKey(bitmap)) {
+                detached.put(bitmap, Boolean.TRUE);
+                return;
+            }
+        }
+        reclaim(bitmap);
+    }
+
+    private void reclaim(final Bitmap bitmap) {
+        final BitmapPool pool = bitmapPool;
+        if (pool != null && pool.put(bitmap)) {
+            return;
+        }
+        if (recycleRemoved && !bitmap.isRecycled()) {
+            bitmap.recycle();
+        }
+    }
+
+    protected int sizeOf(final CacheKey key, final Bitmap value) {
+        return value.getRowBytes() * value.getHeight();
+    }
+}
@@ -0,0 +1,121 @@
+package pl.polidea.imagecache;
+
+import android.graphics.Bitmap;
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Map;
+import pl.polidea.utils.CacheKey;
+import pl.polidea.utils.CacheKeyLinkedMap;
+
+/**
+ * Second tier of memory cache keeping bitmaps recently evicted from
+ * {@link BitmapLRUCache} behind soft or weak references. Bitmap which is still
+ * reachable on the heap can be taken back without reading and decoding it from
+ * disk. Number of entries is limited, the eldest ones are dropped first.
+ */
+public class ReferenceBitmapCache {
+
+    private final CacheKeyLinkedMap<Reference<Bitmap>> map = new CacheKeyLinkedMap<Reference<Bitmap>>();
+
+    private final int maxEntries;
+
+    private final boolean weak;
+
+    private int hitCount;
+
+    private int missCount;
+
+    /**
+     * @param maxEntries maximum number of references kept
+     * @param weak       true to keep weak references, which are cleared on
+     *                   the next GC, instead of soft ones
+     */
+    public ReferenceBitmapCache(final int maxEntries, final boolean weak) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries <= 0");
+        }
+        this.maxEntries = maxEntries;
+        this.weak = weak;
+    }
+
+    /**
+     * Keeps a reference to evicted bitmap.
+     *
+     * @return bitmap dropped to make room for the new one, if it's still
+     * reachable, otherwise null
+     */
+    public synchronized Bitmap put(final CacheKey key, final Bitmap bitmap) {
+        map.remove(key);
+        map.put(key, weak ? new WeakReference<Bitmap>(bitmap) : new SoftReference<Bitmap>(bitmap));
+        if (map.size() <= maxEntries) {
+            return null;
+        }
+        final Iterator<Map.Entry<CacheKey, Reference<Bitmap>>> iterator = map.entrySet().iterator();
+        final Bitmap dropped = iterator.next().getValue().get();
+        iterator.remove();
+        return dropped;
+    }
+
+    /**
+     * Takes the bitmap out of this tier.
+     *
+     * @return bitmap if it wasn't collected nor recycled yet, otherwise null
+     */
+    public synchronized Bitmap remove(final CacheKey key) {
+        final Reference<Bitmap> reference = map.remove(key);
+        final Bitmap bitmap = reference == null ? null : reference.get();
+        if (bitmap == null || bitmap.isRecycled()) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return bitmap;
+    }
+
+    /**
+     * Drops reference kept under the key without counting a miss.
+     */
+    public synchronized void discard(final CacheKey key) {
+        map.remove(key);
+    }
+
+    public synchronized void evictAll() {
+        map.clear();
+    }
+
+    /**
+     * Returns the number of kept references, including the ones already
+     * cleared by GC.
+     */
+    public synchronized int size() {
+        return map.size();
+    }
+
+    public int maxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Returns the number of times {@link #remove} returned a bitmap.
+     */
+    public synchronized int hitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of times {@link #remove} returned null.
+     */
+    public synchronized int missCount() {
+        return missCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final int accesses = hitCount + missCount;
+        final int hitPercent = accesses != 0 ? 100 * hitCount / accesses : 0;
+        return String.format("ReferenceBitmapCache[maxEntries=%d,weak=%b,hits=%d,misses=%d,hitRate=%d%%]",
+                maxEntries, weak, hitCount, missCount, hitPercent);
+    }
+}
@@ -0,0 +1,374 @@
+package pl.polidea.imagecache;
+
+import android.graphics.Bitmap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import pl.polidea.utils.CacheKey;
+import pl.polidea.utils.CacheKeyLinkedMap;
+
+/**
+ * Bitmap LRU cache split into independently locked segments. A key is mapped
+ * to a segment by its hash, so lookups of different keys don't block each
+ * other. Size of all segments is limited by one global budget. When the budget
+ * is exceeded the least recently used entry among the segments' eldest entries
+ * is evicted, which gives an approximate LRU order across the whole cache.
+ * Each segment publishes access time of its eldest entry, so choosing the
+ * victim locks only the segment it's evicted from.
+ */
+public class SegmentedBitmapLRUCache extends PinningBitmapCache {
+
+    private final Segment[] segments;
+
+    private final int segmentMask;
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private volatile int maxSize;
+
+    public SegmentedBitmapLRUCache(final int maxSize, final int segmentsNumber) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (segmentsNumber < 1) {
+            throw new IllegalArgumentException("segmentsNumber < 1");
+        }
+        this.maxSize = maxSize;
+        int count = 1;
+        while (count < segmentsNumber) {
+            count <<= 1;
+        }
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment();
+        }
+        segmentMask = count - 1;
+    }
+
+    @Override
+    public Bitmap get(final CacheKey key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        final Segment segment = segmentFor(key);
+        synchronized (segment) {
+            final Entry entry = segment.map.get(key);
+            if (entry != null) {
+                entry.accessTime = System.nanoTime();
+                segment.hitCount++;
+                segment.updateEldest();
+                return entry.value;
+            }
+            segment.missCount++;
+            return null;
+        }
+    }
+
+    @Override
+    public Bitmap peek(final CacheKey key) {
+        final Segment segment = segmentFor(key);
+        synchronized (segment) {
+            final Entry entry = segment.map.peek(key);
+            return entry == null ? null : entry.value;
+        }
+    }
+
+    @Override
+    public Bitmap put(final CacheKey key, final Bitmap value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        final int entrySize = sizeOf(key, value);
+        if (entrySize < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        entryAdded(key, value);
+        final Segment segment = segmentFor(key);
+        final Entry previous;
+        synchronized (segment) {
+            segment.putCount++;
+            previous = segment.map.put(key, new Entry(key, value, entrySize, System.nanoTime()));
+            segment.updateEldest();
+        }
+        size.addAndGet(previous == null ? entrySize : entrySize - previous.size);
+
+        if (previous != null) {
+            entryRemoved(false, key, previous.value, value);
+        }
+
+        trimToSize(maxSize);
+        return previous == null ? null : previous.value;
+    }
+
+    @Override
+    public Bitmap remove(final CacheKey key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        final Segment segment = segmentFor(key);
+        final Entry previous;
+        synchronized (segment) {
+            previous = segment.map.remove(key);
+            segment.updateEldest();
+        }
+        if (previous == null) {
+            return null;
+        }
+        size.addAndGet(-previous.size);
+        entryRemoved(false, key, previous.value, null);
+        return previous.value;
+    }
+
+    @Override
+    public void evictAll() {
+        final List<Entry> evicted = new ArrayList<Entry>();
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                evicted.addAll(segment.map.values());
+                segment.evictionCount += segment.map.size();
+                segment.map.clear();
+                segment.updateEldest();
+            }
+        }
+        for (final Entry entry : evicted) {
+            size.addAndGet(-entry.size);
+            entryRemoved(true, entry.key, entry.value, null);
+        }
+    }
+
+    @Override
+    public void resize(final int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize < 0");
+        }
+        this.maxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    private void trimToSize(final int maxSize) {
+        while (size.get() > maxSize) {
+            final Entry evicted = evictEldest();
+            if (evicted == null) {
+                break;
+            }
+            entryRemoved(true, evicted.key, evicted.value, null);
+        }
+    }
+
+    /**
+     * Removes entry which was least recently accessed among the eldest entries
+     * of all segments. The victim segment is chosen from published access
+     * times without locking, so the choice may be slightly out of date when
+     * other threads access the cache meanwhile.
+     *
+     * @return removed entry or null when there is nothing to evict
+     */
+    private Entry evictEldest() {
+        for (int attempt = 0; attempt <= segments.length; attempt++) {
+            Segment victimSegment = null;
+            long victimAccessTime = Long.MAX_VALUE;
+            for (final Segment segment : segments) {
+                final long eldestAccessTime = segment.eldestAccessTime;
+                if (eldestAccessTime < victimAccessTime) {
+                    victimSegment = segment;
+                    victimAccessTime = eldestAccessTime;
+                }
+            }
+            if (victimSegment == null) {
+                return null;
+            }
+            synchronized (victimSegment) {
+                final Entry eldest = eldestEvictable(victimSegment);
+                if (eldest != null) {
+                    victimSegment.map.remove(eldest.key);
+                    victimSegment.evictionCount++;
+                    size.addAndGet(-eldest.size);
+                }
+                // pinned entries skipped got the current time, so the segment
+                // isn't chosen again unless it's the only one left
+                victimSegment.updateEldest();
+                if (eldest != null) {
+                    return eldest;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns least recently used entry of the segment which isn't pinned.
+     * Pinned entries are moved behind the others as if they were accessed, so
+     * following evictions don't scan them again. Must be called holding
+     * segment's lock.
+     */
+    private Entry eldestEvictable(final Segment segment) {
+        for (int i = segment.map.size(); i > 0; i--) {
+            final Entry eldest = segment.map.eldestValue();
+            if (isEvictable(eldest.key, eldest.value)) {
+                return eldest;
+            }
+            eldest.accessTime = System.nanoTime();
+            segment.map.get(eldest.key);
+        }
+        return null;
+    }
+
+    private Segment segmentFor(final CacheKey key) {
+        final int hash = key.hashCode();
+        return segments[(hash ^ hash >>> 16) & segmentMask];
+    }
+
+    /**
+     * Number of segments the cache was split into, always a power of two.
+     */
+    public int segmentsNumber() {
+        return segments.length;
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public int maxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public int hitCount() {
+        int count = 0;
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                count += segment.hitCount;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public int missCount() {
+        int count = 0;
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                count += segment.missCount;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public int createCount() {
+        return 0;
+    }
+
+    @Override
+    public int putCount() {
+        int count = 0;
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                count += segment.putCount;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public int evictionCount() {
+        int count = 0;
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                count += segment.evictionCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns a copy of the current contents of the cache, ordered from least
+     * recently accessed to most recently accessed.
+     */
+    @Override
+    public Map<CacheKey, Bitmap> snapshot() {
+        final List<Entry> entries = new ArrayList<Entry>();
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                entries.addAll(segment.map.values());
+            }
+        }
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(final Entry lhs, final Entry rhs) {
+                return lhs.accessTime < rhs.accessTime ? -1 : lhs.accessTime == rhs.accessTime ? 0 : 1;
+            }
+        });
+        final Map<CacheKey, Bitmap> snapshot = new LinkedHashMap<CacheKey, Bitmap>();
+        for (final Entry entry : entries) {
+            snapshot.put(entry.key, entry.value);
+        }
+        return snapshot;
+    }
+
+    @Override
+    public String toString() {
+        final int hitCount = hitCount();
+        final int missCount = missCount();
+        final int accesses = hitCount + missCount;
+        final int hitPercent = accesses != 0 ? 100 * hitCount / accesses : 0;
+        return String.format("SegmentedLruCache[maxSize=%d,segments=%d,hits=%d,misses=%d,hitRate=%d%%]", maxSize,
+                segments.length, hitCount, missCount, hitPercent);
+    }
+
+    private static final class Entry {
+
+        final CacheKey key;
+
+        final Bitmap value;
+
+        final int size;
+
+        long accessTime;
+
+        Entry(final CacheKey key, final Bitmap value, final int size, final long accessTime) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+            this.accessTime = accessTime;
+        }
+    }
+
+    /**
+     * Single LRU segment. All fields are guarded by the segment's monitor.
+     */
+    private static final class Segment {
+
+        final CacheKeyLinkedMap<Entry> map = new CacheKeyLinkedMap<Entry>(true);
+
+        /**
+         * Access time of the eldest entry, {@link Long#MAX_VALUE} when there's
+         * none. Read without the lock to choose the victim segment.
+         */
+        volatile long eldestAccessTime = Long.MAX_VALUE;
+
+        int putCount;
+
+        int evictionCount;
+
+        int hitCount;
+
+        int missCount;
+
+        /**
+         * Publishes access time of the eldest entry after the map changed.
+         * Must be called holding segment's lock.
+         */
+        void updateEldest() {
+            final Entry eldest = map.eldestValue();
+            eldestAccessTime = eldest == null ? Long.MAX_VALUE : eldest.accessTime;
+        }
+    }
+}
@@ -11,12 +11,16 @@ public class StaticCachedImageCacheFactory implements ImageCacheFactory {
 
     @Override
     public synchronized ImageCache create(final Context context) {
-        return create(CacheConfig.buildDefault(context));
+        return create(context, CacheConfig.buildDefault(context));
     }
 
     @Override
     public synchronized ImageCache create(final Context context, final CacheConfig config) {
-        return create(CacheConfig.buildDefault(context, config));
+        if (imageCache == null) {
+            imageCache = new ImageCache(CacheConfig.buildDefault(context, config));
+            imageCache.registerMemoryCallbacks(context);
+        }
+        return imageCache;
     }
 
     @Override
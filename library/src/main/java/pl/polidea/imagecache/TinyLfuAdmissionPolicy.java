@@ -0,0 +1,37 @@
+package pl.polidea.imagecache;
+
+import pl.polidea.utils.CacheKey;
+
+/**
+ * TinyLFU admission: a candidate enters main cache only if it was seen more
+ * often than the entry it would replace. Frequencies are estimated by
+ * {@link FrequencySketch}, so one pass over a long list of images doesn't
+ * push out bitmaps which are shown on every screen.
+ */
+public class TinyLfuAdmissionPolicy implements AdmissionPolicy {
+
+    public static final int DEFAULT_EXPECTED_ENTRIES = 512;
+
+    private final FrequencySketch sketch;
+
+    public TinyLfuAdmissionPolicy() {
+        this(DEFAULT_EXPECTED_ENTRIES);
+    }
+
+    /**
+     * @param expectedEntries estimated number of bitmaps the cache can hold
+     */
+    public TinyLfuAdmissionPolicy(final int expectedEntries) {
+        sketch = new FrequencySketch(expectedEntries);
+    }
+
+    @Override
+    public void recordAccess(final CacheKey key) {
+        sketch.increment(key);
+    }
+
+    @Override
+    public boolean admit(final CacheKey candidateKey, final CacheKey victimKey) {
+        return sketch.frequency(candidateKey) > sketch.frequency(victimKey);
+    }
+}
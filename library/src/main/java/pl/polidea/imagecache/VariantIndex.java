@@ -0,0 +1,101 @@
+package pl.polidea.imagecache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import pl.polidea.utils.CacheKey;
+
+/**
+ * Remembers which bounded variants of an image were cached, so a resident
+ * bigger variant can be found for a request of a smaller one. Index is limited
+ * to the most recently used images. It may list variants which were already
+ * evicted, users have to check the cache anyway.
+ */
+class VariantIndex {
+
+    static final int DEFAULT_MAX_IMAGES = 1024;
+
+    private final Map<CacheKey, List<CacheVariant>> variants;
+
+    VariantIndex() {
+        this(DEFAULT_MAX_IMAGES);
+    }
+
+    VariantIndex(final int maxImages) {
+        variants = new LinkedHashMap<CacheKey, List<CacheVariant>>(0, 0.75f, true) {
+
+            private static final long serialVersionUID = -2738190516353120583L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<CacheKey, List<CacheVariant>> eldest) {
+                return size() > maxImages;
+            }
+        };
+    }
+
+    synchronized void add(final CacheKey imageKey, final CacheVariant variant) {
+        if (!variant.isBounded()) {
+            return;
+        }
+        List<CacheVariant> list = variants.get(imageKey);
+        if (list == null) {
+            list = new ArrayList<CacheVariant>(2);
+            variants.put(imageKey, list);
+        }
+        if (!list.contains(variant)) {
+            list.add(variant);
+        }
+    }
+
+    /**
+     * Returns variants the requested one may be derived from: the unbounded
+     * variant of the same processor followed by other indexed bounded ones.
+     */
+    synchronized List<CacheVariant> sources(final CacheKey imageKey, final CacheVariant requested) {
+        final List<CacheVariant> sources = new ArrayList<CacheVariant>();
+        sources.add(requested.unbounded());
+        final List<CacheVariant> list = variants.get(imageKey);
+        if (list != null) {
+            for (final CacheVariant variant : list) {
+                if (!variant.equals(requested) && variant.processor.equals(requested.processor)) {
+                    sources.add(variant);
+                }
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * Returns all indexed variants of the image.
+     */
+    synchronized List<CacheVariant> get(final CacheKey imageKey) {
+        final List<CacheVariant> list = variants.get(imageKey);
+        return list == null ? Collections.<CacheVariant>emptyList() : new ArrayList<CacheVariant>(list);
+    }
+
+    /**
+     * Returns variants of all indexed images, the most recently used images
+     * last.
+     */
+    synchronized Map<CacheKey, List<CacheVariant>> snapshot() {
+        final Map<CacheKey, List<CacheVariant>> snapshot = new LinkedHashMap<CacheKey, List<CacheVariant>>();
+        for (final Map.Entry<CacheKey, List<CacheVariant>> entry : variants.entrySet()) {
+            snapshot.put(entry.getKey(), new ArrayList<CacheVariant>(entry.getValue()));
+        }
+        return snapshot;
+    }
+
+    /**
+     * Forgets the image and returns its indexed variants.
+     */
+    synchronized List<CacheVariant> remove(final CacheKey imageKey) {
+        final List<CacheVariant> list = variants.remove(imageKey);
+        return list == null ? Collections.<CacheVariant>emptyList() : list;
+    }
+
+    synchronized void clear() {
+        variants.clear();
+    }
+}
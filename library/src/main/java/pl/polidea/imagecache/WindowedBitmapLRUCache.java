@@ -0,0 +1,350 @@
+package pl.polidea.imagecache;
+
+import android.graphics.Bitmap;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import pl.polidea.utils.CacheKey;
+import pl.polidea.utils.CacheKeyLinkedMap;
+
+/**
+ * Bitmap cache made of a small LRU admission window in front of the main LRU
+ * cache (W-TinyLFU layout). New bitmaps always enter the window. Bitmap pushed
+ * out of the window gets into main cache only when {@link AdmissionPolicy}
+ * prefers it over main cache's least recently used entry, otherwise it is
+ * evicted itself. Hits in the window keep recency for bursts, the policy keeps
+ * frequently reused bitmaps resident during scan-like access.
+ */
+public class WindowedBitmapLRUCache extends PinningBitmapCache {
+
+    public static final float DEFAULT_WINDOW_FRACTION = 0.1f;
+
+    private final CacheKeyLinkedMap<Bitmap> window = new CacheKeyLinkedMap<Bitmap>(true);
+
+    private final CacheKeyLinkedMap<Bitmap> main = new CacheKeyLinkedMap<Bitmap>(true);
+
+    private final AdmissionPolicy admissionPolicy;
+
+    private final float windowFraction;
+
+    private int maxSize;
+
+    private int windowMaxSize;
+
+    private int windowSize;
+
+    private int mainSize;
+
+    private int putCount;
+
+    private int evictionCount;
+
+    private int rejectionCount;
+
+    private int hitCount;
+
+    private int missCount;
+
+    public WindowedBitmapLRUCache(final int maxSize, final AdmissionPolicy admissionPolicy) {
+        this(maxSize, DEFAULT_WINDOW_FRACTION, admissionPolicy);
+    }
+
+    /**
+     * @param maxSize         maximum size of both window and main cache
+     * @param windowFraction  part of max size given to admission window
+     * @param admissionPolicy policy deciding which bitmaps enter main cache
+     */
+    public WindowedBitmapLRUCache(final int maxSize, final float windowFraction,
+                                  final AdmissionPolicy admissionPolicy) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (admissionPolicy == null) {
+            throw new IllegalArgumentException("admissionPolicy == null");
+        }
+        if (windowFraction < 0 || windowFraction > 1) {
+            throw new IllegalArgumentException("windowFraction has to be in range [0, 1]");
+        }
+        this.maxSize = maxSize;
+        this.windowFraction = windowFraction;
+        this.admissionPolicy = admissionPolicy;
+        windowMaxSize = (int) (maxSize * windowFraction);
+    }
+
+    @Override
+    public Bitmap get(final CacheKey key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        synchronized (this) {
+            admissionPolicy.recordAccess(key);
+            Bitmap value = window.get(key);
+            if (value == null) {
+                value = main.get(key);
+            }
+            if (value != null) {
+                hitCount++;
+            } else {
+                missCount++;
+            }
+            return value;
+        }
+    }
+
+    @Override
+    public synchronized Bitmap peek(final CacheKey key) {
+        final Bitmap value = window.peek(key);
+        return value != null ? value : main.peek(key);
+    }
+
+    @Override
+    public Bitmap put(final CacheKey key, final Bitmap value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        final int entrySize = safeSize(key, value);
+        entryAdded(key, value);
+        final List<Evicted> evicted = new ArrayList<Evicted>();
+        Bitmap previous;
+        synchronized (this) {
+            putCount++;
+            admissionPolicy.recordAccess(key);
+            previous = main.remove(key);
+            if (previous != null) {
+                mainSize -= safeSize(key, previous);
+                // entry already proved useful, keep it in main cache
+                main.put(key, value);
+                mainSize += entrySize;
+            } else {
+                previous = window.put(key, value);
+                windowSize += entrySize;
+                if (previous != null) {
+                    windowSize -= safeSize(key, previous);
+                }
+            }
+            trimWindow(evicted);
+            trimMain(maxSize - windowMaxSize, evicted);
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous, value);
+        }
+        notifyEvicted(evicted);
+        return previous;
+    }
+
+    /**
+     * Moves entries exceeding window size to the main cache, when admission
+     * policy allows that. Must be called holding the lock.
+     */
+    private void trimWindow(final List<Evicted> evicted) {
+        final int mainMaxSize = maxSize - windowMaxSize;
+        while (windowSize > windowMaxSize && !window.isEmpty()) {
+            final Map.Entry<CacheKey, Bitmap> eldest = window.entrySet().iterator().next();
+            final CacheKey candidateKey = eldest.getKey();
+            final Bitmap candidate = eldest.getValue();
+            final int candidateSize = safeSize(candidateKey, candidate);
+            window.remove(candidateKey);
+            windowSize -= candidateSize;
+
+            // displayed bitmaps skip admission, they are going to be used anyway
+            if (mainSize + candidateSize > mainMaxSize && isEvictable(candidateKey, candidate)) {
+                final Map.Entry<CacheKey, Bitmap> victim = eldestEvictable(main);
+                if (candidateSize > mainMaxSize || victim == null
+                        || !admissionPolicy.admit(candidateKey, victim.getKey())) {
+                    rejectionCount++;
+                    evictionCount++;
+                    evicted.add(new Evicted(candidateKey, candidate));
+                    continue;
+                }
+                trimMain(mainMaxSize - candidateSize, evicted);
+            }
+            main.put(candidateKey, candidate);
+            mainSize += candidateSize;
+        }
+    }
+
+    /**
+     * Evicts least recently used entries of main cache. Must be called holding
+     * the lock.
+     */
+    private void trimMain(final int size, final List<Evicted> evicted) {
+        while (mainSize > size) {
+            final Map.Entry<CacheKey, Bitmap> eldest = eldestEvictable(main);
+            if (eldest == null) {
+                break;
+            }
+            final CacheKey key = eldest.getKey();
+            final Bitmap value = eldest.getValue();
+            main.remove(key);
+            mainSize -= safeSize(key, value);
+            evictionCount++;
+            evicted.add(new Evicted(key, value));
+        }
+    }
+
+    /**
+     * Returns least recently used entry which isn't pinned. Pinned entries are
+     * moved behind the others as if they were accessed, so following
+     * evictions don't scan them again. Must be called holding the lock.
+     */
+    private Map.Entry<CacheKey, Bitmap> eldestEvictable(final CacheKeyLinkedMap<Bitmap> map) {
+        for (int i = map.size(); i > 0; i--) {
+            final CacheKey key = map.eldestKey();
+            final Bitmap value = map.eldestValue();
+            if (isEvictable(key, value)) {
+                return new AbstractMap.SimpleImmutableEntry<CacheKey, Bitmap>(key, value);
+            }
+            map.get(key);
+        }
+        return null;
+    }
+
+    private void notifyEvicted(final List<Evicted> evicted) {
+        for (final Evicted entry : evicted) {
+            entryRemoved(true, entry.key, entry.value, null);
+        }
+    }
+
+    @Override
+    public Bitmap remove(final CacheKey key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        Bitmap previous;
+        synchronized (this) {
+            previous = window.remove(key);
+            if (previous != null) {
+                windowSize -= safeSize(key, previous);
+            } else {
+                previous = main.remove(key);
+                if (previous != null) {
+                    mainSize -= safeSize(key, previous);
+                }
+            }
+        }
+        if (previous != null) {
+            entryRemoved(false, key, previous, null);
+        }
+        return previous;
+    }
+
+    @Override
+    public void evictAll() {
+        final List<Evicted> evicted = new ArrayList<Evicted>();
+        synchronized (this) {
+            for (final Map.Entry<CacheKey, Bitmap> entry : window.entrySet()) {
+                evicted.add(new Evicted(entry.getKey(), entry.getValue()));
+            }
+            for (final Map.Entry<CacheKey, Bitmap> entry : main.entrySet()) {
+                evicted.add(new Evicted(entry.getKey(), entry.getValue()));
+            }
+            evictionCount += evicted.size();
+            window.clear();
+            main.clear();
+            windowSize = 0;
+            mainSize = 0;
+        }
+        notifyEvicted(evicted);
+    }
+
+    @Override
+    public void resize(final int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize < 0");
+        }
+        final List<Evicted> evicted = new ArrayList<Evicted>();
+        synchronized (this) {
+            this.maxSize = maxSize;
+            windowMaxSize = (int) (maxSize * windowFraction);
+            trimWindow(evicted);
+            trimMain(maxSize - windowMaxSize, evicted);
+        }
+        notifyEvicted(evicted);
+    }
+
+    private int safeSize(final CacheKey key, final Bitmap value) {
+        final int result = sizeOf(key, value);
+        if (result < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized int size() {
+        return windowSize + mainSize;
+    }
+
+    @Override
+    public synchronized int maxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public synchronized int hitCount() {
+        return hitCount;
+    }
+
+    @Override
+    public synchronized int missCount() {
+        return missCount;
+    }
+
+    @Override
+    public int createCount() {
+        return 0;
+    }
+
+    @Override
+    public synchronized int putCount() {
+        return putCount;
+    }
+
+    @Override
+    public synchronized int evictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Returns the number of bitmaps evicted straight from the admission window
+     * because admission policy preferred main cache's victim.
+     */
+    public synchronized int rejectionCount() {
+        return rejectionCount;
+    }
+
+    /**
+     * Returns a copy of the current contents of the cache: main cache entries
+     * followed by admission window entries, each part ordered from least
+     * recently accessed to most recently accessed.
+     */
+    @Override
+    public synchronized Map<CacheKey, Bitmap> snapshot() {
+        final Map<CacheKey, Bitmap> snapshot = new LinkedHashMap<CacheKey, Bitmap>(main);
+        snapshot.putAll(window);
+        return snapshot;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final int accesses = hitCount + missCount;
+        final int hitPercent = accesses != 0 ? 100 * hitCount / accesses : 0;
+        return String.format("WindowedLruCache[maxSize=%d,hits=%d,misses=%d,rejections=%d,hitRate=%d%%]", maxSize,
+                hitCount, missCount, rejectionCount, hitPercent);
+    }
+
+    private static final class Evicted {
+
+        final CacheKey key;
+
+        final Bitmap value;
+
+        Evicted(final CacheKey key, final Bitmap value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package pl.polidea.imagecache;
+
+import android.graphics.Bitmap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import pl.polidea.utils.CacheKey;
+import pl.polidea.utils.Compression;
+
+/**
+ * Bounded queue of images waiting to be written to disk by a background
+ * writer. Writes are taken in the order their keys were first queued, and a
+ * write queued again for a key still waiting replaces the older one in place,
+ * so an image is never persisted twice. Queuing blocks while the queue is full,
+ * which keeps producers from outrunning the disk.
+ * <p/>
+ * The write being persisted is still visible to {@link #get(CacheKey)}, so
+ * readers can be served from the queue until the image is on disk.
+ */
+class WriteBehindQueue {
+
+    private final int maxSize;
+
+    private final LinkedHashMap<CacheKey, PendingWrite> queued = new LinkedHashMap<CacheKey, PendingWrite>();
+
+    private PendingWrite inFlight;
+
+    private int coalescedCount;
+
+    /**
+     * Whether neither a write is queued nor one persisted, read without
+     * locking the queue.
+     */
+    private volatile boolean empty = true;
+
+    WriteBehindQueue(final int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Queues the image, waiting while the queue is full.
+     *
+     * @return the write of the same key it replaced or null
+     * @throws InterruptedException when interrupted while waiting, the image
+     *                              isn't queued then
+     */
+    synchronized PendingWrite put(final CacheKey key, final Bitmap bitmap, final byte[] data)
+            throws InterruptedException {
+        return put(key, bitmap, data, null, null);
+    }
+
+    /**
+     * Queues the image together with compression its data was encoded with
+     * and mime type of its source, waiting while the queue is full.
+     *
+     * @return the write of the same key it replaced or null
+     * @throws InterruptedException when interrupted while waiting, the image
+     *                              isn't queued then
+     */
+    synchronized PendingWrite put(final CacheKey key, final Bitmap bitmap, final byte[] data,
+                                  final Compression compression, final String sourceMimeType)
+            throws InterruptedException {
+        final PendingWrite write = new PendingWrite(key, bitmap, data, compression, sourceMimeType, false);
+        final PendingWrite replaced = queued.get(key);
+        if (replaced != null) {
+            // LinkedHashMap keeps the position of a key which is put again
+            queued.put(key, write);
+            coalescedCount++;
+            return replaced;
+        }
+        while (queued.size() >= maxSize) {
+            wait();
+        }
+        queued.put(key, write);
+        signalChanged();
+        return null;
+    }
+
+    /**
+     * Queues rewriting the entry of the key as raw pixels of the bitmap, see
+     * {@link pl.polidea.thridparty.DiskCache#putRaw(String, Bitmap)}. Doesn't
+     * wait: the rewrite is skipped when the queue is full or the key has a
+     * write waiting already.
+     *
+     * @return false when the rewrite wasn't queued
+     */
+    synchronized boolean offerRaw(final CacheKey key, final Bitmap bitmap) {
+        if (queued.size() >= maxSize || queued.containsKey(key)) {
+            return false;
+        }
+        queued.put(key, new PendingWrite(key, bitmap, null, null, null, true));
+        signalChanged();
+        return true;
+    }
+
+    /**
+     * Takes the oldest write, waiting until there's one. The write stays
+     * visible to readers until {@link #done(PendingWrite)} is called.
+     */
+    synchronized PendingWrite take() throws InterruptedException {
+        while (queued.isEmpty()) {
+            wait();
+        }
+        final Iterator<PendingWrite> iterator = queued.values().iterator();
+        final PendingWrite write = iterator.next();
+        iterator.remove();
+        inFlight = write;
+        signalChanged();
+        return write;
+    }
+
+    /**
+     * Marks the write taken with {@link #take()} as persisted.
+     */
+    synchronized void done(final PendingWrite write) {
+        if (inFlight == write) {
+            inFlight = null;
+        }
+        signalChanged();
+    }
+
+    /**
+     * Waits until all queued writes are persisted.
+     */
+    synchronized void awaitEmpty() throws InterruptedException {
+        while (!queued.isEmpty() || inFlight != null) {
+            wait();
+        }
+    }
+
+    /**
+     * Returns the write of the key which isn't persisted yet or null.
+     */
+    synchronized PendingWrite get(final CacheKey key) {
+        final PendingWrite write = queued.get(key);
+        if (write != null) {
+            return write;
+        }
+        return inFlight != null && inFlight.key.equals(key) ? inFlight : null;
+    }
+
+    /**
+     * Drops the queued write of the key. Write of the key being persisted at
+     * the moment is cancelled, so the writer removes it afterwards.
+     *
+     * @return the dropped write or null
+     */
+    synchronized PendingWrite remove(final CacheKey key) {
+        if (inFlight != null && inFlight.key.equals(key)) {
+            inFlight.cancelled = true;
+        }
+        final PendingWrite write = queued.remove(key);
+        if (write != null) {
+            signalChanged();
+        }
+        return write;
+    }
+
+    /**
+     * Drops all queued writes and cancels the one being persisted.
+     *
+     * @return the dropped writes
+     */
+    synchronized List<PendingWrite> clear() {
+        if (inFlight != null) {
+            inFlight.cancelled = true;
+        }
+        final List<PendingWrite> writes = new ArrayList<PendingWrite>(queued.values());
+        queued.clear();
+        signalChanged();
+        return writes;
+    }
+
+    /**
+     * Tells without locking the queue whether no write is waiting, including
+     * the one being persisted. Writes queued by other threads meanwhile may
+     * not be seen yet.
+     */
+    boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * Returns the number of writes waiting, including the one being persisted.
+     */
+    synchronized int size() {
+        return queued.size() + (inFlight == null ? 0 : 1);
+    }
+
+    int maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the number of writes which replaced a waiting write of the same
+     * key.
+     */
+    synchronized int coalescedCount() {
+        return coalescedCount;
+    }
+
+    private void signalChanged() {
+        empty = queued.isEmpty() && inFlight == null;
+        notifyAll();
+    }
+
+    static final class PendingWrite {
+
+        final CacheKey key;
+
+        /**
+         * Image to compress, null when it's already encoded.
+         */
+        final Bitmap bitmap;
+
+        /**
+         * Encoded image, null when the bitmap has to be compressed.
+         */
+        final byte[] data;
+
+        /**
+         * Compression the data was encoded with, null when it isn't known.
+         */
+        final Compression compression;
+
+        /**
+         * Mime type of the image the bitmap was decoded from, null when it
+         * isn't known.
+         */
+        final String sourceMimeType;
+
+        /**
+         * Whether the bitmap is stored as raw pixels instead of compressed.
+         */
+        final boolean raw;
+
+        /**
+         * Set when the key was removed while the write was being persisted.
+         */
+        volatile boolean cancelled;
+
+        PendingWrite(final CacheKey key, final Bitmap bitmap, final byte[] data, final Compression compression,
+                     final String sourceMimeType, final boolean raw) {
+            this.key = key;
+            this.bitmap = bitmap;
+            this.data = data;
+            this.compression = compression;
+            this.sourceMimeType = sourceMimeType;
+            this.raw = raw;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package pl.polidea.thridparty;
+
+/**
+ * Decides how much storage disk cache may take. The budget grows while the
+ * cache is full and misses a lot, as images evicted too early are fetched
+ * again, and shrinks when free space of the volume runs low, below what the
+ * cache takes if need be, so it evicts entries. It always stays within the
+ * bounds.
+ */
+public class DiskBudget {
+
+    /**
+     * Part of the space the cache may take, which is what it takes already
+     * together with free space of its volume. As the volume fills up, this
+     * part drops below the cache's size.
+     */
+    static final float SPACE_FRACTION = 0.25f;
+
+    /**
+     * Hit ratio below which a full cache grows.
+     */
+    static final float TARGET_HIT_RATIO = 0.8f;
+
+    /**
+     * Part of the budget used above which the cache counts as full.
+     */
+    static final float FULL_FRACTION = 0.9f;
+
+    /**
+     * Reads needed to trust the hit ratio.
+     */
+    static final int MIN_READS = 20;
+
+    private final long minSize;
+
+    private final long maxSize;
+
+    /**
+     * @param minSize size the budget never goes below
+     * @param maxSize size the budget never goes above
+     */
+    public DiskBudget(final long minSize, final long maxSize) {
+        if (minSize <= 0 || maxSize < minSize) {
+            throw new IllegalArgumentException("Bounds have to be positive and maxSize >= minSize");
+        }
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param budget    current budget
+     * @param size      size the cache takes now
+     * @param freeSpace free space of the cache's volume
+     * @param hits      lookups which found the image since the last
+     *                  evaluation
+     * @param misses    lookups which didn't find the image since the last
+     *                  evaluation
+     * @return the new budget
+     */
+    public long evaluate(final long budget, final long size, final long freeSpace, final int hits,
+                         final int misses) {
+        long target = budget;
+        final int reads = hits + misses;
+        if (reads >= MIN_READS && hits < reads * TARGET_HIT_RATIO && size >= budget * FULL_FRACTION) {
+            target = budget + budget / 2;
+        }
+        final long available = (long) ((size + Math.max(0, freeSpace)) * SPACE_FRACTION);
+        return Math.max(minSize, Math.min(Math.min(target, available), maxSize));
+    }
+
+    public long getMinSize() {
+        return minSize;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+}
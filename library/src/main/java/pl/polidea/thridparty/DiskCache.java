@@ -3,13 +3,31 @@ package pl.polidea.thridparty;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapFactory.Options;
+import android.os.SystemClock;
 import com.jakewharton.DiskLruCache;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import pl.polidea.utils.BitmapPool;
+import pl.polidea.utils.CacheKey;
+import pl.polidea.utils.Compression;
+import pl.polidea.utils.CompressionPolicy;
+import pl.polidea.utils.CountingBloomFilter;
+import pl.polidea.utils.Freshness;
+import pl.polidea.utils.ImageMetadata;
+import pl.polidea.utils.RawPixelPolicy;
 import pl.polidea.utils.Utils;
 
 /**
@@ -17,33 +35,185 @@ import pl.polidea.utils.Utils;
  */
 public class DiskCache {
 
-    private static final int APP_VERSION = 1;
-    private static final int VALUE_COUNT = 1;
+    /**
+     * Version 2 keeps scaled bitmaps under variant keys, entries of version 1
+     * could hold scaled bitmaps under the original key, so they're dropped.
+     * Version 3 keeps metadata of each image in a second value.
+     */
+    public static final int APP_VERSION = 3;
+
+    /**
+     * Version of caches written before variant keys were introduced.
+     */
+    public static final int LEGACY_APP_VERSION = 1;
+    /**
+     * Index of the value keeping {@link ImageMetadata} of the entry, empty when
+     * it's unknown. Legacy caches have no such value.
+     */
+    private static final int METADATA_INDEX = 1;
+    /**
+     * Leads the metadata value when HTTP freshness of the image is kept in
+     * front of its {@link ImageMetadata}, followed by length of the freshness.
+     * Image metadata starts with its version, which is never the tag.
+     */
+    private static final int FRESHNESS_TAG = 0xf5;
+    private static final int FRESHNESS_HEADER_SIZE = 3;
+    /**
+     * Number of commits after which sizes of shards are checked for skew.
+     */
+    static final int REBALANCE_COMMITS = 32;
+    /**
+     * Entries at least this big are read with a single read instead of
+     * through a small buffered stream.
+     */
+    static final int DIRECT_READ_MIN_SIZE = 8 * 1024;
+    /**
+     * Biggest read buffer kept by a thread for the next read.
+     */
+    static final int MAX_READ_BUFFER_SIZE = 1024 * 1024;
+    private static final ThreadLocal<byte[]> READ_BUFFER = new ThreadLocal<byte[]>();
+    /**
+     * Size of an entry assumed when sizing the filter of keys.
+     */
+    static final int EXPECTED_ENTRY_SIZE = 16 * 1024;
+    /**
+     * Mime type in metadata of entries keeping raw pixels.
+     */
+    public static final String RAW_MIME_TYPE = "image/x-raw-pixels";
+    /**
+     * Leading bytes of a stored stream its metadata is read from. Headers
+     * with bounds and EXIF come first and EXIF segment can't be longer.
+     */
+    static final int METADATA_HEAD_SIZE = 64 * 1024;
     private final CompressFormat compressFormat;
     private final int compressQuality;
-    private DiskLruCache mDiskCache;
+    private final int appVersion;
+    private final int valueCount;
+    private final File directory;
+    private final ShardedStore store;
+    /**
+     * Streams being stored by key, counted down once they're committed or
+     * failed.
+     */
+    private final Map<String, CountDownLatch> streamWrites = new HashMap<String, CountDownLatch>();
+    private int commitsSinceRebalance;
+    private final CountingBloomFilter keyFilter;
+    private volatile boolean keyFilterReady;
+    private BitmapPool bitmapPool;
+    private volatile RawPixelPolicy rawPixelPolicy;
+    private volatile RawPixelWriter rawPixelWriter;
+    private volatile FreshnessListener freshnessListener;
+    private volatile CompressionPolicy compressionPolicy;
+    private int flushCommits = 1;
+    private long flushInterval;
+    private int unflushedCommits;
+    private long flushedAt;
+    private volatile DiskBudget budget;
+    private Executor budgetExecutor;
+    private long budgetInterval;
+    private long budgetEvaluatedAt;
+    private boolean budgetEvaluating;
+    private int readHits;
+    private int readMisses;
 
     public DiskCache(final String path, final long size, final CompressFormat compressFormat, final int compressQuality) {
-        this.compressFormat = compressFormat;
-        this.compressQuality = compressQuality;
+        this(new Builder(path, size).compressFormat(compressFormat).compressQuality(compressQuality));
+    }
+
+    private DiskCache(final Builder builder) {
+        compressFormat = builder.compressFormat;
+        compressQuality = builder.compressQuality;
+        appVersion = builder.appVersion;
+        valueCount = appVersion == LEGACY_APP_VERSION ? 1 : 2;
+        directory = new File(builder.path);
+        store = new ShardedStore(directory, appVersion, valueCount, builder.size, builder.shardCount,
+                builder.packEntryMaxSize);
+        keyFilter = new CountingBloomFilter((int) Math.max(1024, Math.min(1 << 20,
+                builder.size / EXPECTED_ENTRY_SIZE)));
+        if (builder.async) {
+            final Thread opener = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        store.open();
+                        rebuildKeyFilter();
+                    } catch (final IOException e) {
+                        Utils.log("Opening disk cache error", e);
+                    } finally {
+                        store.finishOpening();
+                    }
+                }
+            }, "Disk cache opener");
+            opener.setDaemon(true);
+            opener.start();
+            return;
+        }
         try {
-            // XXX: this is done in UI thread !
-            mDiskCache = openDiskLruCache(new File(path), APP_VERSION, VALUE_COUNT, size);
+            store.open();
+            rebuildKeyFilter();
         } catch (final IOException e) {
             throw new IllegalArgumentException("Creating disk cache failed", e);
+        } finally {
+            store.finishOpening();
         }
     }
 
-    private DiskLruCache openDiskLruCache(final File directory, final int appVersion, final int valueCount,
-                                          final long size) throws IOException {
-        return DiskLruCache.open(directory, appVersion, valueCount, size);
+    /**
+     * Fills the filter with keys of entries found once the store is open.
+     */
+    private void rebuildKeyFilter() {
+        keyFilterReady = false;
+        keyFilter.clear();
+        for (final String key : store.keys()) {
+            keyFilter.add(key);
+        }
+        keyFilterReady = true;
+    }
+
+    /**
+     * Tells whether there may be an entry of the key, without touching the
+     * disk. False means the entry surely isn't there; until the cache is open
+     * it's always true.
+     */
+    public boolean mightContain(final String key) {
+        return !keyFilterReady || keyFilter.mightContain(key);
+    }
+
+    /**
+     * Same as {@link #mightContain(String)} with the key's name, but doesn't
+     * need the name to be rendered.
+     */
+    public boolean mightContain(final CacheKey key) {
+        return !keyFilterReady || keyFilter.mightContain(key);
+    }
+
+    /**
+     * Tells whether the cache is open, so its calls won't wait.
+     */
+    public boolean isOpen() {
+        return store.isOpen();
     }
 
-    private boolean writeBitmapToFile(final Bitmap bitmap, final DiskLruCache.Editor editor) throws IOException {
+    public int getShardCount() {
+        return store.getShardCount();
+    }
+
+    /**
+     * Waits until the cache opened in background is open.
+     *
+     * @return false when opening failed or waiting timed out
+     */
+    public boolean awaitOpen(final long timeoutMillis) throws InterruptedException {
+        return store.awaitOpen(timeoutMillis);
+    }
+
+    private boolean writeBitmapToFile(final Bitmap bitmap, final Compression compression,
+                                      final DiskLruCache.Editor editor) throws IOException {
         OutputStream out = null;
         try {
             out = new BufferedOutputStream(editor.newOutputStream(0), 1024);
-            return bitmap.isRecycled() ? true : bitmap.compress(compressFormat, compressQuality, out);
+            return bitmap.isRecycled() ? true
+                    : bitmap.compress(compression.getFormat(), compression.getQuality(), out);
         } finally {
             if (out != null) {
                 out.close();
@@ -51,21 +221,228 @@ public class DiskCache {
         }
     }
 
+    private boolean writeBytesToFile(final byte[] data, final DiskLruCache.Editor editor) throws IOException {
+        return writeBytes(data, editor, 0);
+    }
+
+    private boolean writeBytes(final byte[] data, final DiskLruCache.Editor editor, final int index)
+            throws IOException {
+        OutputStream out = null;
+        try {
+            out = editor.newOutputStream(index);
+            out.write(data);
+            return true;
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Writes the metadata value, empty when neither the metadata nor the
+     * freshness is known. New entries need every value written.
+     */
+    private void writeMetadata(final ImageMetadata metadata, final Freshness freshness,
+                               final DiskLruCache.Editor editor) throws IOException {
+        if (valueCount > METADATA_INDEX) {
+            writeBytes(metadataValue(metadata == null ? new byte[0] : metadata.toBytes(), freshness), editor,
+                    METADATA_INDEX);
+        }
+    }
+
+    /**
+     * Joins metadata of the image with its freshness, see
+     * {@link #FRESHNESS_TAG}.
+     */
+    static byte[] metadataValue(final byte[] imageMetadata, final Freshness freshness) {
+        if (freshness == null) {
+            return imageMetadata;
+        }
+        final byte[] data = freshness.toBytes();
+        return ByteBuffer.allocate(FRESHNESS_HEADER_SIZE + data.length + imageMetadata.length)
+                .put((byte) FRESHNESS_TAG).putShort((short) data.length).put(data).put(imageMetadata).array();
+    }
+
+    /**
+     * Returns where metadata of the image starts in the metadata value.
+     */
+    private static int imageMetadataOffset(final byte[] value) {
+        if (value.length < FRESHNESS_HEADER_SIZE || (value[0] & 0xff) != FRESHNESS_TAG) {
+            return 0;
+        }
+        return Math.min(value.length, FRESHNESS_HEADER_SIZE + (ByteBuffer.wrap(value).getShort(1) & 0xffff));
+    }
+
+    static ImageMetadata imageMetadataOf(final byte[] value) {
+        final int offset = imageMetadataOffset(value);
+        return ImageMetadata.fromBytes(copyOfRange(value, offset, value.length));
+    }
+
+    static Freshness freshnessOf(final byte[] value) {
+        final int offset = imageMetadataOffset(value);
+        return offset == 0 ? null : Freshness.fromBytes(copyOfRange(value, FRESHNESS_HEADER_SIZE, offset));
+    }
+
+    /**
+     * Arrays.copyOfRange() is missing before Gingerbread.
+     */
+    private static byte[] copyOfRange(final byte[] data, final int from, final int to) {
+        final byte[] copy = new byte[to - from];
+        System.arraycopy(data, from, copy, 0, copy.length);
+        return copy;
+    }
+
+    /**
+     * @return metadata value of the snapshot's entry, null when the cache
+     * keeps no metadata or the value is broken
+     */
+    private byte[] readMetadataValue(final DiskLruCache.Snapshot snapshot) throws IOException {
+        if (valueCount <= METADATA_INDEX) {
+            return null;
+        }
+        final byte[] data = new byte[(int) snapshot.getLength(METADATA_INDEX)];
+        return readFully(snapshot.getInputStream(METADATA_INDEX), data, data.length) ? data : null;
+    }
+
+    /**
+     * Reads the metadata value of the snapshot's entry, passing its freshness
+     * to the {@link FreshnessListener}.
+     *
+     * @return metadata of the snapshot's entry or null when it's unknown
+     */
+    private ImageMetadata readMetadata(final String key, final DiskLruCache.Snapshot snapshot) throws IOException {
+        final byte[] value = readMetadataValue(snapshot);
+        if (value == null) {
+            return null;
+        }
+        final FreshnessListener listener = freshnessListener;
+        if (listener != null) {
+            listener.onFreshnessRead(key, freshnessOf(value));
+        }
+        return imageMetadataOf(value);
+    }
+
+    /**
+     * Chooses how the bitmap is compressed, with the compression policy when
+     * it's set, otherwise with format and quality the cache was created with.
+     *
+     * @param sourceMimeType mime type of the image the bitmap was decoded
+     *                       from, null when it isn't known
+     */
+    public Compression chooseCompression(final Bitmap bitmap, final String sourceMimeType) {
+        final CompressionPolicy policy = compressionPolicy;
+        return policy == null ? new Compression(compressFormat, compressQuality)
+                : policy.choose(bitmap, sourceMimeType);
+    }
+
+    /**
+     * Compresses the bitmap the same way it would be stored on disk.
+     *
+     * @return encoded image or null when compressing failed
+     */
+    public byte[] compress(final Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return null;
+        }
+        return compress(bitmap, chooseCompression(bitmap, null));
+    }
+
+    /**
+     * Compresses the bitmap as chosen by
+     * {@link #chooseCompression(Bitmap, String)}.
+     *
+     * @return encoded image or null when compressing failed
+     */
+    public byte[] compress(final Bitmap bitmap, final Compression compression) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return null;
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(bitmap.getRowBytes() * bitmap.getHeight() / 8);
+        return bitmap.compress(compression.getFormat(), compression.getQuality(), out) ? out.toByteArray() : null;
+    }
+
     public void put(final String key, final Bitmap data) {
+        put(key, data, null);
+    }
+
+    /**
+     * Compresses and stores the bitmap, choosing its format with the
+     * compression policy.
+     *
+     * @param sourceMimeType mime type of the image the bitmap was decoded
+     *                       from, null when it isn't known
+     */
+    public void put(final String key, final Bitmap data, final String sourceMimeType) {
+        if (data == null) {
+            Utils.log("null ERROR on: image put on disk cache " + key);
+            return;
+        }
+        if (data.isRecycled()) {
+            put(key, data, null, null, null, null);
+            return;
+        }
+        final Compression compression = chooseCompression(data, sourceMimeType);
+        put(key, data, compression, null, ImageMetadata.of(data, compression.getFormat()), null);
+    }
+
+    /**
+     * Stores already encoded image, see {@link #compress(Bitmap)}.
+     */
+    public void put(final String key, final byte[] data) {
+        put(key, data, null);
+    }
+
+    /**
+     * Stores already encoded image together with its metadata, see
+     * {@link #getMetadata(String)}.
+     *
+     * @param metadata metadata of the image or null when it isn't known
+     */
+    public void put(final String key, final byte[] data, final ImageMetadata metadata) {
         if (data == null) {
             Utils.log("null ERROR on: image put on disk cache " + key);
             return;
         }
+        put(key, null, null, data, metadata, null);
+    }
+
+    /**
+     * @param freshness freshness carried over from the entry being
+     *                  rewritten, null for a new image
+     */
+    private void put(final String key, final Bitmap bitmap, final Compression compression, final byte[] data,
+                     final ImageMetadata metadata, final Freshness freshness) {
+        byte[] encoded = data;
+        if (store.packsEntries()) {
+            // size of the image is known only once it's compressed
+            if (encoded == null) {
+                encoded = compress(bitmap, compression);
+                if (encoded == null) {
+                    Utils.log("abort ERROR on: image put on disk cache " + key);
+                    return;
+                }
+            }
+            if (store.isPacked(encoded.length) && putPacked(key, encoded)) {
+                return;
+            }
+        }
         DiskLruCache.Editor editor = null;
         try {
-            editor = mDiskCache.edit(key);
+            editor = store.shard(key).edit(key);
             if (editor == null) {
                 return;
             }
 
-            if (writeBitmapToFile(data, editor)) {
-                mDiskCache.flush();
+            if (encoded != null ? writeBytesToFile(encoded, editor)
+                    : writeBitmapToFile(bitmap, compression, editor)) {
+                writeMetadata(metadata, freshness, editor);
+                // added before the entry is visible, so a remove never
+                // decrements counters of a key which wasn't added yet
+                keyFilter.add(key);
                 editor.commit();
+                store.removePacked(key);
+                commitWritten();
                 Utils.log("image put on disk cache " + key);
             } else {
                 editor.abort();
@@ -82,26 +459,576 @@ public class DiskCache {
             }
         }
 
-        Utils.log("Cache disk current size: " + mDiskCache.size());
+        Utils.log("Cache disk current size: " + getSize());
+
+    }
+
+    /**
+     * Appends the entry to pack files and removes its own file, if there was
+     * one.
+     *
+     * @return false when the entry couldn't be packed
+     */
+    private boolean putPacked(final String key, final byte[] data) {
+        try {
+            keyFilter.add(key);
+            if (!store.putPacked(key, data)) {
+                return false;
+            }
+            Utils.log("image packed on disk cache " + key);
+            return true;
+        } catch (final IOException e) {
+            Utils.log("IOException ERROR on: image packed on disk cache " + key);
+            return false;
+        }
+    }
+
+    /**
+     * Stores the stream's content as it is, for example image being
+     * downloaded, together with metadata read from the stored image. Entry is
+     * committed only when the whole stream was read, the stream isn't closed.
+     * When the same key is being stored from another stream, for example the
+     * same image downloaded twice at once, its result is waited for and
+     * served without reading this stream.
+     *
+     * @return file of the stored entry, see {@link #getFile(String)}
+     * @throws IOException when reading the stream or writing the entry failed,
+     *                     nothing is stored then
+     */
+    public File put(final String key, final InputStream in) throws IOException {
+        if (in == null) {
+            throw new IOException("Empty stream");
+        }
+        final CountDownLatch written = new CountDownLatch(1);
+        while (true) {
+            final CountDownLatch other;
+            synchronized (streamWrites) {
+                other = streamWrites.get(key);
+                if (other == null) {
+                    streamWrites.put(key, written);
+                }
+            }
+            if (other == null) {
+                break;
+            }
+            try {
+                other.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Waiting for entry being stored interrupted");
+            }
+            if (containsFile(key)) {
+                Utils.log("stream put on disk cache by another writer " + key);
+                return store.getEntryFile(key);
+            }
+            // the other writer failed, this stream is stored instead
+        }
+        try {
+            return writeStream(key, in);
+        } finally {
+            synchronized (streamWrites) {
+                streamWrites.remove(key);
+            }
+            written.countDown();
+        }
+    }
 
+    private File writeStream(final String key, final InputStream in) throws IOException {
+        final DiskLruCache.Editor editor = store.shard(key).edit(key);
+        if (editor == null) {
+            throw new IOException("Entry is being edited " + key);
+        }
+        boolean committed = false;
+        try {
+            // beginning of the image is kept for reading its metadata
+            final byte[] head = new byte[valueCount > METADATA_INDEX ? METADATA_HEAD_SIZE : 0];
+            int headLength = 0;
+            final OutputStream out = editor.newOutputStream(0);
+            try {
+                final byte[] buffer = new byte[16384];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                    final int copied = Math.min(count, head.length - headLength);
+                    System.arraycopy(buffer, 0, head, headLength, copied);
+                    headLength += copied;
+                }
+            } finally {
+                out.close();
+            }
+            if (valueCount > METADATA_INDEX) {
+                // parsed once here instead of every time the image is processed
+                writeMetadata(ImageMetadata.read(head, headLength), null, editor);
+            }
+            keyFilter.add(key);
+            editor.commit();
+            committed = true;
+            store.removePacked(key);
+            commitWritten();
+            Utils.log("stream put on disk cache " + key);
+        } finally {
+            if (!committed) {
+                editor.abort();
+            }
+        }
+        return store.getEntryFile(key);
+    }
+
+    /**
+     * Counts the commit and flushes the journal when enough commits piled up
+     * or it wasn't flushed for long enough.
+     */
+    private void commitWritten() throws IOException {
+        final boolean flush;
+        final boolean rebalance;
+        synchronized (this) {
+            final long now = SystemClock.uptimeMillis();
+            unflushedCommits++;
+            flush = unflushedCommits >= flushCommits || now - flushedAt >= flushInterval;
+            if (flush) {
+                unflushedCommits = 0;
+                flushedAt = now;
+            }
+            rebalance = store.getShardCount() > 1 && ++commitsSinceRebalance >= REBALANCE_COMMITS;
+            if (rebalance) {
+                commitsSinceRebalance = 0;
+            }
+        }
+        if (flush) {
+            store.flush();
+        }
+        if (rebalance) {
+            store.rebalance();
+        }
+        evaluateBudgetIfDue(false);
+    }
+
+    /**
+     * Changes the size of the cache, evicting least recently used entries in
+     * the background when it shrinks. Size of each shard is set to its equal
+     * share, later commits rebalance them again.
+     */
+    public void setMaxSize(final long size) throws IOException {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size <= 0");
+        }
+        store.setMaxSize(size);
+        Utils.log("Disk cache size set to " + size / 1024 + " kB");
+    }
+
+    /**
+     * Lets the budget decide the size of the cache, see
+     * {@link #setMaxSize(long)}. The budget is evaluated by the executor
+     * right away and then after a commit once the interval passed since the
+     * last evaluation. It judges the cache by lookups counted with
+     * {@link #countLookup(boolean)}. Null keeps the size as it is.
+     *
+     * @param intervalMillis time between evaluations of the budget
+     * @param executor       executor running the evaluations, one at a time
+     */
+    public void setBudget(final DiskBudget budget, final long intervalMillis, final Executor executor) {
+        if (budget != null && executor == null) {
+            throw new IllegalArgumentException("executor == null");
+        }
+        synchronized (this) {
+            this.budget = budget;
+            budgetExecutor = executor;
+            budgetInterval = intervalMillis;
+            readHits = 0;
+            readMisses = 0;
+        }
+        evaluateBudgetIfDue(true);
+    }
+
+    /**
+     * Submits evaluation of the budget when the interval passed or it's
+     * forced, unless one is queued or running already.
+     */
+    private void evaluateBudgetIfDue(final boolean force) {
+        final Executor executor;
+        synchronized (this) {
+            final long now = SystemClock.uptimeMillis();
+            if (budget == null || budgetEvaluating || !force && now - budgetEvaluatedAt < budgetInterval) {
+                return;
+            }
+            budgetEvaluating = true;
+            budgetEvaluatedAt = now;
+            executor = budgetExecutor;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        evaluateBudget();
+                    } catch (final IOException e) {
+                        Utils.log("Evaluating disk cache budget error", e);
+                    } finally {
+                        synchronized (DiskCache.this) {
+                            budgetEvaluating = false;
+                        }
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            Utils.log("Evaluating disk cache budget rejected", e);
+            synchronized (this) {
+                budgetEvaluating = false;
+            }
+        }
+    }
+
+    /**
+     * Sets size of the cache chosen by the budget from reads counted since
+     * the last evaluation and free space of the cache's volume.
+     */
+    void evaluateBudget() throws IOException {
+        final DiskBudget current = budget;
+        if (current == null) {
+            return;
+        }
+        final int hits;
+        final int misses;
+        synchronized (this) {
+            hits = readHits;
+            misses = readMisses;
+            readHits = 0;
+            readMisses = 0;
+        }
+        final long maxSize = store.getMaxSize();
+        final long size = current.evaluate(maxSize, getSize(), directory.getUsableSpace(), hits, misses);
+        if (size != maxSize) {
+            setMaxSize(size);
+        }
+    }
+
+    /**
+     * Counts a request for an image which wasn't in memory, for the budget.
+     * Reads don't count themselves, as only the cache's user tells requests
+     * for images from its own probes, and misses told by the key filter
+     * never read the disk.
+     *
+     * @param hit whether the image was found on disk
+     */
+    public synchronized void countLookup(final boolean hit) {
+        if (hit) {
+            readHits++;
+        } else {
+            readMisses++;
+        }
+    }
+
+    /**
+     * Sets how often the journal is flushed. Entries committed since the last
+     * flush are lost when the process dies before the journal is written. The
+     * default flushes after every commit.
+     *
+     * @param commits        number of commits after which the journal is
+     *                       flushed
+     * @param intervalMillis time after which the journal is flushed with the
+     *                       next commit, 0 to flush only by the number of
+     *                       commits
+     */
+    public synchronized void setFlushPolicy(final int commits, final long intervalMillis) {
+        flushCommits = Math.max(1, commits);
+        flushInterval = intervalMillis > 0 ? intervalMillis : Long.MAX_VALUE;
+    }
+
+    /**
+     * Writes the journal of entries committed so far.
+     */
+    public void flush() {
+        synchronized (this) {
+            unflushedCommits = 0;
+            flushedAt = SystemClock.uptimeMillis();
+        }
+        try {
+            store.flush();
+        } catch (final IOException e) {
+            Utils.log("Flushing disk cache error", e);
+        } catch (final IllegalStateException e) {
+            Utils.log("Flushing closed disk cache", e);
+        }
+    }
+
+    /**
+     * Returns the number of entries committed since the journal was flushed.
+     */
+    public synchronized int getUnflushedCommits() {
+        return unflushedCommits;
     }
 
     public Bitmap getBitmap(final String key) {
+        if (!mightContain(key)) {
+            return null;
+        }
+        final byte[] packed = store.getPacked(key);
+        if (packed != null) {
+            final Bitmap bitmap = decodeBitmap(packed);
+            Utils.log(bitmap == null ? "decoding packed image failed " + key : "image read from pack " + key);
+            return bitmap;
+        }
+        // length of the file is only a hint, the entry is read from its snapshot
+        if (store.getEntryFile(key).length() >= DIRECT_READ_MIN_SIZE) {
+            return readBitmapDirectly(key);
+        }
+        final Options options = new Options();
+        Bitmap bitmap;
+        try {
+            bitmap = readBitmap(key, options);
+        } catch (final IllegalArgumentException e) {
+            if (options.inBitmap == null) {
+                throw e;
+            }
+            // reused bitmap doesn't fit decoded image, decode into a new one
+            Utils.log("Decoding into reused bitmap failed");
+            bitmapPool.put(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = readBitmap(key, options);
+        }
+
+        Utils.log(bitmap == null ? "" : "image read from disk " + key);
+
+        return RAW_MIME_TYPE.equals(options.outMimeType) ? bitmap : storeRawIfHot(key, bitmap);
+
+    }
+
+    /**
+     * Reads the whole entry with a single read into a buffer reused by the
+     * thread and decodes it from there. BitmapFactory decodes only from
+     * arrays, so mapping the file wouldn't save the copy.
+     */
+    private Bitmap readBitmapDirectly(final String key) {
+        Bitmap bitmap;
+        boolean raw;
+        DiskLruCache.Snapshot snapshot = null;
+        try {
+            snapshot = store.shard(key).get(key);
+            if (snapshot == null) {
+                return null;
+            }
+            final int length = (int) snapshot.getLength(0);
+            final byte[] buffer = obtainReadBuffer(length);
+            if (!readFully(snapshot.getInputStream(0), buffer, length)) {
+                Utils.log("Entry shorter than expected " + key);
+                return null;
+            }
+            raw = isRaw(buffer, length);
+            bitmap = raw ? RawPixels.restore(buffer, length, bitmapPool) : decodeBitmap(buffer, length, readMetadata(key, snapshot));
+            Utils.log(bitmap == null ? "" : "image read from disk " + key);
+        } catch (final IOException e) {
+            Utils.log("Loading bitmap from disk error.");
+            return null;
+        } finally {
+            if (snapshot != null) {
+                snapshot.close();
+            }
+        }
+        return raw ? bitmap : storeRawIfHot(key, bitmap);
+    }
+
+    /**
+     * Stores the bitmap just decoded from the entry as raw pixels when the
+     * policy finds the entry hot enough, so next reads don't decode it. The
+     * entry is rewritten by the {@link RawPixelWriter} when there's one,
+     * otherwise right away.
+     *
+     * @return the bitmap
+     */
+    private Bitmap storeRawIfHot(final String key, final Bitmap bitmap) {
+        final RawPixelPolicy policy = rawPixelPolicy;
+        if (policy != null && bitmap != null && policy.shouldStoreRaw(key, bitmap)) {
+            final RawPixelWriter writer = rawPixelWriter;
+            if (writer != null) {
+                writer.storeRaw(key, bitmap);
+            } else {
+                putRaw(key, bitmap);
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Stores pixels of the bitmap as they are in memory, behind a small
+     * header. Reading them back only copies them into a bitmap, which is much
+     * faster than decoding an image, but they take several times more space.
+     * Freshness of the entry being rewritten is kept.
+     *
+     * @return false when the bitmap's config isn't known
+     */
+    public boolean putRaw(final String key, final Bitmap bitmap) {
+        final byte[] data = RawPixels.encode(bitmap);
+        if (data == null) {
+            return false;
+        }
+        put(key, null, null, data, new ImageMetadata(bitmap.getWidth(), bitmap.getHeight(), RAW_MIME_TYPE, 0,
+                bitmap.hasAlpha()), getFreshness(key));
+        Utils.log("raw pixels put on disk cache " + key);
+        return true;
+    }
+
+    /**
+     * Tells whether the entry's data keeps raw pixels, see
+     * {@link #putRaw(String, Bitmap)}.
+     */
+    public static boolean isRaw(final byte[] data, final int length) {
+        return RawPixels.isRaw(data, length);
+    }
 
+    /**
+     * Returns buffer of the thread big enough for the entry. Buffers of huge
+     * entries aren't kept.
+     */
+    static byte[] obtainReadBuffer(final int length) {
+        byte[] buffer = READ_BUFFER.get();
+        if (buffer == null || buffer.length < length) {
+            buffer = new byte[length];
+            if (length <= MAX_READ_BUFFER_SIZE) {
+                READ_BUFFER.set(buffer);
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * @return false when the stream ended before length bytes were read
+     */
+    static boolean readFully(final InputStream in, final byte[] buffer, final int length)
+            throws IOException {
+        int read = 0;
+        while (read < length) {
+            final int count = in.read(buffer, read, length - read);
+            if (count < 0) {
+                return false;
+            }
+            read += count;
+        }
+        return true;
+    }
+
+    /**
+     * Reads encoded image stored under the key.
+     *
+     * @return the image's data or null when there's no such entry
+     */
+    public byte[] getBytes(final String key) {
+        if (!mightContain(key)) {
+            return null;
+        }
+        final byte[] packed = store.getPacked(key);
+        if (packed != null) {
+            return packed;
+        }
+        DiskLruCache.Snapshot snapshot = null;
+        try {
+            snapshot = store.shard(key).get(key);
+            if (snapshot == null) {
+                return null;
+            }
+            final byte[] data = new byte[(int) snapshot.getLength(0)];
+            if (!readFully(snapshot.getInputStream(0), data, data.length)) {
+                Utils.log("Entry shorter than expected " + key);
+                return null;
+            }
+            readMetadata(key, snapshot);
+            return data;
+        } catch (final IOException e) {
+            Utils.log("Loading bitmap from disk error.");
+            return null;
+        } finally {
+            if (snapshot != null) {
+                snapshot.close();
+            }
+        }
+    }
+
+    /**
+     * Decodes encoded image, reusing a pooled bitmap when possible.
+     */
+    public Bitmap decodeBitmap(final byte[] data) {
+        if (isRaw(data, data.length)) {
+            return RawPixels.restore(data, data.length, bitmapPool);
+        }
+        return decodeBitmap(data, data.length, null);
+    }
+
+    /**
+     * Decodes data of the entry read before, for example with
+     * {@link #getBytes(String)}, and applies {@link RawPixelPolicy} to it the
+     * same as {@link #getBitmap(String)} does.
+     */
+    public Bitmap decodeBitmap(final String key, final byte[] data) {
+        if (isRaw(data, data.length)) {
+            return RawPixels.restore(data, data.length, bitmapPool);
+        }
+        return storeRawIfHot(key, decodeBitmap(data, data.length, null));
+    }
+
+    /**
+     * Decodes encoded image taking first length bytes of the array. Bounds
+     * are taken from the metadata when it's known.
+     */
+    private Bitmap decodeBitmap(final byte[] data, final int length, final ImageMetadata metadata) {
+        Options options = null;
+        if (bitmapPool != null) {
+            options = new Options();
+            if (metadata != null) {
+                metadata.applyTo(options);
+            } else {
+                options.inJustDecodeBounds = true;
+                BitmapFactory.decodeByteArray(data, 0, length, options);
+                options.inJustDecodeBounds = false;
+            }
+            bitmapPool.prepareOptions(options);
+        }
+        try {
+            return decodeByteArray(data, length, options);
+        } catch (final IllegalArgumentException e) {
+            if (options == null || options.inBitmap == null) {
+                throw e;
+            }
+            // reused bitmap doesn't fit decoded image, decode into a new one
+            Utils.log("Decoding into reused bitmap failed");
+            bitmapPool.put(options.inBitmap);
+            options.inBitmap = null;
+            return decodeByteArray(data, length, options);
+        }
+    }
+
+    private Bitmap decodeByteArray(final byte[] data, final int length, final Options options) {
+        try {
+            return BitmapFactory.decodeByteArray(data, 0, length, options);
+        } catch (final OutOfMemoryError e) {
+            Utils.log(e);
+            return null;
+        }
+    }
+
+    private Bitmap readBitmap(final String key, final Options options) {
         Bitmap bitmap = null;
         DiskLruCache.Snapshot snapshot = null;
         try {
 
-            snapshot = mDiskCache.get(key);
+            snapshot = store.shard(key).get(key);
             if (snapshot == null) {
                 return null;
             }
+            final ImageMetadata metadata = readMetadata(key, snapshot);
             final InputStream in = snapshot.getInputStream(0);
             if (in != null) {
                 final BufferedInputStream buffIn = new BufferedInputStream(in, 1024);
+                if (RawPixels.peek(buffIn)) {
+                    final int length = (int) snapshot.getLength(0);
+                    final byte[] buffer = obtainReadBuffer(length);
+                    options.outMimeType = RAW_MIME_TYPE;
+                    return readFully(buffIn, buffer, length) ? RawPixels.restore(buffer, length, bitmapPool) : null;
+                }
+                if (bitmapPool != null && options.outWidth <= 0) {
+                    prepareDecodeOptions(key, metadata, options);
+                }
                 try {
                     Utils.log("Loading bitmap from disk");
-                    bitmap = BitmapFactory.decodeStream(buffIn);
+                    bitmap = BitmapFactory.decodeStream(buffIn, null, options);
                 } catch (final OutOfMemoryError e) {
                     Utils.log(e);
                 }
@@ -113,19 +1040,148 @@ public class DiskCache {
                 snapshot.close();
             }
         }
+        return bitmap;
+    }
 
-        Utils.log(bitmap == null ? "" : "image read from disk " + key);
+    /**
+     * Prepares decoding options to reuse a pooled bitmap when possible. Bounds
+     * are taken from the entry's metadata, or read straight from the entry's
+     * file when it's unknown, so the entry's stream is consumed only once.
+     */
+    private void prepareDecodeOptions(final String key, final ImageMetadata metadata, final Options options) {
+        if (metadata != null) {
+            metadata.applyTo(options);
+        } else {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(store.getEntryFile(key).getPath(), options);
+            options.inJustDecodeBounds = false;
+        }
+        bitmapPool.prepareOptions(options);
+    }
 
-        return bitmap;
+    /**
+     * Returns file of the entry, which can be read directly, for example by
+     * decoders needing a path. The entry counts as used. File may be deleted
+     * anytime when the entry is evicted, so readers have to expect it to be
+     * gone.
+     *
+     * @return the file or null when there's no such entry
+     */
+    public File getFile(final String key) {
+        return mightContain(key) && containsFile(key) ? store.getEntryFile(key) : null;
+    }
+
+    /**
+     * Returns metadata stored with the entry, which saves parsing the image
+     * for its bounds and orientation. Packed entries keep no metadata.
+     *
+     * @return the metadata or null when there's no such entry or its metadata
+     * isn't known
+     */
+    public ImageMetadata getMetadata(final String key) {
+        if (!mightContain(key)) {
+            return null;
+        }
+        DiskLruCache.Snapshot snapshot = null;
+        try {
+            snapshot = store.shard(key).get(key);
+            return snapshot == null ? null : readMetadata(key, snapshot);
+        } catch (final IOException e) {
+            Utils.log("Reading disk cache error");
+            return null;
+        } finally {
+            if (snapshot != null) {
+                snapshot.close();
+            }
+        }
+    }
 
+    /**
+     * Returns HTTP freshness kept with the entry, see
+     * {@link #putFreshness(String, Freshness)}.
+     *
+     * @return the freshness or null when there's no such entry or it keeps no
+     * freshness
+     */
+    public Freshness getFreshness(final String key) {
+        if (!mightContain(key)) {
+            return null;
+        }
+        DiskLruCache.Snapshot snapshot = null;
+        try {
+            snapshot = store.shard(key).get(key);
+            final byte[] value = snapshot == null ? null : readMetadataValue(snapshot);
+            return value == null ? null : freshnessOf(value);
+        } catch (final IOException e) {
+            Utils.log("Reading disk cache error");
+            return null;
+        } finally {
+            if (snapshot != null) {
+                snapshot.close();
+            }
+        }
+    }
+
+    /**
+     * Keeps HTTP freshness of the image in the metadata value of its entry, so
+     * it's evicted and removed together with the image. Only the metadata
+     * value is rewritten. Packed entries and legacy caches keep no freshness.
+     *
+     * @param freshness the freshness or null to drop it
+     * @return false when there's no such entry or it couldn't be updated
+     */
+    public boolean putFreshness(final String key, final Freshness freshness) {
+        if (valueCount <= METADATA_INDEX || !mightContain(key)) {
+            return false;
+        }
+        DiskLruCache.Snapshot snapshot = null;
+        DiskLruCache.Editor editor = null;
+        try {
+            snapshot = store.shard(key).get(key);
+            if (snapshot == null) {
+                return false;
+            }
+            final byte[] value = readMetadataValue(snapshot);
+            // fails when the entry was replaced since the snapshot
+            editor = snapshot.edit();
+            if (value == null || editor == null) {
+                return false;
+            }
+            writeBytes(metadataValue(copyOfRange(value, imageMetadataOffset(value), value.length),
+                    freshness), editor, METADATA_INDEX);
+            editor.commit();
+            editor = null;
+            commitWritten();
+            return true;
+        } catch (final IOException e) {
+            Utils.log("Storing freshness error " + key, e);
+            return false;
+        } finally {
+            if (editor != null) {
+                try {
+                    editor.abort();
+                } catch (final IOException ignored) {
+                    Utils.log("Editor abort error");
+                }
+            }
+            if (snapshot != null) {
+                snapshot.close();
+            }
+        }
     }
 
     public boolean containsKey(final String key) {
+        if (!mightContain(key)) {
+            return false;
+        }
+        return store.containsPacked(key) || containsFile(key);
+    }
 
+    private boolean containsFile(final String key) {
         boolean contained = false;
         DiskLruCache.Snapshot snapshot = null;
         try {
-            snapshot = mDiskCache.get(key);
+            snapshot = store.shard(key).get(key);
             contained = snapshot != null;
         } catch (final IOException e) {
             Utils.log("Reading disk cache error");
@@ -140,48 +1196,83 @@ public class DiskCache {
     }
 
     public boolean remove(final String key) throws IOException {
-        return mDiskCache.remove(key);
+        if (!mightContain(key)) {
+            return false;
+        }
+        final boolean removed = store.removePacked(key) | store.shard(key).remove(key);
+        if (!removed) {
+            return false;
+        }
+        keyFilter.remove(key);
+        return true;
     }
 
     public void clearCache() {
-        final File directory = getDirectory();
-        final long maxSize = getMaxSize();
-        try {
-            mDiskCache.delete();
-            final String message = "disk cache CLEARED";
-            Utils.log(message);
-        } catch (final IOException e) {
-            final File[] listFiles = directory.listFiles();
-            deleteFiles(listFiles);
-            Utils.log("Clearing disk cache error.", e);
-        }
         try {
-            mDiskCache = openDiskLruCache(directory, APP_VERSION, VALUE_COUNT, maxSize);
+            store.clear();
         } catch (final IOException e) {
             Utils.log("Opening disk cache error", e);
+            return;
         }
+        rebuildKeyFilter();
     }
 
-    private void deleteFiles(final File[] listFiles) {
-        for (final File file : listFiles) {
-            if (file.isDirectory()) {
-                deleteFiles(file.listFiles());
-                Utils.log("File " + file.getAbsolutePath() + " deleted with success? " + file.delete());
-            }
-            Utils.log("File " + file.getAbsolutePath() + " deleted with success? " + file.delete());
-        }
-    }
-
+    /**
+     * Returns size of the entries, 0 until the cache is open.
+     */
     public long getSize() {
-        return mDiskCache.size();
+        return store.size();
     }
 
     public long getMaxSize() {
-        return mDiskCache.getMaxSize();
+        return store.getMaxSize();
     }
 
     public File getDirectory() {
-        return mDiskCache.getDirectory();
+        return directory;
+    }
+
+    /**
+     * Sets policy choosing entries which are stored as raw pixels once they
+     * were read, see {@link #putRaw(String, Bitmap)}. Null keeps every entry
+     * encoded.
+     */
+    public void setRawPixelPolicy(final RawPixelPolicy rawPixelPolicy) {
+        this.rawPixelPolicy = rawPixelPolicy;
+    }
+
+    /**
+     * Sets listener told freshness of entries read from disk, so it can be
+     * remembered without reading it again. Null disables it.
+     */
+    public void setFreshnessListener(final FreshnessListener freshnessListener) {
+        this.freshnessListener = freshnessListener;
+    }
+
+    /**
+     * Sets writer storing entries chosen by {@link RawPixelPolicy}, so they
+     * aren't rewritten on the thread reading them. Null stores them right
+     * away.
+     */
+    public void setRawPixelWriter(final RawPixelWriter rawPixelWriter) {
+        this.rawPixelWriter = rawPixelWriter;
+    }
+
+    /**
+     * Sets policy choosing format and quality of each stored bitmap. Null
+     * compresses every bitmap with format and quality the cache was created
+     * with.
+     */
+    public void setCompressionPolicy(final CompressionPolicy compressionPolicy) {
+        this.compressionPolicy = compressionPolicy;
+    }
+
+    /**
+     * Sets pool providing bitmaps reused when decoding. Null disables reusing
+     * bitmaps.
+     */
+    public void setBitmapPool(final BitmapPool bitmapPool) {
+        this.bitmapPool = bitmapPool;
     }
 
     public CompressFormat getCompressFormat() {
@@ -192,4 +1283,134 @@ public class DiskCache {
         return compressQuality;
     }
 
+
+    /**
+     * Stores entries chosen by {@link RawPixelPolicy} as raw pixels, see
+     * {@link #setRawPixelWriter(RawPixelWriter)}.
+     */
+    public interface RawPixelWriter {
+
+        /**
+         * Called on the thread which has just decoded the entry. The bitmap
+         * may be handed out to other users afterwards, so it has to be kept
+         * from being reused until it's stored with
+         * {@link DiskCache#putRaw(String, Bitmap)}.
+         */
+        void storeRaw(String key, Bitmap bitmap);
+    }
+
+    /**
+     * Receives freshness kept with entries read from disk, see
+     * {@link #setFreshnessListener(FreshnessListener)}.
+     */
+    public interface FreshnessListener {
+
+        /**
+         * Called on the thread reading the entry.
+         *
+         * @param freshness freshness kept with the entry, null when it has
+         *                  none
+         */
+        void onFreshnessRead(String key, Freshness freshness);
+    }
+
+    /**
+     * Builds disk cache, parameters which aren't set keep their defaults.
+     */
+    public static final class Builder {
+
+        private final String path;
+
+        private final long size;
+
+        private CompressFormat compressFormat = CompressFormat.PNG;
+
+        private int compressQuality = 100;
+
+        private int appVersion = APP_VERSION;
+
+        private boolean async;
+
+        private int shardCount = 1;
+
+        private int packEntryMaxSize;
+
+        /**
+         * @param path directory of the cache
+         * @param size maximum size of the cache in bytes
+         */
+        public Builder(final String path, final long size) {
+            this.path = path;
+            this.size = size;
+        }
+
+        /**
+         * Sets format bitmaps are compressed with when no
+         * {@link CompressionPolicy} chooses another one, PNG by default.
+         */
+        public Builder compressFormat(final CompressFormat compressFormat) {
+            this.compressFormat = compressFormat;
+            return this;
+        }
+
+        public Builder compressQuality(final int compressQuality) {
+            this.compressQuality = compressQuality;
+            return this;
+        }
+
+        /**
+         * @param appVersion version of the cache's format, cache written with
+         *                   another version is cleared when opened
+         */
+        public Builder appVersion(final int appVersion) {
+            this.appVersion = appVersion;
+            return this;
+        }
+
+        /**
+         * @param async open the cache in a background thread, since reading
+         *              its journal takes a while. Calls made before it's open
+         *              wait for it, except for the ones returning sizes. When
+         *              opening fails the cache stays empty instead of
+         *              throwing.
+         */
+        public Builder async(final boolean async) {
+            this.async = async;
+            return this;
+        }
+
+        /**
+         * @param shardCount number of independent caches the keys are split
+         *                   between, each with its own lock and journal in a
+         *                   sub-directory and a share of the size. Shards let
+         *                   threads read and write in parallel; 1 keeps a
+         *                   single cache in the directory itself. Changing the
+         *                   number drops entries stored with the other layout.
+         */
+        public Builder shards(final int shardCount) {
+            this.shardCount = shardCount;
+            return this;
+        }
+
+        /**
+         * @param packEntryMaxSize size of the biggest entry appended to shared
+         *                         pack files instead of getting its own file,
+         *                         0 keeps every entry in its own file. Small
+         *                         entries don't cost a file and a journal line
+         *                         each then; they get
+         *                         1/{@value ShardedStore#PACK_SIZE_DIVISOR} of the size.
+         */
+        public Builder packEntryMaxSize(final int packEntryMaxSize) {
+            this.packEntryMaxSize = packEntryMaxSize;
+            return this;
+        }
+
+        /**
+         * @throws IllegalArgumentException when shard count is less than 1 or
+         *                                  opening the cache right away failed
+         */
+        public DiskCache build() {
+            return new DiskCache(this);
+        }
+    }
 }
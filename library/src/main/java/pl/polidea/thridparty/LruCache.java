@@ -32,9 +32,9 @@ import java.util.Map;
 @SuppressWarnings("all")
 public class LruCache<K, V> {
 
-    private final LinkedHashMap<K, V> map;
+    private final Map<K, V> map;
 
-    private final int maxSize;
+    private int maxSize;
 
     /**
      * Size of this cache in units. Not necessarily the number of elements.
@@ -58,11 +58,20 @@ public class LruCache<K, V> {
      *                cache.
      */
     public LruCache(final int maxSize) {
+        this(maxSize, new LinkedHashMap<K, V>(0, 0.75f, true));
+    }
+
+    /**
+     * @param maxSize see {@link #LruCache(int)}
+     * @param map     empty map keeping the entries, it has to iterate in
+     *                access order, from least recently accessed entry
+     */
+    protected LruCache(final int maxSize, final Map<K, V> map) {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
         this.maxSize = maxSize;
-        this.map = new LinkedHashMap<K, V>(0, 0.75f, true);
+        this.map = map;
     }
 
     /**
@@ -148,6 +157,23 @@ public class LruCache<K, V> {
         return previous;
     }
 
+    /**
+     * Sets the size of the cache, evicting least recently used entries when
+     * the current size exceeds the new one. Size of 0 evicts all entries and
+     * keeps the cache empty until it's resized again.
+     *
+     * @param maxSize the new maximum size
+     */
+    public void resize(final int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize < 0");
+        }
+        synchronized (this) {
+            this.maxSize = maxSize;
+        }
+        trimToSize(maxSize);
+    }
+
     /**
      * @param maxSize the maximum size of the cache before returning. May be -1 to
      *                evict even 0-sized elements.
@@ -166,7 +192,10 @@ public class LruCache<K, V> {
                     break;
                 }
 
-                final Map.Entry<K, V> toEvict = map.entrySet().iterator().next();
+                final Map.Entry<K, V> toEvict = eldestEvictable(maxSize < 0);
+                if (toEvict == null) {
+                    break;
+                }
                 key = toEvict.getKey();
                 value = toEvict.getValue();
                 map.remove(key);
@@ -178,6 +207,26 @@ public class LruCache<K, V> {
         }
     }
 
+    /**
+     * Returns least recently used entry which can be evicted. Entries which
+     * can't be evicted are moved behind the others as if they were accessed,
+     * so following evictions don't scan them again. Must be called holding
+     * the lock.
+     *
+     * @param force true to ignore {@link #isEvictable} and return the eldest
+     *              entry
+     */
+    private Map.Entry<K, V> eldestEvictable(final boolean force) {
+        for (int i = map.size(); i > 0; i--) {
+            final Map.Entry<K, V> eldest = map.entrySet().iterator().next();
+            if (force || isEvictable(eldest.getKey(), eldest.getValue())) {
+                return eldest;
+            }
+            map.get(eldest.getKey());
+        }
+        return null;
+    }
+
     /**
      * Removes the entry for {@code key} if it exists.
      *
@@ -222,6 +271,19 @@ public class LruCache<K, V> {
     protected void entryRemoved(final boolean evicted, final K key, final V oldValue, final V newValue) {
     }
 
+    /**
+     * Returns false for entries which must stay in the cache even when it
+     * exceeds its maximum size. Such entries are skipped while trimming the
+     * cache, only {@link #evictAll()} and {@link #remove} drop them. The
+     * default implementation returns true.
+     * <p/>
+     * <p/>
+     * The method is called while holding the cache's lock.
+     */
+    protected boolean isEvictable(final K key, final V value) {
+        return true;
+    }
+
     /**
      * Called after a cache miss to compute a value for the corresponding key.
      * Returns the computed value or null if no value can be computed. The
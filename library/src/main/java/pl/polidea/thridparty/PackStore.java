@@ -0,0 +1,628 @@
+package pl.polidea.thridparty;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import pl.polidea.utils.Utils;
+
+/**
+ * Store of small entries appended one after another to a few segment files
+ * instead of keeping a file per entry. Locations of entries are kept in
+ * memory and rebuilt by scanning the segments when the store is opened.
+ * Entries are written to the newest segment only; replacing or removing an
+ * entry leaves its record as dead space, which a background compactor
+ * reclaims by copying live records of the oldest segment to the newest one
+ * and deleting the oldest segment.
+ * <p/>
+ * Record is the length of data (-1 for a removed key), CRC32 of the data,
+ * length of the key, the key and the data. Records cut short by the process
+ * dying are dropped when the store is opened. Least recently used entries
+ * are removed when live entries take more than the maximum size; dead space
+ * takes at most about as much.
+ */
+class PackStore {
+
+    static final String SEGMENT_PREFIX = "pack.";
+
+    private static final int HEADER_SIZE = 9;
+
+    private static final int REMOVED = -1;
+
+    private static final int MAX_KEY_LENGTH = 255;
+
+    /**
+     * Part of the segments' size taken by dead records after which the oldest
+     * segment is compacted.
+     */
+    static final float COMPACT_DEAD_FRACTION = 0.5f;
+
+    /**
+     * Runs compactions of all stores one at a time in a background thread of
+     * low priority, which ends when it's idle.
+     */
+    private static final Executor COMPACTOR = new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "Pack compactor");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    private final File directory;
+
+    private final Executor compactor;
+
+    private long maxSize;
+
+    private final long segmentSize;
+
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+
+    private final LinkedHashMap<String, Location> index = new LinkedHashMap<String, Location>(0, 0.75f, true);
+
+    private Segment active;
+
+    private long liveSize;
+
+    private long fileSize;
+
+    private boolean compacting;
+
+    private int compactionCount;
+
+    private PackStore(final File directory, final long maxSize, final long segmentSize, final Executor compactor) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.segmentSize = segmentSize;
+        this.compactor = compactor;
+    }
+
+    /**
+     * Opens the store kept in the directory, reading locations of its entries
+     * from the segments.
+     *
+     * @param maxSize     size of live entries above which least recently used
+     *                    ones are removed
+     * @param segmentSize size of a segment after which a new one is started
+     */
+    static PackStore open(final File directory, final long maxSize, final long segmentSize) throws IOException {
+        return open(directory, maxSize, segmentSize, COMPACTOR);
+    }
+
+    /**
+     * Same as {@link #open(File, long, long)}, with compactions run by the
+     * executor.
+     */
+    static PackStore open(final File directory, final long maxSize, final long segmentSize,
+                          final Executor compactor) throws IOException {
+        if (compactor == null) {
+            throw new IllegalArgumentException("compactor == null");
+        }
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("segmentSize <= 0");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Creating " + directory + " failed");
+        }
+        final PackStore store = new PackStore(directory, maxSize, segmentSize, compactor);
+        synchronized (store) {
+            store.readSegments();
+            store.trimToSize();
+        }
+        return store;
+    }
+
+    private void readSegments() throws IOException {
+        final File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(final File file) {
+                return file.isFile() && file.getName().startsWith(SEGMENT_PREFIX);
+            }
+        });
+        final TreeMap<Integer, File> numbered = new TreeMap<Integer, File>();
+        if (files != null) {
+            for (final File file : files) {
+                try {
+                    numbered.put(Integer.valueOf(file.getName().substring(SEGMENT_PREFIX.length())), file);
+                } catch (final NumberFormatException e) {
+                    Utils.log("Deleting unknown file " + file + " " + file.delete());
+                }
+            }
+        }
+        for (final Map.Entry<Integer, File> entry : numbered.entrySet()) {
+            final Segment segment = new Segment(entry.getKey(), entry.getValue());
+            segments.put(segment.number, segment);
+            replay(segment);
+            fileSize += segment.length;
+            active = segment;
+        }
+        if (active == null) {
+            startSegment(0);
+        }
+    }
+
+    /**
+     * Reads records of the segment into the index. Segment is cut before the
+     * first record which isn't whole.
+     */
+    private void replay(final Segment segment) throws IOException {
+        final long length = segment.channel.size();
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long position = 0;
+        while (position < length) {
+            header.clear();
+            if (!readFully(segment.channel, header, position)) {
+                break;
+            }
+            final int dataLength = header.getInt(0);
+            final int crc = header.getInt(4);
+            final int keyLength = header.get(8) & 0xff;
+            final long dataOffset = position + HEADER_SIZE + keyLength;
+            final long end = dataOffset + Math.max(0, dataLength);
+            if (keyLength == 0 || dataLength < REMOVED || end > length) {
+                break;
+            }
+            final ByteBuffer keyBuffer = ByteBuffer.allocate(keyLength);
+            if (!readFully(segment.channel, keyBuffer, position + HEADER_SIZE)) {
+                break;
+            }
+            final String key = decodeKey(keyBuffer.array());
+            final Location replaced;
+            if (dataLength == REMOVED) {
+                replaced = index.remove(key);
+            } else {
+                replaced = index.put(key, new Location(segment, dataOffset, dataLength, crc, end - position));
+                liveSize += end - position;
+            }
+            if (replaced != null) {
+                liveSize -= replaced.recordSize;
+            }
+            position = end;
+        }
+        if (position < length) {
+            Utils.log("Dropping broken end of " + segment.file);
+            segment.channel.truncate(position);
+        }
+        segment.length = position;
+    }
+
+    private void startSegment(final int number) throws IOException {
+        final Segment segment = new Segment(number, new File(directory, SEGMENT_PREFIX + number));
+        segment.channel.truncate(0);
+        segments.put(number, segment);
+        active = segment;
+    }
+
+    /**
+     * Appends the record to the newest segment, starting a new one when it's
+     * full.
+     *
+     * @return offset of the record's data
+     */
+    private long append(final String key, final byte[] data, final int length, final int crc) throws IOException {
+        if (active == null) {
+            throw new IOException("Pack store deleted");
+        }
+        final byte[] keyBytes = encodeKey(key);
+        final int dataLength = data == null ? 0 : length;
+        final int recordSize = HEADER_SIZE + keyBytes.length + dataLength;
+        if (active.length > 0 && active.length + recordSize > segmentSize) {
+            startSegment(active.number + 1);
+        }
+        final ByteBuffer record = ByteBuffer.allocate(recordSize);
+        record.putInt(data == null ? REMOVED : length);
+        record.putInt(crc);
+        record.put((byte) keyBytes.length);
+        record.put(keyBytes);
+        if (data != null) {
+            record.put(data, 0, length);
+        }
+        record.flip();
+        final long position = active.length;
+        try {
+            while (record.hasRemaining()) {
+                active.channel.write(record, position + record.position());
+            }
+        } catch (final IOException e) {
+            // drop what was written, so the next record isn't read as part of this one
+            active.channel.truncate(position);
+            throw e;
+        }
+        active.length += recordSize;
+        fileSize += recordSize;
+        return position + HEADER_SIZE + keyBytes.length;
+    }
+
+    /**
+     * Stores the data under the key, replacing the previous entry.
+     */
+    void put(final String key, final byte[] data) throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        synchronized (this) {
+            final int crcValue = (int) crc.getValue();
+            final long dataOffset = append(key, data, data.length, crcValue);
+            final long recordSize = HEADER_SIZE + key.length() + data.length;
+            final Location replaced = index.put(key, new Location(active, dataOffset, data.length, crcValue,
+                    recordSize));
+            if (replaced != null) {
+                replaced.dead = true;
+                liveSize -= replaced.recordSize;
+            }
+            liveSize += recordSize;
+            trimToSize();
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * Reads the entry, which counts as used.
+     *
+     * @return the data or null when there's no such entry or its data is
+     * broken
+     */
+    byte[] get(final String key) throws IOException {
+        // a segment may be compacted while it's read, the entry is moved then
+        for (int attempt = 0; attempt < 2; attempt++) {
+            final Segment segment;
+            final long offset;
+            final int length;
+            final int crc;
+            synchronized (this) {
+                final Location location = index.get(key);
+                if (location == null) {
+                    return null;
+                }
+                segment = location.segment;
+                offset = location.offset;
+                length = location.length;
+                crc = location.crc;
+            }
+            final byte[] data = new byte[length];
+            try {
+                if (!readFully(segment.channel, ByteBuffer.wrap(data), offset)) {
+                    continue;
+                }
+            } catch (final IOException e) {
+                if (segment.channel.isOpen()) {
+                    throw e;
+                }
+                continue;
+            }
+            final CRC32 check = new CRC32();
+            check.update(data, 0, length);
+            if ((int) check.getValue() != crc) {
+                Utils.log("Broken packed entry " + key);
+                remove(key);
+                return null;
+            }
+            return data;
+        }
+        return null;
+    }
+
+    synchronized boolean contains(final String key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * @return false when there was no such entry
+     */
+    boolean remove(final String key) throws IOException {
+        final boolean removed;
+        synchronized (this) {
+            removed = removeEntry(key);
+        }
+        if (removed) {
+            compactIfNeeded();
+        }
+        return removed;
+    }
+
+    /**
+     * Appends record of the removed key, so it isn't read again when the store
+     * is opened.
+     */
+    private boolean removeEntry(final String key) throws IOException {
+        final Location location = index.remove(key);
+        if (location == null) {
+            return false;
+        }
+        location.dead = true;
+        liveSize -= location.recordSize;
+        append(key, null, 0, 0);
+        return true;
+    }
+
+    /**
+     * Changes the size of live entries, evicting least recently used ones
+     * when it shrinks.
+     */
+    void setMaxSize(final long maxSize) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        synchronized (this) {
+            this.maxSize = maxSize;
+            trimToSize();
+        }
+        compactIfNeeded();
+    }
+
+    synchronized long getMaxSize() {
+        return maxSize;
+    }
+
+    private void trimToSize() throws IOException {
+        while (liveSize > maxSize && !index.isEmpty()) {
+            final String eldest = index.keySet().iterator().next();
+            removeEntry(eldest);
+            Utils.log("Packed entry evicted " + eldest);
+        }
+    }
+
+    /**
+     * Returns keys of all entries.
+     */
+    synchronized List<String> keys() {
+        return new ArrayList<String>(index.keySet());
+    }
+
+    /**
+     * Returns the size of all segments, including dead records.
+     */
+    synchronized long size() {
+        return fileSize;
+    }
+
+    /**
+     * Returns the size of live records.
+     */
+    synchronized long liveSize() {
+        return liveSize;
+    }
+
+    synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Returns the number of segments compacted so far.
+     */
+    synchronized int compactionCount() {
+        return compactionCount;
+    }
+
+    private synchronized boolean needsCompaction() {
+        return active != null && segments.size() > 1 && fileSize - liveSize >= fileSize * COMPACT_DEAD_FRACTION;
+    }
+
+    /**
+     * Submits compaction to the compactor unless one is queued or running
+     * already.
+     */
+    private void compactIfNeeded() {
+        synchronized (this) {
+            if (compacting || !needsCompaction()) {
+                return;
+            }
+            compacting = true;
+        }
+        try {
+            compactor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compact();
+                    } catch (final IOException e) {
+                        Utils.log("Compacting packed entries error", e);
+                    } finally {
+                        synchronized (PackStore.this) {
+                            compacting = false;
+                        }
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            Utils.log("Compacting packed entries rejected", e);
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    /**
+     * Compacts oldest segments while dead records take too much space. Each
+     * segment is compacted at most once per call, so records moved to the
+     * newest segment aren't moved again.
+     */
+    void compact() throws IOException {
+        int remaining;
+        synchronized (this) {
+            remaining = segments.size() - 1;
+        }
+        while (remaining-- > 0 && needsCompaction()) {
+            compactOldest();
+        }
+    }
+
+    /**
+     * Copies live records of the oldest segment to the newest one and deletes
+     * the oldest segment. Records of removed keys are dropped, as there's no
+     * older segment whose record they could hide. Data is read without the
+     * lock, so readers and writers wait only for single records to be copied.
+     */
+    private void compactOldest() throws IOException {
+        final Segment oldest;
+        final List<Map.Entry<String, Location>> live = new ArrayList<Map.Entry<String, Location>>();
+        synchronized (this) {
+            if (segments.size() < 2) {
+                return;
+            }
+            oldest = segments.get(segments.firstKey());
+            for (final Map.Entry<String, Location> entry : index.entrySet()) {
+                if (entry.getValue().segment == oldest) {
+                    live.add(entry);
+                }
+            }
+        }
+        for (final Map.Entry<String, Location> entry : live) {
+            final Location location = entry.getValue();
+            final byte[] data = new byte[location.length];
+            if (!readFully(oldest.channel, ByteBuffer.wrap(data), location.offset)) {
+                throw new IOException("Segment " + oldest.file + " shorter than expected");
+            }
+            synchronized (this) {
+                if (segments.get(oldest.number) != oldest) {
+                    // store was deleted meanwhile
+                    return;
+                }
+                // the entry may have been replaced or removed meanwhile
+                if (location.dead || location.segment != oldest) {
+                    continue;
+                }
+                // location is updated in place, so copying doesn't count as use
+                location.offset = append(entry.getKey(), data, location.length, location.crc);
+                location.segment = active;
+            }
+        }
+        synchronized (this) {
+            if (segments.get(oldest.number) != oldest) {
+                return;
+            }
+            segments.remove(oldest.number);
+            fileSize -= oldest.length;
+            compactionCount++;
+        }
+        oldest.close();
+        Utils.log("Packed segment compacted " + oldest.file + " " + oldest.file.delete());
+    }
+
+    /**
+     * Closes the store and deletes all its segments.
+     */
+    synchronized void delete() {
+        final Iterator<Segment> iterator = segments.values().iterator();
+        while (iterator.hasNext()) {
+            final Segment segment = iterator.next();
+            segment.close();
+            segment.file.delete();
+            iterator.remove();
+        }
+        index.clear();
+        liveSize = 0;
+        fileSize = 0;
+        active = null;
+        directory.delete();
+    }
+
+    private static boolean readFully(final FileChannel channel, final ByteBuffer buffer, final long position)
+            throws IOException {
+        final int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            final int count = channel.read(buffer, position + buffer.position() - start);
+            if (count < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Keys of the disk cache are plain ASCII.
+     */
+    private static byte[] encodeKey(final String key) {
+        if (key.length() == 0 || key.length() > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Key length not in range 1.." + MAX_KEY_LENGTH + ": " + key);
+        }
+        final byte[] bytes = new byte[key.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) key.charAt(i);
+        }
+        return bytes;
+    }
+
+    private static String decodeKey(final byte[] bytes) {
+        final char[] chars = new char[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i] = (char) (bytes[i] & 0xff);
+        }
+        return new String(chars);
+    }
+
+    private static final class Segment {
+
+        final int number;
+
+        final File file;
+
+        final RandomAccessFile randomAccessFile;
+
+        final FileChannel channel;
+
+        long length;
+
+        Segment(final int number, final File file) throws IOException {
+            this.number = number;
+            this.file = file;
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            channel = randomAccessFile.getChannel();
+        }
+
+        void close() {
+            try {
+                randomAccessFile.close();
+            } catch (final IOException e) {
+                Utils.log("Closing " + file + " error");
+            }
+        }
+    }
+
+    private static final class Location {
+
+        Segment segment;
+
+        long offset;
+
+        final int length;
+
+        final int crc;
+
+        final long recordSize;
+
+        /**
+         * Set when the entry was replaced or removed.
+         */
+        boolean dead;
+
+        Location(final Segment segment, final long offset, final int length, final int crc, final long recordSize) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.crc = crc;
+            this.recordSize = recordSize;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package pl.polidea.thridparty;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import pl.polidea.utils.BitmapPool;
+import pl.polidea.utils.Utils;
+
+/**
+ * Encoding of entries keeping pixels of a bitmap as they are in memory,
+ * behind a small header. Reading them back only copies them into a bitmap,
+ * which is much faster than decoding an image, but they take several times
+ * more space.
+ */
+final class RawPixels {
+
+    /**
+     * First bytes of entries keeping raw pixels, "RAWP". No image format
+     * starts with them.
+     */
+    static final int MAGIC = 0x52415750;
+    /**
+     * Magic, width, height and a byte keeping index of the config in
+     * {@link #CONFIGS} and alpha flags.
+     */
+    static final int HEADER_SIZE = 13;
+    private static final int CONFIG_MASK = 0x0f;
+    /**
+     * Set when {@link #HAS_ALPHA} tells whether the bitmap had alpha, entries
+     * written before don't know it.
+     */
+    private static final int ALPHA_KNOWN = 0x80;
+    private static final int HAS_ALPHA = 0x40;
+    private static final Bitmap.Config[] CONFIGS = {Bitmap.Config.ALPHA_8, Bitmap.Config.RGB_565,
+            Bitmap.Config.ARGB_4444, Bitmap.Config.ARGB_8888};
+
+    private RawPixels() {
+    }
+
+    /**
+     * @return the entry's data or null when the bitmap's config isn't known
+     */
+    static byte[] encode(final Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return null;
+        }
+        int config = CONFIGS.length - 1;
+        while (config >= 0 && CONFIGS[config] != bitmap.getConfig()) {
+            config--;
+        }
+        if (config < 0) {
+            return null;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + bitmap.getRowBytes() * bitmap.getHeight());
+        buffer.putInt(MAGIC);
+        buffer.putInt(bitmap.getWidth());
+        buffer.putInt(bitmap.getHeight());
+        buffer.put((byte) (config | ALPHA_KNOWN | (bitmap.hasAlpha() ? HAS_ALPHA : 0)));
+        bitmap.copyPixelsToBuffer(buffer);
+        return buffer.array();
+    }
+
+    /**
+     * Tells whether first length bytes of the data keep raw pixels.
+     */
+    static boolean isRaw(final byte[] data, final int length) {
+        return length >= HEADER_SIZE && ByteBuffer.wrap(data).getInt(0) == MAGIC;
+    }
+
+    /**
+     * Tells whether the stream starts with raw pixels, leaving it where it
+     * was.
+     */
+    static boolean peek(final BufferedInputStream in) throws IOException {
+        final byte[] magic = new byte[4];
+        in.mark(magic.length);
+        final boolean raw = DiskCache.readFully(in, magic, magic.length) && ByteBuffer.wrap(magic).getInt() == MAGIC;
+        in.reset();
+        return raw;
+    }
+
+    /**
+     * Copies raw pixels into a pooled bitmap or a new one.
+     *
+     * @param bitmapPool pool of reused bitmaps, may be null
+     * @return the bitmap or null when the data is broken
+     */
+    static Bitmap restore(final byte[] data, final int length, final BitmapPool bitmapPool) {
+        final ByteBuffer header = ByteBuffer.wrap(data, 0, length);
+        header.getInt();
+        final int width = header.getInt();
+        final int height = header.getInt();
+        final int flags = header.get() & 0xff;
+        final int config = flags & CONFIG_MASK;
+        if (width <= 0 || height <= 0 || config >= CONFIGS.length) {
+            Utils.log("Broken raw pixels");
+            return null;
+        }
+        Bitmap bitmap = bitmapPool == null ? null : bitmapPool.get(width, height, CONFIGS[config]);
+        try {
+            if (bitmap == null) {
+                bitmap = Bitmap.createBitmap(width, height, CONFIGS[config]);
+            }
+            bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(data, HEADER_SIZE, length - HEADER_SIZE));
+            if ((flags & ALPHA_KNOWN) != 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
+                // pooled and new bitmaps of configs with alpha claim to have it
+                bitmap.setHasAlpha((flags & HAS_ALPHA) != 0);
+            }
+            return bitmap;
+        } catch (final OutOfMemoryError e) {
+            Utils.log(e);
+            return null;
+        } catch (final RuntimeException e) {
+            // buffer is shorter than the pixels
+            Utils.log("Broken raw pixels", e);
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+            return null;
+        }
+    }
+}
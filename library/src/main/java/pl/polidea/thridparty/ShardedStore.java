@@ -0,0 +1,416 @@
+package pl.polidea.thridparty;
+
+import com.jakewharton.DiskLruCache;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import pl.polidea.utils.Utils;
+
+/**
+ * Entries of the disk cache split between independent {@link DiskLruCache}
+ * shards by hash of the key, and small entries packed in a {@link PackStore}.
+ * Decides where each entry lives and keeps limits of the shards and the
+ * packs summing up to the size of the cache.
+ */
+class ShardedStore {
+
+    /**
+     * Prefix of sub-directories keeping shards of the cache.
+     */
+    static final String SHARD_PREFIX = "shard";
+    /**
+     * Shard at least this full while the whole cache isn't is considered
+     * skewed.
+     */
+    static final float SKEWED_SHARD_FILL = 0.9f;
+    /**
+     * Sub-directory keeping segments of packed entries.
+     */
+    static final String PACK_DIRECTORY = "pack";
+    /**
+     * Size of a segment of packed entries.
+     */
+    static final int PACK_SEGMENT_SIZE = 1024 * 1024;
+    /**
+     * Part of the size given to live packed entries. Their dead space may
+     * take as much again, so entry files get what's left of both.
+     */
+    static final int PACK_SIZE_DIVISOR = 8;
+    private static final String ENTRY_FILE_SUFFIX = ".0";
+    private final File directory;
+    private final int appVersion;
+    private final int valueCount;
+    private final int shardCount;
+    private final int packEntryMaxSize;
+    private final CountDownLatch opened = new CountDownLatch(1);
+    private volatile DiskLruCache[] shards;
+    private volatile PackStore packs;
+    private volatile long maxSize;
+    private volatile long shardsMaxSize;
+
+    /**
+     * @param packEntryMaxSize size of the biggest entry which is packed, 0
+     *                         keeps every entry in its own file
+     */
+    ShardedStore(final File directory, final int appVersion, final int valueCount, final long maxSize,
+                 final int shardCount, final int packEntryMaxSize) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shardCount < 1");
+        }
+        this.directory = directory;
+        this.appVersion = appVersion;
+        this.valueCount = valueCount;
+        this.shardCount = shardCount;
+        this.packEntryMaxSize = packEntryMaxSize;
+        this.maxSize = maxSize;
+        shardsMaxSize = shardsSize(maxSize);
+    }
+
+    /**
+     * Opens all shards, each with an equal share of the size, and deletes
+     * what's left of the other layout. Calls waiting for the store wait until
+     * {@link #finishOpening()}.
+     */
+    void open() throws IOException {
+        shards = openShards();
+    }
+
+    /**
+     * Lets calls waiting for the store through, also when opening failed.
+     */
+    void finishOpening() {
+        opened.countDown();
+    }
+
+    /**
+     * Returns size left to shards when packed entries and their dead records
+     * take a share of the cache's size.
+     */
+    private long shardsSize(final long size) {
+        return packEntryMaxSize > 0 ? size - 2 * (size / PACK_SIZE_DIVISOR) : size;
+    }
+
+    private DiskLruCache[] openShards() throws IOException {
+        final DiskLruCache[] opened = new DiskLruCache[shardCount];
+        if (shardCount == 1) {
+            deleteFiles(directory.listFiles(new FileFilter() {
+                @Override
+                public boolean accept(final File file) {
+                    return file.isDirectory() && file.getName().startsWith(SHARD_PREFIX);
+                }
+            }));
+            opened[0] = DiskLruCache.open(directory, appVersion, valueCount, shardsMaxSize);
+        } else {
+            deleteFiles(directory.listFiles(new FileFilter() {
+                @Override
+                public boolean accept(final File file) {
+                    return file.isFile();
+                }
+            }));
+            for (int i = 0; i < shardCount; i++) {
+                opened[i] = DiskLruCache.open(getShardDirectory(i), appVersion, valueCount,
+                        shardsMaxSize / shardCount);
+            }
+        }
+        final File packDirectory = new File(directory, PACK_DIRECTORY);
+        if (packEntryMaxSize > 0) {
+            packs = PackStore.open(packDirectory, maxSize / PACK_SIZE_DIVISOR, PACK_SEGMENT_SIZE);
+        } else {
+            deleteFiles(new File[]{packDirectory});
+        }
+        return opened;
+    }
+
+    /**
+     * Returns keys of entries found in shard directories and packs. Opened
+     * shards have already deleted files of entries which weren't committed.
+     */
+    List<String> keys() {
+        final List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < shardCount; i++) {
+            final String[] names = getShardDirectory(i).list();
+            if (names == null) {
+                continue;
+            }
+            for (final String name : names) {
+                if (name.endsWith(ENTRY_FILE_SUFFIX)) {
+                    keys.add(name.substring(0, name.length() - ENTRY_FILE_SUFFIX.length()));
+                }
+            }
+        }
+        final PackStore store = packs;
+        if (store != null) {
+            keys.addAll(store.keys());
+        }
+        return keys;
+    }
+
+    private File getShardDirectory(final int index) {
+        return shardCount == 1 ? directory : new File(directory, SHARD_PREFIX + index);
+    }
+
+    private int shardIndex(final String key) {
+        if (shardCount == 1) {
+            return 0;
+        }
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return (hash & Integer.MAX_VALUE) % shardCount;
+    }
+
+    /**
+     * Returns all shards once they're open, waiting for them when they're
+     * being opened in background.
+     *
+     * @throws IOException when opening failed or waiting was interrupted
+     */
+    DiskLruCache[] shards() throws IOException {
+        try {
+            opened.await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Waiting for disk cache interrupted");
+        }
+        final DiskLruCache[] caches = shards;
+        if (caches == null) {
+            throw new IOException("Disk cache isn't open");
+        }
+        return caches;
+    }
+
+    /**
+     * Returns the shard keeping the key, see {@link #shards()}.
+     */
+    DiskLruCache shard(final String key) throws IOException {
+        return shards()[shardIndex(key)];
+    }
+
+    /**
+     * DiskLruCache keeps value of index 0 in file named "key.0" in directory
+     * of the key's shard.
+     */
+    File getEntryFile(final String key) {
+        return new File(getShardDirectory(shardIndex(key)), key + ENTRY_FILE_SUFFIX);
+    }
+
+    boolean isOpen() {
+        return opened.getCount() == 0 && shards != null;
+    }
+
+    boolean awaitOpen(final long timeoutMillis) throws InterruptedException {
+        return opened.await(timeoutMillis, TimeUnit.MILLISECONDS) && shards != null;
+    }
+
+    int getShardCount() {
+        return shardCount;
+    }
+
+    long getShardMaxSize(final int index) throws IOException {
+        return shards()[index].getMaxSize();
+    }
+
+    /**
+     * Tells whether an entry of the length goes to the packs instead of its
+     * own file.
+     */
+    boolean isPacked(final int length) {
+        return packEntryMaxSize > 0 && length <= packEntryMaxSize;
+    }
+
+    /**
+     * Tells whether the store packs entries, so their size is known only
+     * once they're encoded.
+     */
+    boolean packsEntries() {
+        return packEntryMaxSize > 0;
+    }
+
+    /**
+     * Returns the store of packed entries once the cache is open, null when
+     * entries aren't packed.
+     */
+    private PackStore packs() throws IOException {
+        if (packEntryMaxSize <= 0) {
+            return null;
+        }
+        shards();
+        return packs;
+    }
+
+    /**
+     * Reads packed entry of the key.
+     *
+     * @return the data or null when the key isn't packed
+     */
+    byte[] getPacked(final String key) {
+        try {
+            final PackStore store = packs();
+            return store == null ? null : store.get(key);
+        } catch (final IOException e) {
+            Utils.log("Loading packed entry error.");
+            return null;
+        }
+    }
+
+    boolean containsPacked(final String key) {
+        try {
+            final PackStore store = packs();
+            return store != null && store.contains(key);
+        } catch (final IOException e) {
+            Utils.log("Reading disk cache error");
+            return false;
+        }
+    }
+
+    /**
+     * Appends the entry to pack files and removes its own file, if there was
+     * one.
+     *
+     * @return false when entries aren't packed
+     */
+    boolean putPacked(final String key, final byte[] data) throws IOException {
+        final PackStore store = packs();
+        if (store == null) {
+            return false;
+        }
+        store.put(key, data);
+        shard(key).remove(key);
+        return true;
+    }
+
+    /**
+     * Removes packed entry of the key, if there's one.
+     */
+    boolean removePacked(final String key) {
+        try {
+            final PackStore store = packs();
+            return store != null && store.remove(key);
+        } catch (final IOException e) {
+            Utils.log("Removing packed entry error.");
+            return false;
+        }
+    }
+
+    void flush() throws IOException {
+        for (final DiskLruCache shard : shards()) {
+            shard.flush();
+        }
+    }
+
+    /**
+     * Moves unused size to shards which filled their share while the whole
+     * cache still has room, as keys of a small cache don't spread evenly.
+     * Each shard's size is pulled halfway back to the equal share and the
+     * room left is split evenly, so limits of the shards always sum up to the
+     * size of the cache.
+     */
+    void rebalance() throws IOException {
+        final DiskLruCache[] caches = shards();
+        final long limit = shardsMaxSize;
+        long size = 0;
+        boolean skewed = false;
+        for (final DiskLruCache shard : caches) {
+            final long shardSize = shard.size();
+            size += shardSize;
+            skewed |= shardSize >= shard.getMaxSize() * SKEWED_SHARD_FILL;
+        }
+        if (!skewed || size >= limit * SKEWED_SHARD_FILL) {
+            return;
+        }
+        final long share = limit / caches.length;
+        final long[] limits = new long[caches.length];
+        long assigned = 0;
+        for (int i = 0; i < caches.length; i++) {
+            limits[i] = (caches[i].size() + share) / 2;
+            assigned += limits[i];
+        }
+        final long room = Math.max(0, limit - assigned) / caches.length;
+        for (int i = 0; i < caches.length; i++) {
+            caches[i].setMaxSize(limits[i] + room);
+        }
+        Utils.log("Disk cache shards rebalanced");
+    }
+
+    /**
+     * Changes the size of the cache, evicting least recently used entries in
+     * the background when it shrinks. Size of each shard is set to its equal
+     * share, later rebalancing moves it again.
+     */
+    void setMaxSize(final long size) throws IOException {
+        final DiskLruCache[] caches = shards();
+        synchronized (this) {
+            maxSize = size;
+            shardsMaxSize = shardsSize(size);
+        }
+        for (final DiskLruCache shard : caches) {
+            shard.setMaxSize(shardsMaxSize / caches.length);
+        }
+        final PackStore store = packs;
+        if (store != null) {
+            store.setMaxSize(size / PACK_SIZE_DIVISOR);
+        }
+    }
+
+    long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns size of the entries, 0 until the store is open.
+     */
+    long size() {
+        final DiskLruCache[] caches = shards;
+        if (caches == null) {
+            return 0;
+        }
+        long size = 0;
+        for (final DiskLruCache shard : caches) {
+            size += shard.size();
+        }
+        final PackStore store = packs;
+        if (store != null) {
+            size += store.size();
+        }
+        return size;
+    }
+
+    /**
+     * Deletes all entries and opens the store again.
+     */
+    void clear() throws IOException {
+        try {
+            for (final DiskLruCache shard : shards()) {
+                shard.delete();
+            }
+            final PackStore store = packs;
+            if (store != null) {
+                store.delete();
+            }
+            Utils.log("disk cache CLEARED");
+        } catch (final IOException e) {
+            deleteFiles(directory.listFiles());
+            Utils.log("Clearing disk cache error.", e);
+        }
+        shards = openShards();
+    }
+
+    private static void deleteFiles(final File[] listFiles) {
+        if (listFiles == null) {
+            return;
+        }
+        for (final File file : listFiles) {
+            if (file.isDirectory()) {
+                deleteFiles(file.listFiles());
+                Utils.log("File " + file.getAbsolutePath() + " deleted with success? " + file.delete());
+            }
+            Utils.log("File " + file.getAbsolutePath() + " deleted with success? " + file.delete());
+        }
+    }
+}
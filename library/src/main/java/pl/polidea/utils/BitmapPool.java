@@ -0,0 +1,189 @@
+package pl.polidea.utils;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory.Options;
+import android.os.Build;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Pool of bitmaps which are no longer used and whose pixel buffers can be
+ * reused by decoder through {@link Options#inBitmap}. Bitmaps are kept in
+ * buckets of the same width, height and config, because before KitKat the
+ * decoder can reuse only a bitmap of exactly the decoded size. Total size of
+ * pooled bitmaps is limited, the oldest ones are dropped first.
+ * <p/>
+ * Reusing bitmaps is supported since Honeycomb, on older platforms the pool
+ * stays empty.
+ */
+public class BitmapPool {
+
+    private final Map<String, LinkedList<Bitmap>> buckets = new HashMap<String, LinkedList<Bitmap>>();
+
+    private final LinkedList<Bitmap> order = new LinkedList<Bitmap>();
+
+    private final int maxSize;
+
+    private int size;
+
+    private int putCount;
+
+    private int hitCount;
+
+    private int missCount;
+
+    private int evictionCount;
+
+    public BitmapPool(final int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns true when the platform can decode into existing bitmaps.
+     */
+    public static boolean isReuseSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    /**
+     * Offers the bitmap for reuse. Only mutable, not recycled bitmaps are
+     * accepted. The caller must not use the bitmap after it was accepted.
+     *
+     * @return true when the bitmap was put to the pool
+     */
+    public boolean put(final Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || !isReuseSupported()) {
+            return false;
+        }
+        final int bitmapSize = sizeOf(bitmap);
+        if (bitmapSize > maxSize) {
+            return false;
+        }
+        synchronized (this) {
+            final String bucketKey = bucketKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+            LinkedList<Bitmap> bucket = buckets.get(bucketKey);
+            if (bucket == null) {
+                bucket = new LinkedList<Bitmap>();
+                buckets.put(bucketKey, bucket);
+            }
+            bucket.addLast(bitmap);
+            order.addLast(bitmap);
+            size += bitmapSize;
+            putCount++;
+            trimToSize(maxSize);
+        }
+        return true;
+    }
+
+    /**
+     * Takes a bitmap of given dimensions and config out of the pool.
+     *
+     * @return bitmap which can be used as {@link Options#inBitmap} or null
+     */
+    public synchronized Bitmap get(final int width, final int height, final Config config) {
+        final LinkedList<Bitmap> bucket = buckets.get(bucketKey(width, height, config));
+        if (bucket == null || bucket.isEmpty()) {
+            missCount++;
+            return null;
+        }
+        final Bitmap bitmap = bucket.removeLast();
+        order.remove(bitmap);
+        size -= sizeOf(bitmap);
+        hitCount++;
+        return bitmap;
+    }
+
+    /**
+     * Sets up decoding options to reuse a pooled bitmap of the size which is
+     * going to be decoded. Options have to contain bounds of the image and
+     * sample size of 1, because decoder can't reuse bitmaps for subsampled
+     * images before KitKat. Decoded bitmaps are always mutable, so they can be
+     * returned to the pool later.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public void prepareOptions(final Options options) {
+        if (!isReuseSupported()) {
+            return;
+        }
+        options.inMutable = true;
+        if (options.inSampleSize > 1 || options.outWidth <= 0 || options.outHeight <= 0) {
+            return;
+        }
+        final Config config = options.inPreferredConfig == null ? Config.ARGB_8888 : options.inPreferredConfig;
+        options.inBitmap = get(options.outWidth, options.outHeight, config);
+    }
+
+    /**
+     * Drops pooled bitmaps until total size is not bigger than given one.
+     */
+    public synchronized void trimToSize(final int maxSize) {
+        while (size > maxSize && !order.isEmpty()) {
+            final Bitmap eldest = order.removeFirst();
+            buckets.get(bucketKey(eldest.getWidth(), eldest.getHeight(), eldest.getConfig())).remove(eldest);
+            size -= sizeOf(eldest);
+            evictionCount++;
+        }
+    }
+
+    public void evictAll() {
+        trimToSize(0);
+    }
+
+    private static String bucketKey(final int width, final int height, final Config config) {
+        return width + "x" + height + ":" + config;
+    }
+
+    private static int sizeOf(final Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public int maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned a bitmap.
+     */
+    public synchronized int hitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned null.
+     */
+    public synchronized int missCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of bitmaps accepted by {@link #put}.
+     */
+    public synchronized int putCount() {
+        return putCount;
+    }
+
+    /**
+     * Returns the number of bitmaps dropped to stay within the pool's size.
+     */
+    public synchronized int evictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final int accesses = hitCount + missCount;
+        final int hitPercent = accesses != 0 ? 100 * hitCount / accesses : 0;
+        return String.format("BitmapPool[maxSize=%d,size=%d,hits=%d,misses=%d,hitRate=%d%%]", maxSize, size,
+                hitCount, missCount, hitPercent);
+    }
+}
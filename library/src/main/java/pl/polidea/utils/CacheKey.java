@@ -0,0 +1,111 @@
+package pl.polidea.utils;
+
+/**
+ * 128-bit key of a cached image, kept as two longs. Keys are compared and
+ * hashed by their bits only. The file name used by disk cache is given by the
+ * {@link KeyHasher} or rendered lazily when it's needed for the first time.
+ */
+public final class CacheKey {
+
+    private static final long DERIVE_SEED = 0x87c37b91114253d5L;
+
+    private static final KeyHasher DEFAULT_HASHER = new Murmur3KeyHasher();
+
+    public final long high;
+
+    public final long low;
+
+    private String name;
+
+    public CacheKey(final long high, final long low) {
+        this(high, low, null);
+    }
+
+    /**
+     * @param name name used by disk cache, null to render it from the bits
+     */
+    public CacheKey(final long high, final long low, final String name) {
+        this.high = high;
+        this.low = low;
+        this.name = name;
+    }
+
+    /**
+     * Hashes the text with default {@link Murmur3KeyHasher}.
+     */
+    public static CacheKey of(final String text) {
+        return DEFAULT_HASHER.hash(text);
+    }
+
+    /**
+     * Recreates the key from its name. Names given by key hashers start with
+     * 32 hex digits of the key's bits.
+     *
+     * @return the key or null when the name doesn't start with the bits
+     */
+    public static CacheKey fromName(final String name) {
+        if (!Hex.startsWithDigits(name, 32)) {
+            return null;
+        }
+        return new CacheKey(Hex.decodeLong(name, 0), Hex.decodeLong(name, 16), name);
+    }
+
+    /**
+     * Finalization mix of MurmurHash3, spreads every bit of input over the
+     * whole result.
+     */
+    static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    /**
+     * Derives another key from this one, for example the key of a scaled
+     * version of the image.
+     */
+    public CacheKey derive(final long salt) {
+        return new CacheKey(mix(high ^ salt), mix(low ^ Long.rotateLeft(salt, 31) ^ DERIVE_SEED));
+    }
+
+    /**
+     * Returns the name used by disk cache, by default 32 lowercase hex digits
+     * of key's bits.
+     */
+    public String name() {
+        String result = name;
+        if (result == null) {
+            final char[] chars = new char[32];
+            Hex.encode(high, chars, 0);
+            Hex.encode(low, chars, 16);
+            result = new String(chars);
+            name = result;
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CacheKey)) {
+            return false;
+        }
+        final CacheKey other = (CacheKey) o;
+        return high == other.high && low == other.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) low ^ (int) (high >>> 32);
+    }
+
+    @Override
+    public String toString() {
+        return name();
+    }
+}
@@ -0,0 +1,340 @@
+package pl.polidea.utils;
+
+import java.util.AbstractMap;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Linked map of {@link CacheKey}s backed by an open addressing table with
+ * linear probing. Key bits are kept in primitive arrays and entries are linked
+ * by slot indices, so lookups don't allocate nor call equals and hashCode.
+ * Like {@link java.util.LinkedHashMap} it iterates in insertion order or, when
+ * created with access order, from least to most recently accessed entry.
+ * <p/>
+ * Removed entries leave tombstones, which are dropped when the table is
+ * rebuilt, so iterators stay valid across removals. Map is not synchronized
+ * and its iterators are not fail-fast.
+ */
+public class CacheKeyLinkedMap<V> extends AbstractMap<CacheKey, V> {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private static final int NONE = -1;
+
+    private static final Object TOMBSTONE = new Object();
+
+    private final boolean accessOrder;
+
+    private long[] highs;
+
+    private long[] lows;
+
+    /**
+     * Key objects, null for empty slots and {@link #TOMBSTONE} for removed
+     * ones.
+     */
+    private Object[] keys;
+
+    private Object[] values;
+
+    private int[] before;
+
+    private int[] after;
+
+    private int head = NONE;
+
+    private int tail = NONE;
+
+    private int size;
+
+    /**
+     * Number of slots which aren't empty, including tombstones.
+     */
+    private int used;
+
+    public CacheKeyLinkedMap() {
+        this(false);
+    }
+
+    /**
+     * @param accessOrder true to move accessed entries to the end of
+     *                    iteration order, false to keep insertion order
+     */
+    public CacheKeyLinkedMap(final boolean accessOrder) {
+        this.accessOrder = accessOrder;
+        allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(final int capacity) {
+        highs = new long[capacity];
+        lows = new long[capacity];
+        keys = new Object[capacity];
+        values = new Object[capacity];
+        before = new int[capacity];
+        after = new int[capacity];
+    }
+
+    private int indexFor(final long high, final long low) {
+        return (int) (low ^ low >>> 32 ^ high) & keys.length - 1;
+    }
+
+    /**
+     * Returns slot of the key or {@link #NONE}.
+     */
+    private int find(final long high, final long low) {
+        final int mask = keys.length - 1;
+        int i = indexFor(high, low);
+        while (true) {
+            final Object key = keys[i];
+            if (key == null) {
+                return NONE;
+            }
+            if (key != TOMBSTONE && highs[i] == high && lows[i] == low) {
+                return i;
+            }
+            i = i + 1 & mask;
+        }
+    }
+
+    /**
+     * Returns the value of the key given by its bits, without allocating
+     * anything.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(final long high, final long low) {
+        final int i = find(high, low);
+        if (i == NONE) {
+            return null;
+        }
+        if (accessOrder) {
+            moveToTail(i);
+        }
+        return (V) values[i];
+    }
+
+    @Override
+    public V get(final Object key) {
+        if (!(key instanceof CacheKey)) {
+            return null;
+        }
+        final CacheKey cacheKey = (CacheKey) key;
+        return get(cacheKey.high, cacheKey.low);
+    }
+
+    /**
+     * Returns the value of the key without moving it in access order.
+     */
+    @SuppressWarnings("unchecked")
+    public V peek(final CacheKey key) {
+        final int i = find(key.high, key.low);
+        return i == NONE ? null : (V) values[i];
+    }
+
+    /**
+     * Returns key of the first entry in iteration order, null when the map is
+     * empty.
+     */
+    public CacheKey eldestKey() {
+        return head == NONE ? null : (CacheKey) keys[head];
+    }
+
+    /**
+     * Returns value of the first entry in iteration order, null when the map
+     * is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public V eldestValue() {
+        return head == NONE ? null : (V) values[head];
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        if (!(key instanceof CacheKey)) {
+            return false;
+        }
+        final CacheKey cacheKey = (CacheKey) key;
+        return find(cacheKey.high, cacheKey.low) != NONE;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V put(final CacheKey key, final V value) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        final int existing = find(key.high, key.low);
+        if (existing != NONE) {
+            final V previous = (V) values[existing];
+            values[existing] = value;
+            if (accessOrder) {
+                moveToTail(existing);
+            }
+            return previous;
+        }
+        if (used + 1 > keys.length >> 1) {
+            // grow only when live entries need it, otherwise just drop tombstones
+            rehash(size + 1 > keys.length >> 2 ? keys.length << 1 : keys.length);
+        }
+        insert(key, value);
+        return null;
+    }
+
+    private void insert(final CacheKey key, final Object value) {
+        final int mask = keys.length - 1;
+        int i = indexFor(key.high, key.low);
+        while (keys[i] != null && keys[i] != TOMBSTONE) {
+            i = i + 1 & mask;
+        }
+        if (keys[i] == null) {
+            used++;
+        }
+        keys[i] = key;
+        highs[i] = key.high;
+        lows[i] = key.low;
+        values[i] = value;
+        linkLast(i);
+        size++;
+    }
+
+    @Override
+    public V remove(final Object key) {
+        if (!(key instanceof CacheKey)) {
+            return null;
+        }
+        final CacheKey cacheKey = (CacheKey) key;
+        final int i = find(cacheKey.high, cacheKey.low);
+        return i == NONE ? null : removeAt(i);
+    }
+
+    @SuppressWarnings("unchecked")
+    private V removeAt(final int i) {
+        final V previous = (V) values[i];
+        unlink(i);
+        keys[i] = TOMBSTONE;
+        values[i] = null;
+        size--;
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(keys, null);
+        Arrays.fill(values, null);
+        head = NONE;
+        tail = NONE;
+        size = 0;
+        used = 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    private void rehash(final int capacity) {
+        final Object[] oldKeys = keys;
+        final Object[] oldValues = values;
+        final int[] oldAfter = after;
+        final int oldHead = head;
+        allocate(Math.max(MIN_CAPACITY, capacity));
+        head = NONE;
+        tail = NONE;
+        size = 0;
+        used = 0;
+        // reinsert following the links, so iteration order is preserved
+        for (int i = oldHead; i != NONE; i = oldAfter[i]) {
+            insert((CacheKey) oldKeys[i], oldValues[i]);
+        }
+    }
+
+    private void linkLast(final int i) {
+        before[i] = tail;
+        after[i] = NONE;
+        if (tail == NONE) {
+            head = i;
+        } else {
+            after[tail] = i;
+        }
+        tail = i;
+    }
+
+    private void unlink(final int i) {
+        final int previous = before[i];
+        final int next = after[i];
+        if (previous == NONE) {
+            head = next;
+        } else {
+            after[previous] = next;
+        }
+        if (next == NONE) {
+            tail = previous;
+        } else {
+            before[next] = previous;
+        }
+    }
+
+    private void moveToTail(final int i) {
+        if (i != tail) {
+            unlink(i);
+            linkLast(i);
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<CacheKey, V>> entrySet() {
+        return new AbstractSet<Map.Entry<CacheKey, V>>() {
+
+            @Override
+            public Iterator<Map.Entry<CacheKey, V>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<CacheKey, V>> {
+
+        private int next = head;
+
+        private int current = NONE;
+
+        @Override
+        public boolean hasNext() {
+            return next != NONE;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Map.Entry<CacheKey, V> next() {
+            if (next == NONE) {
+                throw new NoSuchElementException();
+            }
+            current = next;
+            next = after[current];
+            return new SimpleImmutableEntry<CacheKey, V>((CacheKey) keys[current], (V) values[current]);
+        }
+
+        @Override
+        public void remove() {
+            if (current == NONE) {
+                throw new IllegalStateException();
+            }
+            removeAt(current);
+            current = NONE;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package pl.polidea.utils;
+
+import android.graphics.Bitmap.CompressFormat;
+
+/**
+ * Format and quality a bitmap is compressed with, see
+ * {@link CompressionPolicy}.
+ */
+public final class Compression {
+
+    private final CompressFormat format;
+
+    private final int quality;
+
+    /**
+     * @param quality quality from 0 to 100, ignored by lossless formats
+     */
+    public Compression(final CompressFormat format, final int quality) {
+        if (format == null) {
+            throw new IllegalArgumentException("format == null");
+        }
+        this.format = format;
+        this.quality = quality;
+    }
+
+    public CompressFormat getFormat() {
+        return format;
+    }
+
+    public int getQuality() {
+        return quality;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Compression)) {
+            return false;
+        }
+        final Compression other = (Compression) o;
+        return format == other.format && quality == other.quality;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * format.hashCode() + quality;
+    }
+
+    @Override
+    public String toString() {
+        return "Compression[" + format + "," + quality + "]";
+    }
+}
@@ -0,0 +1,22 @@
+package pl.polidea.utils;
+
+import android.graphics.Bitmap;
+
+/**
+ * Chooses how each bitmap is compressed when it's stored in disk cache, so
+ * photos don't have to be stored losslessly and assets with transparency
+ * don't lose it. Chosen format is kept in the entry's metadata.
+ * <p/>
+ * Policy is asked from threads writing to the cache, so implementations have
+ * to be thread safe.
+ */
+public interface CompressionPolicy {
+
+    /**
+     * @param bitmap         bitmap about to be compressed
+     * @param sourceMimeType mime type of the image the bitmap was decoded
+     *                       from, null when it isn't known
+     * @return compression of the bitmap, never null
+     */
+    Compression choose(Bitmap bitmap, String sourceMimeType);
+}
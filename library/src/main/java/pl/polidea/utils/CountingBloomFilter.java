@@ -0,0 +1,138 @@
+package pl.polidea.utils;
+
+import java.util.Arrays;
+
+/**
+ * Bloom filter of strings with 4-bit counters instead of bits, so keys can be
+ * removed as well. Names starting with 32 hex digits, like the ones of
+ * {@link CacheKey}, are hashed by the bits the digits stand for, so a key can
+ * be looked up by its bits with {@link #mightContain(CacheKey)} without
+ * rendering its name. {@link #mightContain(String)} never returns false for an
+ * added key which wasn't removed, but may return true for keys never added.
+ * Counters which reached their maximum stay saturated, so keys sharing them
+ * can't be removed completely. Removing a key which wasn't added breaks the
+ * filter, so only keys known to be present may be removed.
+ */
+public class CountingBloomFilter {
+
+    /**
+     * Counters per expected key, with {@link #HASH_COUNT} hashes gives about
+     * 1% of false positives.
+     */
+    private static final int COUNTERS_PER_KEY = 10;
+
+    private static final int HASH_COUNT = 7;
+
+    private static final int MAX_COUNT = 15;
+
+    private final long[] words;
+
+    private final int counterCount;
+
+    /**
+     * @param expectedKeys number of keys the filter is sized for, more keys
+     *                     raise the rate of false positives
+     */
+    public CountingBloomFilter(final int expectedKeys) {
+        counterCount = Math.max(64, expectedKeys * COUNTERS_PER_KEY);
+        // 16 counters of 4 bits per word
+        words = new long[(counterCount + 15) >>> 4];
+    }
+
+    public synchronized void add(final String key) {
+        final int hash = hash(key);
+        final int step = step(hash);
+        for (int i = 0; i < HASH_COUNT; i++) {
+            final int index = index(hash, step, i);
+            final int count = get(index);
+            if (count < MAX_COUNT) {
+                set(index, count + 1);
+            }
+        }
+    }
+
+    /**
+     * Removes key which was added before.
+     */
+    public synchronized void remove(final String key) {
+        if (!mightContain(key)) {
+            return;
+        }
+        final int hash = hash(key);
+        final int step = step(hash);
+        for (int i = 0; i < HASH_COUNT; i++) {
+            final int index = index(hash, step, i);
+            final int count = get(index);
+            if (count > 0 && count < MAX_COUNT) {
+                set(index, count - 1);
+            }
+        }
+    }
+
+    public boolean mightContain(final String key) {
+        return mightContain(hash(key));
+    }
+
+    /**
+     * Checks the key by its bits, the same as its name would be checked.
+     */
+    public boolean mightContain(final CacheKey key) {
+        return mightContain(hash(key.high, key.low));
+    }
+
+    private synchronized boolean mightContain(final int hash) {
+        final int step = step(hash);
+        for (int i = 0; i < HASH_COUNT; i++) {
+            if (get(index(hash, step, i)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(words, 0);
+    }
+
+    private static int hash(final String key) {
+        if (Hex.startsWithDigits(key, 32)) {
+            return hash(Hex.decodeLong(key, 0), Hex.decodeLong(key, 16));
+        }
+        return spread(key.hashCode());
+    }
+
+    private static int hash(final long high, final long low) {
+        final long bits = high ^ low;
+        return spread((int) (bits ^ bits >>> 32));
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    /**
+     * Second hash of double hashing, odd so it's never zero.
+     */
+    private static int step(final int hash) {
+        return Integer.rotateLeft(hash * 0x9e3779b9, 15) | 1;
+    }
+
+    private int index(final int hash, final int step, final int i) {
+        return ((hash + i * step) & Integer.MAX_VALUE) % counterCount;
+    }
+
+    private int get(final int index) {
+        return (int) (words[index >>> 4] >>> ((index & 15) << 2)) & MAX_COUNT;
+    }
+
+    private void set(final int index, final int count) {
+        final int shift = (index & 15) << 2;
+        final int word = index >>> 4;
+        words[word] = words[word] & ~((long) MAX_COUNT << shift) | (long) count << shift;
+    }
+}
@@ -0,0 +1,70 @@
+package pl.polidea.utils;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hashes UTF-8 encoded url with a {@link MessageDigest}, for example "SHA-1"
+ * or "MD5". Each thread reuses its own digest instance. Key's bits are taken
+ * from the first 16 bytes of the digest, its name is the whole digest in hex.
+ */
+public class DigestKeyHasher implements KeyHasher {
+
+    private final String algorithm;
+
+    private final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return createDigest(algorithm);
+        }
+    };
+
+    /**
+     * @param algorithm name of digest algorithm producing at least 16 bytes
+     */
+    public DigestKeyHasher(final String algorithm) {
+        if (createDigest(algorithm).getDigestLength() < 16) {
+            throw new IllegalArgumentException("Digest " + algorithm + " is shorter than 16 bytes");
+        }
+        this.algorithm = algorithm;
+    }
+
+    private static MessageDigest createDigest(final String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Digest " + algorithm + " isn't available", e);
+        }
+    }
+
+    @Override
+    public CacheKey hash(final String text) {
+        final MessageDigest digest = digests.get();
+        final byte[] hash = digest.digest(encode(text));
+        return new CacheKey(toLong(hash, 0), toLong(hash, 8), Hex.encode(hash));
+    }
+
+    /**
+     * Returns bytes of the text which are digested.
+     */
+    protected byte[] encode(final String text) {
+        return getBytes(text, "UTF-8");
+    }
+
+    protected static byte[] getBytes(final String text, final String charset) {
+        try {
+            return text.getBytes(charset);
+        } catch (final UnsupportedEncodingException e) {
+            throw new IllegalStateException(charset + " isn't supported", e);
+        }
+    }
+
+    private static long toLong(final byte[] data, final int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = value << 8 | data[i] & 0xFF;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,224 @@
+package pl.polidea.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Validators and expiry of a downloaded image taken from its HTTP response:
+ * ETag, Last-Modified and max-age of Cache-Control. Once it expires the image
+ * is revalidated with a conditional request, which costs no download when the
+ * server answers it wasn't modified.
+ */
+public final class Freshness {
+
+    private static final int VERSION = 1;
+
+    /**
+     * Longest time an image without max-age is fresh for, whatever its
+     * Last-Modified says.
+     */
+    static final long MAX_HEURISTIC_LIFETIME = 24 * 60 * 60 * 1000;
+
+    /**
+     * Part of the time since the last modification an image without max-age
+     * is fresh for, as suggested by RFC 7234.
+     */
+    private static final int HEURISTIC_DIVISOR = 10;
+
+    /**
+     * Shortest time an image with validators is fresh for, even when the
+     * server says it's stale at once, so showing it again and again doesn't
+     * send a conditional request each time.
+     */
+    static final long MIN_VALIDATED_LIFETIME = 60 * 1000;
+
+    private final String etag;
+
+    private final String lastModified;
+
+    private final long expiresAt;
+
+    /**
+     * @param etag         value of ETag header, null when there was none
+     * @param lastModified value of Last-Modified header, null when there was
+     *                     none
+     * @param expiresAt    time in milliseconds since epoch after which the
+     *                     image has to be revalidated
+     */
+    public Freshness(final String etag, final String lastModified, final long expiresAt) {
+        this.etag = etag == null ? "" : etag;
+        this.lastModified = lastModified == null ? "" : lastModified;
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Reads freshness of a response from its headers. Responses with max-age
+     * are fresh for that long, no-cache and no-store make them stale at once,
+     * and others are fresh for a tenth of the time since their last
+     * modification, at most a day. Responses with validators are fresh for at
+     * least {@link #MIN_VALIDATED_LIFETIME}.
+     *
+     * @param lastModifiedTime Last-Modified parsed to milliseconds since
+     *                         epoch, negative when it's unknown
+     * @param now              time the response was received at
+     * @return the freshness or null when the response has neither validators
+     * nor max-age, so it's kept without expiring as before
+     */
+    public static Freshness fromHeaders(final String etag, final String lastModified, final long lastModifiedTime,
+                                        final String cacheControl, final long now) {
+        final long maxAge = parseMaxAge(cacheControl);
+        final boolean hasValidators = !isEmpty(etag) || !isEmpty(lastModified);
+        if (maxAge < 0 && !hasValidators) {
+            return null;
+        }
+        final long lifetime;
+        if (maxAge >= 0) {
+            lifetime = maxAge * 1000;
+        } else if (lastModifiedTime >= 0 && lastModifiedTime < now) {
+            lifetime = Math.min((now - lastModifiedTime) / HEURISTIC_DIVISOR, MAX_HEURISTIC_LIFETIME);
+        } else {
+            lifetime = 0;
+        }
+        return new Freshness(etag, lastModified, now + (hasValidators
+                ? Math.max(lifetime, MIN_VALIDATED_LIFETIME) : lifetime));
+    }
+
+    /**
+     * @return max-age in seconds, 0 for no-cache or no-store, negative when
+     * there's no max-age
+     */
+    static long parseMaxAge(final String cacheControl) {
+        if (isEmpty(cacheControl)) {
+            return -1;
+        }
+        long maxAge = -1;
+        for (final String directive : cacheControl.toLowerCase(Locale.US).split(",")) {
+            final String trimmed = directive.trim();
+            if (trimmed.equals("no-cache") || trimmed.equals("no-store")) {
+                return 0;
+            }
+            if (trimmed.startsWith("max-age=")) {
+                try {
+                    maxAge = Math.max(0, Long.parseLong(trimmed.substring(8).replace("\"", "").trim()));
+                } catch (final NumberFormatException e) {
+                    maxAge = 0;
+                }
+            }
+        }
+        return maxAge;
+    }
+
+    private static boolean isEmpty(final String value) {
+        return value == null || value.length() == 0;
+    }
+
+    /**
+     * Builds freshness of the image after the server answered a conditional
+     * request with 304, keeping validators it didn't send again. The image is
+     * fresh for at least {@link #MIN_VALIDATED_LIFETIME} then.
+     *
+     * @param notModified freshness read from the answer, null when it had no
+     *                    headers to read it from
+     */
+    public Freshness refresh(final Freshness notModified, final long now) {
+        final long minExpiresAt = now + MIN_VALIDATED_LIFETIME;
+        if (notModified == null) {
+            return new Freshness(etag, lastModified, minExpiresAt);
+        }
+        return new Freshness(notModified.etag.length() == 0 ? etag : notModified.etag,
+                notModified.lastModified.length() == 0 ? lastModified : notModified.lastModified,
+                Math.max(notModified.expiresAt, minExpiresAt));
+    }
+
+    public boolean isFresh(final long now) {
+        return now < expiresAt;
+    }
+
+    /**
+     * Tells whether a conditional request can be made, otherwise the image
+     * has to be downloaded again once it expires.
+     */
+    public boolean hasValidators() {
+        return etag.length() > 0 || lastModified.length() > 0;
+    }
+
+    public byte[] toBytes() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(VERSION);
+            out.writeUTF(etag);
+            out.writeUTF(lastModified);
+            out.writeLong(expiresAt);
+        } catch (final IOException e) {
+            // writing to memory doesn't fail
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the freshness or null when the data is empty or isn't freshness
+     * of a known version
+     */
+    public static Freshness fromBytes(final byte[] data) {
+        if (data == null || data.length == 0) {
+            return null;
+        }
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            if (in.readByte() != VERSION) {
+                return null;
+            }
+            return new Freshness(in.readUTF(), in.readUTF(), in.readLong());
+        } catch (final IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns value of ETag header, empty when there was none.
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    /**
+     * Returns value of Last-Modified header, empty when there was none.
+     */
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Freshness)) {
+            return false;
+        }
+        final Freshness other = (Freshness) o;
+        return expiresAt == other.expiresAt && etag.equals(other.etag) && lastModified.equals(other.lastModified);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = etag.hashCode();
+        result = 31 * result + lastModified.hashCode();
+        return 31 * result + (int) (expiresAt ^ (expiresAt >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return "Freshness[etag=" + etag + ",lastModified=" + lastModified + ",expiresAt=" + expiresAt + "]";
+    }
+}
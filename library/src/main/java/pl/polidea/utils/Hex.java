@@ -0,0 +1,78 @@
+package pl.polidea.utils;
+
+/**
+ * Lowercase hex encoding through lookup tables, writing straight into a char
+ * array of the final size.
+ */
+public final class Hex {
+
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * High and low digit of every byte value.
+     */
+    private static final char[] HIGH = new char[256];
+
+    private static final char[] LOW = new char[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            HIGH[i] = DIGITS[i >>> 4];
+            LOW[i] = DIGITS[i & 0x0F];
+        }
+    }
+
+    private Hex() {
+    }
+
+    public static String encode(final byte[] data) {
+        final char[] chars = new char[data.length << 1];
+        for (int i = 0; i < data.length; i++) {
+            final int value = data[i] & 0xFF;
+            chars[i << 1] = HIGH[value];
+            chars[(i << 1) + 1] = LOW[value];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Tells whether the text starts with given number of lowercase hex
+     * digits.
+     */
+    public static boolean startsWithDigits(final String text, final int count) {
+        if (text.length() < count) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            final char c = text.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads 16 lowercase hex digits starting at offset, as they're written by
+     * {@link #encode(long, char[], int)}. Digits have to be checked first.
+     */
+    public static long decodeLong(final String text, final int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 16; i++) {
+            final char c = text.charAt(i);
+            value = value << 4 | (c <= '9' ? c - '0' : c - 'a' + 10);
+        }
+        return value;
+    }
+
+    /**
+     * Writes 16 digits of the value, most significant first.
+     */
+    public static void encode(final long value, final char[] chars, final int offset) {
+        for (int i = 0; i < 8; i++) {
+            final int b = (int) (value >>> (56 - 8 * i)) & 0xFF;
+            chars[offset + 2 * i] = HIGH[b];
+            chars[offset + 2 * i + 1] = LOW[b];
+        }
+    }
+}
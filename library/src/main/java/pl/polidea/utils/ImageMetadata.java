@@ -0,0 +1,294 @@
+package pl.polidea.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapFactory.Options;
+import android.media.ExifInterface;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Facts about an encoded image which otherwise take parsing the image: its
+ * size, mime type, rotation from EXIF and whether it has alpha. Kept by disk
+ * cache next to the image, so decoding it can be planned without reading
+ * its bounds first.
+ */
+public final class ImageMetadata {
+
+    private static final int VERSION = 1;
+
+    private static final String JPEG = "image/jpeg";
+
+    /**
+     * Id of EXIF orientation tag, see {@link ExifInterface#TAG_ORIENTATION}.
+     */
+    private static final int ORIENTATION_TAG = 0x0112;
+
+    private final int width;
+
+    private final int height;
+
+    private final String mimeType;
+
+    private final int orientation;
+
+    private final boolean hasAlpha;
+
+    /**
+     * @param orientation clockwise rotation in degrees the image has to be
+     *                    shown with
+     */
+    public ImageMetadata(final int width, final int height, final String mimeType, final int orientation,
+                         final boolean hasAlpha) {
+        this.width = width;
+        this.height = height;
+        this.mimeType = mimeType == null ? "" : mimeType;
+        this.orientation = orientation;
+        this.hasAlpha = hasAlpha;
+    }
+
+    /**
+     * Describes the bitmap as it's stored after compressing it with the
+     * format.
+     */
+    public static ImageMetadata of(final Bitmap bitmap, final CompressFormat format) {
+        // WEBP constant is missing on older platforms, so the name is used
+        final String mimeType = "image/" + format.name().toLowerCase(Locale.US);
+        return new ImageMetadata(bitmap.getWidth(), bitmap.getHeight(), mimeType, 0,
+                bitmap.hasAlpha() && format != CompressFormat.JPEG);
+    }
+
+    /**
+     * Reads bounds of the image file and its EXIF orientation.
+     *
+     * @return the metadata or null when the file isn't an image
+     */
+    public static ImageMetadata read(final String path) {
+        final Options options = new Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        final boolean jpeg = JPEG.equals(options.outMimeType);
+        // only JPEG carries EXIF, and nothing but JPEG is surely opaque
+        return new ImageMetadata(options.outWidth, options.outHeight, options.outMimeType,
+                jpeg ? readOrientation(path) : 0, !jpeg);
+    }
+
+    /**
+     * Reads bounds and EXIF orientation of the image from its beginning, for
+     * example from the part of a stream seen while it's being stored. Headers
+     * carrying them come first, so the whole image isn't needed.
+     *
+     * @param length number of the image's leading bytes in data
+     * @return the metadata or null when the data doesn't start an image or
+     * its headers don't fit in it
+     */
+    public static ImageMetadata read(final byte[] data, final int length) {
+        final Options options = new Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        final boolean jpeg = JPEG.equals(options.outMimeType);
+        return new ImageMetadata(options.outWidth, options.outHeight, options.outMimeType,
+                jpeg ? readOrientation(data, length) : 0, !jpeg);
+    }
+
+    /**
+     * Returns clockwise rotation the image has to be shown with according to
+     * its EXIF orientation.
+     */
+    public static int readOrientation(final String path) {
+        try {
+            final ExifInterface exif = new ExifInterface(path);
+            switch (exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_UNDEFINED)) {
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    return 270;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    return 180;
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    return 90;
+                default:
+                    return 0;
+            }
+
+        } catch (final IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns clockwise rotation of the JPEG image according to orientation
+     * tag of its EXIF segment, which comes before the image data.
+     */
+    static int readOrientation(final byte[] data, final int length) {
+        if (length < 4 || (data[0] & 0xff) != 0xff || (data[1] & 0xff) != 0xd8) {
+            return 0;
+        }
+        int offset = 2;
+        while (offset + 4 <= length && (data[offset] & 0xff) == 0xff) {
+            final int marker = data[offset + 1] & 0xff;
+            final int segmentLength = readShort(data, offset + 2, false);
+            if (marker == 0xda || segmentLength < 2) {
+                // image data starts, no EXIF before it
+                return 0;
+            }
+            final int segmentEnd = Math.min(length, offset + 2 + segmentLength);
+            if (marker == 0xe1 && offset + 10 <= segmentEnd && data[offset + 4] == 'E' && data[offset + 5] == 'x'
+                    && data[offset + 6] == 'i' && data[offset + 7] == 'f') {
+                return readTiffOrientation(data, offset + 10, segmentEnd);
+            }
+            offset += 2 + segmentLength;
+        }
+        return 0;
+    }
+
+    private static int readTiffOrientation(final byte[] data, final int tiff, final int end) {
+        if (tiff + 8 > end) {
+            return 0;
+        }
+        final boolean littleEndian = data[tiff] == 'I';
+        final int ifd = tiff + readInt(data, tiff + 4, littleEndian);
+        if (ifd < tiff || ifd + 2 > end) {
+            return 0;
+        }
+        final int entries = readShort(data, ifd, littleEndian);
+        for (int i = 0; i < entries; i++) {
+            final int entry = ifd + 2 + i * 12;
+            if (entry + 12 > end) {
+                return 0;
+            }
+            if (readShort(data, entry, littleEndian) == ORIENTATION_TAG) {
+                switch (readShort(data, entry + 8, littleEndian)) {
+                    case ExifInterface.ORIENTATION_ROTATE_270:
+                        return 270;
+                    case ExifInterface.ORIENTATION_ROTATE_180:
+                        return 180;
+                    case ExifInterface.ORIENTATION_ROTATE_90:
+                        return 90;
+                    default:
+                        return 0;
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static int readShort(final byte[] data, final int offset, final boolean littleEndian) {
+        final int first = data[offset] & 0xff;
+        final int second = data[offset + 1] & 0xff;
+        return littleEndian ? second << 8 | first : first << 8 | second;
+    }
+
+    private static int readInt(final byte[] data, final int offset, final boolean littleEndian) {
+        final int first = readShort(data, offset, littleEndian);
+        final int second = readShort(data, offset + 2, littleEndian);
+        return littleEndian ? second << 16 | first : first << 16 | second;
+    }
+
+    /**
+     * Fills the options with bounds as if they were decoded with
+     * {@link Options#inJustDecodeBounds}.
+     */
+    public void applyTo(final Options options) {
+        options.outWidth = width;
+        options.outHeight = height;
+        options.outMimeType = mimeType.length() == 0 ? null : mimeType;
+    }
+
+    public byte[] toBytes() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(VERSION);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeUTF(mimeType);
+            out.writeShort(orientation);
+            out.writeBoolean(hasAlpha);
+        } catch (final IOException e) {
+            // writing to memory doesn't fail
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the metadata or null when the data is empty or isn't metadata of
+     * a known version
+     */
+    public static ImageMetadata fromBytes(final byte[] data) {
+        if (data == null || data.length == 0) {
+            return null;
+        }
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            if (in.readByte() != VERSION) {
+                return null;
+            }
+            return new ImageMetadata(in.readInt(), in.readInt(), in.readUTF(), in.readShort(), in.readBoolean());
+        } catch (final IOException e) {
+            return null;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns mime type as reported by {@link Options#outMimeType}, empty when
+     * it's unknown.
+     */
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public int getOrientation() {
+        return orientation;
+    }
+
+    public boolean hasAlpha() {
+        return hasAlpha;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ImageMetadata)) {
+            return false;
+        }
+        final ImageMetadata other = (ImageMetadata) o;
+        return width == other.width && height == other.height && orientation == other.orientation
+                && hasAlpha == other.hasAlpha && mimeType.equals(other.mimeType);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = width;
+        result = 31 * result + height;
+        result = 31 * result + mimeType.hashCode();
+        result = 31 * result + orientation;
+        return 31 * result + (hasAlpha ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return "ImageMetadata[" + width + "x" + height + "," + mimeType + ",orientation=" + orientation + ",alpha="
+                + hasAlpha + "]";
+    }
+}
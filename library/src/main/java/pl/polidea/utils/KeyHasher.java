@@ -0,0 +1,11 @@
+package pl.polidea.utils;
+
+/**
+ * Turns image url into the key it's cached under. Implementations have to be
+ * thread safe and must always return equal keys for equal texts. Changing the
+ * hasher of an existing cache makes images stored on disk unreachable.
+ */
+public interface KeyHasher {
+
+    CacheKey hash(String text);
+}
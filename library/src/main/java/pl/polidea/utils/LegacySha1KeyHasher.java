@@ -0,0 +1,20 @@
+package pl.polidea.utils;
+
+/**
+ * Compatibility hasher giving the same names as versions which keyed images
+ * by {@link Utils#sha1(String)}: SHA-1 of the url encoded in ISO-8859-1, so
+ * disk caches written by them stay readable. Characters out of Latin-1 are
+ * all encoded as '?', so urls differing only in them share a key. Use only
+ * for existing caches.
+ */
+public class LegacySha1KeyHasher extends DigestKeyHasher {
+
+    public LegacySha1KeyHasher() {
+        super("SHA-1");
+    }
+
+    @Override
+    protected byte[] encode(final String text) {
+        return getBytes(text, "ISO-8859-1");
+    }
+}
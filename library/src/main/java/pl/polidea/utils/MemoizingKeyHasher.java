@@ -0,0 +1,111 @@
+package pl.polidea.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Remembers keys of recently hashed urls, so binding the same url again
+ * doesn't hash it nor allocate a new key. Memo is a direct mapped table of
+ * fixed size indexed by {@link String#hashCode()}, which strings cache, so it
+ * never grows and a colliding url simply replaces the older one. Reads and
+ * writes don't take locks, which keeps the UI thread from waiting on workers.
+ */
+public class MemoizingKeyHasher implements KeyHasher {
+
+    private final KeyHasher hasher;
+
+    private final AtomicReferenceArray<Entry> entries;
+
+    private final AtomicInteger hitCount = new AtomicInteger();
+
+    private final AtomicInteger missCount = new AtomicInteger();
+
+    /**
+     * @param hasher  hasher of urls which aren't remembered
+     * @param maxSize number of remembered urls, rounded up to a power of two
+     */
+    public MemoizingKeyHasher(final KeyHasher hasher, final int maxSize) {
+        if (hasher == null) {
+            throw new IllegalArgumentException("hasher == null");
+        }
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.hasher = hasher;
+        int capacity = 1;
+        while (capacity < maxSize) {
+            capacity <<= 1;
+        }
+        entries = new AtomicReferenceArray<Entry>(capacity);
+    }
+
+    @Override
+    public CacheKey hash(final String text) {
+        final int hash = text.hashCode();
+        final int index = (hash ^ hash >>> 16) & entries.length() - 1;
+        final Entry entry = entries.get(index);
+        if (entry != null && entry.hash == hash && entry.text.equals(text)) {
+            hitCount.incrementAndGet();
+            return entry.key;
+        }
+        missCount.incrementAndGet();
+        final CacheKey key = hasher.hash(text);
+        entries.set(index, new Entry(text, hash, key));
+        return key;
+    }
+
+    /**
+     * Forgets all remembered urls.
+     */
+    public void clear() {
+        for (int i = 0; i < entries.length(); i++) {
+            entries.set(i, null);
+        }
+    }
+
+    public KeyHasher getHasher() {
+        return hasher;
+    }
+
+    public int maxSize() {
+        return entries.length();
+    }
+
+    /**
+     * Returns the number of urls whose key was remembered.
+     */
+    public int hitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of urls which had to be hashed.
+     */
+    public int missCount() {
+        return missCount.get();
+    }
+
+    @Override
+    public String toString() {
+        final int hits = hitCount.get();
+        final int accesses = hits + missCount.get();
+        final int hitPercent = accesses != 0 ? 100 * hits / accesses : 0;
+        return String.format("MemoizingKeyHasher[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]", entries.length(),
+                hits, accesses - hits, hitPercent);
+    }
+
+    private static final class Entry {
+
+        final String text;
+
+        final int hash;
+
+        final CacheKey key;
+
+        Entry(final String text, final int hash, final CacheKey key) {
+            this.text = text;
+            this.hash = hash;
+            this.key = key;
+        }
+    }
+}
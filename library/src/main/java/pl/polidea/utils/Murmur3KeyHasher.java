@@ -0,0 +1,80 @@
+package pl.polidea.utils;
+
+/**
+ * Default hasher: 128-bit MurmurHash3 (x64 variant) of url's chars. Every
+ * char is hashed whole, so urls with non Latin characters don't collide, and
+ * nothing is allocated besides the key. Result is the same as hashing the
+ * UTF-16LE encoding of the url.
+ */
+public class Murmur3KeyHasher implements KeyHasher {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    @Override
+    public CacheKey hash(final String text) {
+        final int length = text.length();
+        long h1 = 0;
+        long h2 = 0;
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            long k1 = chars(text, i);
+            long k2 = chars(text, i + 4);
+
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+        long k1 = 0;
+        long k2 = 0;
+        for (int j = i; j < length; j++) {
+            final long c = text.charAt(j);
+            final int shift = ((j - i) & 3) << 4;
+            if (j - i < 4) {
+                k1 |= c << shift;
+            } else {
+                k2 |= c << shift;
+            }
+        }
+        if (k2 != 0) {
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+        }
+        if (k1 != 0) {
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+        }
+
+        h1 ^= length << 1;
+        h2 ^= length << 1;
+        h1 += h2;
+        h2 += h1;
+        h1 = CacheKey.mix(h1);
+        h2 = CacheKey.mix(h2);
+        h1 += h2;
+        h2 += h1;
+        return new CacheKey(h1, h2);
+    }
+
+    private static long chars(final String text, final int index) {
+        return text.charAt(index) | (long) text.charAt(index + 1) << 16 | (long) text.charAt(index + 2) << 32
+                | (long) text.charAt(index + 3) << 48;
+    }
+}
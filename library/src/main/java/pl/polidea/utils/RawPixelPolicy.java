@@ -0,0 +1,22 @@
+package pl.polidea.utils;
+
+import android.graphics.Bitmap;
+
+/**
+ * Chooses disk cache entries which are worth storing as raw pixels. Raw
+ * pixels are restored without decoding, but take several times more space
+ * than the compressed image, so only small and often read entries should
+ * qualify.
+ * <p/>
+ * Policy is asked every time an entry was decoded from disk, from threads
+ * reading the cache, so implementations have to be thread safe.
+ */
+public interface RawPixelPolicy {
+
+    /**
+     * @param key    key of the entry which was just decoded
+     * @param bitmap bitmap decoded from the entry
+     * @return true when the entry should be stored as raw pixels from now on
+     */
+    boolean shouldStoreRaw(String key, Bitmap bitmap);
+}
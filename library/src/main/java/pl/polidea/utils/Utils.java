@@ -4,9 +4,6 @@
 package pl.polidea.utils;
 
 import android.util.Log;
-import java.io.UnsupportedEncodingException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 /**
  * @author Przemysław Jakubczyk <przemyslaw.jakubczyk@pl.polidea.pl>
@@ -17,39 +14,19 @@ public final class Utils {
 
     private static boolean useLogs = true;
 
+    private static final KeyHasher SHA1_HASHER = new LegacySha1KeyHasher();
+
     private Utils() {
     }
 
+    /**
+     * Returns SHA-1 of the text encoded in ISO-8859-1, in hex.
+     *
+     * @deprecated loses characters out of Latin-1, use {@link KeyHasher}
+     */
+    @Deprecated
     public static String sha1(final String text) {
-        try {
-            MessageDigest md;
-            md = MessageDigest.getInstance("SHA-1");
-            md.update(text.getBytes("iso-8859-1"), 0, text.length());
-            final byte[] sha1hash = md.digest();
-            return convertToHex(sha1hash);
-        } catch (final NoSuchAlgorithmException e) {
-            Log.i(TAG, e.getMessage());
-        } catch (final UnsupportedEncodingException e) {
-            Log.i(TAG, e.getMessage());
-        }
-        return text;
-    }
-
-    private static String convertToHex(final byte[] data) {
-        final StringBuffer buf = new StringBuffer();
-        for (final byte element : data) {
-            int halfbyte = element >>> 4 & 0x0F;
-            int twoHalfs = 0;
-            do {
-                if (0 <= halfbyte && halfbyte <= 9) {
-                    buf.append((char) ('0' + halfbyte));
-                } else {
-                    buf.append((char) ('a' + (halfbyte - 10)));
-                }
-                halfbyte = element & 0x0F;
-            } while (twoHalfs++ < 1);
-        }
-        return buf.toString();
+        return SHA1_HASHER.hash(text).name();
     }
 
     public static void log(final String msg) {
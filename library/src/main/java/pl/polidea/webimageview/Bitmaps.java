@@ -4,9 +4,9 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapFactory.Options;
 import android.graphics.Matrix;
-import android.media.ExifInterface;
 import java.io.File;
-import java.io.IOException;
+import pl.polidea.utils.BitmapPool;
+import pl.polidea.utils.ImageMetadata;
 
 /**
  * @author Przemysław Jakubczyk <przemyslaw.jakubczyk@pl.polidea.pl>
@@ -17,12 +17,35 @@ public class Bitmaps {
 
     Options options;
 
+    BitmapPool bitmapPool;
+
+    ImageMetadata metadata;
+
     public Bitmaps(String path) {
+        this(path, null);
+    }
+
+    /**
+     * @param path       path to the bitmap file
+     * @param bitmapPool pool of reusable bitmaps, receives intermediate bitmaps
+     *                   created while processing; may be null
+     */
+    public Bitmaps(String path, BitmapPool bitmapPool) {
+        this(path, bitmapPool, null);
+    }
+
+    /**
+     * @param metadata metadata of the bitmap file stored before, saves reading
+     *                 its bounds and EXIF; may be null
+     */
+    public Bitmaps(String path, BitmapPool bitmapPool, ImageMetadata metadata) {
         if (path == null || !new File(path).exists()) {
             throw new IllegalArgumentException("Can't find a bitmap under path: " + path);
         }
 
         this.path = path;
+        this.bitmapPool = bitmapPool;
+        this.metadata = metadata;
         options = getOptions();
     }
 
@@ -63,11 +86,11 @@ public class Bitmaps {
             options.inSampleSize = (int) scale;
             options.inScaled = false;
 
-            Bitmap bitmapFromFile = BitmapFactory.decodeFile(path, options);
+            Bitmap bitmapFromFile = decodeFile();
             Bitmap scaledBitmap = Bitmap.createScaledBitmap(bitmapFromFile, width, height, true);
 
             if (scaledBitmap != bitmapFromFile) {// LOL :)
-                bitmapFromFile.recycle();
+                release(bitmapFromFile);
             }
 
             int orientation = getOrientation();
@@ -78,7 +101,7 @@ public class Bitmaps {
                 rotatedBitmap = Bitmap.createBitmap(scaledBitmap, 0, 0, scaledBitmap.getWidth(), scaledBitmap.getHeight(),
                         matrix, true);
 
-                scaledBitmap.recycle();
+                release(scaledBitmap);
 
                 return rotatedBitmap;
             }
@@ -89,30 +112,49 @@ public class Bitmaps {
         }
     }
 
+    private Bitmap decodeFile() {
+        if (bitmapPool == null) {
+            return BitmapFactory.decodeFile(path, options);
+        }
+        bitmapPool.prepareOptions(options);
+        try {
+            return BitmapFactory.decodeFile(path, options);
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null) {
+                throw e;
+            }
+            // reused bitmap doesn't fit decoded image, decode into a new one
+            bitmapPool.put(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeFile(path, options);
+        } finally {
+            options.inBitmap = null;
+        }
+    }
+
+    /**
+     * Gives intermediate bitmap back to the pool, or recycles it when it can't
+     * be reused.
+     */
+    private void release(Bitmap bitmap) {
+        if (bitmapPool == null || !bitmapPool.put(bitmap)) {
+            bitmap.recycle();
+        }
+    }
+
     Options getOptions() {
         final Options options = new Options();
+        if (metadata != null) {
+            metadata.applyTo(options);
+            return options;
+        }
         options.inJustDecodeBounds = true;
         BitmapFactory.decodeFile(path, options);
         return options;
     }
 
     int getOrientation() {
-        try {
-            final ExifInterface exif = new ExifInterface(path);
-            switch (exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_UNDEFINED)) {
-                case ExifInterface.ORIENTATION_ROTATE_270:
-                    return 270;
-                case ExifInterface.ORIENTATION_ROTATE_180:
-                    return 180;
-                case ExifInterface.ORIENTATION_ROTATE_90:
-                    return 90;
-                default:
-                    return 0;
-            }
-
-        } catch (final IOException e) {
-            return 0;
-        }
+        return metadata != null ? metadata.getOrientation() : ImageMetadata.readOrientation(path);
     }
 
 }
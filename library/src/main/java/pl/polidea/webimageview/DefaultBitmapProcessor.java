@@ -4,29 +4,57 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.util.AttributeSet;
 import java.io.File;
+import pl.polidea.imagecache.CacheVariant;
+import pl.polidea.utils.BitmapPool;
 import pl.polidea.utils.Dimensions;
-import pl.polidea.webimageview.processor.BitmapProcessor;
+import pl.polidea.utils.ImageMetadata;
+import pl.polidea.webimageview.processor.MetadataBitmapProcessor;
 import pl.polidea.webimageview.processor.Processor;
 import pl.polidea.webimageview.processor.ProcessorFactory;
 
 /**
  * @author Przemysław Jakubczyk <przemyslaw.jakubczyk@pl.polidea.pl>
  */
-public class DefaultBitmapProcessor implements BitmapProcessor {
+public class DefaultBitmapProcessor implements MetadataBitmapProcessor {
 
     private final Dimensions dimensions;
 
+    private final BitmapPool bitmapPool;
+
+    /**
+     * Variant of the view's dimensions, which don't change.
+     */
+    private final CacheVariant cacheVariant;
+
     public DefaultBitmapProcessor(Context context, AttributeSet attributeSet) {
+        this(context, attributeSet, null);
+    }
+
+    public DefaultBitmapProcessor(Context context, AttributeSet attributeSet, BitmapPool bitmapPool) {
         this.dimensions = Dimensions.fromAttributesSet(context, attributeSet);
+        this.bitmapPool = bitmapPool;
+        this.cacheVariant = determineProcessor().getCacheVariant();
     }
 
     @Override
     public Bitmap process(final File pathToBitmap) throws BitmapDecodeException {
-        final Bitmaps bitmaps = new Bitmaps(pathToBitmap.getPath());
+        return process(pathToBitmap, null);
+    }
+
+    @Override
+    public Bitmap process(final File pathToBitmap, final ImageMetadata metadata) throws BitmapDecodeException {
+        final Bitmaps bitmaps = new Bitmaps(pathToBitmap.getPath(), bitmapPool, metadata);
         final Processor processor = determineProcessor();
         return processor.processBitmap(bitmaps);
     }
 
+    /**
+     * Returns cache variant of bitmaps produced for the view's dimensions.
+     */
+    public CacheVariant getCacheVariant() {
+        return cacheVariant;
+    }
+
     private Processor determineProcessor() {
         return new ProcessorFactory().createProcessor(dimensions);
     }
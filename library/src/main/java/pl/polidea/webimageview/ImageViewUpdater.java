@@ -1,11 +1,20 @@
 package pl.polidea.webimageview;
 
 import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
 import android.os.Handler;
 import android.os.Looper;
 import android.widget.ImageView;
+import pl.polidea.imagecache.ImageCache;
 
 /**
+ * Sets bitmaps on the image view from any thread. Displayed bitmap is pinned in
+ * the image cache, so it's not recycled nor reused while being drawn. The pin
+ * is released when the view shows something else or is detached from window,
+ * and bitmaps arriving while it's detached or after its url changed aren't
+ * kept pinned.
+ *
  * @author Mateusz Grzechociński <mateusz.grzechocinski@gmail.com>
  */
 public class ImageViewUpdater {
@@ -16,8 +25,32 @@ public class ImageViewUpdater {
 
     private String currentURL;
 
+    private ImageCache imageCache;
+
+    /**
+     * Bitmap shown by the view, accessed only on the main thread.
+     */
+    private Bitmap displayedBitmap;
+
+    /**
+     * Cache in which {@link #displayedBitmap} is pinned, null when it isn't
+     * pinned at the moment.
+     */
+    private ImageCache displayedBitmapCache;
+
+    /**
+     * Whether the view is attached to window, accessed only on the main
+     * thread.
+     */
+    private boolean attached;
+
     public ImageViewUpdater(ImageView imageView) {
+        this(imageView, null);
+    }
+
+    public ImageViewUpdater(ImageView imageView, ImageCache imageCache) {
         this.imageView = imageView;
+        this.imageCache = imageCache;
         handler = new Handler(Looper.getMainLooper());
     }
 
@@ -25,24 +58,124 @@ public class ImageViewUpdater {
         currentURL = url;
     }
 
+    public synchronized void setImageCache(ImageCache imageCache) {
+        this.imageCache = imageCache;
+    }
+
     public synchronized void setBitmap(final String key, final Bitmap bitmap, final WebImageListener webImageListener) {
         if (key.equals(currentURL) && bitmap != null && !bitmap.isRecycled()) {
-            handler.post(new RunnableImplementation(bitmap));
+            if (imageCache != null) {
+                // pin before posting, so the bitmap isn't reclaimed while waiting in the queue
+                imageCache.acquire(bitmap);
+            }
+            handler.post(new RunnableImplementation(key, bitmap, imageCache));
         }
         webImageListener.onImageFetchedSuccessfully(currentURL);
     }
 
+    /**
+     * Called on the main thread when the view's drawable changes. Releases
+     * the displayed bitmap when it was replaced by something else.
+     */
+    public void onImageChanged(final Drawable drawable) {
+        if (displayedBitmap == null) {
+            return;
+        }
+        if (drawable instanceof BitmapDrawable && ((BitmapDrawable) drawable).getBitmap() == displayedBitmap) {
+            return;
+        }
+        releaseDisplayedBitmap();
+        displayedBitmap = null;
+    }
+
+    /**
+     * Tells whether the view is attached to window. Bitmaps shown while it's
+     * detached are released at once, like the displayed one is when it gets
+     * detached. Must be called on the main thread.
+     */
+    public void setAttachedToWindow(final boolean attached) {
+        this.attached = attached;
+    }
+
+    /**
+     * Releases the pin of displayed bitmap, but keeps track of it so it can be
+     * pinned again with {@link #reacquireDisplayedBitmap(String)}. Must be
+     * called on the main thread.
+     */
+    public void releaseDisplayedBitmap() {
+        if (displayedBitmapCache != null) {
+            displayedBitmapCache.release(displayedBitmap);
+            displayedBitmapCache = null;
+        }
+    }
+
+    /**
+     * Pins the displayed bitmap again after it was released. Must be called on
+     * the main thread.
+     *
+     * @param url url of the displayed image
+     * @return false when the bitmap is no longer cached and may have been
+     * reclaimed, so the view can't draw it anymore
+     */
+    public boolean reacquireDisplayedBitmap(final String url) {
+        if (displayedBitmap == null || displayedBitmapCache != null) {
+            return true;
+        }
+        final ImageCache cache;
+        synchronized (this) {
+            cache = imageCache;
+        }
+        if (url != null && cache != null && cache.acquireIfCached(url, displayedBitmap)) {
+            displayedBitmapCache = cache;
+            return true;
+        }
+        displayedBitmap = null;
+        return false;
+    }
+
+    private void show(final String key, final Bitmap bitmap, final ImageCache cache) {
+        final boolean current;
+        synchronized (this) {
+            current = key.equals(currentURL);
+        }
+        if (!current) {
+            // another image was requested meanwhile
+            if (cache != null) {
+                cache.release(bitmap);
+            }
+            return;
+        }
+        final Bitmap previousBitmap = displayedBitmap;
+        final ImageCache previousCache = displayedBitmapCache;
+        displayedBitmap = bitmap;
+        displayedBitmapCache = attached ? cache : null;
+        imageView.setImageBitmap(bitmap);
+        if (previousCache != null) {
+            previousCache.release(previousBitmap);
+        }
+        if (!attached && cache != null) {
+            // pinned again by reacquireDisplayedBitmap when the view is attached
+            cache.release(bitmap);
+        }
+    }
+
     private final class RunnableImplementation implements Runnable {
 
+        private final String key;
+
         private final Bitmap bitmap;
 
-        private RunnableImplementation(final Bitmap bitmap) {
+        private final ImageCache cache;
+
+        private RunnableImplementation(final String key, final Bitmap bitmap, final ImageCache cache) {
+            this.key = key;
             this.bitmap = bitmap;
+            this.cache = cache;
         }
 
         @Override
         public void run() {
-            imageView.setImageBitmap(bitmap);
+            show(key, bitmap, cache);
         }
     }
 }
@@ -3,20 +3,28 @@ package pl.polidea.webimageview;
 import android.R;
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
 import android.text.TextUtils;
 import android.util.AttributeSet;
 import android.widget.ImageView;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import pl.polidea.imagecache.CacheVariant;
 import pl.polidea.imagecache.ImageCache;
 import pl.polidea.imagecache.ImageCacheFactory;
 import pl.polidea.imagecache.OnCacheResultListener;
 import pl.polidea.imagecache.StaticCachedImageCacheFactory;
+import pl.polidea.utils.Freshness;
+import pl.polidea.utils.ImageMetadata;
+import pl.polidea.webimageview.net.RevalidatingWebCallback;
 import pl.polidea.webimageview.net.StaticCachedWebClientFactory;
-import pl.polidea.webimageview.net.WebCallback;
+import pl.polidea.webimageview.net.StreamingWebCallback;
 import pl.polidea.webimageview.net.WebClient;
 import pl.polidea.webimageview.net.WebClientFactory;
 import pl.polidea.webimageview.processor.BitmapProcessor;
+import pl.polidea.webimageview.processor.MetadataBitmapProcessor;
 
 /**
  * @author Przemysław Jakubczyk <przemyslaw.jakubczyk@pl.polidea.pl>
@@ -35,6 +43,14 @@ public class WebImageView extends ImageView implements OnCacheResultListener {
 
     protected WebClient webClient;
 
+    /**
+     * Variant of {@link #cacheVariantProcessor}, kept so lookups done while
+     * binding don't build it again.
+     */
+    private CacheVariant cacheVariant;
+
+    private BitmapProcessor cacheVariantProcessor;
+
     private ImageViewUpdater imageViewUpdater;
 
     private WebImageListener webImageListener;
@@ -51,9 +67,9 @@ public class WebImageView extends ImageView implements OnCacheResultListener {
     }
 
     public void init(AttributeSet attrsSet) {
-        bitmapProcessor = new DefaultBitmapProcessor(getContext(), attrsSet);
         setFactories(DEFAULT_IMAGE_CACHE_FACTORY, DEFAULT_WEB_CLIENT_FACTORY);
-        imageViewUpdater = new ImageViewUpdater(this);
+        bitmapProcessor = new DefaultBitmapProcessor(getContext(), attrsSet, imageCache.getBitmapPool());
+        imageViewUpdater = new ImageViewUpdater(this, imageCache);
     }
 
     /**
@@ -108,7 +124,7 @@ public class WebImageView extends ImageView implements OnCacheResultListener {
         }
         this.url = url;
         imageViewUpdater.setCurrentURL(url);
-        imageCache.get(url, this);
+        imageCache.get(url, getCacheVariant(), this);
     }
 
     /**
@@ -123,37 +139,136 @@ public class WebImageView extends ImageView implements OnCacheResultListener {
         setImageURL(url.getPath());
     }
 
+    @Override
+    public void setImageDrawable(final Drawable drawable) {
+        super.setImageDrawable(drawable);
+        if (imageViewUpdater != null) {
+            imageViewUpdater.onImageChanged(drawable);
+        }
+    }
+
+    @Override
+    public void setImageResource(final int resId) {
+        super.setImageResource(resId);
+        if (imageViewUpdater != null) {
+            imageViewUpdater.onImageChanged(getDrawable());
+        }
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (imageViewUpdater != null) {
+            imageViewUpdater.setAttachedToWindow(true);
+        }
+        if (imageViewUpdater != null && !imageViewUpdater.reacquireDisplayedBitmap(url)) {
+            // bitmap could have been reclaimed while the view was detached
+            setImageDrawable(null);
+            if (url != null) {
+                imageCache.get(url, getCacheVariant(), this);
+            }
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (imageViewUpdater != null) {
+            imageViewUpdater.setAttachedToWindow(false);
+            imageViewUpdater.releaseDisplayedBitmap();
+        }
+    }
+
     public void disableBitmapProcessor() {
         bitmapProcessor = BitmapProcessor.DEFAULT;
     }
 
     @Override
     public void onCacheMiss(final String key) {
-        webClient.requestForImage(url, new WebCallback() {
-            @Override
-            public void onWebMiss(final String url) {
-                webImageListener.onImageFetchedFailed(WebImageView.this.url);
+        if (imageCache.isPassThrough()) {
+            final File source = imageCache.getSourceFile(url);
+            if (source != null && processSource(url, source)) {
+                return;
             }
+        }
+        webClient.requestForImage(url, new ImageWebCallback());
+    }
 
-            @Override
-            public void onWebHit(final String resource, final File file) {
-                if (resource.equals(WebImageView.this.url)) {
-                    final Bitmap bmp;
-                    try {
-                        bmp = bitmapProcessor.process(file);
-                        imageViewUpdater.setBitmap(resource, bmp, webImageListener);
-                        imageCache.put(resource, bmp);
-                    } catch (BitmapDecodeException e) {
-                        webImageListener.onImageFetchedFailed(url);
-                    }
-                }
-            }
-        });
+    /**
+     * Processes image downloaded before, which is kept on disk as it came.
+     *
+     * @return false when the source couldn't be processed and has to be
+     * downloaded again
+     */
+    private boolean processSource(final String resource, final File source) {
+        final Bitmap bmp;
+        try {
+            bmp = processSourceFile(resource, source);
+        } catch (final BitmapDecodeException e) {
+            return false;
+        } catch (final IllegalArgumentException e) {
+            // source was evicted from disk in the meantime
+            return false;
+        }
+        if (bmp == null) {
+            return false;
+        }
+        imageViewUpdater.setBitmap(resource, bmp, webImageListener);
+        imageCache.putInMemory(resource, getCacheVariant(), bmp);
+        return true;
+    }
+
+    /**
+     * Processes the stored source, planning the decode from its stored
+     * metadata when the processor can use it.
+     */
+    private Bitmap processSourceFile(final String resource, final File source) throws BitmapDecodeException {
+        final ImageMetadata metadata = bitmapProcessor instanceof MetadataBitmapProcessor
+                ? imageCache.getSourceMetadata(resource) : null;
+        return processFile(source, metadata);
+    }
+
+    /**
+     * Processes the file with its metadata when it's known and the processor
+     * can use it.
+     */
+    private Bitmap processFile(final File file, final ImageMetadata metadata) throws BitmapDecodeException {
+        if (metadata != null && bitmapProcessor instanceof MetadataBitmapProcessor) {
+            return ((MetadataBitmapProcessor) bitmapProcessor).process(file, metadata);
+        }
+        return bitmapProcessor.process(file);
     }
 
     @Override
     public void onCacheHit(final String key, final Bitmap bitmap) {
         imageViewUpdater.setBitmap(key, bitmap, webImageListener);
+        if (imageCache.needsRevalidation(key, getCacheVariant())) {
+            // stale image is shown until the server tells it changed
+            webClient.revalidate(key, new ImageRevalidationCallback());
+        }
+    }
+
+    /**
+     * Returns variant under which bitmaps produced by current processor are
+     * cached. Bitmaps of custom processors are kept apart from plain ones.
+     */
+    protected CacheVariant getCacheVariant() {
+        final BitmapProcessor processor = bitmapProcessor;
+        if (cacheVariant == null || cacheVariantProcessor != processor) {
+            cacheVariant = createCacheVariant(processor);
+            cacheVariantProcessor = processor;
+        }
+        return cacheVariant;
+    }
+
+    private static CacheVariant createCacheVariant(final BitmapProcessor bitmapProcessor) {
+        if (bitmapProcessor instanceof DefaultBitmapProcessor) {
+            return ((DefaultBitmapProcessor) bitmapProcessor).getCacheVariant();
+        }
+        if (bitmapProcessor == null || bitmapProcessor == BitmapProcessor.DEFAULT) {
+            return CacheVariant.ORIGINAL;
+        }
+        return new CacheVariant(0, 0, bitmapProcessor.getClass().getName());
     }
 
     public BitmapProcessor getBitmapProcessor() {
@@ -176,9 +291,86 @@ public class WebImageView extends ImageView implements OnCacheResultListener {
         Context context = getContext();
         imageCache = imageCacheFactory.create(context);
         webClient = webClientFactory.create(context);
+        if (imageViewUpdater != null) {
+            imageViewUpdater.setImageCache(imageCache);
+        }
     }
 
     public String getUrl() {
         return url;
     }
+
+    private class ImageWebCallback implements StreamingWebCallback, RevalidatingWebCallback {
+
+        /**
+         * Variant the image is cached under, its freshness is kept with it.
+         */
+        private final CacheVariant variant = getCacheVariant();
+
+        @Override
+        public File onWebStream(final String resource, final InputStream stream) throws IOException {
+            return imageCache.isPassThrough() ? imageCache.putSource(resource, stream) : null;
+        }
+
+        @Override
+        public void onWebMiss(final String url) {
+            webImageListener.onImageFetchedFailed(WebImageView.this.url);
+        }
+
+        @Override
+        public void onWebHit(final String resource, final File file) {
+            if (resource.equals(WebImageView.this.url)) {
+                final Bitmap bmp;
+                try {
+                    if (imageCache.isPassThrough()) {
+                        bmp = processSourceFile(resource, file);
+                        imageViewUpdater.setBitmap(resource, bmp, webImageListener);
+                        imageCache.putInMemory(resource, getCacheVariant(), bmp);
+                    } else {
+                        // bounds read for the processor tell the mime type as well,
+                        // processors decoding on their own leave it unknown
+                        final ImageMetadata metadata = bitmapProcessor instanceof MetadataBitmapProcessor
+                                ? ImageMetadata.read(file.getPath()) : null;
+                        bmp = processFile(file, metadata);
+                        imageViewUpdater.setBitmap(resource, bmp, webImageListener);
+                        imageCache.put(resource, getCacheVariant(), bmp,
+                                metadata == null ? null : metadata.getMimeType());
+                    }
+                } catch (BitmapDecodeException e) {
+                    webImageListener.onImageFetchedFailed(url);
+                }
+            }
+        }
+
+        @Override
+        public Freshness getFreshness(final String resource) {
+            return imageCache.getFreshness(resource, variant);
+        }
+
+        @Override
+        public void onFreshness(final String resource, final Freshness freshness) {
+            imageCache.putFreshness(resource, variant, freshness);
+        }
+    }
+
+    /**
+     * Replaces the cached image when the server sent a new one. When the view
+     * shows another image by then, the new one isn't decoded, so the stale one
+     * is dropped from cache instead, its freshness with it. In pass-through
+     * mode the new source is already stored, only bitmaps decoded from the
+     * old one are dropped.
+     */
+    private class ImageRevalidationCallback extends ImageWebCallback {
+
+        @Override
+        public void onWebHit(final String resource, final File file) {
+            if (resource.equals(WebImageView.this.url)) {
+                super.onWebHit(resource, file);
+            } else if (imageCache.isPassThrough()) {
+                imageCache.removeDecoded(resource);
+            } else {
+                imageCache.remove(resource);
+            }
+        }
+    }
 }
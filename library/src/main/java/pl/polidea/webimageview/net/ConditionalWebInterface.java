@@ -0,0 +1,20 @@
+package pl.polidea.webimageview.net;
+
+import java.io.IOException;
+import pl.polidea.utils.Freshness;
+
+/**
+ * Web interface reading freshness of responses from their headers and
+ * sending validators of cached images, so an image which wasn't modified
+ * isn't downloaded again.
+ */
+public interface ConditionalWebInterface extends WebInterface {
+
+    /**
+     * @param cached freshness of the cached image whose validators are sent,
+     *               null for a plain request
+     * @throws IOException when the request failed or the server answered with
+     *                     an error
+     */
+    WebResponse execute(String path, Freshness cached) throws IOException;
+}
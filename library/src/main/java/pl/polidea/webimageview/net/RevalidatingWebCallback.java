@@ -0,0 +1,26 @@
+package pl.polidea.webimageview.net;
+
+import pl.polidea.utils.Freshness;
+
+/**
+ * Callback which keeps freshness of downloaded images, so
+ * {@link WebClient#revalidate(String, RevalidatingWebCallback)} can check
+ * them with the server once they expire. Both methods are called in the
+ * downloading thread.
+ */
+public interface RevalidatingWebCallback extends WebCallback {
+
+    /**
+     * @return freshness of the cached image or null when it never expires
+     */
+    Freshness getFreshness(String path);
+
+    /**
+     * Called with freshness of a downloaded image after
+     * {@link #onWebHit(String, java.io.File)}, or of the cached image when the
+     * server answered it wasn't modified.
+     *
+     * @param freshness the freshness or null when the image never expires
+     */
+    void onFreshness(String path, Freshness freshness);
+}
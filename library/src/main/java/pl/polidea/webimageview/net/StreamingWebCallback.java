@@ -0,0 +1,23 @@
+package pl.polidea.webimageview.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Callback which stores downloaded image itself instead of getting it in a
+ * temporary file, for example straight into disk cache.
+ */
+public interface StreamingWebCallback extends WebCallback {
+
+    /**
+     * Called in the downloading thread with the response. File returned is
+     * passed to {@link #onWebHit(String, File)}.
+     *
+     * @return file the image was stored in or null to save it to a temporary
+     * file as usual; the stream mustn't be read then
+     * @throws IOException when storing failed, {@link #onWebMiss(String)} is
+     *                     called then
+     */
+    File onWebStream(String path, InputStream stream) throws IOException;
+}
@@ -4,24 +4,67 @@
 package pl.polidea.webimageview.net;
 
 import android.content.Context;
+import android.os.SystemClock;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 
+import pl.polidea.utils.Freshness;
 import pl.polidea.utils.StackPoolExecutor;
 import pl.polidea.utils.TempFile;
+import pl.polidea.utils.Utils;
 
 /**
  * @author Przemysław Jakubczyk <przemyslaw.jakubczyk@pl.polidea.pl>
  */
 public class WebClient {
 
+	/**
+	 * Time after a failed revalidation during which the image isn't
+	 * revalidated again.
+	 */
+	static final long REVALIDATION_RETRY_DELAY = 60 * 1000;
+
+	/**
+	 * Time after a successful revalidation during which the image isn't
+	 * revalidated again, whatever freshness the server gave it.
+	 */
+	static final long REVALIDATION_INTERVAL = 60 * 1000;
+
+	/**
+	 * Number of the most recently revalidated urls remembered.
+	 */
+	static final int MAX_REVALIDATED_URLS = 256;
+
 	final File cacheDir;
 
+	/**
+	 * Urls being revalidated, guards {@link #nextRevalidations} as well.
+	 */
+	private final Set<String> revalidating = new HashSet<String>();
+
+	/**
+	 * Uptime from which each recently revalidated url may be revalidated
+	 * again.
+	 */
+	private final Map<String, Long> nextRevalidations = new LinkedHashMap<String, Long>() {
+
+		private static final long serialVersionUID = 6352810238472915012L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, Long> eldest) {
+			return size() > MAX_REVALIDATED_URLS;
+		}
+	};
+
 	WebInterface webInterface = new WebInterfaceImpl();
 
 	ExecutorService taskExecutor = new StackPoolExecutor(10, 30);
@@ -49,6 +92,50 @@ public class WebClient {
 		taskExecutor.submit(buildTask(url, webCallback));
 	}
 
+	/**
+	 * Checks with the server whether the cached image is still valid once its
+	 * freshness expired. A conditional request is sent when the image has
+	 * validators; when the server answers it wasn't modified only the
+	 * freshness is updated, otherwise the image is downloaded again and passed
+	 * to the callback as usual. Does nothing when the web interface isn't a
+	 * {@link ConditionalWebInterface}, when the image is being revalidated
+	 * already, was revalidated less than {@link #REVALIDATION_INTERVAL} ago
+	 * or its revalidation failed less than {@link #REVALIDATION_RETRY_DELAY}
+	 * ago.
+	 *
+	 * @param url
+	 *            the path
+	 * @param webCallback
+	 *            callback keeping freshness of the image
+	 */
+	public void revalidate(final String url, final RevalidatingWebCallback webCallback) {
+
+		if (webCallback == null) {
+			throw new IllegalArgumentException("webCallback cannot be null");
+		}
+		if (webInterface instanceof ConditionalWebInterface && startRevalidation(url)) {
+			taskExecutor.submit(new DownloadTask(url, webCallback, true));
+		}
+	}
+
+	private boolean startRevalidation(final String url) {
+		synchronized (revalidating) {
+			final Long next = nextRevalidations.get(url);
+			if (next != null && SystemClock.uptimeMillis() < next) {
+				return false;
+			}
+			return revalidating.add(url);
+		}
+	}
+
+	private void finishRevalidation(final String url, final boolean failed) {
+		synchronized (revalidating) {
+			revalidating.remove(url);
+			nextRevalidations.put(url, SystemClock.uptimeMillis()
+					+ (failed ? REVALIDATION_RETRY_DELAY : REVALIDATION_INTERVAL));
+		}
+	}
+
 	/**
 	 * @param httpClient
 	 */
@@ -70,24 +157,89 @@ public class WebClient {
 
 		private final String url;
 		private WebCallback webCallback;
+		private final boolean revalidation;
 
 		public DownloadTask(String url, WebCallback webCallback) {
+			this(url, webCallback, false);
+		}
+
+		DownloadTask(String url, WebCallback webCallback, boolean revalidation) {
 			this.url = url;
 			this.webCallback = webCallback;
+			this.revalidation = revalidation;
 		}
 
 		@Override
 		public void run() {
 			TempFile tempFile = TempFile.nullObject();
+			boolean failed = false;
 			try {
+				Freshness validators = null;
+				if (revalidation) {
+					final Freshness cached = ((RevalidatingWebCallback) webCallback).getFreshness(url);
+					final long now = System.currentTimeMillis();
+					if (cached == null || cached.isFresh(now)) {
+						return;
+					}
+					validators = cached.hasValidators() ? cached : null;
+				}
+				final InputStream stream;
+				final Freshness freshness;
+				final boolean conditional = webInterface instanceof ConditionalWebInterface;
+				if (conditional) {
+					final WebResponse response = ((ConditionalWebInterface) webInterface).execute(url, validators);
+					if (response.isNotModified()) {
+						if (validators == null) {
+							throw new IOException("Not modified answer to a plain request");
+						}
+						// cheap refresh, the cached image stays as it is
+						((RevalidatingWebCallback) webCallback).onFreshness(url,
+								validators.refresh(response.getFreshness(), System.currentTimeMillis()));
+						return;
+					}
+					stream = response.getStream();
+					freshness = response.getFreshness();
+				} else {
+					stream = webInterface.execute(url);
+					freshness = null;
+				}
+				if (webCallback instanceof StreamingWebCallback) {
+					// callback stores the image itself, no temporary copy needed
+					final File file = ((StreamingWebCallback) webCallback).onWebStream(url, stream);
+					if (file != null) {
+						webCallback.onWebHit(url, file);
+						notifyFreshness(conditional, freshness);
+						return;
+					}
+				}
 				tempFile = TempFile.createInDir(cacheDir);
-				final InputStream stream = webInterface.execute(url);
 				saveStreamToFile(stream, tempFile);
 				webCallback.onWebHit(url, tempFile.asJavaFile());
+				notifyFreshness(conditional, freshness);
 			} catch (final IOException e) {
-				webCallback.onWebMiss(url);
+				failed = true;
+				if (revalidation) {
+					// cached image is still shown, try again once the retry delay passed
+					Utils.log("Revalidating image failed " + url, e);
+				} else {
+					webCallback.onWebMiss(url);
+				}
 			} finally {
 				tempFile.delete();
+				if (revalidation) {
+					finishRevalidation(url, failed);
+				}
+			}
+		}
+
+		/**
+		 * Passes freshness of the downloaded image, null when it doesn't
+		 * expire, replacing freshness of the image it was downloaded again
+		 * for.
+		 */
+		private void notifyFreshness(final boolean conditional, final Freshness freshness) {
+			if (conditional && webCallback instanceof RevalidatingWebCallback) {
+				((RevalidatingWebCallback) webCallback).onFreshness(url, freshness);
 			}
 		}
 
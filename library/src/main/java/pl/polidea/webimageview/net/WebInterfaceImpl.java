@@ -5,17 +5,73 @@ package pl.polidea.webimageview.net;
 
 import java.io.IOException;
 import java.io.InputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import pl.polidea.utils.Freshness;
 
 /**
  * @author Przemysław Jakubczyk <przemyslaw.jakubczyk@pl.polidea.pl>
  */
-public class WebInterfaceImpl implements WebInterface {
+public class WebInterfaceImpl implements ConditionalWebInterface {
 
     @Override
     public InputStream execute(final String path) throws IOException {
         return new DefaultHttpClient().execute(new HttpGet(path)).getEntity().getContent();
     }
 
+    @Override
+    public WebResponse execute(final String path, final Freshness cached) throws IOException {
+        final HttpGet request = new HttpGet(path);
+        if (cached != null) {
+            if (cached.getEtag().length() > 0) {
+                request.addHeader("If-None-Match", cached.getEtag());
+            }
+            if (cached.getLastModified().length() > 0) {
+                request.addHeader("If-Modified-Since", cached.getLastModified());
+            }
+        }
+        final HttpResponse response = new DefaultHttpClient().execute(request);
+        final int status = response.getStatusLine().getStatusCode();
+        final HttpEntity entity = response.getEntity();
+        final Freshness freshness = readFreshness(response);
+        if (status == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+            if (entity != null) {
+                entity.consumeContent();
+            }
+            return WebResponse.notModified(freshness);
+        }
+        if (status < HttpStatus.SC_OK || status >= HttpStatus.SC_MULTIPLE_CHOICES || entity == null) {
+            if (entity != null) {
+                entity.consumeContent();
+            }
+            throw new IOException("Unexpected response " + status + " for " + path);
+        }
+        return WebResponse.ok(entity.getContent(), freshness);
+    }
+
+    private static Freshness readFreshness(final HttpResponse response) {
+        final String lastModified = headerValue(response, "Last-Modified");
+        long lastModifiedTime = -1;
+        if (lastModified != null) {
+            try {
+                lastModifiedTime = DateUtils.parseDate(lastModified).getTime();
+            } catch (final DateParseException e) {
+                // used as a validator only
+            }
+        }
+        return Freshness.fromHeaders(headerValue(response, "ETag"), lastModified, lastModifiedTime,
+                headerValue(response, "Cache-Control"), System.currentTimeMillis());
+    }
+
+    private static String headerValue(final HttpResponse response, final String name) {
+        final Header header = response.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
 }
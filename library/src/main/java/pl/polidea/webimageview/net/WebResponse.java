@@ -0,0 +1,57 @@
+package pl.polidea.webimageview.net;
+
+import java.io.InputStream;
+import pl.polidea.utils.Freshness;
+
+/**
+ * Response to a possibly conditional request for an image, see
+ * {@link ConditionalWebInterface}.
+ */
+public final class WebResponse {
+
+    private final InputStream stream;
+
+    private final Freshness freshness;
+
+    private WebResponse(final InputStream stream, final Freshness freshness) {
+        this.stream = stream;
+        this.freshness = freshness;
+    }
+
+    /**
+     * @param freshness freshness read from headers, null when the response
+     *                  doesn't expire
+     */
+    public static WebResponse ok(final InputStream stream, final Freshness freshness) {
+        if (stream == null) {
+            throw new IllegalArgumentException("stream == null");
+        }
+        return new WebResponse(stream, freshness);
+    }
+
+    /**
+     * Answer 304: the cached image is still valid.
+     */
+    public static WebResponse notModified(final Freshness freshness) {
+        return new WebResponse(null, freshness);
+    }
+
+    public boolean isNotModified() {
+        return stream == null;
+    }
+
+    /**
+     * Returns body of the response, null when it wasn't modified.
+     */
+    public InputStream getStream() {
+        return stream;
+    }
+
+    /**
+     * Returns freshness read from headers, null when there was nothing to
+     * read.
+     */
+    public Freshness getFreshness() {
+        return freshness;
+    }
+}
@@ -0,0 +1,19 @@
+package pl.polidea.webimageview.processor;
+
+import android.graphics.Bitmap;
+import java.io.File;
+import pl.polidea.utils.ImageMetadata;
+import pl.polidea.webimageview.BitmapDecodeException;
+
+/**
+ * Processor which can use metadata of the bitmap file stored with it, instead
+ * of parsing the file for its bounds and orientation first.
+ */
+public interface MetadataBitmapProcessor extends BitmapProcessor {
+
+    /**
+     * @param metadata metadata of the file, {@link #process(File)} is used
+     *                 when it's unknown
+     */
+    Bitmap process(File pathToBitmap, ImageMetadata metadata) throws BitmapDecodeException;
+}
@@ -1,6 +1,7 @@
 package pl.polidea.webimageview.processor;
 
 import android.graphics.Bitmap;
+import pl.polidea.imagecache.CacheVariant;
 import pl.polidea.webimageview.BitmapDecodeException;
 import pl.polidea.webimageview.Bitmaps;
 
@@ -35,6 +36,22 @@ public class Processor {
         return type.processBitmap(bitmaps, width, height);
     }
 
+    /**
+     * Returns cache variant of bitmaps produced by this processor.
+     */
+    public CacheVariant getCacheVariant() {
+        switch (type) {
+        case FIX_WIDTH:
+            return CacheVariant.bounded(width, 0);
+        case FIX_HEIGHT:
+            return CacheVariant.bounded(0, height);
+        case FIX_BOTH:
+            return CacheVariant.bounded(width, height);
+        default:
+            return CacheVariant.ORIGINAL;
+        }
+    }
+
     /**
      * @author Mateusz Grzechociński <mateusz.grzechocinski@pl.polidea.pl>
      */
@@ -0,0 +1,34 @@
+package pl.polidea.imagecache
+
+import android.graphics.Bitmap
+import android.graphics.Bitmap.CompressFormat
+import pl.polidea.robospock.RoboSpecification
+
+class AdaptiveCompressionPolicySpecification extends RoboSpecification {
+
+    def policy = new AdaptiveCompressionPolicy(CompressFormat.WEBP, 80, 100)
+
+    def "should choose format by alpha, size and source"() {
+        given:
+        def bitmap = Mock(Bitmap)
+        bitmap.hasAlpha() >> alpha
+        bitmap.getWidth() >> width
+        bitmap.getHeight() >> 10
+
+        when:
+        def compression = policy.choose(bitmap, source)
+
+        then:
+        compression.getFormat() == format
+        compression.getQuality() == quality
+
+        where:
+        alpha | width | source       | format              | quality
+        true  | 100   | "image/jpeg" | CompressFormat.PNG  | 100
+        false | 10    | "image/png"  | CompressFormat.PNG  | 100
+        false | 10    | null         | CompressFormat.PNG  | 100
+        false | 10    | "image/jpeg" | CompressFormat.WEBP | 80
+        false | 11    | "image/png"  | CompressFormat.WEBP | 80
+        false | 11    | null         | CompressFormat.WEBP | 80
+    }
+}
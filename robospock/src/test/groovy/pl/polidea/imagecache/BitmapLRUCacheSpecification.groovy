@@ -2,6 +2,7 @@ package pl.polidea.imagecache
 
 import android.graphics.Bitmap
 import pl.polidea.robospock.RoboSpecification
+import pl.polidea.utils.CacheKey
 
 class BitmapLRUCacheSpecification extends RoboSpecification {
 
@@ -30,9 +31,89 @@ class BitmapLRUCacheSpecification extends RoboSpecification {
         bitmapMock.getHeight() >> 12
 
         when:
-        def sizeOf = cache.sizeOf("", bitmapMock)
+        def sizeOf = cache.sizeOf(key(""), bitmapMock)
 
         then:
         sizeOf == 120
     }
+
+    def "should not evict pinned bitmap"() {
+        given:
+        def cache = new BitmapLRUCache(200)
+        def pinned = mock(10, 10)
+        cache.put(key("a"), pinned)
+        cache.acquire(pinned)
+
+        when:
+        cache.put(key("b"), mock(10, 10))
+        cache.put(key("c"), mock(10, 10))
+
+        then:
+        cache.get(key("a")) == pinned
+        !cache.get(key("b"))
+    }
+
+    def "should recycle unpinned evicted bitmap"() {
+        given:
+        def cache = new BitmapLRUCache(100)
+        cache.setRecycleRemoved(true)
+        def bitmap = mock(10, 10)
+        cache.put(key("a"), bitmap)
+
+        when:
+        cache.put(key("b"), mock(10, 10))
+
+        then:
+        1 * bitmap.recycle()
+    }
+
+    def "should recycle removed pinned bitmap after release"() {
+        given:
+        def cache = new BitmapLRUCache(100)
+        cache.setRecycleRemoved(true)
+        def bitmap = mock(10, 10)
+        cache.put(key("a"), bitmap)
+        cache.acquire(bitmap)
+
+        when:
+        cache.remove(key("a"))
+
+        then:
+        0 * bitmap.recycle()
+
+        when:
+        cache.release(bitmap)
+
+        then:
+        1 * bitmap.recycle()
+        cache.pinnedCount() == 0
+    }
+
+    def "should peek without changing access order"() {
+        given:
+        def cache = new BitmapLRUCache(200)
+        def eldest = mock(10, 10)
+        cache.put(key("a"), eldest)
+        cache.put(key("b"), mock(10, 10))
+
+        when:
+        def peeked = cache.peek(key("a"))
+        cache.put(key("c"), mock(10, 10))
+
+        then:
+        peeked == eldest
+        !cache.get(key("a"))
+        cache.hitCount() == 0
+    }
+
+    Bitmap mock(int rowBytes, int height) {
+        def mock = Mock(Bitmap)
+        mock.getRowBytes() >> rowBytes
+        mock.getHeight() >> height
+        return mock
+    }
+
+    CacheKey key(String text) {
+        CacheKey.of(text)
+    }
 }
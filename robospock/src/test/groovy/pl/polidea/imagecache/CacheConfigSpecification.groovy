@@ -62,6 +62,14 @@ class CacheConfigSpecification extends RoboSpecification {
         config.diskCacheSize == 16777216
     }
 
+    def "should flush disk journal after every image by default"() {
+        when:
+        CacheConfig config = CacheConfig.buildDefault(Robolectric.application)
+
+        then:
+        config.diskFlushCommits == 1
+    }
+
     def "should create default disc cache path"() {
         when:
         CacheConfig config = CacheConfig.buildDefault(Robolectric.application)
@@ -100,5 +108,19 @@ class CacheConfigSpecification extends RoboSpecification {
         config.compressQuality == 100
     }
 
+    def "should keep adaptive disk cache bounds in order"() {
+        given:
+        CacheConfig config = CacheConfig.buildDefault(Robolectric.application)
+        config.diskCacheMaxSize = 1000
+
+        when:
+        config = CacheConfig.buildDefault(Robolectric.application, config)
+
+        then:
+        !config.adaptiveDiskCacheSize
+        config.diskCacheMaxSize == config.diskCacheSize
+        config.diskBudgetInterval == CacheConfig.DEFAULT_DISK_BUDGET_INTERVAL
+    }
+
 
 }
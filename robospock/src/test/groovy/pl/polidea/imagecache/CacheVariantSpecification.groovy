@@ -0,0 +1,80 @@
+package pl.polidea.imagecache
+
+import android.graphics.Bitmap
+import com.xtremelabs.robolectric.Robolectric
+import pl.polidea.robospock.RoboSpecification
+import pl.polidea.utils.CacheKey
+
+class CacheVariantSpecification extends RoboSpecification {
+
+    def "should keep image key for original variant"() {
+        expect:
+        CacheVariant.ORIGINAL.keyFor(CacheKey.of("abc")) == CacheKey.of("abc")
+        CacheVariant.bounded(0, 0).is(CacheVariant.ORIGINAL)
+    }
+
+    def "should derive disk safe keys of bounded variants"() {
+        when:
+        def key = variant.keyFor(CacheKey.of("abc"))
+
+        then:
+        key.name() ==~ /[a-z0-9_-]{1,64}/
+        key != CacheKey.of("abc")
+
+        where:
+        variant << [CacheVariant.bounded(100, 0), CacheVariant.bounded(100, 50),
+                new CacheVariant(0, 0, "com.example.BlurProcessor"), new CacheVariant(10, 10, "Blur")]
+    }
+
+    def "should give different keys to different variants"() {
+        expect:
+        CacheVariant.bounded(100, 0).keyFor(CacheKey.of("a")) != CacheVariant.bounded(0, 100).keyFor(CacheKey.of("a"))
+        CacheVariant.bounded(100, 0).keyFor(CacheKey.of("a")) != new CacheVariant(100, 0, "Blur").keyFor(CacheKey.of("a"))
+    }
+
+    def "should derive only from big enough bitmaps"() {
+        given:
+        def source = Mock(Bitmap)
+        source.getWidth() >> sourceWidth
+        source.getHeight() >> sourceHeight
+
+        expect:
+        CacheVariant.bounded(width, height).canBeScaledFrom(source) == result
+
+        where:
+        sourceWidth | sourceHeight | width | height | result
+        200         | 100          | 100   | 100    | true
+        200         | 100          | 0     | 50     | true
+        200         | 100          | 400   | 0      | false
+        50          | 50           | 100   | 100    | false
+        200         | 100          | 0     | 0      | false
+    }
+
+    def "should serve bounded variant from resident original"() {
+        given:
+        def cache = new ImageCache(CacheConfig.buildDefault(Robolectric.application))
+        def original = Mock(Bitmap)
+        original.getWidth() >> 100
+        original.getHeight() >> 50
+        original.getRowBytes() >> 400
+        cache.memCache.put(CacheKey.of("a"), original)
+
+        expect:
+        cache.scaleFromResidentVariant(CacheKey.of("a"), CacheVariant.bounded(100, 100)) == original
+        cache.scaleFromResidentVariant(CacheKey.of("a"), CacheVariant.bounded(200, 200)) == null
+        cache.scaleFromResidentVariant(CacheKey.of("a"), new CacheVariant(100, 100, "Blur")) == null
+    }
+
+    def "should reuse key derived for the same image"() {
+        given:
+        def variant = CacheVariant.bounded(100, 100)
+
+        when:
+        def first = variant.keyFor(CacheKey.of("a"))
+
+        then:
+        variant.keyFor(CacheKey.of("a")).is(first)
+        variant.keyFor(CacheKey.of("b")) != first
+        variant.keyFor(CacheKey.of("a")) == first
+    }
+}
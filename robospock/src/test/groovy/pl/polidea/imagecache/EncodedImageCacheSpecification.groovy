@@ -0,0 +1,111 @@
+package pl.polidea.imagecache
+
+import android.graphics.Bitmap
+import com.xtremelabs.robolectric.Robolectric
+import pl.polidea.imagecache.shadows.MyShadowActivityManager
+import pl.polidea.robospock.RoboSpecification
+import pl.polidea.robospock.UseShadows
+import pl.polidea.thridparty.DiskCache
+import pl.polidea.utils.CacheKey
+import pl.polidea.utils.Compression
+
+@UseShadows(MyShadowActivityManager)
+class EncodedImageCacheSpecification extends RoboSpecification {
+
+    def "should count size in bytes of encoded data"() {
+        given:
+        def cache = new EncodedImageCache(100)
+
+        when:
+        cache.put(key("a"), new byte[30])
+        cache.put(key("b"), new byte[50])
+
+        then:
+        cache.size() == 80
+    }
+
+    def "should evict eldest data when full"() {
+        given:
+        def cache = new EncodedImageCache(100)
+        cache.put(key("a"), new byte[60])
+
+        when:
+        cache.put(key("b"), new byte[60])
+
+        then:
+        cache.get(key("a")) == null
+        cache.size() == 60
+    }
+
+    def "should trim to fraction and grow back"() {
+        given:
+        def cache = new EncodedImageCache(100)
+        4.times { cache.put(key("k") + it, new byte[25]) }
+
+        when:
+        cache.trimToFraction(0.5f)
+        cache.put(key("x"), new byte[50])
+
+        then:
+        cache.size() == 100
+        cache.maxSize() == 100
+    }
+
+    def "should decode from encoded tier without reading disk"() {
+        given:
+        def config = CacheConfig.buildDefault(Robolectric.application)
+        config.encodedCacheSize = 1000
+        def imageCache = new ImageCache(config)
+        def diskCache = Mock(DiskCache)
+        imageCache.diskCache = diskCache
+        def bitmap = Mock(Bitmap)
+        imageCache.encodedCache.put(key("a"), new byte[10])
+
+        when:
+        def result = imageCache.readBitmap(key("a"))
+
+        then:
+        result == bitmap
+        1 * diskCache.decodeBitmap(key("a").name(), _) >> bitmap
+        0 * diskCache.getBytes(_)
+        0 * diskCache.getBitmap(_)
+    }
+
+    def "should keep bytes read from disk in encoded tier"() {
+        given:
+        def config = CacheConfig.buildDefault(Robolectric.application)
+        config.encodedCacheSize = 1000
+        def imageCache = new ImageCache(config)
+        def diskCache = Mock(DiskCache)
+        imageCache.diskCache = diskCache
+        diskCache.getBytes(key("a").name()) >> new byte[10]
+
+        when:
+        imageCache.readBitmap(key("a"))
+
+        then:
+        imageCache.getEncodedCacheSize() == 10
+    }
+
+    def "should store metadata of data encoded with the chosen format"() {
+        given:
+        def config = CacheConfig.buildDefault(Robolectric.application)
+        config.encodedCacheSize = 1000
+        def imageCache = new ImageCache(config)
+        def diskCache = Mock(DiskCache)
+        imageCache.diskCache = diskCache
+        def bitmap = Mock(Bitmap)
+        def data = new byte[10]
+
+        when:
+        imageCache.writeToDisk(key("a"), bitmap, data, new Compression(Bitmap.CompressFormat.JPEG, 80), null)
+
+        then:
+        1 * diskCache.put(key("a").name(), data, { it.getMimeType() == "image/jpeg" })
+        0 * diskCache.getCompressFormat()
+    }
+
+    CacheKey key(String text) {
+        CacheKey.of(text)
+    }
+}
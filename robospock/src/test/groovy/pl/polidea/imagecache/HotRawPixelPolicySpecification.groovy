@@ -0,0 +1,45 @@
+package pl.polidea.imagecache
+
+import android.graphics.Bitmap
+import pl.polidea.robospock.RoboSpecification
+
+class HotRawPixelPolicySpecification extends RoboSpecification {
+
+    Bitmap bitmap(int rowBytes, Bitmap.Config config) {
+        def bitmap = Mock(Bitmap)
+        bitmap.getRowBytes() >> rowBytes
+        bitmap.getHeight() >> 10
+        bitmap.getConfig() >> config
+        bitmap
+    }
+
+    def "should store entry raw once it was read often enough"() {
+        given:
+        def policy = new HotRawPixelPolicy(1000, 3, 16)
+        def small = bitmap(40, Bitmap.Config.ARGB_8888)
+
+        expect:
+        !policy.shouldStoreRaw("a", small)
+        !policy.shouldStoreRaw("a", small)
+        policy.shouldStoreRaw("a", small)
+        !policy.shouldStoreRaw("b", small)
+    }
+
+    def "should never store big bitmaps raw"() {
+        given:
+        def policy = new HotRawPixelPolicy(1000, 1, 16)
+
+        expect:
+        !policy.shouldStoreRaw("a", bitmap(101, Bitmap.Config.ARGB_8888))
+        !policy.shouldStoreRaw("a", bitmap(10, null))
+        policy.shouldStoreRaw("a", bitmap(100, Bitmap.Config.RGB_565))
+    }
+
+    def "should not accept zero reads"() {
+        when:
+        new HotRawPixelPolicy(1000, 0, 16)
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+}
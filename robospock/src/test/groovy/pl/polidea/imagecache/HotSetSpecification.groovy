@@ -0,0 +1,98 @@
+package pl.polidea.imagecache
+
+import android.graphics.Bitmap
+import pl.polidea.robospock.RoboSpecification
+import pl.polidea.utils.CacheKey
+
+class HotSetSpecification extends RoboSpecification {
+
+    File file
+
+    def "setup"() {
+        file = File.createTempFile("hot", "set")
+        file.delete()
+    }
+
+    def "cleanup"() {
+        file.delete()
+    }
+
+    Bitmap bitmap(int width, int height) {
+        def bitmap = Mock(Bitmap)
+        bitmap.getWidth() >> width
+        bitmap.getHeight() >> height
+        bitmap.getRowBytes() >> width * 4
+        bitmap
+    }
+
+    def "should pick the most recently used bitmaps first"() {
+        given:
+        def hotSet = new HotSet(file, 2)
+        def snapshot = new LinkedHashMap<CacheKey, Bitmap>()
+        snapshot.put(CacheKey.of("old"), bitmap(1, 1))
+        snapshot.put(CacheKey.of("middle"), bitmap(2, 2))
+        snapshot.put(CacheKey.of("new"), bitmap(3, 3))
+
+        when:
+        def entries = hotSet.select(snapshot, new VariantIndex())
+
+        then:
+        entries*.key == [CacheKey.of("new"), CacheKey.of("middle")]
+        entries[0].byteCount == 36
+    }
+
+    def "should load saved entries in order"() {
+        given:
+        def hotSet = new HotSet(file, 10)
+        def legacyKey = new CacheKey(1, 2, "legacy")
+        def entries = [new HotSet.Entry(CacheKey.of("a"), 10, 20, 800), new HotSet.Entry(legacyKey, 1, 1, 4)]
+
+        when:
+        hotSet.save(entries)
+        def loaded = hotSet.load()
+
+        then:
+        loaded*.key == [CacheKey.of("a"), legacyKey]
+        loaded[1].key.name() == "legacy"
+        loaded[0].width == 10
+        loaded[0].height == 20
+        loaded[0].byteCount == 800
+    }
+
+    def "should keep image and variant of indexed variants"() {
+        given:
+        def hotSet = new HotSet(file, 10)
+        def variant = CacheVariant.bounded(10, 20)
+        def variantKey = variant.keyFor(CacheKey.of("a"))
+        def index = new VariantIndex()
+        index.add(CacheKey.of("a"), variant)
+        def snapshot = new LinkedHashMap<CacheKey, Bitmap>()
+        snapshot.put(CacheKey.of("b"), bitmap(1, 1))
+        snapshot.put(variantKey, bitmap(10, 20))
+
+        when:
+        hotSet.save(hotSet.select(snapshot, index))
+        def loaded = hotSet.load()
+
+        then:
+        loaded*.key == [variantKey, CacheKey.of("b")]
+        loaded[0].imageKey == CacheKey.of("a")
+        loaded[0].variant == variant
+        loaded[1].imageKey == null
+        loaded[1].variant == null
+    }
+
+    def "should load nothing when file is missing or broken"() {
+        given:
+        def hotSet = new HotSet(file, 10)
+
+        expect:
+        hotSet.load().isEmpty()
+
+        when:
+        file.bytes = [0, 0, 0, 9] as byte[]
+
+        then:
+        hotSet.load().isEmpty()
+    }
+}
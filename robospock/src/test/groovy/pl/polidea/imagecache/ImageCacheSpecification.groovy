@@ -1,5 +1,6 @@
 package pl.polidea.imagecache
 
+import android.content.ComponentCallbacks2
 import android.graphics.Bitmap
 import com.xtremelabs.robolectric.Robolectric
 import com.xtremelabs.robolectric.shadows.ShadowLog
@@ -8,7 +9,11 @@ import pl.polidea.imagecache.shadows.MyShadowActivityManager
 import pl.polidea.robospock.RoboSpecification
 import pl.polidea.robospock.UseShadows
 import pl.polidea.thridparty.DiskCache
+import pl.polidea.utils.BitmapPool
+import pl.polidea.utils.CacheKey
+import pl.polidea.utils.Freshness
 import pl.polidea.utils.Utils
+import spock.lang.Timeout
 
 @UseShadows(MyShadowActivityManager)
 class ImageCacheSpecification extends RoboSpecification {
@@ -46,6 +51,20 @@ class ImageCacheSpecification extends RoboSpecification {
         cache
     }
 
+    def "should not segment memory cache with admission policy"() {
+        given:
+        def config = CacheConfig.buildDefault(Robolectric.application)
+        config.admissionPolicy = new TinyLfuAdmissionPolicy()
+        config.memoryCacheSegments = 4
+
+        when:
+        new ImageCache(config)
+
+        then:
+        def thrown = thrown(IllegalArgumentException)
+        thrown.message == "Memory cache with admission policy can't be segmented"
+    }
+
     def "should be able to put a new bitmap to cache"() {
         when:
         def localCache = new ImageCache(CacheConfig.buildDefault(Robolectric.application))
@@ -159,6 +178,7 @@ class ImageCacheSpecification extends RoboSpecification {
     def "should put new task to deque when bitmap is not present in cache"() {
         given:
         cache.decodingBitmapsExecutor = Mock(ExecutorService)
+        mockDiskCache.mightContain(_) >> true
 
         when:
         cache.get("aa", mockListener)
@@ -167,9 +187,59 @@ class ImageCacheSpecification extends RoboSpecification {
         1 * cache.decodingBitmapsExecutor.submit(_)
     }
 
+    def "should report miss at once when disk cache surely hasn't the bitmap"() {
+        given:
+        cache.decodingBitmapsExecutor = Mock(ExecutorService)
+        mockDiskCache.mightContain(_) >> false
+
+        when:
+        cache.get("aa", mockListener)
+
+        then:
+        0 * cache.decodingBitmapsExecutor.submit(_)
+        1 * mockDiskCache.countLookup(false)
+        1 * mockListener.onCacheMiss("aa")
+    }
+
+    def "should report miss of bounded variant at once when no bitmap in memory can be scaled"() {
+        given:
+        cache.decodingBitmapsExecutor = Mock(ExecutorService)
+        mockDiskCache.mightContain(_) >> false
+        def variant = CacheVariant.bounded(10, 10)
+        def small = Mock(Bitmap)
+        small.getWidth() >> 5
+        small.getHeight() >> 5
+        mockMemCache.peek(variant.unbounded().keyFor(CacheKey.of("aa"))) >> small
+
+        when:
+        cache.get("aa", variant, mockListener)
+
+        then:
+        0 * cache.decodingBitmapsExecutor.submit(_)
+        1 * mockListener.onCacheMiss("aa")
+    }
+
+    def "should scale bounded variant from bitmap in memory even when disk surely hasn't it"() {
+        given:
+        cache.decodingBitmapsExecutor = Mock(ExecutorService)
+        mockDiskCache.mightContain(_) >> false
+        def variant = CacheVariant.bounded(10, 10)
+        def big = Mock(Bitmap)
+        big.getWidth() >> 100
+        big.getHeight() >> 100
+        mockMemCache.peek(variant.unbounded().keyFor(CacheKey.of("aa"))) >> big
+
+        when:
+        cache.get("aa", variant, mockListener)
+
+        then:
+        1 * cache.decodingBitmapsExecutor.submit(_)
+        0 * mockListener.onCacheMiss(_)
+    }
+
     def "should be able to create a CacheTask"() {
         when:
-        def task = cache.buildTask("a", "a", mockListener)
+        def task = cache.buildTask("a", CacheKey.of("a"), mockListener)
 
         then:
         task
@@ -180,7 +250,7 @@ class ImageCacheSpecification extends RoboSpecification {
         mockBitmap.isRecycled() >> true
         mockDiskCache.getBitmap(_) >>> [null, mockBitmap]
         and: "create a cache task"
-        def task = cache.buildTask("a", "a", mockListener)
+        def task = cache.buildTask("a", CacheKey.of("a"), mockListener)
 
         when:
         2.times { task.run() }
@@ -195,14 +265,373 @@ class ImageCacheSpecification extends RoboSpecification {
         mockDiskCache.getBitmap(_) >> mockBitmap
 
         and: "create a cache task"
-        def task = cache.buildTask("a", "a", mockListener)
+        def task = cache.buildTask("a", CacheKey.of("a"), mockListener)
 
         when:
         task.run()
 
         then:
+        1 * mockDiskCache.countLookup(true)
         1 * mockListener.onCacheHit("a", mockBitmap)
-        1 * mockMemCache.put("a", mockBitmap)
+        1 * mockMemCache.put(CacheKey.of("a"), mockBitmap)
+    }
+
+    def "should report miss when disk cache was cleared while reading it"() {
+        given:
+        mockDiskCache.getBitmap(_) >> { throw new IllegalStateException("cache is closed") }
+
+        when:
+        cache.buildTask("a", CacheKey.of("a"), mockListener).run()
+
+        then:
+        1 * mockListener.onCacheMiss("a")
+        0 * mockListener.onCacheHit(*_)
+    }
+
+    def "should not reclaim bitmap put while memory is trimmed before it's shown"() {
+        given:
+        def pool = Mock(BitmapPool)
+        def memCache = new MemoryCache(1000)
+        memCache.setBitmapPool(pool)
+        memCache.trimToFraction(0)
+        cache.memCache = memCache
+        mockDiskCache.getBitmap(_) >> mockBitmap
+
+        when:
+        cache.buildTask("a", CacheKey.of("a"), mockListener).run()
+
+        then:
+        1 * mockListener.onCacheHit("a", mockBitmap)
+
+        then:
+        1 * pool.put(mockBitmap) >> true
+        memCache.pinnedCount() == 0
+        memCache.size() == 0
+    }
+
+    def "should share remembered url keys between get, put and remove"() {
+        when:
+        cache.put("a", mockBitmap)
+        cache.get("a", mockListener)
+        cache.remove("a")
+
+        then:
+        cache.keyMemo.missCount() == 1
+        cache.keyMemo.hitCount() == 2
+    }
+
+    @Timeout(5)
+    def "should write bitmap to disk in background when writes are queued"() {
+        given:
+        def config = CacheConfig.buildDefault(Robolectric.application)
+        config.diskWriteQueueSize = 4
+        def localCache = new ImageCache(config)
+        localCache.diskCache = mockDiskCache
+        localCache.memCache = mockMemCache
+
+        when:
+        localCache.put("a", mockBitmap)
+        while (localCache.getPendingDiskWrites() > 0) {
+            Thread.sleep(10)
+        }
+
+        then:
+        1 * mockMemCache.acquire(mockBitmap)
+        1 * mockDiskCache.put(CacheKey.of("a").name(), mockBitmap, null)
+    }
+
+    def "should serve pending write from the queue"() {
+        given:
+        cache.writeQueue = new WriteBehindQueue(4)
+        cache.put("a", mockBitmap)
+
+        when:
+        def bitmap = cache.readBitmap(CacheKey.of("a"))
+
+        then:
+        bitmap == mockBitmap
+        0 * mockDiskCache.getBitmap(_)
+        0 * mockDiskCache.put(*_)
+    }
+
+    def "should rewrite hot entry as raw pixels in the disk writer"() {
+        given:
+        cache.writeQueue = new WriteBehindQueue(4)
+        def name = CacheKey.of("a").name()
+
+        when:
+        cache.storeRawBehind(name, mockBitmap)
+
+        then:
+        1 * mockMemCache.acquire(mockBitmap)
+        0 * mockDiskCache.putRaw(*_)
+
+        when:
+        def write = cache.writeQueue.take()
+
+        then:
+        write.raw
+        write.key == CacheKey.of("a")
+    }
+
+    def "should drop pending write of removed key"() {
+        given:
+        cache.writeQueue = new WriteBehindQueue(4)
+        cache.put("a", mockBitmap)
+
+        when:
+        cache.remove("a")
+
+        then:
+        cache.getPendingDiskWrites() == 0
+        1 * mockMemCache.release(mockBitmap)
+    }
+
+    def "should flush disk cache when flushed"() {
+        when:
+        cache.flush()
+
+        then:
+        1 * mockDiskCache.flush()
+    }
+
+    def "should flush disk cache's journal when ui is hidden"() {
+        given:
+        def executor = Mock(ExecutorService)
+        cache.decodingBitmapsExecutor = executor
+        cache.hotSet = null
+
+        when:
+        cache.onTrimMemory(level)
+
+        then: "journal is flushed in the background"
+        flushes * executor.submit({ it instanceof Runnable }) >> { Runnable task -> task.run(); null }
+
+        then:
+        flushes * mockDiskCache.flush()
+
+        where:
+        level                                          | flushes
+        ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW    | 0
+        ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN      | 1
+        ComponentCallbacks2.TRIM_MEMORY_COMPLETE       | 1
+    }
+
+    def "should store source apart from processed bitmaps"() {
+        given:
+        def stream = new ByteArrayInputStream(new byte[1])
+        def sourceName = cache.sourceKey(CacheKey.of("a")).name()
+
+        when:
+        cache.putSource("a", stream)
+
+        then:
+        sourceName != CacheKey.of("a").name()
+        1 * mockDiskCache.put(sourceName, stream)
+    }
+
+    def "should keep processed bitmap in memory only"() {
+        when:
+        cache.putInMemory("a", CacheVariant.ORIGINAL, mockBitmap)
+
+        then:
+        1 * mockMemCache.put(CacheKey.of("a"), mockBitmap)
+        0 * mockDiskCache.put(*_)
+    }
+
+    def "should remove source together with the image"() {
+        when:
+        cache.remove("a")
+
+        then:
+        1 * mockDiskCache.remove(cache.sourceKey(CacheKey.of("a")).name())
+    }
+
+    def "should save hot set when ui is hidden"() {
+        given:
+        cache.hotSet = Mock(HotSet)
+        cache.decodingBitmapsExecutor = Mock(ExecutorService)
+        def snapshot = [:]
+
+        when:
+        cache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN)
+
+        then:
+        1 * mockMemCache.snapshot() >> snapshot
+        1 * cache.hotSet.select(snapshot, cache.variantIndex) >> []
+        // journal flush and hot set save
+        2 * cache.decodingBitmapsExecutor.submit({ it instanceof Runnable })
+    }
+
+    def "should load hot set into memory within byte budget"() {
+        given:
+        def hotSet = Mock(HotSet)
+        hotSet.load() >> [new HotSet.Entry(CacheKey.of("a"), 10, 10, 400),
+                new HotSet.Entry(CacheKey.of("big"), 100, 100, 40000),
+                new HotSet.Entry(CacheKey.of("cached"), 10, 10, 400)]
+        cache.hotSet = hotSet
+        cache.hotSetPreloadTime = 10000
+        cache.hotSetPreloadBytes = 1000
+        mockMemCache.peek(CacheKey.of("cached")) >> mockBitmap
+
+        when:
+        new ImageCache.HotSetLoader(cache).run()
+
+        then:
+        1 * mockDiskCache.getBitmap(CacheKey.of("a").name()) >> mockBitmap
+        1 * mockMemCache.put(CacheKey.of("a"), mockBitmap)
+        0 * mockDiskCache.getBitmap(_)
+        0 * mockMemCache.put(*_)
+    }
+
+    def "should index variants loaded from hot set"() {
+        given:
+        def variant = CacheVariant.bounded(10, 10)
+        def variantKey = variant.keyFor(CacheKey.of("a"))
+        def hotSet = Mock(HotSet)
+        hotSet.load() >> [new HotSet.Entry(variantKey, 10, 10, 400, CacheKey.of("a"), variant)]
+        cache.hotSet = hotSet
+        cache.hotSetPreloadTime = 10000
+        cache.hotSetPreloadBytes = 1000
+        mockDiskCache.getBitmap(variantKey.name()) >> mockBitmap
+
+        when:
+        new ImageCache.HotSetLoader(cache).run()
+
+        then:
+        cache.variantIndex.get(CacheKey.of("a")) == [variant]
+    }
+
+    def "should store freshness in metadata of the image's entry"() {
+        given:
+        def freshness = new Freshness("\"v1\"", null, 1000)
+        def variant = CacheVariant.bounded(10, 10)
+
+        when:
+        cache.putFreshness("a", freshness)
+        cache.putFreshness("b", variant, freshness)
+
+        then:
+        1 * mockDiskCache.putFreshness(CacheKey.of("a").name(), freshness) >> true
+        1 * mockDiskCache.putFreshness(variant.keyFor(CacheKey.of("b")).name(), freshness) >> true
+        0 * mockDiskCache.put(*_)
+    }
+
+    def "should store freshness with the source in pass-through mode"() {
+        given:
+        cache.passThrough = true
+        def freshness = new Freshness("\"v1\"", null, 1000)
+
+        when:
+        cache.putFreshness("a", CacheVariant.bounded(10, 10), freshness)
+
+        then:
+        1 * mockDiskCache.putFreshness(cache.sourceKey(CacheKey.of("a")).name(), freshness) >> true
+    }
+
+    def "should read freshness from disk once"() {
+        given:
+        def freshness = new Freshness("\"v1\"", null, 1000)
+
+        when:
+        def first = cache.getFreshness("a")
+        def second = cache.getFreshness("a")
+
+        then:
+        1 * mockDiskCache.getFreshness(CacheKey.of("a").name()) >> freshness
+        first == freshness
+        second == freshness
+    }
+
+    def "should revalidate only stale images"() {
+        given:
+        mockDiskCache.putFreshness(*_) >> true
+        cache.putFreshness("stale", new Freshness("\"v1\"", null, 1000))
+        cache.putFreshness("fresh", new Freshness("\"v1\"", null, System.currentTimeMillis() + 60000))
+        cache.putFreshness("unlimited", null)
+
+        expect:
+        cache.needsRevalidation("stale")
+        !cache.needsRevalidation("fresh")
+        !cache.needsRevalidation("unlimited")
+        !cache.needsRevalidation("unknown")
+    }
+
+    def "should remember freshness of entry read from disk"() {
+        given:
+        def variant = CacheVariant.bounded(10, 10)
+
+        when:
+        cache.rememberFreshness(variant.keyFor(CacheKey.of("a")).name(), new Freshness("\"v1\"", null, 1000))
+        cache.rememberFreshness("journal", new Freshness("\"v1\"", null, 1000))
+
+        then:
+        cache.needsRevalidation("a", variant)
+        !cache.needsRevalidation("a")
+        cache.freshnessIndex.contains(variant.keyFor(CacheKey.of("a")))
+    }
+
+    def "should drop freshness of image which doesn't expire anymore"() {
+        when:
+        cache.putFreshness("a", null)
+
+        then:
+        1 * mockDiskCache.putFreshness(CacheKey.of("a").name(), null) >> true
+        !cache.needsRevalidation("a")
+    }
+
+    def "should not remember freshness of image which isn't stored"() {
+        given:
+        mockDiskCache.putFreshness(*_) >> false
+
+        when:
+        cache.putFreshness("a", new Freshness("\"v1\"", null, 1000))
+
+        then:
+        !cache.freshnessIndex.contains(CacheKey.of("a"))
+        !cache.needsRevalidation("a")
+    }
+
+    def "should store freshness of queued image once it's written"() {
+        given:
+        cache.writeQueue = new WriteBehindQueue(4)
+        cache.writeQueue.put(CacheKey.of("a"), mockBitmap, null)
+        def freshness = new Freshness("\"v1\"", null, 1000)
+
+        when:
+        cache.putFreshness("a", freshness)
+
+        then:
+        0 * mockDiskCache.putFreshness(*_)
+
+        when:
+        cache.writeQueue.done(cache.writeQueue.take())
+        cache.storeQueuedFreshness(CacheKey.of("a"))
+
+        then:
+        1 * mockDiskCache.putFreshness(CacheKey.of("a").name(), freshness) >> true
+    }
+
+    def "should forget freshness together with the image"() {
+        given:
+        mockDiskCache.putFreshness(*_) >> true
+        cache.putFreshness("a", new Freshness("\"v1\"", null, 1000))
+
+        when:
+        cache.remove("a")
+
+        then:
+        !cache.freshnessIndex.contains(CacheKey.of("a"))
+        !cache.needsRevalidation("a")
+    }
+
+    def "should keep stored source when removing decoded bitmaps"() {
+        when:
+        cache.removeDecoded("a")
+
+        then:
+        1 * mockMemCache.remove(CacheKey.of("a"))
+        0 * mockDiskCache.remove(cache.sourceKey(CacheKey.of("a")).name())
     }
 
     Bitmap mock(int rowBytes, int height) {
@@ -3,6 +3,7 @@ package pl.polidea.imagecache
 import android.graphics.Bitmap
 import com.xtremelabs.robolectric.shadows.ShadowLog
 import pl.polidea.robospock.RoboSpecification
+import pl.polidea.utils.CacheKey
 import pl.polidea.utils.Utils
 
 class MemoryCacheSpecification extends RoboSpecification {
@@ -13,7 +14,7 @@ class MemoryCacheSpecification extends RoboSpecification {
         def mock = mock(10, 10)
 
         when:
-        def put = memoryCache.put("a", mock)
+        def put = memoryCache.put(key("a"), mock)
 
         then:
         put == null
@@ -36,7 +37,7 @@ class MemoryCacheSpecification extends RoboSpecification {
         MemoryCache memoryCache = new MemoryCache(102)
 
         when:
-        memoryCache.put("a", null)
+        memoryCache.put(key("a"), null)
 
         then:
         thrown(IllegalArgumentException)
@@ -48,7 +49,7 @@ class MemoryCacheSpecification extends RoboSpecification {
         def mock = mock(10, 10)
 
         when:
-        def put = memoryCache.put("a", mock)
+        def put = memoryCache.put(key("a"), mock)
 
         then:
         thrown(IllegalArgumentException)
@@ -61,16 +62,71 @@ class MemoryCacheSpecification extends RoboSpecification {
         def mock = mock(10, 10)
 
         when:
-        def put = memoryCache.put("a", mock)
+        def put = memoryCache.put(key("a"), mock)
 
         then:
         ShadowLog.logs
     }
 
+    def "should trim cache keeping most recently used bitmaps"() {
+        given:
+        MemoryCache memoryCache = new MemoryCache(400)
+        ["a", "b", "c", "d"].each { memoryCache.put(key(it), mock(10, 10)) }
+
+        when:
+        memoryCache.trimToFraction(0.5f)
+
+        then:
+        memoryCache.maxSize() == 200
+        memoryCache.snapshot().keySet() as List == ["c", "d"].collect { key(it) }
+        memoryCache.isTrimmed()
+    }
+
+    def "should evict all bitmaps on complete trim"() {
+        given:
+        MemoryCache memoryCache = new MemoryCache(400)
+        memoryCache.put(key("a"), mock(10, 10))
+
+        when:
+        memoryCache.trimToFraction(0f)
+
+        then:
+        memoryCache.size() == 0
+    }
+
+    def "should not grow when trimmed less than before"() {
+        given:
+        MemoryCache memoryCache = new MemoryCache(400)
+        memoryCache.trimToFraction(0f)
+
+        when:
+        memoryCache.trimToFraction(0.5f)
+
+        then:
+        memoryCache.maxSize() == 0
+    }
+
+    def "should restore configured size"() {
+        given:
+        MemoryCache memoryCache = new MemoryCache(400)
+        memoryCache.trimToFraction(0.5f)
+
+        when:
+        memoryCache.restoreMaxSize()
+
+        then:
+        memoryCache.maxSize() == 400
+        !memoryCache.isTrimmed()
+    }
+
     Bitmap mock(int rowBytes, int height) {
         def mock = Mock(Bitmap)
         mock.getRowBytes() >> rowBytes
         mock.getHeight() >> height
         return mock;
     }
+
+    CacheKey key(String text) {
+        CacheKey.of(text)
+    }
 }
@@ -0,0 +1,78 @@
+package pl.polidea.imagecache
+
+import android.graphics.Bitmap
+import pl.polidea.robospock.RoboSpecification
+import pl.polidea.utils.CacheKey
+
+class ReferenceBitmapCacheSpecification extends RoboSpecification {
+
+    def "should return referenced bitmap once"() {
+        given:
+        def tier = new ReferenceBitmapCache(10, false)
+        def bitmap = Mock(Bitmap)
+        tier.put(key("a"), bitmap)
+
+        expect:
+        tier.remove(key("a")) == bitmap
+        tier.remove(key("a")) == null
+        tier.hitCount() == 1
+        tier.missCount() == 1
+    }
+
+    def "should drop eldest reference when full"() {
+        given:
+        def tier = new ReferenceBitmapCache(2, false)
+        def eldest = Mock(Bitmap)
+        tier.put(key("a"), eldest)
+        tier.put(key("b"), Mock(Bitmap))
+
+        when:
+        def dropped = tier.put(key("c"), Mock(Bitmap))
+
+        then:
+        dropped == eldest
+        tier.size() == 2
+    }
+
+    def "should restore evicted bitmap to memory cache"() {
+        given:
+        def memoryCache = new MemoryCache(100)
+        memoryCache.setReferenceCache(new ReferenceBitmapCache(10, false))
+        def bitmap = mock(10, 10)
+        memoryCache.put(key("a"), bitmap)
+        memoryCache.put(key("b"), mock(10, 10))
+
+        when:
+        def restored = memoryCache.get(key("a"))
+
+        then:
+        restored == bitmap
+        memoryCache.referenceHitCount() == 1
+        memoryCache.snapshot().containsKey(key("a"))
+    }
+
+    def "should not restore removed bitmap"() {
+        given:
+        def memoryCache = new MemoryCache(100)
+        memoryCache.setReferenceCache(new ReferenceBitmapCache(10, false))
+        memoryCache.put(key("a"), mock(10, 10))
+        memoryCache.put(key("b"), mock(10, 10))
+
+        when:
+        memoryCache.remove(key("a"))
+
+        then:
+        memoryCache.get(key("a")) == null
+    }
+
+    Bitmap mock(int rowBytes, int height) {
+        def mock = Mock(Bitmap)
+        mock.getRowBytes() >> rowBytes
+        mock.getHeight() >> height
+        return mock
+    }
+
+    CacheKey key(String text) {
+        CacheKey.of(text)
+    }
+}
@@ -0,0 +1,130 @@
+package pl.polidea.imagecache
+
+import android.graphics.Bitmap
+import pl.polidea.robospock.RoboSpecification
+import pl.polidea.utils.CacheKey
+
+class SegmentedBitmapLRUCacheSpecification extends RoboSpecification {
+
+    def "should round segments number up to power of two"() {
+        when:
+        def cache = new SegmentedBitmapLRUCache(100, 3)
+
+        then:
+        cache.segmentsNumber() == 4
+        cache.maxSize() == 100
+    }
+
+    def "should throw an exception when segments number is less than one"() {
+        when:
+        new SegmentedBitmapLRUCache(100, 0)
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    def "should return inserted bitmap"() {
+        given:
+        def cache = new SegmentedBitmapLRUCache(1000, 4)
+        def bitmap = mock(10, 10)
+
+        when:
+        cache.put(key("a"), bitmap)
+
+        then:
+        cache.get(key("a")) == bitmap
+        cache.size() == 100
+        cache.hitCount() == 1
+    }
+
+    def "should keep global size within budget"() {
+        given:
+        def cache = new SegmentedBitmapLRUCache(250, 4)
+
+        when:
+        ["a", "b", "c", "d"].each { cache.put(key(it), mock(10, 10)) }
+
+        then:
+        cache.size() == 200
+        cache.evictionCount() == 2
+    }
+
+    def "should evict least recently used entry across segments"() {
+        given:
+        def cache = new SegmentedBitmapLRUCache(300, 8)
+        ["a", "b", "c"].each { cache.put(key(it), mock(10, 10)) }
+
+        when:
+        cache.get(key("a"))
+        cache.put(key("d"), mock(10, 10))
+
+        then:
+        cache.get(key("a"))
+        !cache.get(key("b"))
+        cache.snapshot().keySet() as List == ["c", "a", "d"].collect { key(it) }
+    }
+
+    def "should remove all entries"() {
+        given:
+        def cache = new SegmentedBitmapLRUCache(1000, 4)
+        ["a", "b", "c"].each { cache.put(key(it), mock(10, 10)) }
+
+        when:
+        cache.evictAll()
+
+        then:
+        cache.size() == 0
+        cache.snapshot().isEmpty()
+    }
+
+    def "should move pinned entry behind the evicted ones"() {
+        given:
+        def cache = new SegmentedBitmapLRUCache(300, 1)
+        def pinned = mock(10, 10)
+        cache.put(key("a"), pinned)
+        cache.acquire(pinned)
+        ["b", "c"].each { cache.put(key(it), mock(10, 10)) }
+
+        when:
+        cache.put(key("d"), mock(10, 10))
+
+        then: "pinned entry counts as accessed when it's skipped"
+        cache.snapshot().keySet() as List == ["c", "d", "a"].collect { key(it) }
+        cache.evictionCount() == 1
+    }
+
+    def "should evict unpinned entry when others are pinned"() {
+        given:
+        def cache = new SegmentedBitmapLRUCache(200, 2)
+        def pinned = [mock(10, 10), mock(10, 10)]
+        cache.put(key("a"), pinned[0])
+        cache.put(key("b"), pinned[1])
+        pinned.each { cache.acquire(it) }
+
+        when:
+        cache.put(key("c"), mock(10, 10))
+
+        then:
+        cache.get(key("a")) == pinned[0]
+        cache.get(key("b")) == pinned[1]
+        !cache.get(key("c"))
+        cache.size() == 200
+
+        when:
+        cache.evictAll()
+
+        then:
+        cache.size() == 0
+    }
+
+    Bitmap mock(int rowBytes, int height) {
+        def mock = Mock(Bitmap)
+        mock.getRowBytes() >> rowBytes
+        mock.getHeight() >> height
+        return mock
+    }
+
+    CacheKey key(String text) {
+        CacheKey.of(text)
+    }
+}
@@ -0,0 +1,103 @@
+package pl.polidea.imagecache
+
+import android.graphics.Bitmap
+import pl.polidea.robospock.RoboSpecification
+import pl.polidea.utils.CacheKey
+
+class WindowedBitmapLRUCacheSpecification extends RoboSpecification {
+
+    def "should throw an exception when policy is null"() {
+        when:
+        new WindowedBitmapLRUCache(100, null)
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    def "sketch should count occurrences of a key"() {
+        given:
+        def sketch = new FrequencySketch(64)
+
+        when:
+        3.times { sketch.increment("a") }
+
+        then:
+        sketch.frequency("a") == 3
+        sketch.frequency("b") == 0
+    }
+
+    def "sketch should age counters"() {
+        given:
+        def sketch = new FrequencySketch(16)
+        15.times { sketch.increment("a") }
+
+        when:
+        (0..<160).each { sketch.increment("key" + it) }
+
+        then:
+        sketch.frequency("a") < 15
+    }
+
+    def "should keep frequently used bitmap during a scan"() {
+        given:
+        def cache = new WindowedBitmapLRUCache(1000, 0.1f, new TinyLfuAdmissionPolicy(64))
+        cache.put(key("avatar"), mock(10, 10))
+        5.times { cache.get(key("avatar")) }
+
+        when:
+        (0..<30).each { cache.put(key("feed") + it, mock(10, 10)) }
+
+        then:
+        cache.get(key("avatar"))
+        cache.size() <= 1000
+        cache.rejectionCount() > 0
+    }
+
+    def "should evict bitmaps to stay within budget"() {
+        given:
+        def cache = new WindowedBitmapLRUCache(300, 0f, new TinyLfuAdmissionPolicy())
+
+        when:
+        ["a", "b", "c", "d"].each { cache.put(key(it), mock(10, 10)) }
+
+        then:
+        cache.size() == 300
+        cache.evictionCount() == 1
+    }
+
+    def "should create windowed cache when admission policy is given"() {
+        when:
+        def memoryCache = new MemoryCache(1000, 1, new TinyLfuAdmissionPolicy())
+
+        then:
+        memoryCache.cache instanceof WindowedBitmapLRUCache
+    }
+
+    def "should peek without recording access"() {
+        given:
+        def policy = Mock(AdmissionPolicy)
+        def cache = new WindowedBitmapLRUCache(1000, 0.1f, policy)
+        def bitmap = mock(10, 10)
+        cache.put(key("a"), bitmap)
+
+        when:
+        def peeked = cache.peek(key("a"))
+
+        then:
+        peeked == bitmap
+        0 * policy.recordAccess(_)
+        cache.hitCount() == 0
+        cache.missCount() == 0
+    }
+
+    Bitmap mock(int rowBytes, int height) {
+        def mock = Mock(Bitmap)
+        mock.getRowBytes() >> rowBytes
+        mock.getHeight() >> height
+        return mock
+    }
+
+    CacheKey key(String text) {
+        CacheKey.of(text)
+    }
+}
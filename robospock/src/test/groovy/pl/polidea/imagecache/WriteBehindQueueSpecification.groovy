@@ -0,0 +1,148 @@
+package pl.polidea.imagecache
+
+import android.graphics.Bitmap
+import java.util.concurrent.CountDownLatch
+import pl.polidea.robospock.RoboSpecification
+import pl.polidea.utils.CacheKey
+import spock.lang.Timeout
+
+class WriteBehindQueueSpecification extends RoboSpecification {
+
+    def "should take writes in order of queuing"() {
+        given:
+        def queue = new WriteBehindQueue(4)
+        queue.put(CacheKey.of("a"), null, [1] as byte[])
+        queue.put(CacheKey.of("b"), null, [2] as byte[])
+
+        expect:
+        queue.take().key == CacheKey.of("a")
+        queue.take().key == CacheKey.of("b")
+    }
+
+    def "should tell it's empty only when no write waits nor is persisted"() {
+        given:
+        def queue = new WriteBehindQueue(4)
+
+        expect:
+        queue.isEmpty()
+
+        when:
+        queue.put(CacheKey.of("a"), null, [1] as byte[])
+
+        then:
+        !queue.isEmpty()
+
+        when:
+        def write = queue.take()
+
+        then:
+        !queue.isEmpty()
+
+        when:
+        queue.done(write)
+
+        then:
+        queue.isEmpty()
+    }
+
+    def "should queue raw rewrite only when there's room and no write of the key"() {
+        given:
+        def queue = new WriteBehindQueue(2)
+        queue.put(CacheKey.of("a"), null, [1] as byte[])
+
+        expect:
+        !queue.offerRaw(CacheKey.of("a"), Mock(Bitmap))
+        queue.offerRaw(CacheKey.of("b"), Mock(Bitmap))
+        !queue.offerRaw(CacheKey.of("c"), Mock(Bitmap))
+        !queue.take().raw
+        queue.take().raw
+    }
+
+    def "should coalesce writes of the same key in place"() {
+        given:
+        def queue = new WriteBehindQueue(4)
+        def first = Mock(Bitmap)
+        def second = Mock(Bitmap)
+        queue.put(CacheKey.of("a"), first, null)
+        queue.put(CacheKey.of("b"), null, [2] as byte[])
+
+        when:
+        def replaced = queue.put(CacheKey.of("a"), second, null)
+
+        then:
+        replaced.bitmap == first
+        queue.size() == 2
+        queue.coalescedCount() == 1
+        queue.take().bitmap == second
+    }
+
+    def "should keep write visible until it's done"() {
+        given:
+        def queue = new WriteBehindQueue(4)
+        queue.put(CacheKey.of("a"), null, [1] as byte[])
+
+        when:
+        def write = queue.take()
+
+        then:
+        queue.get(CacheKey.of("a")) == write
+        queue.size() == 1
+
+        when:
+        queue.done(write)
+
+        then:
+        queue.get(CacheKey.of("a")) == null
+        queue.size() == 0
+    }
+
+    def "should cancel write which is being persisted when removed"() {
+        given:
+        def queue = new WriteBehindQueue(4)
+        queue.put(CacheKey.of("a"), null, [1] as byte[])
+        def write = queue.take()
+
+        when:
+        def removed = queue.remove(CacheKey.of("a"))
+
+        then:
+        removed == null
+        write.cancelled
+    }
+
+    def "should drop queued writes when cleared"() {
+        given:
+        def queue = new WriteBehindQueue(4)
+        queue.put(CacheKey.of("a"), null, [1] as byte[])
+        queue.put(CacheKey.of("b"), null, [2] as byte[])
+
+        expect:
+        queue.clear().size() == 2
+        queue.size() == 0
+    }
+
+    @Timeout(1)
+    def "should block producer while queue is full"() {
+        given:
+        def queue = new WriteBehindQueue(1)
+        queue.put(CacheKey.of("a"), null, [1] as byte[])
+        def queued = new CountDownLatch(1)
+
+        when:
+        Thread.start {
+            queue.put(CacheKey.of("b"), null, [2] as byte[])
+            queued.countDown()
+        }
+        Thread.sleep(50)
+
+        then:
+        queued.count == 1
+
+        when:
+        queue.take()
+        queued.await()
+
+        then:
+        queue.get(CacheKey.of("b"))
+    }
+}
@@ -0,0 +1,48 @@
+package pl.polidea.thridparty
+
+import pl.polidea.robospock.RoboSpecification
+
+class DiskBudgetSpecification extends RoboSpecification {
+
+    def budget = new DiskBudget(1000, 10000)
+
+    def "should grow full cache which misses a lot"() {
+        expect:
+        budget.evaluate(2000, 1900, 1000000, 10, 20) == 3000
+    }
+
+    def "should keep budget when cache hits, has room or was read too little"() {
+        expect:
+        budget.evaluate(2000, size, 1000000, hits, misses) == 2000
+
+        where:
+        size | hits | misses
+        1900 | 90   | 10
+        1000 | 10   | 20
+        1900 | 1    | 5
+    }
+
+    def "should shrink when free space runs low"() {
+        expect:
+        budget.evaluate(4000, 1500, 6500, 0, 0) == 2000
+    }
+
+    def "should shrink below size of the cache when volume fills up"() {
+        expect:
+        budget.evaluate(6000, 5000, 7000, 0, 0) == 3000
+    }
+
+    def "should stay within bounds"() {
+        expect:
+        budget.evaluate(8000, 7900, 1000000, 0, 100) == 10000
+        budget.evaluate(2000, 0, 0, 0, 0) == 1000
+    }
+
+    def "should not accept bounds out of order"() {
+        when:
+        new DiskBudget(2000, 1000)
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+}
@@ -0,0 +1,613 @@
+package pl.polidea.thridparty
+
+import android.graphics.Bitmap
+import android.graphics.Bitmap.CompressFormat
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import pl.polidea.robospock.RoboSpecification
+import pl.polidea.utils.Compression
+import pl.polidea.utils.CompressionPolicy
+import pl.polidea.utils.Freshness
+import pl.polidea.utils.ImageMetadata
+import pl.polidea.utils.RawPixelPolicy
+
+class DiskCacheSpecification extends RoboSpecification {
+
+    DiskCache diskCache
+
+    def "setup"() {
+        def directory = File.createTempFile("disk", "cache")
+        directory.delete()
+        diskCache = new DiskCache(directory.path, 1024 * 1024, CompressFormat.PNG, 100)
+    }
+
+    def "cleanup"() {
+        diskCache.clearCache()
+    }
+
+    def "should flush journal after every commit by default"() {
+        when:
+        diskCache.put("a", [1, 2, 3] as byte[])
+
+        then:
+        diskCache.getUnflushedCommits() == 0
+    }
+
+    def "should flush journal once enough commits piled up"() {
+        given:
+        diskCache.setFlushPolicy(3, 0)
+
+        when:
+        diskCache.put("a", [1] as byte[])
+        diskCache.put("b", [2] as byte[])
+
+        then:
+        diskCache.getUnflushedCommits() == 2
+        diskCache.getBytes("a") == [1] as byte[]
+
+        when:
+        diskCache.put("c", [3] as byte[])
+
+        then:
+        diskCache.getUnflushedCommits() == 0
+    }
+
+    def "should flush pending commits on demand"() {
+        given:
+        diskCache.setFlushPolicy(10, 0)
+        diskCache.put("a", [1] as byte[])
+
+        when:
+        diskCache.flush()
+
+        then:
+        diskCache.getUnflushedCommits() == 0
+    }
+
+    def "should store stream as it is"() {
+        when:
+        def file = diskCache.put("a", new ByteArrayInputStream([1, 2, 3] as byte[]))
+
+        then:
+        file.bytes == [1, 2, 3] as byte[]
+        diskCache.getFile("a") == file
+        diskCache.getBytes("a") == [1, 2, 3] as byte[]
+    }
+
+    def "should store nothing when stream fails"() {
+        given:
+        def stream = Mock(InputStream)
+        stream.read(_) >> { throw new IOException("broken") }
+
+        when:
+        diskCache.put("a", stream)
+
+        then:
+        thrown(IOException)
+        diskCache.getFile("a") == null
+    }
+
+    def "should serve stream stored at the same time by another writer"() {
+        given:
+        def reading = new CountDownLatch(1)
+        def proceed = new CountDownLatch(1)
+        def first = new InputStream() {
+            int left = 3
+
+            @Override
+            int read() {
+                reading.countDown()
+                proceed.await()
+                left-- > 0 ? 7 : -1
+            }
+        }
+        def second = new ByteArrayInputStream([9] as byte[])
+        def served = []
+
+        when:
+        def writer = Thread.start { diskCache.put("a", first) }
+        reading.await()
+        def waiting = Thread.start { served << diskCache.put("a", second) }
+        while (waiting.state != Thread.State.WAITING) {
+            Thread.sleep(1)
+        }
+        proceed.countDown()
+        writer.join()
+        waiting.join()
+
+        then:
+        served[0].bytes == [7, 7, 7] as byte[]
+        second.available() == 1
+    }
+
+    def "should read metadata from stored stream"() {
+        given:
+        def png = new ByteArrayOutputStream()
+        def bitmap = Bitmap.createBitmap(10, 20, Bitmap.Config.ARGB_8888)
+        bitmap.compress(CompressFormat.PNG, 100, png)
+
+        when:
+        diskCache.put("a", new ByteArrayInputStream(png.toByteArray()))
+
+        then:
+        diskCache.getMetadata("a") == ImageMetadata.read(png.toByteArray(), png.size())
+    }
+
+    def "should reuse read buffer of the thread"() {
+        when:
+        def first = DiskCache.obtainReadBuffer(DiskCache.DIRECT_READ_MIN_SIZE)
+        def second = DiskCache.obtainReadBuffer(DiskCache.DIRECT_READ_MIN_SIZE - 1)
+
+        then:
+        first.is(second)
+    }
+
+    def "should not keep buffers of huge entries"() {
+        when:
+        def huge = DiskCache.obtainReadBuffer(DiskCache.MAX_READ_BUFFER_SIZE + 1)
+
+        then:
+        huge.length == DiskCache.MAX_READ_BUFFER_SIZE + 1
+        !DiskCache.obtainReadBuffer(10).is(huge)
+    }
+
+    def "should open in background and wait for it when used"() {
+        given:
+        def directory = File.createTempFile("async", "cache")
+        directory.delete()
+
+        when:
+        def asyncCache = new DiskCache.Builder(directory.path, 1024 * 1024).async(true).build()
+        asyncCache.put("a", [1] as byte[])
+
+        then:
+        asyncCache.isOpen()
+        asyncCache.getBytes("a") == [1] as byte[]
+
+        cleanup:
+        asyncCache.clearCache()
+    }
+
+    def "should stay empty when opening in background fails"() {
+        given: "a file where the directory should be"
+        def file = File.createTempFile("not", "directory")
+
+        when:
+        def asyncCache = new DiskCache.Builder(file.path, 1024 * 1024).async(true).build()
+
+        then:
+        !asyncCache.awaitOpen(1000)
+        asyncCache.getBytes("a") == null
+        asyncCache.getSize() == 0
+
+        cleanup:
+        file.delete()
+    }
+
+    def "should spread keys over shards"() {
+        given:
+        def directory = File.createTempFile("sharded", "cache")
+        directory.delete()
+        def sharded = new DiskCache.Builder(directory.path, 1024 * 1024).shards(4).build()
+        def keys = (0..<40).collect { "key" + it }
+
+        when:
+        keys.each { sharded.put(it, [1, 2] as byte[]) }
+
+        then:
+        keys.every { sharded.getBytes(it) == [1, 2] as byte[] }
+        sharded.getSize() == 80
+        (0..<4).every { new File(directory, ShardedStore.SHARD_PREFIX + it).isDirectory() }
+        (0..<4).collect { sharded.store.getShardMaxSize(it) }.sum() == 1024 * 1024
+
+        cleanup:
+        sharded.clearCache()
+    }
+
+    def "should give unused size to skewed shard"() {
+        given:
+        def directory = File.createTempFile("skewed", "cache")
+        directory.delete()
+        def sharded = new DiskCache.Builder(directory.path, 4000).shards(4).build()
+        def key = "a"
+        sharded.put(key, new byte[950])
+        def shard = (0..<4).find { new File(new File(directory, ShardedStore.SHARD_PREFIX + it), key + ".0").exists() }
+
+        when:
+        sharded.store.rebalance()
+
+        then:
+        sharded.store.getShardMaxSize(shard) > 1000
+        (0..<4).collect { sharded.store.getShardMaxSize(it) }.sum() <= 4000
+
+        cleanup:
+        sharded.clearCache()
+    }
+
+    def "should drop layout of another number of shards"() {
+        given:
+        def directory = File.createTempFile("layout", "cache")
+        directory.delete()
+        new DiskCache(directory.path, 1024 * 1024, CompressFormat.PNG, 100).put("a", [1] as byte[])
+
+        when:
+        def sharded = new DiskCache.Builder(directory.path, 1024 * 1024).shards(2).build()
+
+        then:
+        !new File(directory, "journal").exists()
+        sharded.getBytes("a") == null
+
+        cleanup:
+        sharded.clearCache()
+    }
+
+    def "should rule out keys never stored"() {
+        when:
+        diskCache.put("a", [1] as byte[])
+
+        then:
+        diskCache.mightContain("a")
+        !diskCache.mightContain("b")
+        diskCache.getBytes("b") == null
+        !diskCache.containsKey("b")
+    }
+
+    def "should rule out removed keys"() {
+        given:
+        diskCache.put("a", [1] as byte[])
+
+        when:
+        diskCache.remove("a")
+
+        then:
+        !diskCache.mightContain("a")
+    }
+
+    def "should know keys stored before reopening"() {
+        given:
+        def directory = File.createTempFile("filter", "cache")
+        directory.delete()
+        def first = new DiskCache(directory.path, 1024 * 1024, CompressFormat.PNG, 100)
+        first.put("a", [1] as byte[])
+        first.flush()
+
+        when:
+        def reopened = new DiskCache(directory.path, 1024 * 1024, CompressFormat.PNG, 100)
+
+        then:
+        reopened.mightContain("a")
+        !reopened.mightContain("b")
+        reopened.getBytes("a") == [1] as byte[]
+
+        cleanup:
+        reopened.clearCache()
+    }
+
+    def "should append small entries to pack files"() {
+        given:
+        def directory = File.createTempFile("packed", "cache")
+        directory.delete()
+        def packed = new DiskCache.Builder(directory.path, 1024 * 1024).packEntryMaxSize(1024).build()
+
+        when:
+        packed.put("small", new byte[100])
+        packed.put("big", new byte[2000])
+
+        then:
+        packed.getBytes("small").length == 100
+        packed.getBytes("big").length == 2000
+        !new File(directory, "small.0").exists()
+        new File(directory, "big.0").exists()
+        packed.getFile("small") == null
+
+        cleanup:
+        packed.clearCache()
+    }
+
+    def "should keep packed entries when reopened"() {
+        given:
+        def directory = File.createTempFile("packed", "cache")
+        directory.delete()
+        new DiskCache.Builder(directory.path, 1024 * 1024).packEntryMaxSize(1024).build().put("a", [1] as byte[])
+
+        when:
+        def reopened = new DiskCache.Builder(directory.path, 1024 * 1024).packEntryMaxSize(1024).build()
+
+        then:
+        reopened.mightContain("a")
+        reopened.getBytes("a") == [1] as byte[]
+        reopened.remove("a")
+        !reopened.containsKey("a")
+
+        cleanup:
+        reopened.clearCache()
+    }
+
+    def "should move entry between pack and its own file when it changes size"() {
+        given:
+        def directory = File.createTempFile("packed", "cache")
+        directory.delete()
+        def packed = new DiskCache.Builder(directory.path, 1024 * 1024).packEntryMaxSize(1024).build()
+        packed.put("a", new byte[2000])
+
+        when:
+        packed.put("a", new byte[10])
+
+        then:
+        packed.getBytes("a").length == 10
+        !new File(directory, "a.0").exists()
+
+        when:
+        packed.put("a", new byte[3000])
+
+        then:
+        packed.getBytes("a").length == 3000
+
+        cleanup:
+        packed.clearCache()
+    }
+
+    def "should keep metadata next to the entry"() {
+        given:
+        def metadata = new ImageMetadata(10, 20, "image/png", 90, true)
+
+        when:
+        diskCache.put("a", [1] as byte[], metadata)
+        diskCache.put("b", [2] as byte[])
+
+        then:
+        diskCache.getMetadata("a") == metadata
+        diskCache.getMetadata("b") == null
+        diskCache.getBytes("a") == [1] as byte[]
+    }
+
+    def "should keep freshness in metadata of the entry"() {
+        given:
+        def metadata = new ImageMetadata(10, 20, "image/png", 90, true)
+        def freshness = new Freshness("\"v1\"", null, 1000)
+        diskCache.put("a", [1] as byte[], metadata)
+        diskCache.put("b", [2] as byte[])
+
+        when:
+        def stored = diskCache.putFreshness("a", freshness) && diskCache.putFreshness("b", freshness)
+
+        then:
+        stored
+        diskCache.getFreshness("a") == freshness
+        diskCache.getFreshness("b") == freshness
+        diskCache.getMetadata("a") == metadata
+        diskCache.getMetadata("b") == null
+        diskCache.getBytes("a") == [1] as byte[]
+
+        when:
+        diskCache.putFreshness("a", null)
+
+        then:
+        diskCache.getFreshness("a") == null
+        diskCache.getMetadata("a") == metadata
+    }
+
+    def "should pass freshness of read entry to listener"() {
+        given:
+        def freshness = new Freshness("\"v1\"", null, 1000)
+        def listener = Mock(DiskCache.FreshnessListener)
+        diskCache.put("a", [1] as byte[])
+        diskCache.putFreshness("a", freshness)
+        diskCache.setFreshnessListener(listener)
+
+        when:
+        diskCache.getBytes("a")
+
+        then:
+        1 * listener.onFreshnessRead("a", freshness)
+    }
+
+    def "should drop freshness together with the entry"() {
+        given:
+        diskCache.put("a", [1] as byte[])
+        diskCache.putFreshness("a", new Freshness("\"v1\"", null, 1000))
+
+        when:
+        diskCache.remove("a")
+
+        then:
+        diskCache.getFreshness("a") == null
+        !diskCache.putFreshness("a", new Freshness("\"v1\"", null, 1000))
+        !diskCache.containsKey("a")
+    }
+
+    def "should keep freshness when entry is rewritten as raw pixels"() {
+        given:
+        def freshness = new Freshness("\"v1\"", null, 1000)
+        def bitmap = Mock(Bitmap)
+        bitmap.getWidth() >> 1
+        bitmap.getHeight() >> 1
+        bitmap.getRowBytes() >> 4
+        bitmap.getConfig() >> Bitmap.Config.ARGB_8888
+        diskCache.put("a", [1] as byte[])
+        diskCache.putFreshness("a", freshness)
+
+        when:
+        diskCache.putRaw("a", bitmap)
+
+        then:
+        diskCache.getFreshness("a") == freshness
+        diskCache.getMetadata("a").getMimeType() == DiskCache.RAW_MIME_TYPE
+    }
+
+    def "should keep no metadata in legacy cache"() {
+        given:
+        def directory = File.createTempFile("legacy", "cache")
+        directory.delete()
+        def legacy = new DiskCache.Builder(directory.path, 1024 * 1024).appVersion(DiskCache.LEGACY_APP_VERSION).build()
+
+        when:
+        legacy.put("a", [1] as byte[], new ImageMetadata(10, 20, "image/png", 0, true))
+
+        then:
+        legacy.getMetadata("a") == null
+        legacy.getBytes("a") == [1] as byte[]
+
+        cleanup:
+        legacy.clearCache()
+    }
+
+    def "should store pixels behind raw header"() {
+        given:
+        def bitmap = Mock(Bitmap)
+        bitmap.getWidth() >> 2
+        bitmap.getHeight() >> 3
+        bitmap.getRowBytes() >> 8
+        bitmap.getConfig() >> Bitmap.Config.ARGB_8888
+
+        when:
+        def stored = diskCache.putRaw("a", bitmap)
+        def data = diskCache.getBytes("a")
+
+        then:
+        stored
+        1 * bitmap.copyPixelsToBuffer(_)
+        data.length == RawPixels.HEADER_SIZE + 24
+        DiskCache.isRaw(data, data.length)
+        diskCache.getMetadata("a").getMimeType() == DiskCache.RAW_MIME_TYPE
+    }
+
+    def "should keep alpha of raw pixels in their header"() {
+        given:
+        def bitmap = Mock(Bitmap)
+        bitmap.getWidth() >> 1
+        bitmap.getHeight() >> 1
+        bitmap.getRowBytes() >> 4
+        bitmap.getConfig() >> Bitmap.Config.ARGB_8888
+        bitmap.hasAlpha() >> alpha
+
+        when:
+        diskCache.putRaw("a", bitmap)
+        def flags = diskCache.getBytes("a")[RawPixels.HEADER_SIZE - 1] & 0xff
+
+        then:
+        (flags & 0x0f) == 3
+        (flags & 0x80) != 0
+        ((flags & 0x40) != 0) == alpha
+
+        where:
+        alpha << [true, false]
+    }
+
+    def "should hand hot entries read from encoded bytes to raw pixel writer"() {
+        given:
+        def policy = Mock(RawPixelPolicy)
+        def writer = Mock(DiskCache.RawPixelWriter)
+        diskCache.setRawPixelPolicy(policy)
+        diskCache.setRawPixelWriter(writer)
+
+        when:
+        def bitmap = diskCache.decodeBitmap("a", [1, 2, 3] as byte[])
+
+        then:
+        bitmap
+        1 * policy.shouldStoreRaw("a", _) >> true
+        1 * writer.storeRaw("a", _)
+        !diskCache.containsKey("a")
+    }
+
+    def "should not store raw pixels of unknown config"() {
+        given:
+        def bitmap = Mock(Bitmap)
+        bitmap.getConfig() >> null
+
+        expect:
+        !diskCache.putRaw("a", bitmap)
+        !diskCache.containsKey("a")
+    }
+
+    def "should tell raw entries from images"() {
+        expect:
+        DiskCache.isRaw(data as byte[], data.size()) == raw
+
+        where:
+        data                                                        | raw
+        [0x52, 0x41, 0x57, 0x50, 0, 0, 0, 1, 0, 0, 0, 1, 3]         | true
+        [0x52, 0x41, 0x57, 0x50]                                    | false
+        [0x47, 0x49, 0x46, 0x38, 0x39, 0x61, 1, 0, 1, 0, 0, 0, 0]   | false
+    }
+
+    def "should compress bitmap as the policy chose"() {
+        given:
+        def bitmap = Mock(Bitmap)
+        bitmap.getWidth() >> 4
+        bitmap.getHeight() >> 4
+        def policy = Mock(CompressionPolicy)
+        policy.choose(bitmap, "image/jpeg") >> new Compression(CompressFormat.JPEG, 80)
+        diskCache.setCompressionPolicy(policy)
+
+        when:
+        diskCache.put("a", bitmap, "image/jpeg")
+
+        then:
+        1 * bitmap.compress(CompressFormat.JPEG, 80, _) >> true
+        diskCache.getMetadata("a").getMimeType() == "image/jpeg"
+    }
+
+    def "should compress with cache format without policy"() {
+        expect:
+        diskCache.chooseCompression(Mock(Bitmap), "image/jpeg") == new Compression(CompressFormat.PNG, 100)
+    }
+
+    def "should evict entries when size shrinks"() {
+        given:
+        diskCache.put("a", new byte[600])
+        diskCache.put("b", new byte[600])
+
+        when:
+        diskCache.setMaxSize(1000)
+        diskCache.flush()
+
+        then:
+        diskCache.getMaxSize() == 1000
+        diskCache.getSize() <= 1000
+        diskCache.getBytes("b") != null
+    }
+
+    def "should size cache by budget"() {
+        given:
+        diskCache.setBudget(new DiskBudget(1000, 2000), 60000, Mock(Executor))
+
+        when:
+        diskCache.evaluateBudget()
+
+        then:
+        diskCache.getMaxSize() == 2000
+    }
+
+    def "should judge budget by counted lookups only"() {
+        given:
+        def budget = Mock(DiskBudget)
+        diskCache.setBudget(budget, 60000, Mock(Executor))
+        diskCache.put("a", [1] as byte[])
+        diskCache.getBytes("a")
+        diskCache.getFile("b")
+
+        when:
+        diskCache.countLookup(true)
+        diskCache.countLookup(false)
+        diskCache.countLookup(false)
+        diskCache.evaluateBudget()
+
+        then:
+        1 * budget.evaluate(_, _, _, 1, 2) >> 1024 * 1024
+    }
+
+    def "should not submit budget evaluation while one is pending"() {
+        given:
+        def executor = Mock(Executor)
+
+        when:
+        diskCache.setBudget(new DiskBudget(1000, 2000), 0, executor)
+        diskCache.put("a", [1] as byte[])
+        diskCache.put("b", [2] as byte[])
+
+        then:
+        1 * executor.execute(_)
+    }
+}
@@ -0,0 +1,133 @@
+package pl.polidea.thridparty
+
+import java.util.concurrent.Executor
+import pl.polidea.robospock.RoboSpecification
+
+class PackStoreSpecification extends RoboSpecification {
+
+    File directory
+
+    PackStore store
+
+    def "setup"() {
+        directory = File.createTempFile("pack", "store")
+        directory.delete()
+        store = PackStore.open(directory, 100000, 1000)
+    }
+
+    def "cleanup"() {
+        store.delete()
+    }
+
+    def "should read stored and replaced entries"() {
+        when:
+        store.put("a", [1, 2, 3] as byte[])
+        store.put("b", [4] as byte[])
+        store.put("a", [5] as byte[])
+
+        then:
+        store.get("a") == [5] as byte[]
+        store.get("b") == [4] as byte[]
+        store.get("c") == null
+    }
+
+    def "should start new segment when the active one is full"() {
+        when:
+        10.times { store.put("k" + it, new byte[300]) }
+
+        then:
+        store.segmentCount() > 1
+        (0..<10).every { store.get("k" + it).length == 300 }
+    }
+
+    def "should read entries again when reopened"() {
+        given:
+        store.put("a", [1] as byte[])
+        store.put("b", [2] as byte[])
+        store.remove("b")
+
+        when:
+        def reopened = PackStore.open(directory, 100000, 1000)
+
+        then:
+        reopened.get("a") == [1] as byte[]
+        reopened.get("b") == null
+        reopened.keys() == ["a"]
+        reopened.liveSize() == store.liveSize()
+    }
+
+    def "should drop record cut short when reopened"() {
+        given:
+        store.put("a", [1] as byte[])
+        def segment = new File(directory, PackStore.SEGMENT_PREFIX + 0)
+        new FileOutputStream(segment, true).withStream {
+            // header of 50 bytes of data which never got written
+            it.write([0, 0, 0, 50, 0, 0, 0, 0, 1, 98] as byte[])
+        }
+
+        when:
+        def reopened = PackStore.open(directory, 100000, 1000)
+
+        then:
+        reopened.keys() == ["a"]
+        segment.length() == reopened.size()
+    }
+
+    def "should evict least recently used entries"() {
+        given:
+        def small = PackStore.open(new File(directory, "small"), 1000, 10000)
+
+        when:
+        10.times { small.put("k" + it, new byte[200]) }
+
+        then:
+        small.liveSize() <= 1000
+        small.get("k0") == null
+        small.get("k9") != null
+        PackStore.open(new File(directory, "small"), 1000, 10000).keys() == small.keys()
+
+        cleanup:
+        small.delete()
+    }
+
+    def "should compact segments full of dead records"() {
+        given:
+        store.put("kept", [7] as byte[])
+        10.times { store.put("k" + it, new byte[300]) }
+        10.times { store.remove("k" + it) }
+
+        when:
+        store.compact()
+
+        then:
+        store.compactionCount() > 0
+        store.size() < 3000
+        store.get("kept") == [7] as byte[]
+        PackStore.open(directory, 100000, 1000).keys() == ["kept"]
+    }
+
+    def "should compact on the executor once at a time"() {
+        given:
+        def executor = Mock(Executor)
+        def queued = PackStore.open(new File(directory, "queued"), 100000, 1000, executor)
+        Runnable compaction = null
+        queued.put("kept", [7] as byte[])
+        10.times { queued.put("k" + it, new byte[300]) }
+
+        when:
+        10.times { queued.remove("k" + it) }
+
+        then:
+        1 * executor.execute(_) >> { Runnable task -> compaction = task }
+
+        when:
+        compaction.run()
+
+        then:
+        queued.compactionCount() > 0
+        queued.get("kept") == [7] as byte[]
+
+        cleanup:
+        queued.delete()
+    }
+}
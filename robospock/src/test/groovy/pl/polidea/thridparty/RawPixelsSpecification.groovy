@@ -0,0 +1,30 @@
+package pl.polidea.thridparty
+
+import pl.polidea.robospock.RoboSpecification
+
+class RawPixelsSpecification extends RoboSpecification {
+
+    def "should peek raw magic without consuming the stream"() {
+        given:
+        def stream = new BufferedInputStream(new ByteArrayInputStream(data as byte[]))
+
+        expect:
+        RawPixels.peek(stream) == raw
+        stream.read() == data[0]
+
+        where:
+        data                           | raw
+        [0x52, 0x41, 0x57, 0x50, 0, 1] | true
+        [0x89, 0x50, 0x4e, 0x47, 0, 1] | false
+        [0x52, 0x41]                   | false
+    }
+
+    def "should not restore broken raw pixels"() {
+        expect:
+        RawPixels.restore(data as byte[], data.size(), null) == null
+
+        where:
+        data << [[0x52, 0x41, 0x57, 0x50, 0, 0, 0, 0, 0, 0, 0, 1, 3],
+                 [0x52, 0x41, 0x57, 0x50, 0, 0, 0, 1, 0, 0, 0, 1, 9]]
+    }
+}
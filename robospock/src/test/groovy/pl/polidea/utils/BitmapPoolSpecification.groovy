@@ -0,0 +1,65 @@
+package pl.polidea.utils
+
+import android.graphics.Bitmap
+import pl.polidea.robospock.RoboSpecification
+
+class BitmapPoolSpecification extends RoboSpecification {
+
+    def "should throw an exception when size is not positive"() {
+        when:
+        new BitmapPool(0)
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    def "should not accept immutable bitmap"() {
+        given:
+        def pool = new BitmapPool(1000)
+        def bitmap = mock(10, 10)
+        bitmap.isMutable() >> false
+
+        when:
+        def accepted = pool.put(bitmap)
+
+        then:
+        !accepted
+        pool.size() == 0
+    }
+
+    def "should not accept recycled bitmap"() {
+        given:
+        def pool = new BitmapPool(1000)
+        def bitmap = mock(10, 10)
+        bitmap.isMutable() >> true
+        bitmap.isRecycled() >> true
+
+        when:
+        def accepted = pool.put(bitmap)
+
+        then:
+        !accepted
+    }
+
+    def "should count a miss when there is no bitmap of given size"() {
+        given:
+        def pool = new BitmapPool(1000)
+
+        when:
+        def bitmap = pool.get(10, 10, Bitmap.Config.ARGB_8888)
+
+        then:
+        bitmap == null
+        pool.missCount() == 1
+        pool.hitCount() == 0
+    }
+
+    Bitmap mock(int rowBytes, int height) {
+        def mock = Mock(Bitmap)
+        mock.getRowBytes() >> rowBytes
+        mock.getHeight() >> height
+        mock.getWidth() >> rowBytes
+        mock.getConfig() >> Bitmap.Config.ARGB_8888
+        return mock
+    }
+}
@@ -0,0 +1,97 @@
+package pl.polidea.utils
+
+import pl.polidea.robospock.RoboSpecification
+
+class CacheKeySpecification extends RoboSpecification {
+
+    def "should give equal keys to equal texts"() {
+        expect:
+        CacheKey.of("http://example.com/a.png") == CacheKey.of("http://example.com/a.png")
+        CacheKey.of("http://example.com/a.png").hashCode() == CacheKey.of("http://example.com/a.png").hashCode()
+        CacheKey.of("http://example.com/a.png") != CacheKey.of("http://example.com/b.png")
+    }
+
+    def "should tell apart texts differing only in non latin characters"() {
+        expect:
+        CacheKey.of("http://example.com/ą.png") != CacheKey.of("http://example.com/ć.png")
+    }
+
+    def "should render 32 hex digits as name"() {
+        expect:
+        new CacheKey(0x0123456789abcdefL, -1L).name() == "0123456789abcdefffffffffffffffff"
+        CacheKey.of(text).name() ==~ /[0-9a-f]{32}/
+
+        where:
+        text << ["", "a", "abcdefgh", "abcdefghijklmnopq"]
+    }
+
+    def "should derive different keys for different salts"() {
+        given:
+        def key = CacheKey.of("a")
+
+        expect:
+        key.derive(1) != key.derive(2)
+        key.derive(1) == key.derive(1)
+        key.derive(1) != key
+    }
+
+    def "map should find values by key bits"() {
+        given:
+        def map = new CacheKeyLinkedMap<String>()
+        map.put(CacheKey.of("a"), "A")
+
+        expect:
+        map.get(CacheKey.of("a")) == "A"
+        map.get(CacheKey.of("a").high, CacheKey.of("a").low) == "A"
+        map.get(CacheKey.of("b")) == null
+        map.get("a") == null
+    }
+
+    def "map should keep access order"() {
+        given:
+        def map = new CacheKeyLinkedMap<Integer>(true)
+        def keys = (0..<3).collect { CacheKey.of("k" + it) }
+        keys.eachWithIndex { key, i -> map.put(key, i) }
+
+        when:
+        map.get(keys[0])
+
+        then:
+        map.keySet() as List == [keys[1], keys[2], keys[0]]
+    }
+
+    def "map should grow and survive removals"() {
+        given:
+        def map = new CacheKeyLinkedMap<Integer>()
+        def keys = (0..<1000).collect { CacheKey.of("k" + it) }
+
+        when:
+        keys.eachWithIndex { key, i -> map.put(key, i) }
+        keys.eachWithIndex { key, i -> if (i % 2 == 0) map.remove(key) }
+        keys.eachWithIndex { key, i -> if (i % 2 == 0) map.put(key, -i) }
+
+        then:
+        map.size() == 1000
+        keys.every { map.containsKey(it) }
+        map.get(keys[2]) == -2
+        map.get(keys[3]) == 3
+        (map.keySet() as List).take(2) == [keys[1], keys[3]]
+    }
+
+    def "map iterator should remove entries"() {
+        given:
+        def map = new CacheKeyLinkedMap<Integer>()
+        (0..<10).each { map.put(CacheKey.of("k" + it), it) }
+
+        when:
+        def iterator = map.entrySet().iterator()
+        while (iterator.hasNext()) {
+            if (iterator.next().value % 3 != 0) {
+                iterator.remove()
+            }
+        }
+
+        then:
+        map.values() as List == [0, 3, 6, 9]
+    }
+}
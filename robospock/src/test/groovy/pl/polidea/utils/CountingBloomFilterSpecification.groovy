@@ -0,0 +1,84 @@
+package pl.polidea.utils
+
+import pl.polidea.robospock.RoboSpecification
+
+class CountingBloomFilterSpecification extends RoboSpecification {
+
+    def "should contain every added key"() {
+        given:
+        def filter = new CountingBloomFilter(1000)
+
+        when:
+        (0..<1000).each { filter.add("key" + it) }
+
+        then:
+        (0..<1000).every { filter.mightContain("key" + it) }
+    }
+
+    def "should rule out most keys never added"() {
+        given:
+        def filter = new CountingBloomFilter(1000)
+        (0..<1000).each { filter.add("key" + it) }
+
+        when:
+        def positives = (0..<10000).count { filter.mightContain("other" + it) }
+
+        then:
+        positives < 300
+    }
+
+    def "should find key by its bits when its name was added"() {
+        given:
+        def filter = new CountingBloomFilter(1000)
+        def keys = (0..<1000).collect { CacheKey.of("key" + it) }
+        keys.each { filter.add(it.name()) }
+
+        expect:
+        keys.every { filter.mightContain(it) }
+        (0..<10000).count { filter.mightContain(CacheKey.of("other" + it)) } < 300
+    }
+
+    def "should forget removed key but keep others"() {
+        given:
+        def filter = new CountingBloomFilter(100)
+        filter.add("a")
+        filter.add("b")
+
+        when:
+        filter.remove("a")
+
+        then:
+        !filter.mightContain("a")
+        filter.mightContain("b")
+    }
+
+    def "should keep key added twice until removed twice"() {
+        given:
+        def filter = new CountingBloomFilter(100)
+        2.times { filter.add("a") }
+
+        when:
+        filter.remove("a")
+
+        then:
+        filter.mightContain("a")
+
+        when:
+        filter.remove("a")
+
+        then:
+        !filter.mightContain("a")
+    }
+
+    def "should forget everything when cleared"() {
+        given:
+        def filter = new CountingBloomFilter(100)
+        filter.add("a")
+
+        when:
+        filter.clear()
+
+        then:
+        !filter.mightContain("a")
+    }
+}
@@ -0,0 +1,149 @@
+package pl.polidea.utils
+
+import pl.polidea.robospock.RoboSpecification
+
+class FreshnessSpecification extends RoboSpecification {
+
+    def "should read written freshness"() {
+        given:
+        def freshness = new Freshness("\"v1\"", "Wed, 21 Oct 2015 07:28:00 GMT", 123456789L)
+
+        expect:
+        Freshness.fromBytes(freshness.toBytes()) == freshness
+    }
+
+    def "should not read unknown freshness"() {
+        expect:
+        Freshness.fromBytes(data as byte[]) == null
+
+        where:
+        data << [null, [], [9, 0, 0], [1, 0]]
+    }
+
+    def "should parse max-age"() {
+        expect:
+        Freshness.parseMaxAge(cacheControl) == maxAge
+
+        where:
+        cacheControl                 | maxAge
+        null                         | -1
+        ""                           | -1
+        "public"                     | -1
+        "max-age=60"                 | 60
+        "public, MAX-AGE=3600"       | 3600
+        "max-age=\"30\""             | 30
+        "max-age=-5"                 | 0
+        "max-age=abc"                | 0
+        "max-age=60, no-cache"       | 0
+        "no-store"                   | 0
+    }
+
+    def "should be fresh for max-age"() {
+        when:
+        def freshness = Freshness.fromHeaders("\"v1\"", null, -1, "max-age=60", 1000)
+
+        then:
+        freshness.isFresh(60999)
+        !freshness.isFresh(61000)
+    }
+
+    def "should be fresh for a tenth of time since last modification"() {
+        when:
+        def freshness = Freshness.fromHeaders(null, "date", 0, null, 100000)
+
+        then:
+        freshness.getExpiresAt() == 110000
+    }
+
+    def "should limit heuristic freshness"() {
+        when:
+        def freshness = Freshness.fromHeaders(null, "date", 0, null, 100 * Freshness.MAX_HEURISTIC_LIFETIME)
+
+        then:
+        freshness.getExpiresAt() == 101 * Freshness.MAX_HEURISTIC_LIFETIME
+    }
+
+    def "should be fresh for minimal lifetime with validators but no lifetime"() {
+        when:
+        def freshness = Freshness.fromHeaders("\"v1\"", null, -1, cacheControl, 1000)
+
+        then:
+        freshness.hasValidators()
+        freshness.getExpiresAt() == 1000 + Freshness.MIN_VALIDATED_LIFETIME
+
+        where:
+        cacheControl << [null, "no-cache", "max-age=0"]
+    }
+
+    def "should be stale at once with no-cache and no validators"() {
+        when:
+        def freshness = Freshness.fromHeaders(null, null, -1, "no-cache", 1000)
+
+        then:
+        !freshness.isFresh(1000)
+    }
+
+    def "should not expire without validators and max-age"() {
+        expect:
+        Freshness.fromHeaders(null, "", -1, "public", 1000) == null
+    }
+
+    def "should keep validators not sent with not modified answer"() {
+        given:
+        def cached = new Freshness("\"v1\"", "date", 1000)
+
+        when:
+        def refreshed = cached.refresh(new Freshness(null, null, 500000), 2000)
+
+        then:
+        refreshed == new Freshness("\"v1\"", "date", 500000)
+    }
+
+    def "should take validators sent with not modified answer"() {
+        given:
+        def cached = new Freshness("\"v1\"", "date", 1000)
+
+        when:
+        def refreshed = cached.refresh(new Freshness("\"v2\"", null, 500000), 2000)
+
+        then:
+        refreshed == new Freshness("\"v2\"", "date", 500000)
+    }
+
+    def "should be fresh for minimal lifetime after not modified answer without headers"() {
+        given:
+        def cached = new Freshness("\"v1\"", null, 1000)
+
+        when:
+        def refreshed = cached.refresh(null, 2000)
+
+        then:
+        refreshed.getEtag() == "\"v1\""
+        refreshed.isFresh(2000)
+        refreshed.getExpiresAt() == 2000 + Freshness.MIN_VALIDATED_LIFETIME
+    }
+
+    def "should be fresh for minimal lifetime after not modified answer with only etag"() {
+        given:
+        def cached = new Freshness("\"v1\"", null, 1000)
+        def notModified = Freshness.fromHeaders("\"v1\"", null, -1, null, 2000)
+
+        when:
+        def refreshed = cached.refresh(notModified, 2000)
+
+        then:
+        refreshed.getEtag() == "\"v1\""
+        refreshed.getExpiresAt() == 2000 + Freshness.MIN_VALIDATED_LIFETIME
+    }
+
+    def "should be fresh for minimal lifetime after not modified answer with zero lifetime"() {
+        given:
+        def cached = new Freshness("\"v1\"", null, 1000)
+
+        when:
+        def refreshed = cached.refresh(new Freshness(null, null, 2000), 2000)
+
+        then:
+        refreshed.getExpiresAt() == 2000 + Freshness.MIN_VALIDATED_LIFETIME
+    }
+}
@@ -0,0 +1,85 @@
+package pl.polidea.utils
+
+import android.graphics.Bitmap
+import android.graphics.Bitmap.CompressFormat
+import android.graphics.BitmapFactory.Options
+import pl.polidea.robospock.RoboSpecification
+
+class ImageMetadataSpecification extends RoboSpecification {
+
+    def "should read written metadata"() {
+        given:
+        def metadata = new ImageMetadata(640, 480, "image/jpeg", 270, false)
+
+        expect:
+        ImageMetadata.fromBytes(metadata.toBytes()) == metadata
+    }
+
+    def "should not read unknown metadata"() {
+        expect:
+        ImageMetadata.fromBytes(data as byte[]) == null
+
+        where:
+        data << [null, [], [9, 0, 0, 0, 1], [1, 0]]
+    }
+
+    def "should describe compressed bitmap"() {
+        given:
+        def bitmap = Mock(Bitmap)
+        bitmap.getWidth() >> 10
+        bitmap.getHeight() >> 20
+        bitmap.hasAlpha() >> true
+
+        when:
+        def metadata = ImageMetadata.of(bitmap, format)
+
+        then:
+        metadata.getWidth() == 10
+        metadata.getHeight() == 20
+        metadata.getMimeType() == mimeType
+        metadata.hasAlpha() == alpha
+
+        where:
+        format              | mimeType     | alpha
+        CompressFormat.PNG  | "image/png"  | true
+        CompressFormat.JPEG | "image/jpeg" | false
+    }
+
+    def "should fill decoded bounds"() {
+        given:
+        def options = new Options()
+
+        when:
+        new ImageMetadata(640, 480, "image/png", 0, true).applyTo(options)
+
+        then:
+        options.outWidth == 640
+        options.outHeight == 480
+        options.outMimeType == "image/png"
+    }
+
+    def "should read EXIF orientation from beginning of JPEG"() {
+        given:
+        def tiff = littleEndian ? [0x49, 0x49, 42, 0, 8, 0, 0, 0, 1, 0, 0x12, 0x01, 3, 0, 1, 0, 0, 0, tag, 0, 0, 0]
+                : [0x4d, 0x4d, 0, 42, 0, 0, 0, 8, 0, 1, 0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, tag, 0, 0]
+        def data = ([0xff, 0xd8, 0xff, 0xe1, 0, 8 + tiff.size()] + "Exif".bytes.toList() + [0, 0] + tiff
+                + [0xff, 0xda, 0, 2]) as byte[]
+
+        expect:
+        ImageMetadata.readOrientation(data, data.length) == degrees
+
+        where:
+        littleEndian | tag | degrees
+        true         | 6   | 90
+        false        | 6   | 90
+        false        | 3   | 180
+        true         | 8   | 270
+        true         | 1   | 0
+    }
+
+    def "should not read orientation beyond given data"() {
+        expect:
+        ImageMetadata.readOrientation([0xff, 0xd8, 0xff, 0xe1, 0, 30, 0x45, 0x78] as byte[], 8) == 0
+        ImageMetadata.readOrientation([1, 2, 3, 4] as byte[], 4) == 0
+    }
+}
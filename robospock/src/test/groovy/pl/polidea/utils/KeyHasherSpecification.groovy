@@ -0,0 +1,54 @@
+package pl.polidea.utils
+
+import pl.polidea.robospock.RoboSpecification
+
+class KeyHasherSpecification extends RoboSpecification {
+
+    def "legacy hasher should keep names of sha1 keys"() {
+        expect:
+        new LegacySha1KeyHasher().hash("a").name() == "86f7e437faa5a7fce15d1ddcb9eaeaea377667b8"
+        Utils.sha1("a") == "86f7e437faa5a7fce15d1ddcb9eaeaea377667b8"
+    }
+
+    def "digest hasher should reuse digest between calls"() {
+        given:
+        def hasher = new DigestKeyHasher("SHA-1")
+
+        expect:
+        hasher.hash("a") == hasher.hash("a")
+        hasher.hash("a").name() == "86f7e437faa5a7fce15d1ddcb9eaeaea377667b8"
+        hasher.hash("b") != hasher.hash("a")
+    }
+
+    def "digest hasher should encode non latin urls in UTF-8"() {
+        given:
+        def hasher = new DigestKeyHasher("SHA-1")
+
+        expect:
+        hasher.hash("http://example.com/ą.png") != hasher.hash("http://example.com/ć.png")
+        new LegacySha1KeyHasher().hash("http://example.com/ą.png") == new LegacySha1KeyHasher().hash("http://example.com/ć.png")
+    }
+
+    def "should reject unknown or too short digests"() {
+        when:
+        new DigestKeyHasher(algorithm)
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        algorithm << ["NO-SUCH-DIGEST"]
+    }
+
+    def "default hasher should be murmur3"() {
+        expect:
+        new Murmur3KeyHasher().hash("hello").name() == "ee2ee18fe1bfd3877b927262d8c336c4"
+        CacheKey.of("hello") == new Murmur3KeyHasher().hash("hello")
+        new Murmur3KeyHasher().hash("ą") != new Murmur3KeyHasher().hash("ć")
+    }
+
+    def "should encode bytes in hex"() {
+        expect:
+        Hex.encode([0, 1, 15, 16, 127, -128, -1] as byte[]) == "00010f107f80ff"
+    }
+}
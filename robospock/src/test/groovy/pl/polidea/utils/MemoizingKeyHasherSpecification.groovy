@@ -0,0 +1,67 @@
+package pl.polidea.utils
+
+import pl.polidea.robospock.RoboSpecification
+
+class MemoizingKeyHasherSpecification extends RoboSpecification {
+
+    def "should hash repeated url only once"() {
+        given:
+        def hasher = Mock(KeyHasher)
+        def memo = new MemoizingKeyHasher(hasher, 16)
+
+        when:
+        def first = memo.hash("http://example.com/a.png")
+        def second = memo.hash(new String("http://example.com/a.png"))
+
+        then:
+        1 * hasher.hash("http://example.com/a.png") >> CacheKey.of("a")
+        first.is(second)
+        memo.hitCount() == 1
+        memo.missCount() == 1
+    }
+
+    def "should stay bounded and give right keys after collisions"() {
+        given:
+        def memo = new MemoizingKeyHasher(new Murmur3KeyHasher(), 4)
+
+        when:
+        def keys = (0..<100).collect { memo.hash("url" + it) }
+
+        then:
+        memo.maxSize() == 4
+        (0..<100).every { memo.hash("url" + it) == keys[it] }
+        memo.missCount() >= 100
+    }
+
+    def "should round size up to power of two"() {
+        expect:
+        new MemoizingKeyHasher(new Murmur3KeyHasher(), 100).maxSize() == 128
+    }
+
+    def "should forget urls when cleared"() {
+        given:
+        def memo = new MemoizingKeyHasher(new Murmur3KeyHasher(), 16)
+        memo.hash("a")
+
+        when:
+        memo.clear()
+        memo.hash("a")
+
+        then:
+        memo.hitCount() == 0
+        memo.missCount() == 2
+    }
+
+    def "should reject wrong arguments"() {
+        when:
+        new MemoizingKeyHasher(hasher, size)
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        hasher                 | size
+        null                   | 16
+        new Murmur3KeyHasher() | 0
+    }
+}
@@ -5,6 +5,7 @@ import pl.polidea.imagecache.shadows.MyShadowBitmap
 import pl.polidea.imagecache.shadows.MyShadowBitmapFactory
 import pl.polidea.robospock.RoboSpecification
 import pl.polidea.robospock.UseShadows
+import pl.polidea.utils.ImageMetadata
 
 
 @UseShadows([MyShadowBitmap, MyShadowBitmapFactory])
@@ -132,4 +133,22 @@ class BitmapsSpecification extends RoboSpecification {
         then:
         thrown(BitmapDecodeException)
     }
+
+    def "should plan decoding from stored metadata"() {
+        given:
+        def bitmaps = new Bitmaps(name, null, new ImageMetadata(1000, 800, "image/jpeg", 0, false))
+
+        when:
+        def bitmap = bitmaps.generateScaledWidthBitmap(320)
+
+        then:
+        bitmaps.getOptions().outWidth == 1000
+        bitmap.getWidth() == 320
+        bitmap.getHeight() == 256
+    }
+
+    def "should take orientation from stored metadata"() {
+        expect:
+        new Bitmaps(name, null, new ImageMetadata(10, 10, "image/jpeg", 90, false)).getOrientation() == 90
+    }
 }
@@ -0,0 +1,77 @@
+package pl.polidea.webimageview
+
+import android.graphics.Bitmap
+import android.widget.ImageView
+import com.xtremelabs.robolectric.Robolectric
+import pl.polidea.imagecache.ImageCache
+import pl.polidea.robospock.RoboSpecification
+
+class ImageViewUpdaterSpecification extends RoboSpecification {
+
+    ImageView imageView
+    ImageCache imageCache
+    Bitmap bitmap
+    WebImageListener listener
+    ImageViewUpdater updater
+
+    def setup() {
+        imageView = Mock(ImageView)
+        imageCache = Mock(ImageCache)
+        bitmap = Mock(Bitmap)
+        listener = Mock(WebImageListener)
+        updater = new ImageViewUpdater(imageView, imageCache)
+        updater.setCurrentURL("a")
+    }
+
+    def "should keep bitmap pinned while attached view shows it"() {
+        given:
+        updater.setAttachedToWindow(true)
+
+        when:
+        updater.setBitmap("a", bitmap, listener)
+
+        then:
+        1 * imageCache.acquire(bitmap)
+        1 * imageView.setImageBitmap(bitmap)
+        0 * imageCache.release(bitmap)
+    }
+
+    def "should release bitmap arriving after view was detached"() {
+        given:
+        updater.setAttachedToWindow(true)
+        Robolectric.pauseMainLooper()
+        updater.setBitmap("a", bitmap, listener)
+        updater.setAttachedToWindow(false)
+        updater.releaseDisplayedBitmap()
+
+        when:
+        Robolectric.unPauseMainLooper()
+
+        then:
+        1 * imageView.setImageBitmap(bitmap)
+        1 * imageCache.release(bitmap)
+
+        when:
+        updater.setAttachedToWindow(true)
+        def reacquired = updater.reacquireDisplayedBitmap("a")
+
+        then:
+        1 * imageCache.acquireIfCached("a", bitmap) >> true
+        reacquired
+    }
+
+    def "should release bitmap arriving after url changed"() {
+        given:
+        updater.setAttachedToWindow(true)
+        Robolectric.pauseMainLooper()
+        updater.setBitmap("a", bitmap, listener)
+        updater.setCurrentURL("b")
+
+        when:
+        Robolectric.unPauseMainLooper()
+
+        then:
+        0 * imageView.setImageBitmap(_)
+        1 * imageCache.release(bitmap)
+    }
+}
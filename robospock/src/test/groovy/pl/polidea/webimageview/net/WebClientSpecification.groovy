@@ -3,6 +3,7 @@ package pl.polidea.webimageview.net
 import com.xtremelabs.robolectric.Robolectric
 import java.util.concurrent.ExecutorService
 import pl.polidea.robospock.RoboSpecification
+import pl.polidea.utils.Freshness
 
 class WebClientSpecification extends RoboSpecification {
 
@@ -133,4 +134,209 @@ class WebClientSpecification extends RoboSpecification {
         1 * webCallbackMock.onWebMiss("a")
     }
 
+    def "should let streaming callback store downloaded image"() {
+        given:
+        def webClient = new WebClient(Robolectric.application)
+        def stream = new ByteArrayInputStream(new byte[1])
+        def file = new File("stored")
+        and: "setup streaming callback"
+        def webCallbackMock = Mock(StreamingWebCallback)
+        and: "setup mock web interface"
+        def webInterfaceMock = Mock(WebInterface)
+        webClient.webInterface = webInterfaceMock
+        webInterfaceMock.execute("a") >> stream
+        and: "create download task"
+        def task = webClient.buildTask("a", webCallbackMock)
+
+        when:
+        task.run()
+
+        then:
+        1 * webCallbackMock.onWebStream("a", stream) >> file
+        1 * webCallbackMock.onWebHit("a", file)
+    }
+
+    def "should pass freshness of downloaded image"() {
+        given:
+        def webClient = new WebClient(Robolectric.application)
+        def freshness = new Freshness("\"v1\"", null, 1000)
+        and: "setup revalidating callback"
+        def webCallbackMock = Mock(RevalidatingWebCallback)
+        and: "setup conditional web interface"
+        def webInterfaceMock = Mock(ConditionalWebInterface)
+        webClient.webInterface = webInterfaceMock
+        webInterfaceMock.execute("a", null) >> WebResponse.ok(new ByteArrayInputStream(new byte[1]), freshness)
+        and: "create download task"
+        def task = webClient.buildTask("a", webCallbackMock)
+
+        when:
+        task.run()
+
+        then:
+        1 * webCallbackMock.onWebHit("a", _)
+
+        then:
+        1 * webCallbackMock.onFreshness("a", freshness)
+    }
+
+    def "should not revalidate fresh image"() {
+        given:
+        def webClient = new WebClient(Robolectric.application)
+        runTasksImmediately(webClient)
+        def webInterfaceMock = Mock(ConditionalWebInterface)
+        webClient.webInterface = webInterfaceMock
+        def webCallbackMock = Mock(RevalidatingWebCallback)
+        webCallbackMock.getFreshness("a") >> new Freshness("\"v1\"", null, System.currentTimeMillis() + 60000)
+
+        when:
+        webClient.revalidate("a", webCallbackMock)
+
+        then:
+        0 * webInterfaceMock.execute(*_)
+        0 * webCallbackMock.onFreshness(*_)
+    }
+
+    def "should refresh stale image which wasn't modified"() {
+        given:
+        def webClient = new WebClient(Robolectric.application)
+        runTasksImmediately(webClient)
+        def stale = new Freshness("\"v1\"", null, 1000)
+        def webInterfaceMock = Mock(ConditionalWebInterface)
+        webClient.webInterface = webInterfaceMock
+        def webCallbackMock = Mock(RevalidatingWebCallback)
+        webCallbackMock.getFreshness("a") >> stale
+
+        when:
+        webClient.revalidate("a", webCallbackMock)
+
+        then:
+        1 * webInterfaceMock.execute("a", stale) >> WebResponse.notModified(null)
+        1 * webCallbackMock.onFreshness("a", { it.etag == "\"v1\"" })
+        0 * webCallbackMock.onWebHit(*_)
+    }
+
+    def "should download stale image which was modified"() {
+        given:
+        def webClient = new WebClient(Robolectric.application)
+        runTasksImmediately(webClient)
+        def stale = new Freshness("\"v1\"", null, 1000)
+        def changed = new Freshness("\"v2\"", null, System.currentTimeMillis() + 60000)
+        def webInterfaceMock = Mock(ConditionalWebInterface)
+        webClient.webInterface = webInterfaceMock
+        def webCallbackMock = Mock(RevalidatingWebCallback)
+        webCallbackMock.getFreshness("a") >> stale
+        webInterfaceMock.execute("a", stale) >> WebResponse.ok(new ByteArrayInputStream(new byte[1]), changed)
+
+        when:
+        webClient.revalidate("a", webCallbackMock)
+
+        then:
+        1 * webCallbackMock.onWebHit("a", _)
+        1 * webCallbackMock.onFreshness("a", changed)
+    }
+
+    def "should keep stale image when revalidation fails"() {
+        given:
+        def webClient = new WebClient(Robolectric.application)
+        runTasksImmediately(webClient)
+        def webInterfaceMock = Mock(ConditionalWebInterface)
+        webClient.webInterface = webInterfaceMock
+        webInterfaceMock.execute(*_) >> { throw new IOException("error") }
+        def webCallbackMock = Mock(RevalidatingWebCallback)
+        webCallbackMock.getFreshness("a") >> new Freshness("\"v1\"", null, 1000)
+
+        when:
+        webClient.revalidate("a", webCallbackMock)
+
+        then:
+        0 * webCallbackMock.onWebMiss(_)
+        0 * webCallbackMock.onFreshness(*_)
+    }
+
+    def "should not revalidate image which is being revalidated"() {
+        given:
+        def webClient = new WebClient(Robolectric.application)
+        def executorMock = Mock(ExecutorService)
+        webClient.taskExecutor = executorMock
+        webClient.webInterface = Mock(ConditionalWebInterface)
+        def webCallbackMock = Mock(RevalidatingWebCallback)
+
+        when:
+        3.times { webClient.revalidate("a", webCallbackMock) }
+        webClient.revalidate("b", webCallbackMock)
+
+        then:
+        2 * executorMock.submit(_)
+    }
+
+    def "should back off after failed revalidation"() {
+        given:
+        def webClient = new WebClient(Robolectric.application)
+        runTasksImmediately(webClient)
+        def webInterfaceMock = Mock(ConditionalWebInterface)
+        webClient.webInterface = webInterfaceMock
+        def webCallbackMock = Mock(RevalidatingWebCallback)
+        webCallbackMock.getFreshness("a") >> new Freshness("\"v1\"", null, 1000)
+
+        when:
+        2.times { webClient.revalidate("a", webCallbackMock) }
+
+        then:
+        1 * webInterfaceMock.execute(*_) >> { throw new IOException("error") }
+    }
+
+    def "should not revalidate again right after successful revalidation"() {
+        given:
+        def webClient = new WebClient(Robolectric.application)
+        runTasksImmediately(webClient)
+        def webInterfaceMock = Mock(ConditionalWebInterface)
+        webClient.webInterface = webInterfaceMock
+        def webCallbackMock = Mock(RevalidatingWebCallback)
+        webCallbackMock.getFreshness("a") >> new Freshness("\"v1\"", null, 1000)
+
+        when:
+        2.times { webClient.revalidate("a", webCallbackMock) }
+
+        then:
+        1 * webInterfaceMock.execute(*_) >> WebResponse.notModified(null)
+        1 * webCallbackMock.onFreshness("a", _)
+    }
+
+    def "should revalidate again once the interval passed"() {
+        given:
+        def webClient = new WebClient(Robolectric.application)
+        runTasksImmediately(webClient)
+        def webInterfaceMock = Mock(ConditionalWebInterface)
+        webClient.webInterface = webInterfaceMock
+        def webCallbackMock = Mock(RevalidatingWebCallback)
+        webCallbackMock.getFreshness("a") >> new Freshness("\"v1\"", null, 1000)
+
+        when:
+        webClient.revalidate("a", webCallbackMock)
+        // interval passed
+        webClient.nextRevalidations.clear()
+        webClient.revalidate("a", webCallbackMock)
+
+        then:
+        2 * webInterfaceMock.execute(*_) >> WebResponse.notModified(null)
+    }
+
+    def "should not revalidate without conditional web interface"() {
+        given:
+        def webClient = new WebClient(Robolectric.application)
+        def executorMock = Mock(ExecutorService)
+        webClient.taskExecutor = executorMock
+        webClient.webInterface = Mock(WebInterface)
+
+        when:
+        webClient.revalidate("a", Mock(RevalidatingWebCallback))
+
+        then:
+        0 * executorMock.submit(_)
+    }
+
+    private static void runTasksImmediately(final WebClient webClient) {
+        webClient.taskExecutor = [submit: { Runnable task -> task.run(); null }] as ExecutorService
+    }
+
 }
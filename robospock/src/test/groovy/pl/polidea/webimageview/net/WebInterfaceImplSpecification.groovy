@@ -0,0 +1,111 @@
+package pl.polidea.webimageview.net
+
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpHandler
+import com.sun.net.httpserver.HttpServer
+import com.xtremelabs.robolectric.Robolectric
+import pl.polidea.robospock.RoboSpecification
+import pl.polidea.utils.Freshness
+
+class WebInterfaceImplSpecification extends RoboSpecification {
+
+    private static final String ETAG = "\"v1\""
+
+    private HttpServer server
+
+    private String baseUrl
+
+    private List<String> requestedEtags = []
+
+    def setup() {
+        // requests go to the local server instead of the fake layer
+        Robolectric.getFakeHttpLayer().interceptHttpRequests(false)
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0)
+        server.createContext("/image", { HttpExchange exchange ->
+            def etag = exchange.getRequestHeaders().getFirst("If-None-Match")
+            requestedEtags << etag
+            exchange.getResponseHeaders().add("ETag", ETAG)
+            exchange.getResponseHeaders().add("Cache-Control", "max-age=60")
+            if (etag == ETAG) {
+                exchange.sendResponseHeaders(304, -1)
+            } else {
+                def body = "image".bytes
+                exchange.sendResponseHeaders(200, body.length)
+                exchange.getResponseBody().write(body)
+            }
+            exchange.close()
+        } as HttpHandler)
+        server.createContext("/plain", { HttpExchange exchange ->
+            def body = "image".bytes
+            exchange.sendResponseHeaders(200, body.length)
+            exchange.getResponseBody().write(body)
+            exchange.close()
+        } as HttpHandler)
+        server.createContext("/missing", { HttpExchange exchange ->
+            exchange.sendResponseHeaders(404, -1)
+            exchange.close()
+        } as HttpHandler)
+        server.start()
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort()
+    }
+
+    def cleanup() {
+        server.stop(0)
+    }
+
+    def "should read freshness of downloaded image"() {
+        when:
+        def response = new WebInterfaceImpl().execute(baseUrl + "/image", null)
+
+        then:
+        !response.isNotModified()
+        response.getStream().text == "image"
+        response.getFreshness().getEtag() == ETAG
+        response.getFreshness().isFresh(System.currentTimeMillis())
+        requestedEtags == [null]
+    }
+
+    def "should not expire image without validators and max-age"() {
+        when:
+        def response = new WebInterfaceImpl().execute(baseUrl + "/plain", null)
+
+        then:
+        response.getStream().text == "image"
+        response.getFreshness() == null
+    }
+
+    def "should revalidate image with conditional request"() {
+        given:
+        def cached = new Freshness(ETAG, null, 1000)
+
+        when:
+        def response = new WebInterfaceImpl().execute(baseUrl + "/image", cached)
+
+        then:
+        response.isNotModified()
+        response.getStream() == null
+        response.getFreshness().isFresh(System.currentTimeMillis())
+        requestedEtags == [ETAG]
+    }
+
+    def "should download image again when it was modified"() {
+        given:
+        def cached = new Freshness("\"v0\"", null, 1000)
+
+        when:
+        def response = new WebInterfaceImpl().execute(baseUrl + "/image", cached)
+
+        then:
+        !response.isNotModified()
+        response.getStream().text == "image"
+        response.getFreshness().getEtag() == ETAG
+    }
+
+    def "should throw on unsuccessful response"() {
+        when:
+        new WebInterfaceImpl().execute(baseUrl + "/missing", null)
+
+        then:
+        thrown(IOException)
+    }
+}